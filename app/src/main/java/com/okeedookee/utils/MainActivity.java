@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -25,11 +26,18 @@ import androidx.work.ExistingWorkPolicy;
 import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.service.GatewayService;
 import com.okeedookee.utils.ui.LogAdapter;
+import com.okeedookee.utils.utils.AppLog;
+import com.okeedookee.utils.utils.GatewayLogger;
+import com.okeedookee.utils.utils.GatewayMetrics;
 import com.okeedookee.utils.utils.LogRepository;
+import com.okeedookee.utils.utils.ProfileSchedule;
 import com.okeedookee.utils.worker.SmsWorker;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity {
@@ -37,15 +45,25 @@ public class MainActivity extends AppCompatActivity {
     private ImageButton btnSettings;
     private Button btnStart, btnStop;
     private RecyclerView rvLogs;
-    private Handler logRefreshHandler;
-    private Runnable logRefreshRunnable;
+    private LogAdapter logAdapter;
+    private Handler mainHandler;
+    private ExecutorService logExecutor;
+    private LogRepository.LogListener logListener;
+    private boolean isLoadingOlderLogs = false;
+    private boolean hasOlderLogs = true;
     private android.widget.TextView tvNextRunTimer;
+    private android.widget.TextView tvStats;
+    private int timerTicks;
     private Handler timerHandler;
     private Runnable timerRunnable;
     private boolean isWorkerRunning = false;
 
     private static final int PERMISSION_REQUEST_CODE = 123;
     private static final String WORK_NAME = "SmsCheckWorker";
+    private static final int LOG_PAGE_SIZE = 200;
+    // Timer ticks between refreshes of the stats panel
+    private static final int STATS_REFRESH_TICKS = 5;
+    private static final int LOG_PREFETCH_DISTANCE = 20;
 
     public static final String PREFS_NAME = "SmsGatewayPrefs";
     public static final String KEY_FILE_URL = "file_url";
@@ -53,6 +71,31 @@ public class MainActivity extends AppCompatActivity {
     public static final String KEY_INTERVAL = "check_interval";
     public static final String KEY_LAST_RUN_TIME = "last_run_time";
     public static final String KEY_IS_SERVICE_RUNNING = "is_service_running";
+    public static final String KEY_CONNECT_TIMEOUT = "connect_timeout_seconds";
+    public static final String KEY_READ_TIMEOUT = "read_timeout_seconds";
+    public static final String KEY_RATE_MESSAGES_PER_SECOND = "rate_messages_per_second";
+    public static final String KEY_RATE_SEGMENTS_PER_MINUTE = "rate_segments_per_minute";
+    public static final String KEY_RATE_WINDOW_MAX_MESSAGES = "rate_window_max_messages";
+    public static final String KEY_SIM_STRATEGY = "sim_strategy";
+    public static final String KEY_SIM_DAILY_QUOTA = "sim_daily_quota";
+    public static final String KEY_POLL_FLOOR_MINUTES = "poll_floor_minutes";
+    public static final String KEY_NEXT_RUN_TIME = "next_run_time";
+    public static final String KEY_NEXT_RUN_REASON = "next_run_reason";
+    public static final String KEY_FOREGROUND_MODE = "foreground_mode";
+    public static final String KEY_FOREGROUND_POLL_SECONDS = "foreground_poll_seconds";
+    public static final String KEY_PROFILES = "profiles";
+    public static final String KEY_DEDUP_WINDOW_HOURS = "dedup_window_hours";
+    public static final String KEY_DEFAULT_COUNTRY_CODE = "default_country_code";
+    public static final String KEY_TRANSLITERATION = "transliteration";
+    public static final String KEY_MAX_SEGMENTS = "max_segments";
+    public static final String KEY_REJECT_OVER_SEGMENTS = "reject_over_segments";
+    public static final String KEY_METRICS_PORT = "metrics_port";
+    public static final String KEY_INGEST_PORT = "ingest_port";
+    public static final String KEY_INGEST_TOKEN = "ingest_token";
+    public static final String KEY_INGEST_LAN = "ingest_lan";
+    public static final String KEY_FLEET_SHARD = "fleet_shard";
+    public static final String KEY_FLEET_SHARD_COUNT = "fleet_shard_count";
+    public static final String KEY_DEVICE_ID = "device_id";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,6 +105,9 @@ public class MainActivity extends AppCompatActivity {
         // Initialize SharedPreferences with GitHubConfig defaults
         initializeDefaultPreferences();
 
+        mainHandler = new Handler(Looper.getMainLooper());
+        logExecutor = Executors.newSingleThreadExecutor();
+
         // Clear all existing logs on app start
         LogRepository.clearLogs(this);
 
@@ -69,11 +115,10 @@ public class MainActivity extends AppCompatActivity {
         btnStart = findViewById(R.id.btnStart);
         btnStop = findViewById(R.id.btnStop);
         tvNextRunTimer = findViewById(R.id.tvNextRunTimer);
+        tvStats = findViewById(R.id.tvStats);
         rvLogs = findViewById(R.id.rvLogs);
 
-        rvLogs.setLayoutManager(new LinearLayoutManager(this));
-        LogAdapter adapter = new LogAdapter(LogRepository.getLogs(this));
-        rvLogs.setAdapter(adapter);
+        setupLogList();
 
         checkPermissions();
         updateButtonStates();
@@ -81,7 +126,6 @@ public class MainActivity extends AppCompatActivity {
         btnStart.setOnClickListener(v -> {
             // Clear logs when starting service
             LogRepository.clearLogs(this);
-            refreshLogs();
             startWorker();
             Toast.makeText(this, "Service Started", Toast.LENGTH_SHORT).show();
             updateButtonStates();
@@ -121,23 +165,15 @@ public class MainActivity extends AppCompatActivity {
                     }
                 });
 
-        // Setup periodic log refresh
-        logRefreshHandler = new Handler(Looper.getMainLooper());
-        logRefreshRunnable = new Runnable() {
-            @Override
-            public void run() {
-                refreshLogs();
-                logRefreshHandler.postDelayed(this, 2000); // Refresh every 2 seconds
-            }
-        };
-        logRefreshHandler.post(logRefreshRunnable);
-
         // Setup timer for next run countdown
         timerHandler = new Handler(Looper.getMainLooper());
         timerRunnable = new Runnable() {
             @Override
             public void run() {
                 updateTimer();
+                if (timerTicks++ % STATS_REFRESH_TICKS == 0) {
+                    tvStats.setText(GatewayMetrics.describe(MainActivity.this));
+                }
                 timerHandler.postDelayed(this, 1000); // Update every second
             }
         };
@@ -147,16 +183,14 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        refreshLogs();
         updateButtonStates();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (logRefreshHandler != null && logRefreshRunnable != null) {
-            logRefreshHandler.removeCallbacks(logRefreshRunnable);
-        }
+        LogRepository.removeListener(logListener);
+        logExecutor.shutdownNow();
         if (timerHandler != null && timerRunnable != null) {
             timerHandler.removeCallbacks(timerRunnable);
         }
@@ -186,32 +220,109 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        long nextRunTime = lastRunTime + (intervalMinutes * 60 * 1000L);
+        // The worker records the time it chose; older installs fall back to the fixed interval
+        long nextRunTime = prefs.getLong(KEY_NEXT_RUN_TIME, 0);
+        String reason = prefs.getString(KEY_NEXT_RUN_REASON, null);
+        if (nextRunTime < lastRunTime) {
+            nextRunTime = lastRunTime + (intervalMinutes * 60 * 1000L);
+            reason = null;
+        }
         long currentTime = System.currentTimeMillis();
         long diff = nextRunTime - currentTime;
 
         if (diff > 0) {
             long minutes = TimeUnit.MILLISECONDS.toMinutes(diff);
             long seconds = TimeUnit.MILLISECONDS.toSeconds(diff) - TimeUnit.MINUTES.toSeconds(minutes);
-            tvNextRunTimer.setText(String.format("Next run in: %02d:%02d", minutes, seconds));
+            tvNextRunTimer.setText(String.format("Next run in: %02d:%02d", minutes, seconds)
+                    + (reason != null ? " (" + reason + ")" : ""));
         } else {
             tvNextRunTimer.setText("Status: Waiting for system execution...");
         }
     }
 
-    private void refreshLogs() {
-        if (rvLogs.getAdapter() instanceof LogAdapter) {
-            LogAdapter adapter = (LogAdapter) rvLogs.getAdapter();
-            adapter.updateLogs(LogRepository.getLogs(this));
+    /**
+     * Log rows are pushed from the logger thread as they are committed and
+     * older history is paged in as the user scrolls up; nothing runs while idle.
+     */
+    private void setupLogList() {
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        rvLogs.setLayoutManager(layoutManager);
+        logAdapter = new LogAdapter(new ArrayList<>());
+        rvLogs.setAdapter(logAdapter);
+
+        logListener = new LogRepository.LogListener() {
+            @Override
+            public void onLogsAppended(List<AppLog> logs) {
+                mainHandler.post(() -> {
+                    boolean atBottom = !rvLogs.canScrollVertically(1);
+                    int inserted = logAdapter.appendLogs(logs);
+                    if (atBottom && inserted > 0) {
+                        rvLogs.scrollToPosition(logAdapter.getItemCount() - 1);
+                    }
+                });
+            }
+
+            @Override
+            public void onLogsCleared() {
+                mainHandler.post(() -> {
+                    logAdapter.clear();
+                    hasOlderLogs = false;
+                });
+            }
+        };
+        LogRepository.addListener(logListener);
+
+        // Initial page; entries committed meanwhile arrive through the listener
+        // and the adapter ignores any overlap by seq
+        logExecutor.execute(() -> {
+            List<AppLog> initial = LogRepository.getLogs(this);
+            mainHandler.post(() -> {
+                logAdapter.prependLogs(initial);
+                hasOlderLogs = !initial.isEmpty();
+                rvLogs.scrollToPosition(Math.max(0, logAdapter.getItemCount() - 1));
+            });
+        });
+
+        rvLogs.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() <= LOG_PREFETCH_DISTANCE) {
+                    loadOlderLogs();
+                }
+            }
+        });
+    }
+
+    private void loadOlderLogs() {
+        long oldestSeq = logAdapter.getOldestSeq();
+        if (isLoadingOlderLogs || !hasOlderLogs || oldestSeq <= 0) {
+            return;
         }
+        isLoadingOlderLogs = true;
+        logExecutor.execute(() -> {
+            List<AppLog> page = LogRepository.getLogsBefore(this, oldestSeq, LOG_PAGE_SIZE);
+            mainHandler.post(() -> {
+                logAdapter.prependLogs(page);
+                hasOlderLogs = page.size() == LOG_PAGE_SIZE;
+                isLoadingOlderLogs = false;
+            });
+        });
     }
 
     private void checkPermissions() {
         String[] permissions = {
-                Manifest.permission.SEND_SMS
+                Manifest.permission.SEND_SMS,
+                // Lists the active SIMs for multi-SIM sending
+                Manifest.permission.READ_PHONE_STATE
         };
 
         List<String> missing = new ArrayList<>();
+        // The foreground service notification needs this from Android 13
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
+                        != PackageManager.PERMISSION_GRANTED) {
+            missing.add(Manifest.permission.POST_NOTIFICATIONS);
+        }
         for (String permission : permissions) {
             if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
                 missing.add(permission);
@@ -242,15 +353,22 @@ public class MainActivity extends AppCompatActivity {
 
         // Update last run time to now
         prefs.edit().putLong(KEY_LAST_RUN_TIME, System.currentTimeMillis()).apply();
+        // Every profile is checked on the first run
+        ProfileSchedule.clear(this);
 
-        // Trigger immediate run
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SmsWorker.class).build();
-        WorkManager.getInstance(this).enqueueUniqueWork(
-                "SmsCheckWorker_OneTime",
-                ExistingWorkPolicy.REPLACE,
-                workRequest);
+        if (prefs.getBoolean(KEY_FOREGROUND_MODE, false)) {
+            // The service polls right away and schedules itself from then on
+            GatewayService.start(this);
+        } else {
+            // Trigger immediate run
+            OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SmsWorker.class).build();
+            WorkManager.getInstance(this).enqueueUniqueWork(
+                    "SmsCheckWorker_OneTime",
+                    ExistingWorkPolicy.REPLACE,
+                    workRequest);
+        }
 
-        LogRepository.addLog(this, "Service started (Exact Timing Approach).");
+        GatewayLogger.info(this, "Service started (Exact Timing Approach).");
         updateButtonStates();
     }
 
@@ -260,8 +378,9 @@ public class MainActivity extends AppCompatActivity {
 
         com.okeedookee.utils.utils.AlarmScheduler.cancelAlarm(this);
         WorkManager.getInstance(this).cancelUniqueWork("SmsCheckWorker_OneTime"); // Cancel any pending immediate work
+        GatewayService.stop(this);
 
-        LogRepository.addLog(this, "Service stopped by user.");
+        GatewayLogger.info(this, "Service stopped by user.");
         updateButtonStates();
     }
 
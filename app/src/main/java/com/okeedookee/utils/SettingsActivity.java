@@ -1,17 +1,56 @@
 package com.okeedookee.utils;
 
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.view.View;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.Spinner;
+import android.widget.Switch;
+import android.widget.TextView;
 import android.widget.Toast;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.textfield.TextInputEditText;
+import com.okeedookee.utils.config.GatewayProfile;
+import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.pipeline.RateLimitConfig;
+import com.okeedookee.utils.pipeline.SimDispatcher;
+import com.okeedookee.utils.pipeline.SmsEncoder;
+import com.okeedookee.utils.service.GatewayService;
+import com.okeedookee.utils.utils.GitHubUrlParser;
+import com.okeedookee.utils.utils.ProfileSchedule;
+import com.okeedookee.utils.utils.SimSubscriptions;
+import com.okeedookee.utils.utils.TemplateStore;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SettingsActivity extends AppCompatActivity {
 
-    private TextInputEditText etFileUrl;
-    private TextInputEditText etToken;
-    private TextInputEditText etInterval;
+    private LinearLayout llProfiles;
+    private Button btnAddProfile;
+    private TextInputEditText etPollFloor;
+    private Switch swForegroundMode;
+    private TextInputEditText etForegroundPoll;
+    private TextInputEditText etRateMessagesPerSecond;
+    private TextInputEditText etRateSegmentsPerMinute;
+    private TextInputEditText etRateWindowMax;
+    private Spinner spSimStrategy;
+    private TextInputEditText etSimDailyQuota;
+    private TextInputEditText etDefaultCountryCode;
+    private Spinner spTransliteration;
+    private TextInputEditText etMaxSegments;
+    private Switch swRejectOverSegments;
+    private TextInputEditText etDedupWindow;
+    private TextInputEditText etMetricsPort;
+    private TextInputEditText etIngestPort;
+    private TextInputEditText etIngestToken;
+    private Switch swIngestLan;
+    private TextInputEditText etFleetShardCount;
+    private TextInputEditText etFleetShard;
     private Button btnSave;
 
     @Override
@@ -25,68 +64,420 @@ public class SettingsActivity extends AppCompatActivity {
             getSupportActionBar().setTitle("Settings");
         }
 
-        etFileUrl = findViewById(R.id.etFileUrl);
-        etToken = findViewById(R.id.etToken);
-        etInterval = findViewById(R.id.etInterval);
+        llProfiles = findViewById(R.id.llProfiles);
+        btnAddProfile = findViewById(R.id.btnAddProfile);
+        etPollFloor = findViewById(R.id.etPollFloor);
+        swForegroundMode = findViewById(R.id.swForegroundMode);
+        etForegroundPoll = findViewById(R.id.etForegroundPoll);
+        etRateMessagesPerSecond = findViewById(R.id.etRateMessagesPerSecond);
+        etRateSegmentsPerMinute = findViewById(R.id.etRateSegmentsPerMinute);
+        etRateWindowMax = findViewById(R.id.etRateWindowMax);
+        spSimStrategy = findViewById(R.id.spSimStrategy);
+        etSimDailyQuota = findViewById(R.id.etSimDailyQuota);
+        etDefaultCountryCode = findViewById(R.id.etDefaultCountryCode);
+        spTransliteration = findViewById(R.id.spTransliteration);
+        etMaxSegments = findViewById(R.id.etMaxSegments);
+        swRejectOverSegments = findViewById(R.id.swRejectOverSegments);
+        etDedupWindow = findViewById(R.id.etDedupWindow);
+        etMetricsPort = findViewById(R.id.etMetricsPort);
+        etIngestPort = findViewById(R.id.etIngestPort);
+        etIngestToken = findViewById(R.id.etIngestToken);
+        swIngestLan = findViewById(R.id.swIngestLan);
+        etFleetShardCount = findViewById(R.id.etFleetShardCount);
+        etFleetShard = findViewById(R.id.etFleetShard);
         btnSave = findViewById(R.id.btnSave);
 
         loadCurrentSettings();
+        showProfiles();
 
+        btnAddProfile.setOnClickListener(v -> editProfile(null));
         btnSave.setOnClickListener(v -> saveSettings());
     }
 
+    /**
+     * Lists the profiles, one row each; tapping a row opens it for editing.
+     * Profiles are saved as soon as their dialog is confirmed.
+     */
+    private void showProfiles() {
+        llProfiles.removeAllViews();
+        List<GatewayProfile> profiles = ProfileStore.getProfiles(this);
+        if (profiles.isEmpty()) {
+            TextView empty = new TextView(this);
+            empty.setText("No profiles yet. Add one to start fetching commands.");
+            llProfiles.addView(empty);
+        }
+        for (GatewayProfile profile : profiles) {
+            TextView row = new TextView(this);
+            row.setText(profile.getName() + "\n" + profile.getFileUrl() + " (every " + profile.getIntervalMinutes()
+                    + " min" + (profile.getSubscriptionId() != GatewayProfile.ANY_SIM
+                            ? ", SIM " + profile.getSubscriptionId()
+                            : "")
+                    + ")");
+            row.setTextSize(14);
+            row.setPadding(0, 12, 0, 12);
+            row.setOnClickListener(v -> editProfile(profile));
+            llProfiles.addView(row);
+        }
+    }
+
+    /**
+     * Opens the profile editor.
+     *
+     * @param existing the profile to edit, or null to add a new one
+     */
+    private void editProfile(GatewayProfile existing) {
+        View view = getLayoutInflater().inflate(R.layout.dialog_profile, null);
+        TextInputEditText etName = view.findViewById(R.id.etProfileName);
+        TextInputEditText etFileUrl = view.findViewById(R.id.etFileUrl);
+        TextInputEditText etToken = view.findViewById(R.id.etToken);
+        TextInputEditText etInterval = view.findViewById(R.id.etInterval);
+        TextInputEditText etMessagesPerMinute = view.findViewById(R.id.etProfileMessagesPerMinute);
+        Spinner spSim = view.findViewById(R.id.spProfileSim);
+
+        List<Integer> simIds = new ArrayList<>();
+        List<String> simLabels = new ArrayList<>();
+        simIds.add(GatewayProfile.ANY_SIM);
+        simLabels.add("Any SIM");
+        for (int subscriptionId : SimSubscriptions.getActiveSubscriptionIds(this)) {
+            simIds.add(subscriptionId);
+            simLabels.add("SIM " + subscriptionId);
+        }
+        if (existing != null && !simIds.contains(existing.getSubscriptionId())) {
+            // Keep a pinned SIM that is not inserted right now
+            simIds.add(existing.getSubscriptionId());
+            simLabels.add("SIM " + existing.getSubscriptionId() + " (inactive)");
+        }
+        spSim.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, simLabels));
+
+        if (existing != null) {
+            etName.setText(existing.getName());
+            etFileUrl.setText(existing.getFileUrl());
+            etToken.setText(existing.getToken());
+            etInterval.setText(String.valueOf(existing.getIntervalMinutes()));
+            etMessagesPerMinute.setText(String.valueOf(existing.getMessagesPerMinute()));
+            spSim.setSelection(simIds.indexOf(existing.getSubscriptionId()));
+        } else {
+            etName.setText("Profile " + (ProfileStore.getProfiles(this).size() + 1));
+            etInterval.setText("15");
+            etMessagesPerMinute.setText("0");
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(existing != null ? "Edit Profile" : "Add Profile")
+                .setView(view)
+                .setPositiveButton("Save", null)
+                .setNegativeButton("Cancel", null);
+        if (existing != null) {
+            builder.setNeutralButton("Delete", (dialog, which) -> deleteProfile(existing));
+        }
+        AlertDialog dialog = builder.create();
+        dialog.show();
+        // Validate before closing, so a typo does not throw away the whole form
+        dialog.getButton(DialogInterface.BUTTON_POSITIVE).setOnClickListener(v -> {
+            String name = etName.getText().toString().trim();
+            String fileUrl = etFileUrl.getText().toString().trim();
+            String token = etToken.getText().toString().trim();
+            int interval;
+            int messagesPerMinute;
+            try {
+                interval = Integer.parseInt(etInterval.getText().toString().trim());
+                messagesPerMinute = Integer.parseInt(etMessagesPerMinute.getText().toString().trim());
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, "Invalid interval or rate value", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            if (name.isEmpty()) {
+                Toast.makeText(this, "Profile name cannot be empty", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            GitHubUrlParser.GitHubUrlInfo urlInfo = GitHubUrlParser.parse(fileUrl);
+            if (urlInfo == null || !urlInfo.isValid()) {
+                Toast.makeText(this, "Invalid GitHub File URL", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            if (token.isEmpty()) {
+                Toast.makeText(this, "GitHub Token cannot be empty", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            if (interval < 1 || messagesPerMinute < 0) {
+                Toast.makeText(this, "Interval must be at least 1 minute and the rate cannot be negative",
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            List<GatewayProfile> profiles = ProfileStore.getProfiles(this);
+            GatewayProfile profile = null;
+            if (existing != null) {
+                for (GatewayProfile candidate : profiles) {
+                    if (candidate.getId().equals(existing.getId())) {
+                        profile = candidate;
+                    }
+                }
+            }
+            if (profile == null) {
+                profile = new GatewayProfile(ProfileStore.newProfileId(), name, fileUrl, token, interval);
+                profiles.add(profile);
+            }
+            profile.setName(name);
+            profile.setFileUrl(fileUrl);
+            profile.setToken(token);
+            profile.setIntervalMinutes(interval);
+            profile.setMessagesPerMinute(messagesPerMinute);
+            profile.setSubscriptionId(simIds.get(spSim.getSelectedItemPosition()));
+            ProfileStore.saveProfiles(this, profiles);
+            // Check the changed profile on the next run
+            ProfileSchedule.remove(this, profile.getId());
+
+            dialog.dismiss();
+            showProfiles();
+        });
+    }
+
+    private void deleteProfile(GatewayProfile profile) {
+        List<GatewayProfile> profiles = ProfileStore.getProfiles(this);
+        List<GatewayProfile> kept = new ArrayList<>(profiles.size());
+        for (GatewayProfile candidate : profiles) {
+            if (!candidate.getId().equals(profile.getId())) {
+                kept.add(candidate);
+            }
+        }
+        ProfileStore.saveProfiles(this, kept);
+        ProfileSchedule.remove(this, profile.getId());
+        TemplateStore.remove(this, profile.getId());
+        Toast.makeText(this, "Profile deleted. Messages already queued will still be sent.", Toast.LENGTH_LONG)
+                .show();
+        showProfiles();
+    }
+
     private void loadCurrentSettings() {
         SharedPreferences prefs = getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE);
-        String fileUrl = prefs.getString(MainActivity.KEY_FILE_URL, "");
-        String token = prefs.getString(MainActivity.KEY_TOKEN, "");
-        int interval = prefs.getInt(MainActivity.KEY_INTERVAL, 15);
+        etPollFloor.setText(String.valueOf(prefs.getInt(MainActivity.KEY_POLL_FLOOR_MINUTES,
+                GitHubConfig.POLL_FLOOR_MINUTES)));
+        swForegroundMode.setChecked(prefs.getBoolean(MainActivity.KEY_FOREGROUND_MODE, false));
+        etForegroundPoll.setText(String.valueOf(prefs.getInt(MainActivity.KEY_FOREGROUND_POLL_SECONDS,
+                GitHubConfig.FOREGROUND_POLL_SECONDS)));
+
+        etRateMessagesPerSecond.setText(String.valueOf(prefs.getFloat(MainActivity.KEY_RATE_MESSAGES_PER_SECOND,
+                (float) RateLimitConfig.DEFAULT_MESSAGES_PER_SECOND)));
+        etRateSegmentsPerMinute.setText(String.valueOf(prefs.getInt(MainActivity.KEY_RATE_SEGMENTS_PER_MINUTE,
+                RateLimitConfig.DEFAULT_SEGMENTS_PER_MINUTE)));
+        etRateWindowMax.setText(String.valueOf(prefs.getInt(MainActivity.KEY_RATE_WINDOW_MAX_MESSAGES,
+                RateLimitConfig.DEFAULT_WINDOW_MAX_MESSAGES)));
 
-        etFileUrl.setText(fileUrl);
-        etToken.setText(token);
-        etInterval.setText(String.valueOf(interval));
+        SimDispatcher.Strategy strategy;
+        try {
+            strategy = SimDispatcher.Strategy.valueOf(prefs.getString(MainActivity.KEY_SIM_STRATEGY,
+                    SimDispatcher.Strategy.ROUND_ROBIN.name()));
+        } catch (IllegalArgumentException e) {
+            strategy = SimDispatcher.Strategy.ROUND_ROBIN;
+        }
+        spSimStrategy.setSelection(strategy.ordinal());
+        etSimDailyQuota.setText(String.valueOf(prefs.getInt(MainActivity.KEY_SIM_DAILY_QUOTA, 0)));
+        etDefaultCountryCode.setText(prefs.getString(MainActivity.KEY_DEFAULT_COUNTRY_CODE,
+                GitHubConfig.DEFAULT_COUNTRY_CODE));
+        SmsEncoder.Transliteration transliteration;
+        try {
+            transliteration = SmsEncoder.Transliteration.valueOf(prefs.getString(MainActivity.KEY_TRANSLITERATION,
+                    SmsEncoder.Transliteration.OFF.name()));
+        } catch (IllegalArgumentException e) {
+            transliteration = SmsEncoder.Transliteration.OFF;
+        }
+        spTransliteration.setSelection(transliteration.ordinal());
+        etMaxSegments.setText(String.valueOf(prefs.getInt(MainActivity.KEY_MAX_SEGMENTS, 0)));
+        swRejectOverSegments.setChecked(prefs.getBoolean(MainActivity.KEY_REJECT_OVER_SEGMENTS, false));
+        etDedupWindow.setText(String.valueOf(prefs.getInt(MainActivity.KEY_DEDUP_WINDOW_HOURS,
+                GitHubConfig.DEDUP_WINDOW_HOURS)));
+        etMetricsPort.setText(String.valueOf(prefs.getInt(MainActivity.KEY_METRICS_PORT,
+                GitHubConfig.METRICS_PORT)));
+        etIngestPort.setText(String.valueOf(prefs.getInt(MainActivity.KEY_INGEST_PORT, GitHubConfig.INGEST_PORT)));
+        etIngestToken.setText(prefs.getString(MainActivity.KEY_INGEST_TOKEN, ""));
+        swIngestLan.setChecked(prefs.getBoolean(MainActivity.KEY_INGEST_LAN, false));
+        etFleetShardCount.setText(String.valueOf(prefs.getInt(MainActivity.KEY_FLEET_SHARD_COUNT,
+                GitHubConfig.FLEET_SHARD_COUNT)));
+        etFleetShard.setText(String.valueOf(prefs.getInt(MainActivity.KEY_FLEET_SHARD, 1)));
     }
 
     private void saveSettings() {
-        String fileUrl = etFileUrl.getText().toString().trim();
-        String token = etToken.getText().toString().trim();
-        String intervalStr = etInterval.getText().toString().trim();
+        int pollFloor;
+        try {
+            pollFloor = Integer.parseInt(etPollFloor.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid shortest interval value", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        if (fileUrl.isEmpty()) {
-            Toast.makeText(this, "GitHub File URL cannot be empty", Toast.LENGTH_SHORT).show();
+        if (pollFloor < 1) {
+            Toast.makeText(this, "Shortest interval must be at least 1 minute", Toast.LENGTH_LONG)
+                    .show();
             return;
         }
 
-        if (token.isEmpty()) {
-            Toast.makeText(this, "GitHub Token cannot be empty", Toast.LENGTH_SHORT).show();
+        int foregroundPoll;
+        try {
+            foregroundPoll = Integer.parseInt(etForegroundPoll.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid foreground poll interval", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        if (intervalStr.isEmpty()) {
-            Toast.makeText(this, "Check Interval cannot be empty", Toast.LENGTH_SHORT).show();
+        if (foregroundPoll < 1) {
+            Toast.makeText(this, "Foreground poll interval must be at least 1 second", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        int interval;
+        float messagesPerSecond;
+        int segmentsPerMinute;
+        int windowMax;
         try {
-            interval = Integer.parseInt(intervalStr);
+            messagesPerSecond = Float.parseFloat(etRateMessagesPerSecond.getText().toString().trim());
+            segmentsPerMinute = Integer.parseInt(etRateSegmentsPerMinute.getText().toString().trim());
+            windowMax = Integer.parseInt(etRateWindowMax.getText().toString().trim());
         } catch (NumberFormatException e) {
-            Toast.makeText(this, "Invalid interval value", Toast.LENGTH_SHORT).show();
+            Toast.makeText(this, "Invalid rate limit value", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        if (interval < 1) {
-            Toast.makeText(this, "Interval must be at least 15 minutes (Android requirement)", Toast.LENGTH_LONG)
-                    .show();
+        if (messagesPerSecond <= 0 || segmentsPerMinute < 1 || windowMax < 0) {
+            Toast.makeText(this, "Rate limits must be positive", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int simDailyQuota;
+        try {
+            simDailyQuota = Integer.parseInt(etSimDailyQuota.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid SIM quota value", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (simDailyQuota < 0) {
+            Toast.makeText(this, "SIM quota cannot be negative", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String defaultCountryCode = etDefaultCountryCode.getText().toString().trim();
+        if (!defaultCountryCode.isEmpty() && !defaultCountryCode.matches("[1-9][0-9]{0,2}")) {
+            Toast.makeText(this, "Country code must be 1 to 3 digits, e.g. 44", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int maxSegments;
+        try {
+            maxSegments = Integer.parseInt(etMaxSegments.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid segment limit", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (maxSegments < 0) {
+            Toast.makeText(this, "Segment limit cannot be negative", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String transliteration =
+                SmsEncoder.Transliteration.values()[spTransliteration.getSelectedItemPosition()].name();
+
+        int dedupWindow;
+        try {
+            dedupWindow = Integer.parseInt(etDedupWindow.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid duplicate window value", Toast.LENGTH_SHORT).show();
             return;
         }
 
+        if (dedupWindow < 0) {
+            Toast.makeText(this, "Duplicate window cannot be negative", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int metricsPort;
+        try {
+            metricsPort = Integer.parseInt(etMetricsPort.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid metrics port", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (metricsPort != 0 && (metricsPort < 1024 || metricsPort > 65535)) {
+            Toast.makeText(this, "Metrics port must be 0 or between 1024 and 65535", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int ingestPort;
+        try {
+            ingestPort = Integer.parseInt(etIngestPort.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid ingest port", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (ingestPort != 0 && (ingestPort < 1024 || ingestPort > 65535)) {
+            Toast.makeText(this, "Ingest port must be 0 or between 1024 and 65535", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (ingestPort != 0 && ingestPort == metricsPort) {
+            Toast.makeText(this, "Ingest and metrics ports must differ", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String ingestToken = etIngestToken.getText().toString().trim();
+        if (ingestPort != 0 && ingestToken.length() < 16) {
+            Toast.makeText(this, "Ingest token must be at least 16 characters", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        int fleetShardCount;
+        int fleetShard;
+        try {
+            fleetShardCount = Integer.parseInt(etFleetShardCount.getText().toString().trim());
+            fleetShard = Integer.parseInt(etFleetShard.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Invalid fleet value", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (fleetShardCount < 1 || fleetShard < 1 || fleetShard > fleetShardCount) {
+            Toast.makeText(this, "Shard must be between 1 and the number of devices", Toast.LENGTH_LONG).show();
+            return;
+        }
+        String simStrategy = SimDispatcher.Strategy.values()[spSimStrategy.getSelectedItemPosition()].name();
+
         SharedPreferences prefs = getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE);
         prefs.edit()
-                .putString(MainActivity.KEY_FILE_URL, fileUrl)
-                .putString(MainActivity.KEY_TOKEN, token)
-                .putInt(MainActivity.KEY_INTERVAL, interval)
+                .putInt(MainActivity.KEY_POLL_FLOOR_MINUTES, pollFloor)
+                .putBoolean(MainActivity.KEY_FOREGROUND_MODE, swForegroundMode.isChecked())
+                .putInt(MainActivity.KEY_FOREGROUND_POLL_SECONDS, foregroundPoll)
+                .putFloat(MainActivity.KEY_RATE_MESSAGES_PER_SECOND, messagesPerSecond)
+                .putInt(MainActivity.KEY_RATE_SEGMENTS_PER_MINUTE, segmentsPerMinute)
+                .putInt(MainActivity.KEY_RATE_WINDOW_MAX_MESSAGES, windowMax)
+                .putString(MainActivity.KEY_SIM_STRATEGY, simStrategy)
+                .putInt(MainActivity.KEY_SIM_DAILY_QUOTA, simDailyQuota)
+                .putString(MainActivity.KEY_DEFAULT_COUNTRY_CODE, defaultCountryCode)
+                .putString(MainActivity.KEY_TRANSLITERATION, transliteration)
+                .putInt(MainActivity.KEY_MAX_SEGMENTS, maxSegments)
+                .putBoolean(MainActivity.KEY_REJECT_OVER_SEGMENTS, swRejectOverSegments.isChecked())
+                .putInt(MainActivity.KEY_DEDUP_WINDOW_HOURS, dedupWindow)
+                .putInt(MainActivity.KEY_METRICS_PORT, metricsPort)
+                .putInt(MainActivity.KEY_INGEST_PORT, ingestPort)
+                .putString(MainActivity.KEY_INGEST_TOKEN, ingestToken)
+                .putBoolean(MainActivity.KEY_INGEST_LAN, swIngestLan.isChecked())
+                .putInt(MainActivity.KEY_FLEET_SHARD_COUNT, fleetShardCount)
+                .putInt(MainActivity.KEY_FLEET_SHARD, fleetShard)
                 .apply();
 
+        // Switch modes right away if the gateway is on; stopping the service hands over to alarms
+        if (prefs.getBoolean(MainActivity.KEY_IS_SERVICE_RUNNING, false)) {
+            if (swForegroundMode.isChecked() && !GatewayService.isRunning()) {
+                GatewayService.start(this);
+            } else if (!swForegroundMode.isChecked() && GatewayService.isRunning()) {
+                GatewayService.stop(this);
+            }
+        }
+
         Toast.makeText(this, "Settings saved successfully", Toast.LENGTH_SHORT).show();
         finish(); // Return to MainActivity
     }
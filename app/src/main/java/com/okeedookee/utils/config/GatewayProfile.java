@@ -0,0 +1,86 @@
+package com.okeedookee.utils.config;
+
+/**
+ * One command source: a GitHub file and how its messages are fetched and sent.
+ * Stored as JSON by {@link ProfileStore}.
+ */
+public class GatewayProfile {
+    public static final int ANY_SIM = -1;
+
+    private String id;
+    private String name;
+    private String fileUrl;
+    private String token;
+    private int intervalMinutes;
+    private int subscriptionId = ANY_SIM;
+    private int messagesPerMinute;
+
+    public GatewayProfile(String id, String name, String fileUrl, String token, int intervalMinutes) {
+        this.id = id;
+        this.name = name;
+        this.fileUrl = fileUrl;
+        this.token = token;
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getFileUrl() {
+        return fileUrl;
+    }
+
+    public void setFileUrl(String fileUrl) {
+        this.fileUrl = fileUrl;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return longest delay between checks while idle
+     */
+    public int getIntervalMinutes() {
+        return intervalMinutes;
+    }
+
+    public void setIntervalMinutes(int intervalMinutes) {
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    /**
+     * @return SIM to send this profile's messages on, or {@link #ANY_SIM}
+     */
+    public int getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public void setSubscriptionId(int subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+
+    /**
+     * @return cap on this profile's sends on top of the per-SIM limits, 0 for none
+     */
+    public int getMessagesPerMinute() {
+        return messagesPerMinute;
+    }
+
+    public void setMessagesPerMinute(int messagesPerMinute) {
+        this.messagesPerMinute = messagesPerMinute;
+    }
+}
@@ -17,6 +17,34 @@ public class GitHubConfig {
     // tokens
     public static final String TOKEN = "YOUR_GITHUB_TOKEN";
 
+    // Default network timeouts, overridable through SharedPreferences
+    public static final int CONNECT_TIMEOUT_SECONDS = 15;
+    public static final int READ_TIMEOUT_SECONDS = 30;
+
+    // Shortest delay between checks while new command files keep arriving
+    public static final int POLL_FLOOR_MINUTES = 1;
+
+    // Poll interval of the foreground service while commands keep arriving
+    public static final int FOREGROUND_POLL_SECONDS = 10;
+
+    // How long a sent message is remembered so a re-read file does not send it again (0 = off)
+    public static final int DEDUP_WINDOW_HOURS = 24;
+
+    // Calling code added to phone numbers written without one, e.g. "44" (empty = leave them as they are)
+    public static final String DEFAULT_COUNTRY_CODE = "";
+
+    // Loopback port the foreground service serves Prometheus metrics on (0 = off)
+    public static final int METRICS_PORT = 0;
+
+    // Port the foreground service accepts pushed messages on (0 = off)
+    public static final int INGEST_PORT = 0;
+
+    // Queue depth at which pushed messages are refused with a 429 until it drains
+    public static final int INGEST_MAX_PENDING = 10000;
+
+    // Gateways sharing the same command files, each taking its own shard of the recipients (1 = no fleet)
+    public static final int FLEET_SHARD_COUNT = 1;
+
     private GitHubConfig() {
         // Private constructor to prevent instantiation
     }
@@ -0,0 +1,69 @@
+package com.okeedookee.utils.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.okeedookee.utils.MainActivity;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps the list of {@link GatewayProfile}s as JSON in the app preferences.
+ * Installs that predate profiles get a "Default" profile built from the old
+ * single file URL, token and interval.
+ */
+public class ProfileStore {
+    public static final String DEFAULT_PROFILE_ID = "default";
+
+    private static final Gson gson = new Gson();
+
+    // Private constructor to prevent instantiation
+    private ProfileStore() {
+    }
+
+    public static synchronized List<GatewayProfile> getProfiles(Context context) {
+        SharedPreferences prefs = prefs(context);
+        String json = prefs.getString(MainActivity.KEY_PROFILES, null);
+        if (json == null) {
+            List<GatewayProfile> migrated = new ArrayList<>();
+            String fileUrl = prefs.getString(MainActivity.KEY_FILE_URL, "");
+            if (fileUrl != null && !fileUrl.isEmpty()) {
+                migrated.add(new GatewayProfile(DEFAULT_PROFILE_ID, "Default", fileUrl,
+                        prefs.getString(MainActivity.KEY_TOKEN, ""), prefs.getInt(MainActivity.KEY_INTERVAL, 15)));
+            }
+            saveProfiles(context, migrated);
+            return migrated;
+        }
+        try {
+            List<GatewayProfile> profiles = gson.fromJson(json, new TypeToken<List<GatewayProfile>>() {
+            }.getType());
+            return profiles != null ? profiles : new ArrayList<>();
+        } catch (JsonParseException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    public static GatewayProfile getProfile(Context context, String id) {
+        for (GatewayProfile profile : getProfiles(context)) {
+            if (profile.getId().equals(id)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized void saveProfiles(Context context, List<GatewayProfile> profiles) {
+        prefs(context).edit().putString(MainActivity.KEY_PROFILES, gson.toJson(profiles)).apply();
+    }
+
+    public static String newProfileId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,137 @@
+package com.okeedookee.utils.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+
+/**
+ * Request body handed from the selector thread to a worker. The selector
+ * offers chunks as they arrive; once {@link #WINDOW_BYTES} are waiting it
+ * stops reading the socket until the worker has taken half of them, so a
+ * fast client is held back by TCP instead of filling memory.
+ */
+final class BodyStream extends InputStream {
+    static final int WINDOW_BYTES = 64 * 1024;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final long readTimeoutMillis;
+    // Called outside the lock: once the first read wants data, and once the window has room again
+    private final Runnable onFirstRead;
+    private final Runnable onDrained;
+
+    private byte[] current;
+    private int position;
+    private int buffered;
+    private boolean paused;
+    private boolean started;
+    private boolean finished;
+    private IOException failure;
+
+    BodyStream(long readTimeoutMillis, Runnable onFirstRead, Runnable onDrained) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.onFirstRead = onFirstRead;
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * @return false if the window is now full and the selector should stop reading
+     */
+    synchronized boolean offer(byte[] chunk) {
+        chunks.add(chunk);
+        buffered += chunk.length;
+        notifyAll();
+        paused = buffered >= WINDOW_BYTES;
+        return !paused;
+    }
+
+    synchronized boolean isFull() {
+        return buffered >= WINDOW_BYTES;
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Makes further reads fail, unless the whole body already arrived.
+     */
+    synchronized void fail(IOException e) {
+        if (!finished && failure == null) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        boolean first;
+        synchronized (this) {
+            first = !started;
+            started = true;
+        }
+        if (first) {
+            onFirstRead.run();
+        }
+
+        int n;
+        boolean drained = false;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + readTimeoutMillis;
+            while ((current == null || position == current.length) && chunks.isEmpty()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (finished) {
+                    return -1;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("Request body stalled");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading request body");
+                }
+            }
+            if (current == null || position == current.length) {
+                current = chunks.poll();
+                position = 0;
+            }
+            n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            buffered -= n;
+            if (paused && buffered < WINDOW_BYTES / 2) {
+                paused = false;
+                drained = true;
+            }
+        }
+        if (drained) {
+            onDrained.run();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+}
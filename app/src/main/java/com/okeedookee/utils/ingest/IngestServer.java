@@ -0,0 +1,782 @@
+package com.okeedookee.utils.ingest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP/1.1 server for pushing commands into the gateway.
+ *
+ * One selector thread accepts connections, parses request heads and feeds
+ * request bodies (plain or chunked) into a {@link BodyStream}; a few worker
+ * threads run the {@link Handler}, which reads the body as an ordinary
+ * stream. Many idle or slow connections therefore cost a buffer each, not a
+ * thread. Connections are kept alive between requests unless the client
+ * asks otherwise or a response is sent before its request body was read.
+ */
+public class IngestServer implements Closeable {
+
+    public interface Handler {
+        /**
+         * Runs on a worker thread. The body may be left unread to reject a
+         * request early; the connection is then closed after the response.
+         *
+         * @throws IOException if reading the body failed; answered with a 400
+         */
+        Response handle(Request request, InputStream body) throws IOException;
+    }
+
+    /**
+     * Thrown to the handler when a body grows beyond the server's limit.
+     */
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(long limit) {
+            super("Request body larger than " + limit + " bytes");
+        }
+    }
+
+    public static final class Request {
+        private final String method;
+        private final String path;
+        private final Map<String, String> query;
+        private final Map<String, String> headers;
+        private final String remoteAddress;
+
+        Request(String method, String path, Map<String, String> query, Map<String, String> headers,
+                String remoteAddress) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+            this.remoteAddress = remoteAddress;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return a decoded query parameter, or null if absent
+         */
+        public String getQueryParameter(String name) {
+            return query.get(name);
+        }
+
+        /**
+         * @param name header name in any case
+         * @return the header's value, or null if absent
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+    }
+
+    public static final class Response {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        public Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public Response withHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static final int MAX_CONNECTIONS = 256;
+    private static final int IN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_CHUNK_LINE = 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private enum State {
+        /** Reading a request head. */
+        HEAD,
+        /** Reading a request body into its stream. */
+        BODY,
+        /** Request read (or abandoned); waiting for the handler. */
+        HANDLING,
+        /** Writing the response. */
+        RESPONDING
+    }
+
+    private enum Chunk {
+        SIZE,
+        DATA,
+        DATA_END,
+        TRAILER
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final String remoteAddress;
+        final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long lastActivity = System.currentTimeMillis();
+
+        State state = State.HEAD;
+        BodyStream body;
+        boolean keepAlive;
+        boolean expectContinue;
+        boolean paused;
+        boolean chunked;
+        Chunk chunk;
+        long remaining;
+        long received;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = String.valueOf(channel.socket().getInetAddress().getHostAddress());
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Handler handler;
+    private final long maxBodyBytes;
+    private final ExecutorService workers;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+    private int connections;
+
+    private IngestServer(Selector selector, ServerSocketChannel serverChannel, Handler handler, int workerThreads,
+            long maxBodyBytes) {
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.handler = handler;
+        this.maxBodyBytes = maxBodyBytes;
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread worker = new Thread(runnable, "ingest-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.thread = new Thread(this::loop, "ingest-selector");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @param address       interface to listen on, e.g. the loopback address
+     * @param port          port to bind, 0 for any free one
+     * @param workerThreads handlers that may run at once; further requests wait with their bodies paused
+     * @param maxBodyBytes  longest request body accepted
+     * @throws IOException if the port cannot be bound
+     */
+    public static IngestServer start(InetAddress address, int port, Handler handler, int workerThreads,
+            long maxBodyBytes) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(address, port), 64);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        IngestServer server = new IngestServer(selector, serverChannel, handler, workerThreads, maxBodyBytes);
+        server.thread.start();
+        return server;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+                closeIdle();
+            }
+        } catch (IOException e) {
+            // Selector failed; nothing more can be served
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections >= MAX_CONNECTIONS) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            connections++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (!connection.in.hasRemaining()) {
+            return;
+        }
+        int n = connection.channel.read(connection.in);
+        if (n < 0) {
+            close(connection);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        process(connection);
+    }
+
+    /**
+     * Consumes whatever input the connection's state allows.
+     */
+    private void process(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        in.flip();
+        try {
+            boolean progress = true;
+            while (progress && in.hasRemaining()) {
+                if (connection.state == State.HEAD) {
+                    progress = readHead(connection);
+                } else if (connection.state == State.BODY) {
+                    progress = readBody(connection);
+                } else {
+                    progress = false;
+                }
+            }
+            // A body without any bytes ends as soon as its head is read
+            if (connection.state == State.BODY && connection.remaining == 0 && !connection.chunked) {
+                endBody(connection);
+            }
+        } finally {
+            in.compact();
+        }
+        if (connection.state == State.HEAD && !in.hasRemaining()) {
+            reject(connection, 431, "Request head too large\n");
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * @return true once a complete head was consumed
+     */
+    private boolean readHead(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        int end = indexOf(in, "\r\n\r\n");
+        if (end < 0) {
+            return false;
+        }
+        byte[] head = new byte[end - in.position()];
+        in.get(head);
+        in.position(in.position() + 4);
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            reject(connection, 400, "Malformed request line\n");
+            return false;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                reject(connection, 400, "Malformed header\n");
+                return false;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            String previous = headers.put(name, value);
+            if (previous != null && "content-length".equals(name) && !previous.equals(value)) {
+                reject(connection, 400, "Conflicting Content-Length\n");
+                return false;
+            }
+        }
+
+        String connectionHeader = lower(headers.get("connection"));
+        connection.keepAlive = "HTTP/1.1".equals(requestLine[2]) ? !connectionHeader.contains("close")
+                : connectionHeader.contains("keep-alive");
+        connection.expectContinue = "100-continue".equals(lower(headers.get("expect")));
+        connection.received = 0;
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (transferEncoding != null) {
+            if (!"chunked".equals(lower(transferEncoding)) || contentLength != null) {
+                reject(connection, transferEncoding.equalsIgnoreCase("chunked") ? 400 : 501,
+                        "Unsupported Transfer-Encoding\n");
+                return false;
+            }
+            connection.chunked = true;
+            connection.chunk = Chunk.SIZE;
+            connection.remaining = 0;
+        } else {
+            connection.chunked = false;
+            try {
+                connection.remaining = contentLength != null ? Long.parseLong(contentLength) : 0;
+            } catch (NumberFormatException e) {
+                connection.remaining = -1;
+            }
+            if (connection.remaining < 0) {
+                reject(connection, 400, "Invalid Content-Length\n");
+                return false;
+            }
+            if (connection.remaining > maxBodyBytes) {
+                reject(connection, 413, "Request body larger than " + maxBodyBytes + " bytes\n");
+                return false;
+            }
+        }
+
+        String target = requestLine[1];
+        int question = target.indexOf('?');
+        Request request = new Request(requestLine[0], question < 0 ? target : target.substring(0, question),
+                question < 0 ? Collections.<String, String>emptyMap() : parseQuery(target.substring(question + 1)),
+                headers, connection.remoteAddress);
+        connection.state = State.BODY;
+        connection.paused = false;
+        BodyStream body = new BodyStream(READ_TIMEOUT_MILLIS,
+                () -> post(() -> sendContinue(connection)),
+                () -> post(() -> resume(connection)));
+        connection.body = body;
+        try {
+            workers.execute(() -> {
+                Response response;
+                try {
+                    response = handler.handle(request, body);
+                } catch (BodyTooLargeException e) {
+                    response = new Response(413, "text/plain", e.getMessage() + "\n");
+                } catch (IOException e) {
+                    response = new Response(400, "text/plain", "Unreadable request body: " + e.getMessage() + "\n");
+                } catch (RuntimeException e) {
+                    response = new Response(500, "text/plain", "Internal error: " + e + "\n");
+                }
+                Response finalResponse = response;
+                post(() -> respond(connection, body, finalResponse));
+            });
+        } catch (RejectedExecutionException e) {
+            close(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if input was consumed and more may follow in the buffer
+     */
+    private boolean readBody(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.body.isFull()) {
+            connection.paused = true;
+            return false;
+        }
+        if (!connection.chunked) {
+            return copyBody(connection);
+        }
+        switch (connection.chunk) {
+            case SIZE: {
+                String line = readLine(connection);
+                if (line == null) {
+                    return false;
+                }
+                int semicolon = line.indexOf(';');
+                long size;
+                try {
+                    size = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+                if (size < 0) {
+                    abandonBody(connection, new IOException("Malformed chunk size"));
+                    return false;
+                }
+                connection.remaining = size;
+                connection.chunk = size == 0 ? Chunk.TRAILER : Chunk.DATA;
+                return true;
+            }
+            case DATA:
+                copyBody(connection);
+                if (connection.remaining == 0 && connection.state == State.BODY) {
+                    connection.chunk = Chunk.DATA_END;
+                    return true;
+                }
+                return false;
+            case DATA_END:
+                if (in.remaining() < 2) {
+                    return false;
+                }
+                if (in.get() != '\r' || in.get() != '\n') {
+                    abandonBody(connection, new IOException("Malformed chunk"));
+                    return false;
+                }
+                connection.chunk = Chunk.SIZE;
+                return true;
+            case TRAILER:
+            default: {
+                String line = readLine(connection);
+                if (line == null) {
+                    return false;
+                }
+                if (line.isEmpty()) {
+                    endBody(connection);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves up to {@code remaining} bytes of the buffer into the body.
+     *
+     * @return true if the body (or the chunk) was read to its end
+     */
+    private boolean copyBody(Connection connection) {
+        ByteBuffer in = connection.in;
+        int n = (int) Math.min(connection.remaining, in.remaining());
+        if (n > 0) {
+            connection.received += n;
+            if (connection.received > maxBodyBytes) {
+                abandonBody(connection, new BodyTooLargeException(maxBodyBytes));
+                return false;
+            }
+            byte[] chunk = new byte[n];
+            in.get(chunk);
+            connection.remaining -= n;
+            connection.paused = !connection.body.offer(chunk);
+        }
+        if (connection.remaining == 0 && !connection.chunked) {
+            endBody(connection);
+            return false;
+        }
+        return connection.remaining == 0;
+    }
+
+    /**
+     * @return a CRLF-terminated line without its terminator, or null if it is not complete yet
+     */
+    private String readLine(Connection connection) {
+        ByteBuffer in = connection.in;
+        int end = indexOf(in, "\r\n");
+        if (end < 0) {
+            if (in.remaining() > MAX_CHUNK_LINE) {
+                abandonBody(connection, new IOException("Chunk line too long"));
+            }
+            return null;
+        }
+        byte[] line = new byte[end - in.position()];
+        in.get(line);
+        in.position(in.position() + 2);
+        return new String(line, StandardCharsets.ISO_8859_1);
+    }
+
+    private void endBody(Connection connection) {
+        connection.body.finish();
+        connection.state = State.HANDLING;
+    }
+
+    /**
+     * Stops reading a broken body; the handler sees the error and the
+     * connection is closed after its response.
+     */
+    private void abandonBody(Connection connection, IOException e) {
+        connection.body.fail(e);
+        connection.keepAlive = false;
+        connection.state = State.HANDLING;
+    }
+
+    private void sendContinue(Connection connection) {
+        if (connection.expectContinue && connection.state == State.BODY && connection.key.isValid()) {
+            connection.expectContinue = false;
+            connection.out.add(ByteBuffer.wrap(CONTINUE));
+            updateInterest(connection);
+        }
+    }
+
+    private void resume(Connection connection) {
+        if (connection.state != State.BODY || !connection.key.isValid()) {
+            return;
+        }
+        connection.paused = false;
+        try {
+            process(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void respond(Connection connection, BodyStream body, Response response) {
+        if (!connection.key.isValid() || connection.body != body) {
+            return;
+        }
+        if (connection.state == State.BODY) {
+            // Answered before the body was read; the rest of it is not worth reading
+            body.fail(new IOException("Response already sent"));
+            connection.keepAlive = false;
+        }
+        connection.state = State.RESPONDING;
+        connection.expectContinue = false;
+        connection.out.add(encode(response, connection.keepAlive));
+        updateInterest(connection);
+    }
+
+    /**
+     * Sends an error without involving the handler, then closes the connection.
+     */
+    private void reject(Connection connection, int status, String message) {
+        connection.keepAlive = false;
+        connection.state = State.RESPONDING;
+        connection.out.add(encode(new Response(status, "text/plain", message), false));
+        updateInterest(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        while (!connection.out.isEmpty()) {
+            ByteBuffer buffer = connection.out.peek();
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            connection.out.poll();
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        if (connection.state == State.RESPONDING) {
+            if (!connection.keepAlive) {
+                close(connection);
+                return;
+            }
+            connection.state = State.HEAD;
+            connection.body = null;
+            // A pipelined request may already be buffered
+            process(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    private void updateInterest(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (!connection.out.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (connection.state == State.HEAD || (connection.state == State.BODY && !connection.paused)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            boolean waiting = connection.state == State.HEAD
+                    || (connection.state == State.BODY && !connection.paused)
+                    || connection.state == State.RESPONDING;
+            if (waiting && now - connection.lastActivity > IDLE_TIMEOUT_MILLIS) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.body != null) {
+            connection.body.fail(new ClosedChannelException());
+        }
+        if (connection.key.isValid()) {
+            connection.key.cancel();
+            connections--;
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private static ByteBuffer encode(Response response, boolean keepAlive) {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        head.append("Content-Type: ").append(response.contentType).append("\r\n");
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + response.body.length);
+        buffer.put(headBytes).put(response.body).flip();
+        return buffer;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 202:
+                return "Accepted";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 413:
+                return "Payload Too Large";
+            case 415:
+                return "Unsupported Media Type";
+            case 429:
+                return "Too Many Requests";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 501:
+                return "Not Implemented";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return status < 500 ? "Error" : "Server Error";
+        }
+    }
+
+    /**
+     * @return absolute index of the first occurrence between position and limit, or -1
+     */
+    private static int indexOf(ByteBuffer buffer, String pattern) {
+        int last = buffer.limit() - pattern.length();
+        outer:
+        for (int i = buffer.position(); i <= last; i++) {
+            for (int j = 0; j < pattern.length(); j++) {
+                if (buffer.get(i + j) != pattern.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            try {
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                parameters.put(name, value);
+            } catch (IllegalArgumentException | java.io.UnsupportedEncodingException e) {
+                // Skip a parameter that does not decode
+            }
+        }
+        return parameters;
+    }
+
+    private static String lower(String value) {
+        return value != null ? value.toLowerCase(Locale.ROOT) : "";
+    }
+}
@@ -1,19 +1,78 @@
 package com.okeedookee.utils.network;
 
+import java.util.List;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
+import retrofit2.http.Body;
 import retrofit2.http.DELETE;
 import retrofit2.http.GET;
 import retrofit2.http.Header;
+import retrofit2.http.Headers;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
 public interface GithubApiService {
+    /**
+     * Lists a directory (metadata only: name, path, sha, size). Pass the ETag from
+     * the previous response as {@code ifNoneMatch} (or null) - an unchanged
+     * directory answers 304 without counting against the rate limit. Never
+     * answered from the HTTP cache, since claims and deletions are decided on it.
+     */
+    @Headers("Cache-Control: no-cache")
     @GET("repos/{owner}/{repo}/contents/{path}")
-    Call<GithubFileResponse> getFileContent(
+    Call<List<GithubFileResponse>> listDirectory(
         @Header("Authorization") String token,
+        @Header("If-None-Match") String ifNoneMatch,
         @Path("owner") String owner,
         @Path("repo") String repo,
-        @Path("path") String path
+        @Path("path") String path,
+        @Query("ref") String ref
+    );
+
+    /**
+     * Streams the raw file bytes (no JSON, no base64). Supported for files up to 100 MB.
+     * Neither stored in nor answered from the HTTP cache.
+     */
+    @Streaming
+    @Headers({ "Accept: application/vnd.github.raw", "Cache-Control: no-store" })
+    @GET("repos/{owner}/{repo}/contents/{path}")
+    Call<ResponseBody> getRawFile(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("path") String path,
+        @Query("ref") String ref
+    );
+
+    /**
+     * Streams the raw bytes of a blob by sha. Kept out of the HTTP cache.
+     */
+    @Streaming
+    @Headers({ "Accept: application/vnd.github.raw", "Cache-Control: no-store" })
+    @GET("repos/{owner}/{repo}/git/blobs/{sha}")
+    Call<ResponseBody> getRawBlob(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("sha") String sha
+    );
+
+    /**
+     * Cheap probe of the branch head. Answers 304 while the branch has not moved.
+     * Always asks GitHub, never a cached copy up to a minute old.
+     */
+    @Headers("Cache-Control: no-cache")
+    @GET("repos/{owner}/{repo}/git/ref/heads/{branch}")
+    Call<GithubRefResponse> getBranchRef(
+        @Header("Authorization") String token,
+        @Header("If-None-Match") String ifNoneMatch,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("branch") String branch
     );
 
     @DELETE("repos/{owner}/{repo}/contents/{path}")
@@ -25,4 +84,67 @@ public interface GithubApiService {
         @Query("message") String message,
         @Query("sha") String sha
     );
+
+    /**
+     * Creates or replaces a file in one commit. Creating a file that already
+     * exists answers 422, replacing one whose sha no longer matches 409; a
+     * commit racing another on the same branch can also answer 409.
+     */
+    @PUT("repos/{owner}/{repo}/contents/{path}")
+    Call<Void> putFile(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("path") String path,
+        @Body GithubContentRequest content
+    );
+
+    /**
+     * Lists one level of a tree. {@code tree} is a tree sha or
+     * {@code <commit>:<directory>}; blob entries carry their sha and size.
+     */
+    @GET("repos/{owner}/{repo}/git/trees/{tree}")
+    Call<GithubTreeResponse> getTree(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("tree") String tree
+    );
+
+    @GET("repos/{owner}/{repo}/git/commits/{sha}")
+    Call<GithubCommitResponse> getCommit(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("sha") String sha
+    );
+
+    @POST("repos/{owner}/{repo}/git/trees")
+    Call<GithubTreeResponse> createTree(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Body GithubTreeRequest tree
+    );
+
+    @POST("repos/{owner}/{repo}/git/commits")
+    Call<GithubCommitResponse> createCommit(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Body GithubCommitRequest commit
+    );
+
+    /**
+     * Moves a branch. Without {@code force} this answers 422 unless the new
+     * commit descends from the current head.
+     */
+    @PATCH("repos/{owner}/{repo}/git/refs/heads/{branch}")
+    Call<GithubRefResponse> updateBranchRef(
+        @Header("Authorization") String token,
+        @Path("owner") String owner,
+        @Path("repo") String repo,
+        @Path("branch") String branch,
+        @Body GithubRefUpdateRequest update
+    );
 }
@@ -0,0 +1,103 @@
+package com.okeedookee.utils.network;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GitHubConfig;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import com.google.gson.GsonBuilder;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Application-wide network stack for the GitHub API.
+ *
+ * One OkHttpClient (and one Retrofit proxy) is created lazily per process and
+ * shared by every worker run, so the connection pool can reuse warm TLS / HTTP/2
+ * connections to api.github.com instead of handshaking again for every request.
+ * OkHttp handles gzip transparently. GitHub marks responses cacheable for a
+ * minute, so the calls that decide what to send or delete revalidate instead
+ * of trusting the HTTP cache, and raw downloads are never stored in it.
+ */
+public class GithubClient {
+    public static final String BASE_URL = "https://api.github.com/";
+
+    private static final String CACHE_DIR = "http_cache";
+    private static final long CACHE_SIZE_BYTES = 10L * 1024 * 1024;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile OkHttpClient httpClient;
+    private static volatile GithubApiService service;
+
+    public static GithubApiService getService(Context context) {
+        if (service == null) {
+            synchronized (GithubClient.class) {
+                if (service == null) {
+                    service = createService(getHttpClient(context), BASE_URL);
+                }
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Builds a service on the shared client against another instance of the
+     * API, such as a local fake of it in tests.
+     *
+     * @param baseUrl root of the API, ending in a slash
+     */
+    public static GithubApiService createService(Context context, String baseUrl) {
+        return createService(getHttpClient(context), baseUrl);
+    }
+
+    private static GithubApiService createService(OkHttpClient client, String baseUrl) {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .client(client)
+                // Git Data API tree entries delete a path with an explicit "sha": null
+                .addConverterFactory(GsonConverterFactory.create(
+                        new GsonBuilder().serializeNulls().create()))
+                .build();
+        return retrofit.create(GithubApiService.class);
+    }
+
+    public static OkHttpClient getHttpClient(Context context) {
+        if (httpClient == null) {
+            synchronized (GithubClient.class) {
+                if (httpClient == null) {
+                    httpClient = buildHttpClient(context.getApplicationContext());
+                }
+            }
+        }
+        return httpClient;
+    }
+
+    private static OkHttpClient buildHttpClient(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
+        int connectTimeout = prefs.getInt(MainActivity.KEY_CONNECT_TIMEOUT, GitHubConfig.CONNECT_TIMEOUT_SECONDS);
+        int readTimeout = prefs.getInt(MainActivity.KEY_READ_TIMEOUT, GitHubConfig.READ_TIMEOUT_SECONDS);
+
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .cache(new Cache(new File(context.getCacheDir(), CACHE_DIR), CACHE_SIZE_BYTES))
+                .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+                .readTimeout(readTimeout, TimeUnit.SECONDS)
+                .writeTimeout(readTimeout, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .eventListenerFactory(new TimingEventListener.Factory(context))
+                .addNetworkInterceptor(new RateLimitTracker())
+                .build();
+    }
+
+    private GithubClient() {
+        // Private constructor to prevent instantiation
+    }
+}
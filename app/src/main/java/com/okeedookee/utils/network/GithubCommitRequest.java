@@ -0,0 +1,15 @@
+package com.okeedookee.utils.network;
+
+import java.util.List;
+
+public class GithubCommitRequest {
+    private String message;
+    private String tree;
+    private List<String> parents;
+
+    public GithubCommitRequest(String message, String tree, List<String> parents) {
+        this.message = message;
+        this.tree = tree;
+        this.parents = parents;
+    }
+}
@@ -0,0 +1,24 @@
+package com.okeedookee.utils.network;
+
+public class GithubCommitResponse {
+    private String sha;
+    private TreeRef tree;
+
+    public GithubCommitResponse(String sha, TreeRef tree) {
+        this.sha = sha;
+        this.tree = tree;
+    }
+
+    public String getSha() { return sha; }
+    public TreeRef getTree() { return tree; }
+
+    public static class TreeRef {
+        private String sha;
+
+        public TreeRef(String sha) {
+            this.sha = sha;
+        }
+
+        public String getSha() { return sha; }
+    }
+}
@@ -0,0 +1,19 @@
+package com.okeedookee.utils.network;
+
+/**
+ * Body of a contents API file write. Without a sha the write only creates
+ * the file; with one it replaces the file only if that is still its sha.
+ */
+public class GithubContentRequest {
+    private String message;
+    private String content; // Base64 encoded
+    private String branch;
+    private String sha;
+
+    public GithubContentRequest(String message, String content, String branch, String sha) {
+        this.message = message;
+        this.content = content;
+        this.branch = branch;
+        this.sha = sha;
+    }
+}
@@ -6,6 +6,8 @@ public class GithubFileResponse {
     private String sha;
     private String content; // Base64 encoded
     private String encoding;
+    private long size;
+    private String type; // "file", "dir", "symlink" or "submodule"
 
     public GithubFileResponse(String name, String path, String sha, String content, String encoding) {
         this.name = name;
@@ -20,4 +22,6 @@ public class GithubFileResponse {
     public String getSha() { return sha; }
     public String getContent() { return content; }
     public String getEncoding() { return encoding; }
+    public long getSize() { return size; }
+    public String getType() { return type; }
 }
@@ -0,0 +1,27 @@
+package com.okeedookee.utils.network;
+
+public class GithubRefResponse {
+    private String ref;
+    private GitObject object;
+
+    public GithubRefResponse(String ref, GitObject object) {
+        this.ref = ref;
+        this.object = object;
+    }
+
+    public String getRef() { return ref; }
+    public GitObject getObject() { return object; }
+
+    public static class GitObject {
+        private String sha;
+        private String type;
+
+        public GitObject(String sha, String type) {
+            this.sha = sha;
+            this.type = type;
+        }
+
+        public String getSha() { return sha; }
+        public String getType() { return type; }
+    }
+}
@@ -0,0 +1,11 @@
+package com.okeedookee.utils.network;
+
+public class GithubRefUpdateRequest {
+    private String sha;
+    private boolean force;
+
+    public GithubRefUpdateRequest(String sha, boolean force) {
+        this.sha = sha;
+        this.force = force;
+    }
+}
@@ -0,0 +1,40 @@
+package com.okeedookee.utils.network;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.List;
+
+/**
+ * Body of a Git Data API tree creation. An entry with a null sha removes
+ * that path from the base tree.
+ */
+public class GithubTreeRequest {
+    @SerializedName("base_tree")
+    private String baseTree;
+    private List<Entry> tree;
+
+    public GithubTreeRequest(String baseTree, List<Entry> tree) {
+        this.baseTree = baseTree;
+        this.tree = tree;
+    }
+
+    public static class Entry {
+        private String path;
+        private String mode;
+        private String type;
+        private String sha;
+
+        public Entry(String path, String mode, String type, String sha) {
+            this.path = path;
+            this.mode = mode;
+            this.type = type;
+            this.sha = sha;
+        }
+
+        /**
+         * @return an entry that deletes the file at {@code path}
+         */
+        public static Entry deletion(String path) {
+            return new Entry(path, "100644", "blob", null);
+        }
+    }
+}
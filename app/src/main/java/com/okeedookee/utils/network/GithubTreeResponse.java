@@ -0,0 +1,41 @@
+package com.okeedookee.utils.network;
+
+import java.util.List;
+
+public class GithubTreeResponse {
+    private String sha;
+    private boolean truncated;
+    private List<Entry> tree;
+
+    public GithubTreeResponse(String sha, boolean truncated, List<Entry> tree) {
+        this.sha = sha;
+        this.truncated = truncated;
+        this.tree = tree;
+    }
+
+    public String getSha() { return sha; }
+    public boolean isTruncated() { return truncated; }
+    public List<Entry> getTree() { return tree; }
+
+    public static class Entry {
+        private String path;
+        private String mode;
+        private String type; // "blob", "tree" or "commit"
+        private String sha;
+        private long size;
+
+        public Entry(String path, String mode, String type, String sha, long size) {
+            this.path = path;
+            this.mode = mode;
+            this.type = type;
+            this.sha = sha;
+            this.size = size;
+        }
+
+        public String getPath() { return path; }
+        public String getMode() { return mode; }
+        public String getType() { return type; }
+        public String getSha() { return sha; }
+        public long getSize() { return size; }
+    }
+}
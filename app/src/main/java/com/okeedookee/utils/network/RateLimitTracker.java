@@ -0,0 +1,83 @@
+package com.okeedookee.utils.network;
+
+import com.okeedookee.utils.pipeline.GitHubQuota;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Network interceptor that remembers GitHub's rate-limit headers and any
+ * Retry-After, so the scheduler can spread the remaining quota over the
+ * reset window. Also counts requests per worker run. GitHub's quota is per
+ * token, so everything is kept per Authorization header.
+ */
+public class RateLimitTracker implements Interceptor {
+
+    private static final class State {
+        int remaining = -1;
+        long resetAtMillis;
+        long retryAtMillis;
+        int requestsThisRun;
+    }
+
+    private static final Map<String, State> perAuthorization = new HashMap<>();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        String authorization = chain.request().header("Authorization");
+        Response response = chain.proceed(chain.request());
+        long now = System.currentTimeMillis();
+        synchronized (RateLimitTracker.class) {
+            State state = state(authorization);
+            state.requestsThisRun++;
+            String remainingHeader = response.header("X-RateLimit-Remaining");
+            String resetHeader = response.header("X-RateLimit-Reset");
+            try {
+                if (remainingHeader != null) {
+                    state.remaining = Integer.parseInt(remainingHeader);
+                }
+                if (resetHeader != null) {
+                    state.resetAtMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(resetHeader));
+                }
+            } catch (NumberFormatException e) {
+                // Keep what we had
+            }
+            String retryAfter = response.header("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    state.retryAtMillis = now + TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+                } catch (NumberFormatException e) {
+                    // HTTP-date form; GitHub sends seconds
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @param authorization the Authorization header the requests were sent with
+     */
+    public static synchronized GitHubQuota snapshot(String authorization) {
+        State state = state(authorization);
+        return new GitHubQuota(state.remaining, state.resetAtMillis, state.retryAtMillis, state.requestsThisRun);
+    }
+
+    public static synchronized void startRun() {
+        for (State state : perAuthorization.values()) {
+            state.requestsThisRun = 0;
+        }
+    }
+
+    private static State state(String authorization) {
+        String key = authorization != null ? authorization : "";
+        State state = perAuthorization.get(key);
+        if (state == null) {
+            state = new State();
+            perAuthorization.put(key, state);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,139 @@
+package com.okeedookee.utils.network;
+
+import android.content.Context;
+import com.okeedookee.utils.utils.GatewayLogger;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Records per-call phase timings (DNS, connect, TLS, time to first byte) and
+ * logs a one-line summary when the call ends. Connection phases are reported
+ * as "reused" when the call ran on a pooled connection.
+ */
+public class TimingEventListener extends EventListener {
+
+    public static class Factory implements EventListener.Factory {
+        private final Context context;
+
+        public Factory(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new TimingEventListener(context);
+        }
+    }
+
+    private final Context context;
+
+    private long callStart;
+    private long dnsStart = -1;
+    private long dnsEnd = -1;
+    private long connectStart = -1;
+    private long connectEnd = -1;
+    private long secureStart = -1;
+    private long secureEnd = -1;
+    private long responseHeadersStart = -1;
+    private Protocol protocol;
+
+    private TimingEventListener(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsEnd = System.nanoTime();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        secureEnd = System.nanoTime();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectEnd = System.nanoTime();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        protocol = connection.protocol();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        responseHeadersStart = System.nanoTime();
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        report(call, null);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        report(call, ioe);
+    }
+
+    private void report(Call call, IOException failure) {
+        long end = System.nanoTime();
+        // No connectStart means the call ran on a pooled connection
+        boolean reused = connectStart < 0;
+        StringBuilder sb = new StringBuilder("HTTP ")
+                .append(call.request().method()).append(' ')
+                .append(call.request().url().encodedPath())
+                .append(": dns ").append(reused ? "reused" : phase(dnsStart, dnsEnd))
+                .append(", connect ").append(reused ? "reused" : phase(connectStart, connectEnd))
+                .append(", tls ").append(reused ? "reused" : phase(secureStart, secureEnd))
+                .append(", ttfb ").append(phase(callStart, responseHeadersStart))
+                .append(", total ").append(millis(callStart, end)).append("ms");
+        if (protocol != null) {
+            sb.append(" [").append(protocol).append(']');
+        }
+        if (failure != null) {
+            sb.append(" FAILED: ").append(failure.getMessage());
+        }
+        GatewayLogger.debug(context, sb.toString());
+    }
+
+    private static String phase(long start, long end) {
+        if (start < 0 || end < 0) {
+            return "-";
+        }
+        return millis(start, end) + "ms";
+    }
+
+    private static long millis(long startNanos, long endNanos) {
+        return (endNanos - startNanos) / 1_000_000L;
+    }
+}
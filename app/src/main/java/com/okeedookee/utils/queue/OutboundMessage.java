@@ -0,0 +1,86 @@
+package com.okeedookee.utils.queue;
+
+/**
+ * A message held in the {@link OutboundQueue}.
+ */
+public class OutboundMessage {
+    private final String id;
+    private final String profileId;
+    private final String batchId;
+    private final long lineNumber;
+    private final String phone;
+    private final String message;
+    private final int attempt;
+    private final int requestedSubscriptionId;
+    private final String clientId;
+
+    public OutboundMessage(String id, String profileId, String batchId, long lineNumber, String phone,
+            String message, int attempt, int requestedSubscriptionId, String clientId) {
+        this.id = id;
+        this.profileId = profileId;
+        this.batchId = batchId;
+        this.lineNumber = lineNumber;
+        this.phone = phone;
+        this.message = message;
+        this.attempt = attempt;
+        this.requestedSubscriptionId = requestedSubscriptionId;
+        this.clientId = clientId;
+    }
+
+    /**
+     * @return stable id: the profile, the command file's blob sha and the line number
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getProfileId() {
+        return profileId;
+    }
+
+    public String getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * @return the batch id, with "#n" appended for messages of the n-th reading
+     *         of a file committed again after it was deleted
+     */
+    public String getReadingId() {
+        // Rows are keyed <reading>:<line>[.<recipient>], see OutboundQueue.Enqueuer
+        return id.substring(0, id.lastIndexOf(':'));
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return how often sending was attempted before
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @return SIM the command file asked for, or {@link com.okeedookee.utils.pipeline.SmsCommand#ANY_SIM}
+     */
+    public int getRequestedSubscriptionId() {
+        return requestedSubscriptionId;
+    }
+
+    /**
+     * @return the producer's id for this message, or null
+     */
+    public String getClientId() {
+        return clientId;
+    }
+}
@@ -0,0 +1,691 @@
+package com.okeedookee.utils.queue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.pipeline.SmsCommand;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent outbound SMS queue (SQLite in WAL mode).
+ *
+ * A command file becomes a batch keyed by its profile and blob sha. Its lines
+ * are enqueued in batches of rows with stable ids (profile/sha:line, and
+ * profile/sha:line.n for further recipients of a broadcast line), so
+ * enqueueing the same file again is a no-op. Sending is checkpointed per message: a row
+ * is marked SENDING before it is handed to the radio and SENT right after, so
+ * a run that dies half-way resumes with the next unsent message. A row found
+ * still SENDING after a crash may or may not have gone out; it is marked
+ * UNCERTAIN rather than sent again. Sent and delivery receipts are recorded
+ * per part on the same row; a message the network gave up delivering ends up
+ * UNDELIVERED. Messages with a priority go first within their
+ * profile; messages with a send time wait in the queue until it has passed.
+ * Messages the duplicate filter recognised as already sent end up DUPLICATE.
+ * In fleet mode a batch is enqueued HELD and only becomes PENDING once this
+ * device has claimed its shard of the file; pushed submissions are held
+ * until their body was read to the end.
+ */
+public class OutboundQueue extends SQLiteOpenHelper {
+    private static final String DB_NAME = "outbound_queue.db";
+    private static final int DB_VERSION = 9;
+
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_SENDING = 1;
+    public static final int STATUS_SENT = 2;
+    public static final int STATUS_FAILED = 3;
+    public static final int STATUS_UNCERTAIN = 4;
+    public static final int STATUS_DUPLICATE = 5;
+    public static final int STATUS_HELD = 6;
+    public static final int STATUS_UNDELIVERED = 7;
+
+    // Rows parsed into memory before they are written in one short transaction
+    private static final int ENQUEUE_TRANSACTION_SIZE = 500;
+    // Sends that failed before leaving the device are retried on another SIM this often
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static volatile OutboundQueue instance;
+
+    public static OutboundQueue getInstance(Context context) {
+        if (instance == null) {
+            synchronized (OutboundQueue.class) {
+                if (instance == null) {
+                    instance = new OutboundQueue(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private OutboundQueue(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE batches ("
+                + "batch_id TEXT PRIMARY KEY,"
+                + "source TEXT NOT NULL,"
+                + "total INTEGER NOT NULL DEFAULT 0,"
+                + "complete INTEGER NOT NULL DEFAULT 0,"
+                + "removed INTEGER NOT NULL DEFAULT 0,"
+                + "created_at INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE messages ("
+                + "seq INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "id TEXT NOT NULL UNIQUE,"
+                + "batch_id TEXT NOT NULL,"
+                + "line INTEGER NOT NULL,"
+                + "phone TEXT NOT NULL,"
+                + "message TEXT NOT NULL,"
+                + "status INTEGER NOT NULL,"
+                + "error TEXT,"
+                + "updated_at INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX messages_status ON messages(status, seq)");
+        addReceiptColumns(db);
+        addAttemptColumns(db);
+        addProfileColumns(db);
+        addOptionColumns(db);
+        addClientIdColumn(db);
+        addClaimColumn(db);
+        addRemovalColumns(db);
+        addDeliveryFailureColumn(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            addReceiptColumns(db);
+        }
+        if (oldVersion < 3) {
+            addAttemptColumns(db);
+        }
+        if (oldVersion < 4) {
+            addProfileColumns(db);
+            // Everything queued so far belongs to the profile migrated from the single-file settings
+            String prefix = "'" + ProfileStore.DEFAULT_PROFILE_ID + "/'";
+            db.execSQL("UPDATE batches SET batch_id = " + prefix + " || batch_id");
+            db.execSQL("UPDATE messages SET batch_id = " + prefix + " || batch_id, id = " + prefix + " || id");
+        }
+        if (oldVersion < 5) {
+            addOptionColumns(db);
+        }
+        if (oldVersion < 6) {
+            addClientIdColumn(db);
+        }
+        if (oldVersion < 7) {
+            addClaimColumn(db);
+        }
+        if (oldVersion < 8) {
+            addRemovalColumns(db);
+        }
+        if (oldVersion < 9) {
+            addDeliveryFailureColumn(db);
+        }
+    }
+
+    /**
+     * Per-message options from structured command files: a requested SIM, a
+     * priority and an earliest send time.
+     */
+    private static void addOptionColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE messages ADD COLUMN requested_sub_id INTEGER NOT NULL DEFAULT " + SmsCommand.ANY_SIM);
+        db.execSQL("ALTER TABLE messages ADD COLUMN priority INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE messages ADD COLUMN send_at INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("DROP INDEX IF EXISTS messages_profile_status");
+        db.execSQL("CREATE INDEX messages_profile_priority ON messages(profile_id, status, priority DESC, seq)");
+    }
+
+    private static void addClientIdColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE messages ADD COLUMN client_id TEXT");
+    }
+
+    private static void addClaimColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE batches ADD COLUMN claimed INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * The branch head a batch's file was deleted at, and how often the same
+     * blob was committed again after that.
+     */
+    private static void addRemovalColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE batches ADD COLUMN removed_head TEXT");
+        db.execSQL("ALTER TABLE batches ADD COLUMN generation INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private static void addDeliveryFailureColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE messages ADD COLUMN parts_failed INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private static void addProfileColumns(SQLiteDatabase db) {
+        String column = " ADD COLUMN profile_id TEXT NOT NULL DEFAULT '" + ProfileStore.DEFAULT_PROFILE_ID + "'";
+        db.execSQL("ALTER TABLE batches" + column);
+        db.execSQL("ALTER TABLE messages" + column);
+        db.execSQL("CREATE INDEX messages_profile_status ON messages(profile_id, status, seq)");
+    }
+
+    /**
+     * @return batch id of a profile's command file blob
+     */
+    public static String batchId(String profileId, String sha) {
+        return profileId + "/" + sha;
+    }
+
+    private static void addAttemptColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE messages ADD COLUMN attempt INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE messages ADD COLUMN sub_id INTEGER");
+    }
+
+    private static void addReceiptColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE messages ADD COLUMN parts INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE messages ADD COLUMN parts_sent INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE messages ADD COLUMN parts_delivered INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE messages ADD COLUMN submitted_at INTEGER");
+        db.execSQL("ALTER TABLE messages ADD COLUMN sent_at INTEGER");
+        db.execSQL("ALTER TABLE messages ADD COLUMN delivered_at INTEGER");
+        db.execSQL("ALTER TABLE messages ADD COLUMN result_code INTEGER");
+    }
+
+    /**
+     * Batch state for a command file blob.
+     */
+    public static class Batch {
+        public final String batchId;
+        public final int total;
+        public final boolean complete;
+        public final boolean removed;
+        public final boolean claimed;
+        /** Branch head the file was listed at when its deletion was confirmed, or null. */
+        public final String removedHead;
+
+        Batch(String batchId, int total, boolean complete, boolean removed, boolean claimed, String removedHead) {
+            this.batchId = batchId;
+            this.total = total;
+            this.complete = complete;
+            this.removed = removed;
+            this.claimed = claimed;
+            this.removedHead = removedHead;
+        }
+    }
+
+    /**
+     * @return the batch, or null if it was never enqueued
+     */
+    public Batch getBatch(String batchId) {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT total, complete, removed, claimed, removed_head FROM batches WHERE batch_id = ?",
+                new String[] { batchId })) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new Batch(batchId, c.getInt(0), c.getInt(1) != 0, c.getInt(2) != 0, c.getInt(3) != 0,
+                    c.getString(4));
+        }
+    }
+
+    /**
+     * Writes commands into the queue for a batch. Already enqueued lines are
+     * ignored, so an interrupted enqueue can simply be repeated.
+     *
+     * Commands are collected in memory and written {@link #ENQUEUE_TRANSACTION_SIZE}
+     * at a time, so no transaction stays open while the file is still being
+     * read from the network and a slow download never holds the write lock.
+     */
+    public static class Enqueuer implements AutoCloseable {
+        private final SQLiteDatabase db;
+        private final SQLiteStatement insert;
+        private final String profileId;
+        private final String batchId;
+        private final String idPrefix;
+        private final int status;
+        private final List<SmsCommand> pending = new ArrayList<>(ENQUEUE_TRANSACTION_SIZE);
+        private int total;
+
+        private Enqueuer(SQLiteDatabase db, String profileId, String batchId, String source, boolean held) {
+            this.db = db;
+            this.profileId = profileId;
+            this.batchId = batchId;
+            this.status = held ? STATUS_HELD : STATUS_PENDING;
+            ContentValues batch = new ContentValues();
+            batch.put("batch_id", batchId);
+            batch.put("profile_id", profileId);
+            batch.put("source", source);
+            batch.put("created_at", System.currentTimeMillis());
+            db.insertWithOnConflict("batches", null, batch, SQLiteDatabase.CONFLICT_IGNORE);
+            // A reopened batch keeps the rows of its earlier reading; its new ones need ids of their own
+            long generation = DatabaseUtils.longForQuery(db, "SELECT generation FROM batches WHERE batch_id = ?",
+                    new String[] { batchId });
+            idPrefix = generation > 0 ? batchId + "#" + generation : batchId;
+            insert = db.compileStatement("INSERT OR IGNORE INTO messages"
+                    + " (id, batch_id, line, phone, message, status, updated_at, profile_id,"
+                    + " requested_sub_id, priority, send_at, client_id)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+
+        public void add(SmsCommand command) {
+            pending.add(command);
+            if (pending.size() >= ENQUEUE_TRANSACTION_SIZE) {
+                writePending();
+            }
+        }
+
+        /**
+         * Writes the remaining rows and marks the batch complete.
+         *
+         * @return number of commands in the batch
+         */
+        public int finish() {
+            db.beginTransactionNonExclusive();
+            try {
+                insertPending();
+                ContentValues values = new ContentValues();
+                values.put("total", total);
+                values.put("complete", 1);
+                db.update("batches", values, "batch_id = ?", new String[] { batchId });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return total;
+        }
+
+        private void writePending() {
+            db.beginTransactionNonExclusive();
+            try {
+                insertPending();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        private void insertPending() {
+            long now = System.currentTimeMillis();
+            for (SmsCommand command : pending) {
+                // Recipients of a broadcast line after the first get their position appended
+                String id = idPrefix + ":" + command.getLineNumber();
+                insert.bindString(1, command.getRecipientIndex() > 0 ? id + "." + command.getRecipientIndex() : id);
+                insert.bindString(2, batchId);
+                insert.bindLong(3, command.getLineNumber());
+                insert.bindString(4, command.getPhone());
+                insert.bindString(5, command.getMessage());
+                insert.bindLong(6, status);
+                insert.bindLong(7, now);
+                insert.bindString(8, profileId);
+                insert.bindLong(9, command.getSubscriptionId());
+                insert.bindLong(10, command.getPriority());
+                insert.bindLong(11, command.getSendAtMillis());
+                if (command.getClientId() != null) {
+                    insert.bindString(12, command.getClientId());
+                } else {
+                    insert.bindNull(12);
+                }
+                insert.executeInsert();
+                total++;
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void close() {
+            if (!pending.isEmpty()) {
+                // Not finished: keep what was read, the batch stays incomplete
+                writePending();
+            }
+            insert.close();
+        }
+    }
+
+    public Enqueuer beginBatch(String profileId, String batchId, String source) {
+        return beginBatch(profileId, batchId, source, false);
+    }
+
+    /**
+     * @param held enqueue the messages HELD, to be sent only after {@link #releaseBatch}
+     */
+    public Enqueuer beginBatch(String profileId, String batchId, String source, boolean held) {
+        return new Enqueuer(getWritableDatabase(), profileId, batchId, source, held);
+    }
+
+    /**
+     * Drops a batch that was not received completely, together with those of
+     * its messages that are held or have not been sent yet.
+     *
+     * @return number of messages dropped
+     */
+    public int discardBatch(String batchId) {
+        SQLiteDatabase db = getWritableDatabase();
+        int dropped = db.delete("messages", "batch_id = ? AND status IN (?, ?)",
+                new String[] { batchId, String.valueOf(STATUS_PENDING), String.valueOf(STATUS_HELD) });
+        db.delete("batches", "batch_id = ? AND NOT EXISTS (SELECT 1 FROM messages WHERE batch_id = ?)",
+                new String[] { batchId, batchId });
+        return dropped;
+    }
+
+    /**
+     * Lets the held messages of a batch be sent, once its shard is claimed or
+     * its submission was read to the end. The batch then counts as claimed.
+     */
+    public void releaseBatch(String batchId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentValues status = new ContentValues();
+            status.put("status", STATUS_PENDING);
+            status.put("updated_at", System.currentTimeMillis());
+            db.update("messages", status, "batch_id = ? AND status = ?",
+                    new String[] { batchId, String.valueOf(STATUS_HELD) });
+            ContentValues claimed = new ContentValues();
+            claimed.put("claimed", 1);
+            db.update("batches", claimed, "batch_id = ?", new String[] { batchId });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the held messages of a batch another device claimed first and
+     * marks the batch removed, so the file is not read again.
+     *
+     * @return number of messages dropped
+     */
+    public int abandonBatch(String batchId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            int dropped = db.delete("messages", "batch_id = ? AND status = ?",
+                    new String[] { batchId, String.valueOf(STATUS_HELD) });
+            markBatchRemoved(batchId);
+            db.setTransactionSuccessful();
+            return dropped;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void markBatchRemoved(String batchId) {
+        markBatchRemoved(batchId, null);
+    }
+
+    /**
+     * @param head branch head the file was listed at before it was deleted,
+     *             or null if unknown; see {@link #reopenBatch}
+     */
+    public void markBatchRemoved(String batchId, String head) {
+        ContentValues values = new ContentValues();
+        values.put("removed", 1);
+        values.put("removed_head", head);
+        getWritableDatabase().update("batches", values, "batch_id = ?", new String[] { batchId });
+    }
+
+    /**
+     * Starts a removed batch over, for a file that was committed again with
+     * the same content after it was deleted. Its messages are queued anew
+     * next to those of the earlier reading.
+     */
+    public void reopenBatch(String batchId) {
+        getWritableDatabase().execSQL("UPDATE batches SET total = 0, complete = 0, removed = 0, claimed = 0,"
+                + " removed_head = NULL, generation = generation + 1, created_at = ? WHERE batch_id = ?",
+                new Object[] { System.currentTimeMillis(), batchId });
+    }
+
+    /**
+     * Marks rows left SENDING by an interrupted run as UNCERTAIN.
+     *
+     * @return number of rows affected
+     */
+    public int recoverInterrupted() {
+        ContentValues values = new ContentValues();
+        values.put("status", STATUS_UNCERTAIN);
+        values.put("updated_at", System.currentTimeMillis());
+        return getWritableDatabase().update("messages", values, "status = ?",
+                new String[] { String.valueOf(STATUS_SENDING) });
+    }
+
+    /**
+     * @return up to {@code limit} of a profile's pending messages that are due,
+     *         highest priority first and in enqueue order within a priority
+     */
+    public List<OutboundMessage> nextPending(String profileId, int limit) {
+        List<OutboundMessage> result = new ArrayList<>(limit);
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT id, batch_id, line, phone, message, attempt, requested_sub_id, client_id FROM messages"
+                        + " WHERE profile_id = ? AND status = ? AND send_at <= ?"
+                        + " ORDER BY priority DESC, seq LIMIT ?",
+                new String[] { profileId, String.valueOf(STATUS_PENDING),
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(limit) })) {
+            while (c.moveToNext()) {
+                result.add(new OutboundMessage(c.getString(0), profileId, c.getString(1), c.getLong(2),
+                        c.getString(3), c.getString(4), c.getInt(5), c.getInt(6), c.getString(7)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return profiles that have pending messages due now
+     */
+    public List<String> pendingProfileIds() {
+        List<String> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT DISTINCT profile_id FROM messages WHERE status = ? AND send_at <= ?",
+                new String[] { String.valueOf(STATUS_PENDING), String.valueOf(System.currentTimeMillis()) })) {
+            while (c.moveToNext()) {
+                result.add(c.getString(0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return when the earliest scheduled message becomes due, or 0 if none is waiting
+     */
+    public long nextScheduledAt() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT IFNULL(MIN(send_at), 0) FROM messages WHERE status = ? AND send_at > ?",
+                new String[] { String.valueOf(STATUS_PENDING), String.valueOf(System.currentTimeMillis()) });
+    }
+
+    public long countPending() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), "messages", "status = ?",
+                new String[] { String.valueOf(STATUS_PENDING) });
+    }
+
+    /**
+     * Checkpoints a message right before it is handed to the SmsManager.
+     * Receipts of earlier attempts are ignored from here on.
+     *
+     * @param attempt the message's attempt count plus one
+     */
+    public void markSending(String id, int attempt, int parts, int subscriptionId) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put("status", STATUS_SENDING);
+        values.put("attempt", attempt);
+        values.put("sub_id", subscriptionId);
+        values.put("parts", parts);
+        values.put("parts_sent", 0);
+        values.put("parts_delivered", 0);
+        values.put("parts_failed", 0);
+        values.putNull("result_code");
+        values.putNull("sent_at");
+        values.put("submitted_at", now);
+        values.put("updated_at", now);
+        getWritableDatabase().update("messages", values, "id = ?", new String[] { id });
+    }
+
+    /**
+     * Marks a message as accepted by the SmsManager. A failed sent receipt
+     * that arrived first is not overwritten.
+     */
+    public void markSent(String id) {
+        ContentValues values = new ContentValues();
+        values.put("status", STATUS_SENT);
+        values.put("updated_at", System.currentTimeMillis());
+        getWritableDatabase().update("messages", values, "id = ? AND status = ?",
+                new String[] { id, String.valueOf(STATUS_SENDING) });
+    }
+
+    /**
+     * Applies the sent receipt of one part. The first failing part marks the
+     * whole message FAILED, except that a single-part message that never left
+     * the device ({@code failover}) goes back to PENDING to be tried again,
+     * normally on another SIM.
+     *
+     * @return submit to sent time in ms if this was the last part to report, otherwise -1
+     */
+    public long onPartSent(String id, int attempt, int resultCode, boolean success, boolean failover) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            long latency = -1;
+            String[] args = { id, String.valueOf(attempt) };
+            try (Cursor c = db.rawQuery("SELECT parts, parts_sent, submitted_at, result_code FROM messages"
+                    + " WHERE id = ? AND attempt = ?", args)) {
+                if (!c.moveToFirst()) {
+                    return -1;
+                }
+                long now = System.currentTimeMillis();
+                int partsSent = c.getInt(1) + 1;
+                ContentValues values = new ContentValues();
+                values.put("parts_sent", partsSent);
+                values.put("updated_at", now);
+                if (!success && failover && c.getInt(0) == 1 && attempt < MAX_ATTEMPTS) {
+                    values.put("status", STATUS_PENDING);
+                    values.put("error", "Retrying after sent receipt result " + resultCode);
+                } else if (!success && c.isNull(3)) {
+                    values.put("result_code", resultCode);
+                    values.put("status", STATUS_FAILED);
+                    values.put("error", "Sent receipt result " + resultCode);
+                }
+                if (partsSent == c.getInt(0)) {
+                    values.put("sent_at", now);
+                    if (!c.isNull(2)) {
+                        latency = now - c.getLong(2);
+                    }
+                }
+                db.update("messages", values, "id = ? AND attempt = ?", args);
+            }
+            db.setTransactionSuccessful();
+            return latency;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies a delivery report of one part that reached the recipient.
+     *
+     * @return sent to delivered time in ms if this was the last part to report, otherwise -1
+     */
+    public long onPartDelivered(String id, int attempt) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            long latency = -1;
+            String[] args = { id, String.valueOf(attempt) };
+            try (Cursor c = db.rawQuery("SELECT parts, parts_delivered, sent_at, submitted_at FROM messages"
+                    + " WHERE id = ? AND attempt = ?", args)) {
+                if (!c.moveToFirst()) {
+                    return -1;
+                }
+                long now = System.currentTimeMillis();
+                int partsDelivered = c.getInt(1) + 1;
+                ContentValues values = new ContentValues();
+                values.put("parts_delivered", partsDelivered);
+                values.put("updated_at", now);
+                if (partsDelivered == c.getInt(0)) {
+                    values.put("delivered_at", now);
+                    // A delivery report can overtake the last sent receipt
+                    long sentAt = !c.isNull(2) ? c.getLong(2) : c.isNull(3) ? now : c.getLong(3);
+                    latency = now - sentAt;
+                }
+                db.update("messages", values, "id = ? AND attempt = ?", args);
+            }
+            db.setTransactionSuccessful();
+            return latency;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies a delivery report of one part the network gave up on. A message
+     * that was sent becomes UNDELIVERED; it is not sent again, since its other
+     * parts may have arrived.
+     *
+     * @return true if this was the first part of the message to fail
+     */
+    public boolean onPartDeliveryFailed(String id, int attempt, int deliveryStatus) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            String[] args = { id, String.valueOf(attempt) };
+            boolean first;
+            try (Cursor c = db.rawQuery("SELECT parts_failed, status FROM messages WHERE id = ? AND attempt = ?",
+                    args)) {
+                if (!c.moveToFirst()) {
+                    return false;
+                }
+                first = c.getInt(0) == 0;
+                ContentValues values = new ContentValues();
+                values.put("parts_failed", c.getInt(0) + 1);
+                values.put("updated_at", System.currentTimeMillis());
+                int status = c.getInt(1);
+                if (status == STATUS_SENDING || status == STATUS_SENT) {
+                    values.put("status", STATUS_UNDELIVERED);
+                    values.put("error", "Delivery report status " + deliveryStatus);
+                }
+                db.update("messages", values, "id = ? AND attempt = ?", args);
+            }
+            db.setTransactionSuccessful();
+            return first;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void markFailed(String id, String error) {
+        setStatus(id, STATUS_FAILED, error);
+    }
+
+    public void markDuplicate(String id, String reason) {
+        setStatus(id, STATUS_DUPLICATE, reason);
+    }
+
+    /**
+     * Drops finished messages and fully handled batches older than {@code maxAgeMillis}.
+     * A claimed batch counts as handled even while other shards of its file
+     * are outstanding; should the file be read again, its claim is already taken.
+     */
+    public void purge(long maxAgeMillis) {
+        String cutoff = String.valueOf(System.currentTimeMillis() - maxAgeMillis);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.delete("messages", "status NOT IN (?, ?, ?) AND updated_at < ?",
+                    new String[] { String.valueOf(STATUS_PENDING), String.valueOf(STATUS_SENDING),
+                            String.valueOf(STATUS_HELD), cutoff });
+            db.delete("batches", "complete = 1 AND (removed = 1 OR claimed = 1) AND created_at < ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM messages WHERE messages.batch_id = batches.batch_id)",
+                    new String[] { cutoff });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void setStatus(String id, int status, String error) {
+        ContentValues values = new ContentValues();
+        values.put("status", status);
+        values.put("error", error);
+        values.put("updated_at", System.currentTimeMillis());
+        getWritableDatabase().update("messages", values, "id = ?", new String[] { id });
+    }
+}
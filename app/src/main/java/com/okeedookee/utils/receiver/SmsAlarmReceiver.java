@@ -3,19 +3,25 @@ package com.okeedookee.utils.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.WorkManager;
-import com.okeedookee.utils.utils.LogRepository;
+import com.okeedookee.utils.utils.GatewayLogger;
 import com.okeedookee.utils.worker.SmsWorker;
 
 public class SmsAlarmReceiver extends BroadcastReceiver {
+    public static final String EXTRA_SCHEDULED_TIME = "scheduled_time";
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        LogRepository.addLog(context, "Alarm received. Triggering SMS check...");
+        GatewayLogger.info(context, "Alarm received. Triggering SMS check...");
 
-        // Trigger the worker immediately
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SmsWorker.class).build();
+        // Trigger the worker immediately; it measures its latency from when the alarm was due
+        long scheduledTime = intent.getLongExtra(EXTRA_SCHEDULED_TIME, System.currentTimeMillis());
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SmsWorker.class)
+                .setInputData(new Data.Builder().putLong(SmsWorker.KEY_TRIGGER_TIME, scheduledTime).build())
+                .build();
         WorkManager.getInstance(context).enqueueUniqueWork(
                 "SmsCheckWorker_OneTime",
                 ExistingWorkPolicy.REPLACE,
@@ -0,0 +1,139 @@
+package com.okeedookee.utils.receiver;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.telephony.SmsMessage;
+import com.okeedookee.utils.pipeline.SendRateLimiter;
+import com.okeedookee.utils.pipeline.SimDispatcher;
+import com.okeedookee.utils.queue.OutboundQueue;
+import com.okeedookee.utils.utils.DeliveryStats;
+import com.okeedookee.utils.utils.GatewayLogger;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Receives per-part sent and delivery receipts for queued messages and
+ * records them in the {@link OutboundQueue} and {@link DeliveryStats}.
+ */
+public class SmsStatusReceiver extends BroadcastReceiver {
+    private static final String ACTION_SENT = "com.okeedookee.utils.SMS_SENT";
+    private static final String ACTION_DELIVERED = "com.okeedookee.utils.SMS_DELIVERED";
+    private static final String EXTRA_MESSAGE_ID = "message_id";
+    private static final String EXTRA_ATTEMPT = "attempt";
+    private static final String EXTRA_SUBSCRIPTION_ID = "subscription_id";
+
+    // TP-Status values from 0x20 are still pending; 0x40 and up are permanent failures
+    private static final int STATUS_PENDING_MIN = 0x20;
+    private static final int STATUS_FAILED_MIN = 0x40;
+
+    // Database work is kept off the main thread
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @return one sent intent per message part
+     */
+    public static ArrayList<PendingIntent> sentIntents(Context context, String messageId, int attempt, int parts,
+            int subscriptionId) {
+        return intents(context, ACTION_SENT, messageId, attempt, parts, subscriptionId, PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * @return one delivery intent per message part
+     */
+    public static ArrayList<PendingIntent> deliveryIntents(Context context, String messageId, int attempt, int parts,
+            int subscriptionId) {
+        // The platform adds the status report PDU to the delivery intent
+        int mutable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_MUTABLE : 0;
+        return intents(context, ACTION_DELIVERED, messageId, attempt, parts, subscriptionId, mutable);
+    }
+
+    private static ArrayList<PendingIntent> intents(Context context, String action, String messageId, int attempt,
+            int parts, int subscriptionId, int flags) {
+        ArrayList<PendingIntent> intents = new ArrayList<>(parts);
+        for (int part = 0; part < parts; part++) {
+            Intent intent = new Intent(context, SmsStatusReceiver.class);
+            intent.setAction(action);
+            // PendingIntents that differ only in extras would be merged; the data keeps each part distinct
+            intent.setData(new Uri.Builder().scheme("sms-receipt").authority(action)
+                    .appendPath(messageId).appendPath(String.valueOf(attempt)).appendPath(String.valueOf(part))
+                    .build());
+            intent.putExtra(EXTRA_MESSAGE_ID, messageId);
+            intent.putExtra(EXTRA_ATTEMPT, attempt);
+            intent.putExtra(EXTRA_SUBSCRIPTION_ID, subscriptionId);
+            intents.add(PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT | flags));
+        }
+        return intents;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String messageId = intent.getStringExtra(EXTRA_MESSAGE_ID);
+        if (messageId == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, 0);
+        final int resultCode = getResultCode();
+        final PendingResult pendingResult = goAsync();
+        executor.execute(() -> {
+            try {
+                if (ACTION_SENT.equals(intent.getAction())) {
+                    onSent(appContext, messageId, attempt, intent.getIntExtra(EXTRA_SUBSCRIPTION_ID, -1),
+                            resultCode);
+                } else if (ACTION_DELIVERED.equals(intent.getAction())) {
+                    onDelivered(appContext, messageId, attempt, intent);
+                }
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+
+    private static void onSent(Context context, String messageId, int attempt, int subscriptionId,
+            int resultCode) {
+        boolean success = resultCode == Activity.RESULT_OK;
+        long latency = OutboundQueue.getInstance(context).onPartSent(messageId, attempt, resultCode, success,
+                SimDispatcher.isFailoverResult(resultCode));
+        DeliveryStats.recordSent(context, resultCode, latency);
+
+        SendRateLimiter limiter = SendRateLimiter.existingForSubscription(subscriptionId);
+        if (limiter != null) {
+            limiter.onSendResult(resultCode);
+        }
+        if (!success) {
+            GatewayLogger.warn(context, "Send failed for " + messageId + " on SIM " + subscriptionId
+                    + ": result code " + resultCode);
+        }
+    }
+
+    private static void onDelivered(Context context, String messageId, int attempt, Intent intent) {
+        byte[] pdu = intent.getByteArrayExtra("pdu");
+        if (pdu == null) {
+            return;
+        }
+        SmsMessage report = SmsMessage.createFromPdu(pdu, intent.getStringExtra("format"));
+        if (report == null) {
+            return;
+        }
+        int status = report.getStatus();
+        if (status >= STATUS_PENDING_MIN && status < STATUS_FAILED_MIN) {
+            // The SMSC is still trying; a final report follows
+            return;
+        }
+        if (status >= STATUS_FAILED_MIN) {
+            boolean firstFailure = OutboundQueue.getInstance(context).onPartDeliveryFailed(messageId, attempt,
+                    status);
+            DeliveryStats.recordDeliveryFailed(context, status, firstFailure);
+            GatewayLogger.warn(context, "Delivery failed for " + messageId + ": status " + status);
+            return;
+        }
+        long latency = OutboundQueue.getInstance(context).onPartDelivered(messageId, attempt);
+        DeliveryStats.recordDelivered(context, status, latency);
+    }
+}
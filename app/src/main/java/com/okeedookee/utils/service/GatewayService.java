@@ -0,0 +1,328 @@
+package com.okeedookee.utils.service;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.R;
+import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.ingest.IngestServer;
+import com.okeedookee.utils.metrics.MetricsHttpServer;
+import com.okeedookee.utils.network.GithubClient;
+import com.okeedookee.utils.pipeline.PollingPolicy;
+import com.okeedookee.utils.utils.AlarmScheduler;
+import com.okeedookee.utils.utils.DeliveryStats;
+import com.okeedookee.utils.utils.GatewayLogger;
+import com.okeedookee.utils.utils.GatewayMetrics;
+import com.okeedookee.utils.utils.TriggerLatencyStats;
+import com.okeedookee.utils.worker.GatewayCycle;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional foreground mode. Keeps the process, the HTTP client and a
+ * {@link GatewayCycle} warm and polls on its own executor every few seconds
+ * while commands arrive, backing off to {@link #MAX_IDLE_DELAY_MILLIS} when
+ * idle. Alarms are cancelled while it runs; when it is destroyed while the
+ * gateway is still on, the alarm path takes over again.
+ *
+ * While it runs it can also serve the Prometheus metrics export on a
+ * loopback port, since only a live process can answer scrapes, and accept
+ * commands pushed over HTTP (see {@link IngestHandler}), which are sent
+ * right away instead of at the next poll.
+ */
+public class GatewayService extends Service {
+    private static final String CHANNEL_ID = "gateway_service";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long MAX_IDLE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    // Keep cycles short so a new file is picked up soon even while a backlog is being sent
+    private static final long SEND_BUDGET_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // Submissions handled at once; the rest wait with their bodies paused
+    private static final int INGEST_WORKERS = 2;
+    private static final long INGEST_MAX_BODY_BYTES = 32L * 1024 * 1024;
+
+    private static volatile boolean running;
+
+    private ScheduledExecutorService executor;
+    private GatewayCycle cycle;
+    private PowerManager.WakeLock wakeLock;
+    private volatile boolean stopping;
+    // Port asked for in the settings when the server was last (re)started; changes apply on the next poll
+    private int metricsPort;
+    private volatile MetricsHttpServer metricsServer;
+    // Port and interface the ingest server was last (re)started with
+    private String ingestConfig = "";
+    private volatile IngestServer ingestServer;
+
+    // Guards the poll chain so a submission can bring the next poll forward without starting a second one
+    private final Object pollLock = new Object();
+    private ScheduledFuture<?> nextPoll;
+    private boolean polling;
+    private boolean pollRequested;
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, GatewayService.class));
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, GatewayService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        running = true;
+        createChannel();
+        Notification notification = buildNotification("Starting...");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+
+        // Gateway phones are normally on power; without the lock Doze stretches the poll delays
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "SmsGateway:poll");
+        wakeLock.acquire();
+
+        AlarmScheduler.cancelAlarm(this);
+        cycle = new GatewayCycle(this, GithubClient.getService(this), SEND_BUDGET_NANOS);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        schedulePoll(0);
+        GatewayLogger.info(this, "Foreground service started.");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopping = true;
+        running = false;
+        executor.shutdownNow();
+        closeMetricsServer();
+        closeIngestServer();
+        GatewayMetrics.snapshot(this, true);
+        DeliveryStats.flush(this);
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+
+        SharedPreferences prefs = getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE);
+        if (prefs.getBoolean(MainActivity.KEY_IS_SERVICE_RUNNING, false)) {
+            GatewayLogger.info(this, "Foreground service stopped. Falling back to alarms.");
+            AlarmScheduler.scheduleNextRun(this, TimeUnit.MINUTES.toMillis(
+                    prefs.getInt(MainActivity.KEY_POLL_FLOOR_MINUTES, GitHubConfig.POLL_FLOOR_MINUTES)),
+                    "foreground service stopped");
+        } else {
+            GatewayLogger.info(this, "Foreground service stopped.");
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void schedulePoll(long delayMillis) {
+        synchronized (pollLock) {
+            long dueMillis = System.currentTimeMillis() + delayMillis;
+            nextPoll = executor.schedule(() -> poll(dueMillis), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Brings the next poll forward to now, or has the running one followed
+     * by another right away.
+     */
+    private void pollSoon() {
+        synchronized (pollLock) {
+            if (stopping) {
+                return;
+            }
+            if (polling) {
+                pollRequested = true;
+            } else if (nextPoll != null && nextPoll.cancel(false)) {
+                schedulePoll(0);
+            }
+        }
+    }
+
+    private void poll(long dueMillis) {
+        synchronized (pollLock) {
+            polling = true;
+            pollRequested = false;
+        }
+        SharedPreferences prefs = getSharedPreferences(MainActivity.PREFS_NAME, MODE_PRIVATE);
+        long floorMillis = TimeUnit.SECONDS.toMillis(prefs.getInt(MainActivity.KEY_FOREGROUND_POLL_SECONDS,
+                GitHubConfig.FOREGROUND_POLL_SECONDS));
+        updateMetricsServer(prefs);
+        updateIngestServer(prefs);
+        PollingPolicy.Decision decision = null;
+        try {
+            decision = cycle.run(() -> stopping, dueMillis, TriggerLatencyStats.Mode.FOREGROUND, floorMillis,
+                    Math.max(floorMillis, MAX_IDLE_DELAY_MILLIS));
+        } catch (RuntimeException e) {
+            GatewayLogger.error(this, "ERROR: Foreground check failed: " + e.getMessage());
+        }
+        if (stopping) {
+            return;
+        }
+
+        long delayMillis;
+        String reason;
+        if (decision == null) {
+            delayMillis = MAX_IDLE_DELAY_MILLIS;
+            reason = "not ready";
+        } else {
+            delayMillis = decision.getDelayMillis();
+            reason = decision.getReason();
+        }
+
+        synchronized (pollLock) {
+            polling = false;
+            if (pollRequested) {
+                delayMillis = 0;
+                reason = "new submissions";
+            }
+            schedulePoll(delayMillis);
+        }
+
+        long nextRunTime = System.currentTimeMillis() + delayMillis;
+        prefs.edit()
+                .putLong(MainActivity.KEY_NEXT_RUN_TIME, nextRunTime)
+                .putString(MainActivity.KEY_NEXT_RUN_REASON, reason)
+                .apply();
+        GatewayLogger.debug(this, "Next poll in " + TimeUnit.MILLISECONDS.toSeconds(delayMillis) + "s (" + reason
+                + ").");
+        updateNotification("Next check at "
+                + new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date(nextRunTime))
+                + " (" + reason + ")");
+    }
+
+    /**
+     * Starts, moves or stops the loopback metrics server to match the settings.
+     */
+    private void updateMetricsServer(SharedPreferences prefs) {
+        int port = prefs.getInt(MainActivity.KEY_METRICS_PORT, GitHubConfig.METRICS_PORT);
+        if (port == metricsPort) {
+            return;
+        }
+        metricsPort = port;
+        closeMetricsServer();
+        if (port <= 0) {
+            return;
+        }
+        try {
+            metricsServer = MetricsHttpServer.start(port, () -> GatewayMetrics.toPrometheus(this));
+            GatewayLogger.info(this, "Serving metrics on http://127.0.0.1:" + port + "/metrics.");
+        } catch (IOException e) {
+            GatewayLogger.warn(this, "Could not serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts, moves or stops the ingest server to match the settings. It
+     * listens on loopback only unless the local network is allowed.
+     */
+    private void updateIngestServer(SharedPreferences prefs) {
+        int port = prefs.getInt(MainActivity.KEY_INGEST_PORT, GitHubConfig.INGEST_PORT);
+        boolean lan = prefs.getBoolean(MainActivity.KEY_INGEST_LAN, false);
+        String token = prefs.getString(MainActivity.KEY_INGEST_TOKEN, "");
+        String config = port + (lan ? "/lan" : "/loopback") + (token.isEmpty() ? "/no-token" : "");
+        if (config.equals(ingestConfig)) {
+            return;
+        }
+        ingestConfig = config;
+        closeIngestServer();
+        if (port <= 0) {
+            return;
+        }
+        if (token.isEmpty()) {
+            GatewayLogger.warn(this, "Ingest endpoint needs a token. Not serving it.");
+            return;
+        }
+        try {
+            InetAddress address = lan ? null : InetAddress.getLoopbackAddress();
+            ingestServer = IngestServer.start(address, port, new IngestHandler(this, this::pollSoon),
+                    INGEST_WORKERS, INGEST_MAX_BODY_BYTES);
+            GatewayLogger.info(this, "Accepting messages on "
+                    + (lan ? "port " + port + " (local network)" : "http://127.0.0.1:" + port + "/v1/messages") + ".");
+        } catch (IOException e) {
+            GatewayLogger.warn(this, "Could not accept messages on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void closeIngestServer() {
+        IngestServer server = ingestServer;
+        ingestServer = null;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private void closeMetricsServer() {
+        MetricsHttpServer server = metricsServer;
+        metricsServer = null;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private void createChannel() {
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Gateway service",
+                NotificationManager.IMPORTANCE_LOW);
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+
+    private Notification buildNotification(String text) {
+        PendingIntent openApp = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle("SMS Gateway is running")
+                .setContentText(text)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setContentIntent(openApp)
+                .build();
+    }
+
+    private void updateNotification(String text) {
+        getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification(text));
+    }
+}
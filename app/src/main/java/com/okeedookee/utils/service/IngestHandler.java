@@ -0,0 +1,318 @@
+package com.okeedookee.utils.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GatewayProfile;
+import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.ingest.IngestServer;
+import com.okeedookee.utils.ingest.IngestServer.Request;
+import com.okeedookee.utils.ingest.IngestServer.Response;
+import com.okeedookee.utils.metrics.PipelineMetrics;
+import com.okeedookee.utils.metrics.PipelineMetrics.Counter;
+import com.okeedookee.utils.metrics.PipelineMetrics.Stage;
+import com.okeedookee.utils.pipeline.CommandFormats;
+import com.okeedookee.utils.pipeline.CommandReader;
+import com.okeedookee.utils.pipeline.EncodingCommandReader;
+import com.okeedookee.utils.pipeline.NdjsonCommandReader;
+import com.okeedookee.utils.pipeline.NormalizingCommandReader;
+import com.okeedookee.utils.pipeline.SmsCommand;
+import com.okeedookee.utils.queue.OutboundQueue;
+import com.okeedookee.utils.utils.GatewayLogger;
+import com.okeedookee.utils.utils.GatewayMetrics;
+import com.okeedookee.utils.utils.TemplateStore;
+import com.okeedookee.utils.worker.GatewayCycle;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Endpoints of the ingest server:
+ *
+ * <ul>
+ * <li>{@code POST /v1/messages} queues commands. The body is one JSON object
+ * or an array of them ({@code application/json}), NDJSON
+ * ({@code application/x-ndjson}, streamed) or CSV ({@code text/csv},
+ * streamed), optionally gzip-compressed; without a content type the format
+ * is sniffed as for command files. {@code ?profile=} (id or name) files the
+ * messages under a profile, for its send cap, SIM and templates.</li>
+ * <li>{@code GET /v1/status} reports the queue depth.</li>
+ * </ul>
+ *
+ * Every request needs {@code Authorization: Bearer <token>}. Commands go
+ * through the same normalizing, encoding and queueing steps as command
+ * files, as one batch: its messages are held until the whole body is read,
+ * so a request whose body breaks off is dropped as a whole. While the queue
+ * holds {@link GitHubConfig#INGEST_MAX_PENDING} messages, submissions get a
+ * 429 before their body is read.
+ */
+class IngestHandler implements IngestServer.Handler {
+    /** Profile id for submissions that name no profile; sent without a cap or pinned SIM. */
+    static final String DEFAULT_PROFILE_ID = "http";
+
+    private static final String JSON = "application/json";
+    // A JSON document is parsed as a whole, so it gets a tighter limit than streamed formats
+    private static final int MAX_JSON_BYTES = 1024 * 1024;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final long RETRY_AFTER_SECONDS = 30;
+    private static final Gson gson = new Gson();
+
+    private final Context context;
+    private final Runnable onQueued;
+    private final PipelineMetrics metrics;
+
+    /**
+     * @param onQueued called after a submission was queued, to send it soon
+     */
+    IngestHandler(Context context, Runnable onQueued) {
+        this.context = context.getApplicationContext();
+        this.onQueued = onQueued;
+        this.metrics = GatewayMetrics.get(this.context);
+    }
+
+    @Override
+    public Response handle(Request request, InputStream body) throws IOException {
+        SharedPreferences prefs = context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
+        if (!authorized(request, prefs.getString(MainActivity.KEY_INGEST_TOKEN, ""))) {
+            return error(401, "missing or wrong bearer token").withHeader("WWW-Authenticate", "Bearer");
+        }
+
+        OutboundQueue queue = OutboundQueue.getInstance(context);
+        if ("/v1/status".equals(request.getPath())) {
+            if (!"GET".equals(request.getMethod())) {
+                return error(405, "use GET").withHeader("Allow", "GET");
+            }
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("pending", queue.countPending());
+            status.put("max_pending", GitHubConfig.INGEST_MAX_PENDING);
+            return new Response(200, JSON, gson.toJson(status));
+        }
+        if (!"/v1/messages".equals(request.getPath())) {
+            return error(404, "no such endpoint; use POST /v1/messages or GET /v1/status");
+        }
+        if (!"POST".equals(request.getMethod())) {
+            return error(405, "use POST").withHeader("Allow", "POST");
+        }
+
+        String profileId = DEFAULT_PROFILE_ID;
+        String profileParameter = request.getQueryParameter("profile");
+        if (profileParameter != null && !profileParameter.isEmpty()) {
+            GatewayProfile profile = findProfile(profileParameter);
+            if (profile == null) {
+                return error(404, "unknown profile \"" + profileParameter + "\"");
+            }
+            profileId = profile.getId();
+        }
+
+        if (queue.countPending() >= GitHubConfig.INGEST_MAX_PENDING) {
+            metrics.add(Counter.THROTTLED, profileId, 1);
+            return error(429, "send queue is full; retry later")
+                    .withHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        }
+
+        String contentType = mediaType(request.getHeader("Content-Type"));
+        String encoding = request.getHeader("Content-Encoding");
+        boolean gzip = encoding != null && encoding.trim().equalsIgnoreCase("gzip");
+        if (encoding != null && !gzip && !encoding.trim().equalsIgnoreCase("identity")) {
+            return error(415, "unsupported Content-Encoding \"" + encoding + "\"");
+        }
+
+        long started = System.nanoTime();
+        String batchId = OutboundQueue.batchId(profileId, "http@" + UUID.randomUUID());
+        String source = "http " + request.getRemoteAddress();
+        List<Map<String, Object>> rejected = new ArrayList<>();
+        int[] rejectedCount = new int[1];
+        CommandReader.ErrorListener errorListener = (lineNumber, reason) -> {
+            rejectedCount[0]++;
+            if (rejected.size() < MAX_REPORTED_ERRORS) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("line", lineNumber);
+                entry.put("reason", reason);
+                rejected.add(entry);
+            }
+        };
+
+        int total;
+        try (CommandReader reader = new EncodingCommandReader(new NormalizingCommandReader(
+                openReader(body, contentType, gzip, profileId), GatewayCycle.newPhoneNormalizer(prefs)),
+                GatewayCycle.newSmsEncoder(prefs));
+                OutboundQueue.Enqueuer enqueuer = queue.beginBatch(profileId, batchId, source, true)) {
+            reader.setErrorListener(errorListener);
+            SmsCommand command;
+            while ((command = reader.next()) != null) {
+                enqueuer.add(command);
+            }
+            total = enqueuer.finish();
+            queue.releaseBatch(batchId);
+            TemplateStore.save(context, profileId);
+        } catch (UnsupportedFormatException e) {
+            return error(415, e.getMessage());
+        } catch (JsonParseException e) {
+            queue.discardBatch(batchId);
+            return error(400, "invalid JSON: " + e.getMessage());
+        } catch (IngestServer.BodyTooLargeException e) {
+            queue.discardBatch(batchId);
+            return error(413, e.getMessage());
+        } catch (IOException e) {
+            // A partial batch would be indistinguishable from a complete one to the client
+            queue.discardBatch(batchId);
+            GatewayLogger.warn(context, "[HTTP] Dropped an incomplete submission from " + request.getRemoteAddress()
+                    + ": " + e.getMessage());
+            return error(400, "request body broke off: " + e.getMessage());
+        }
+
+        metrics.record(Stage.INGEST, profileId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        metrics.add(Counter.QUEUED, profileId, total);
+        metrics.add(Counter.REJECTED, profileId, rejectedCount[0]);
+        GatewayLogger.debug(context, "[HTTP] Queued " + total + " messages from " + request.getRemoteAddress()
+                + (rejectedCount[0] > 0 ? ", " + rejectedCount[0] + " line(s) reported" : "") + ".");
+        if (total > 0) {
+            onQueued.run();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("batch", batchId);
+        result.put("accepted", total);
+        // Lines that were skipped, or queued with a warning such as an exceeded segment limit
+        result.put("error_count", rejectedCount[0]);
+        result.put("errors", rejected);
+        return new Response(total > 0 || rejectedCount[0] == 0 ? 202 : 400, JSON, gson.toJson(result));
+    }
+
+    /**
+     * @throws UnsupportedFormatException if the content type is not one we read
+     */
+    private CommandReader openReader(InputStream body, String contentType, boolean gzip, String profileId)
+            throws IOException {
+        if (JSON.equals(contentType) || contentType.endsWith("+json")) {
+            return jsonReader(readJson(gzip ? new GZIPInputStream(body) : body), profileId);
+        }
+        String name;
+        switch (contentType) {
+            case "application/x-ndjson":
+            case "application/ndjson":
+            case "application/jsonl":
+            case "application/x-jsonlines":
+                name = "request.ndjson";
+                break;
+            case "text/csv":
+                name = "request.csv";
+                break;
+            case "":
+            case "text/plain":
+            case "application/octet-stream":
+                name = "request";
+                break;
+            default:
+                throw new UnsupportedFormatException("unsupported Content-Type \"" + contentType + "\"");
+        }
+        return CommandFormats.open(body, gzip ? name + ".gz" : name, TemplateStore.get(context, profileId));
+    }
+
+    /**
+     * Reads one JSON document: an object is a single command and an array a
+     * batch, one command per element. Several objects in a row are taken as
+     * NDJSON.
+     */
+    private CommandReader jsonReader(String text, String profileId) throws IOException {
+        JsonReader json = new JsonReader(new StringReader(text));
+        JsonElement first = JsonParser.parseReader(json);
+        boolean single;
+        try {
+            single = json.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException e) {
+            single = false;
+        }
+        if (!single || first.isJsonNull()) {
+            return new NdjsonCommandReader(new StringReader(text), TemplateStore.get(context, profileId));
+        }
+        StringBuilder lines = new StringBuilder(text.length());
+        if (first.isJsonArray()) {
+            for (JsonElement element : first.getAsJsonArray()) {
+                lines.append(element).append('\n');
+            }
+        } else {
+            lines.append(first).append('\n');
+        }
+        return new NdjsonCommandReader(new StringReader(lines.toString()), TemplateStore.get(context, profileId));
+    }
+
+    private static String readJson(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            if (out.size() > MAX_JSON_BYTES) {
+                throw new IngestServer.BodyTooLargeException(MAX_JSON_BYTES);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private GatewayProfile findProfile(String idOrName) {
+        GatewayProfile byName = null;
+        for (GatewayProfile profile : ProfileStore.getProfiles(context)) {
+            if (profile.getId().equals(idOrName)) {
+                return profile;
+            }
+            if (byName == null && profile.getName() != null && profile.getName().equalsIgnoreCase(idOrName)) {
+                byName = profile;
+            }
+        }
+        return byName;
+    }
+
+    private static boolean authorized(Request request, String token) {
+        String header = request.getHeader("Authorization");
+        if (token.isEmpty() || header == null || !header.startsWith("Bearer ")) {
+            return false;
+        }
+        // Constant time, so the token cannot be guessed byte by byte from response times
+        return MessageDigest.isEqual(header.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the media type without parameters, lower case, or "" if absent
+     */
+    private static String mediaType(String contentType) {
+        if (contentType == null) {
+            return "";
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static Response error(int status, String message) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", message);
+        return new Response(status, JSON, gson.toJson(body));
+    }
+
+    private static class UnsupportedFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedFormatException(String message) {
+            super(message);
+        }
+    }
+}
@@ -8,14 +8,22 @@ import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 import com.okeedookee.utils.R;
 import com.okeedookee.utils.utils.AppLog;
+import com.okeedookee.utils.utils.GatewayLogger;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Shows log entries oldest first. Entries are only ever added at either end
+ * (new ones appended, older pages prepended) and announced with range
+ * notifications, so existing rows are never rebound.
+ */
 public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
 
-    private List<AppLog> logs;
+    private final List<AppLog> logs;
 
     public LogAdapter(List<AppLog> logs) {
-        this.logs = logs;
+        this.logs = new ArrayList<>(logs);
+        setHasStableIds(true);
     }
 
     public static class LogViewHolder extends RecyclerView.ViewHolder {
@@ -40,7 +48,11 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
     @Override
     public void onBindViewHolder(@NonNull LogViewHolder holder, int position) {
         AppLog log = logs.get(position);
-        holder.tvTime.setText(log.getTimestamp());
+        if (GatewayLogger.Level.INFO.name().equals(log.getLevel())) {
+            holder.tvTime.setText(log.getTimestamp());
+        } else {
+            holder.tvTime.setText(log.getTimestamp() + "  " + log.getLevel());
+        }
         holder.tvMessage.setText(log.getMessage());
     }
 
@@ -49,8 +61,63 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
         return logs.size();
     }
 
-    public void updateLogs(List<AppLog> newLogs) {
-        this.logs = newLogs;
-        notifyDataSetChanged();
+    @Override
+    public long getItemId(int position) {
+        return logs.get(position).getSeq();
+    }
+
+    /**
+     * Appends entries newer than the newest one shown.
+     *
+     * @return the number of rows inserted
+     */
+    public int appendLogs(List<AppLog> newLogs) {
+        long newest = logs.isEmpty() ? -1 : logs.get(logs.size() - 1).getSeq();
+        int start = logs.size();
+        for (AppLog log : newLogs) {
+            if (log.getSeq() > newest) {
+                logs.add(log);
+            }
+        }
+        int inserted = logs.size() - start;
+        if (inserted > 0) {
+            notifyItemRangeInserted(start, inserted);
+        }
+        return inserted;
+    }
+
+    /**
+     * Prepends a page of entries older than the oldest one shown.
+     *
+     * @return the number of rows inserted
+     */
+    public int prependLogs(List<AppLog> olderLogs) {
+        long oldest = logs.isEmpty() ? Long.MAX_VALUE : logs.get(0).getSeq();
+        List<AppLog> page = new ArrayList<>(olderLogs.size());
+        for (AppLog log : olderLogs) {
+            if (log.getSeq() < oldest) {
+                page.add(log);
+            }
+        }
+        if (!page.isEmpty()) {
+            logs.addAll(0, page);
+            notifyItemRangeInserted(0, page.size());
+        }
+        return page.size();
+    }
+
+    public void clear() {
+        int count = logs.size();
+        if (count > 0) {
+            logs.clear();
+            notifyItemRangeRemoved(0, count);
+        }
+    }
+
+    /**
+     * @return seq of the oldest entry shown, or -1 when empty
+     */
+    public long getOldestSeq() {
+        return logs.isEmpty() ? -1 : logs.get(0).getSeq();
     }
 }
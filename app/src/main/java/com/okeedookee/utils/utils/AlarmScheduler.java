@@ -6,18 +6,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.provider.Settings;
+import com.okeedookee.utils.MainActivity;
 import com.okeedookee.utils.receiver.SmsAlarmReceiver;
 
 public class AlarmScheduler {
 
-    public static void scheduleNextRun(Context context, long delayMillis) {
+    /**
+     * Schedules the next check and records when and why, for the countdown
+     * in MainActivity.
+     */
+    public static void scheduleNextRun(Context context, long delayMillis, String reason) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        long triggerTime = System.currentTimeMillis() + delayMillis;
+
         Intent intent = new Intent(context, SmsAlarmReceiver.class);
+        intent.putExtra(SmsAlarmReceiver.EXTRA_SCHEDULED_TIME, triggerTime);
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
                 context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
 
-        long triggerTime = System.currentTimeMillis() + delayMillis;
-
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             if (alarmManager.canScheduleExactAlarms()) {
                 alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
@@ -32,7 +38,14 @@ public class AlarmScheduler {
             alarmManager.setExact(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
         }
 
-        LogRepository.addLog(context, "Next run scheduled in " + (delayMillis / 1000 / 60) + " minutes.");
+        context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(MainActivity.KEY_NEXT_RUN_TIME, triggerTime)
+                .putString(MainActivity.KEY_NEXT_RUN_REASON, reason)
+                .apply();
+
+        long seconds = delayMillis / 1000;
+        GatewayLogger.info(context, "Next run scheduled in " + (seconds / 60) + "m " + (seconds % 60) + "s ("
+                + reason + ").");
     }
 
     public static void cancelAlarm(Context context) {
@@ -41,6 +54,6 @@ public class AlarmScheduler {
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
                 context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         alarmManager.cancel(pendingIntent);
-        LogRepository.addLog(context, "Alarm cancelled.");
+        GatewayLogger.info(context, "Alarm cancelled.");
     }
 }
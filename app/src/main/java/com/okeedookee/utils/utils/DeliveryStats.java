@@ -0,0 +1,206 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import com.okeedookee.utils.metrics.LatencyHistogram;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated send and delivery receipts.
+ *
+ * Keeps two latency histograms (submit to sent, sent to delivered), counters
+ * per sent result code and per delivery status, and a count of messages the
+ * network gave up delivering. Only successful delivery reports (TP-Status
+ * 0x00-0x1F) feed the sent to delivered histogram. Everything is kept
+ * in a small binary file, rewritten at most every {@link #SAVE_INTERVAL_MILLIS}
+ * while receipts come in and on {@link #flush} at the end of a drain.
+ */
+public class DeliveryStats {
+    private static final String TAG = "DeliveryStats";
+    private static final String FILENAME = "delivery_stats.bin";
+    private static final int FORMAT_VERSION = 2;
+    private static final long SAVE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Object lock = new Object();
+    private static final LatencyHistogram submitToSent = new LatencyHistogram();
+    private static final LatencyHistogram sentToDelivered = new LatencyHistogram();
+    private static final Map<Integer, Long> sentResults = new TreeMap<>();
+    private static final Map<Integer, Long> deliveryStatuses = new TreeMap<>();
+    private static long undelivered;
+    private static AtomicFile file;
+    private static long lastSaveMillis;
+    private static boolean dirty;
+
+    // Private constructor to prevent instantiation
+    private DeliveryStats() {
+    }
+
+    /**
+     * Records the sent receipt of one message part.
+     *
+     * @param latencyMillis submit to sent time if this receipt completed the message, otherwise -1
+     */
+    public static void recordSent(Context context, int resultCode, long latencyMillis) {
+        synchronized (lock) {
+            open(context);
+            increment(sentResults, resultCode);
+            if (latencyMillis >= 0) {
+                submitToSent.record(latencyMillis);
+            }
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Records a successful delivery report of one message part.
+     *
+     * @param latencyMillis sent to delivered time if this report completed the message, otherwise -1
+     */
+    public static void recordDelivered(Context context, int status, long latencyMillis) {
+        synchronized (lock) {
+            open(context);
+            increment(deliveryStatuses, status);
+            if (latencyMillis >= 0) {
+                sentToDelivered.record(latencyMillis);
+            }
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Records a delivery report of one message part that failed permanently.
+     *
+     * @param firstPart true if this is the first failed part of its message, which counts it as undelivered
+     */
+    public static void recordDeliveryFailed(Context context, int status, boolean firstPart) {
+        synchronized (lock) {
+            open(context);
+            increment(deliveryStatuses, status);
+            if (firstPart) {
+                undelivered++;
+            }
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Writes receipts recorded since the last save.
+     */
+    public static void flush(Context context) {
+        synchronized (lock) {
+            if (dirty) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * @return a short multi-part summary for the log
+     */
+    public static String describe(Context context) {
+        synchronized (lock) {
+            open(context);
+            return "submit->sent " + submitToSent.describe()
+                    + "; sent->delivered " + sentToDelivered.describe()
+                    + "; sent results " + sentResults
+                    + "; delivery statuses " + deliveryStatuses
+                    + "; undelivered " + undelivered;
+        }
+    }
+
+    public static void clear(Context context) {
+        synchronized (lock) {
+            open(context);
+            submitToSent.clear();
+            sentToDelivered.clear();
+            sentResults.clear();
+            deliveryStatuses.clear();
+            undelivered = 0;
+            save();
+        }
+    }
+
+    private static void increment(Map<Integer, Long> counters, int key) {
+        Long current = counters.get(key);
+        counters.put(key, current == null ? 1 : current + 1);
+    }
+
+    private static void open(Context context) {
+        if (file != null) {
+            return;
+        }
+        file = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILENAME));
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            int version = in.readInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                return;
+            }
+            submitToSent.readFrom(in);
+            sentToDelivered.readFrom(in);
+            readCounters(in, sentResults);
+            readCounters(in, deliveryStatuses);
+            // Version 1 had no failure count
+            undelivered = version >= 2 ? in.readLong() : 0;
+        } catch (IOException e) {
+            // Missing or unreadable: start from zero
+            submitToSent.clear();
+            sentToDelivered.clear();
+            sentResults.clear();
+            deliveryStatuses.clear();
+            undelivered = 0;
+        }
+    }
+
+    private static void saveIfDue() {
+        dirty = true;
+        if (System.currentTimeMillis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+            save();
+        }
+    }
+
+    private static void save() {
+        lastSaveMillis = System.currentTimeMillis();
+        dirty = false;
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FORMAT_VERSION);
+            submitToSent.writeTo(out);
+            sentToDelivered.writeTo(out);
+            writeCounters(out, sentResults);
+            writeCounters(out, deliveryStatuses);
+            out.writeLong(undelivered);
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save delivery stats", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private static void readCounters(DataInputStream in, Map<Integer, Long> counters) throws IOException {
+        int size = in.readUnsignedShort();
+        for (int i = 0; i < size; i++) {
+            counters.put(in.readInt(), in.readLong());
+        }
+    }
+
+    private static void writeCounters(DataOutputStream out, Map<Integer, Long> counters) throws IOException {
+        out.writeShort(counters.size());
+        for (Map.Entry<Integer, Long> entry : counters.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers what the worker saw on its last completed run so unchanged command
+ * files can be skipped with conditional requests instead of being downloaded,
+ * decoded and parsed again.
+ *
+ * For every profile's file two entries are kept:
+ * - head: ETag and commit sha of the branch ref when the file was last checked
+ * - file: ETag of the parent directory listing and blob sha of the last processed file
+ */
+public class FetchStateCache {
+    private static final String PREFS_NAME = "SmsGatewayFetchCache";
+
+    private static final String PREFIX_HEAD = "head:";
+    private static final String PREFIX_FILE = "file:";
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_SHA = ".sha";
+
+    public static String fileKey(String profileId, String owner, String repo, String branch, String path) {
+        return profileId + "|" + owner + "/" + repo + "@" + branch + ":" + path;
+    }
+
+    public static String getHeadEtag(Context context, String fileKey) {
+        return prefs(context).getString(PREFIX_HEAD + fileKey + SUFFIX_ETAG, null);
+    }
+
+    public static String getHeadSha(Context context, String fileKey) {
+        return prefs(context).getString(PREFIX_HEAD + fileKey + SUFFIX_SHA, null);
+    }
+
+    public static void saveHeadState(Context context, String fileKey, String etag, String sha) {
+        save(context, PREFIX_HEAD + fileKey, etag, sha);
+    }
+
+    public static String getFileEtag(Context context, String fileKey) {
+        return prefs(context).getString(PREFIX_FILE + fileKey + SUFFIX_ETAG, null);
+    }
+
+    public static String getFileSha(Context context, String fileKey) {
+        return prefs(context).getString(PREFIX_FILE + fileKey + SUFFIX_SHA, null);
+    }
+
+    public static void saveFileState(Context context, String fileKey, String etag, String sha) {
+        save(context, PREFIX_FILE + fileKey, etag, sha);
+    }
+
+    public static void clear(Context context) {
+        prefs(context).edit().clear().apply();
+    }
+
+    private static void save(Context context, String key, String etag, String sha) {
+        // putString(key, null) removes the entry
+        prefs(context).edit()
+                .putString(key + SUFFIX_ETAG, etag)
+                .putString(key + SUFFIX_SHA, sha)
+                .apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,194 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging facade.
+ *
+ * Callers only enqueue a record into a bounded lock-free queue and return; a
+ * single background writer group-commits records to {@link LogRepository}
+ * every {@link #BATCH_SIZE} records or {@link #MAX_DELAY_MS} milliseconds,
+ * whichever comes first. While nothing is queued the writer sleeps without a
+ * timeout, so an idle gateway does not wake the CPU. Under pressure DEBUG records are sampled and, once
+ * the queue is full, DEBUG and INFO records are dropped (and counted) so the
+ * caller never blocks. WARN and ERROR records may use a small reserve beyond
+ * the capacity.
+ *
+ * Call {@link #flush()} before the process may go away (e.g. at the end of a
+ * worker run) to make sure everything logged so far is on disk.
+ */
+public final class GatewayLogger {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final int CAPACITY = 4096;
+    private static final int HIGH_WATER_MARK = CAPACITY * 3 / 4;
+    private static final int ERROR_RESERVE = 256;
+    private static final int DEBUG_SAMPLE_RATE = 10; // keep 1 in N DEBUG records under pressure
+    static final int BATCH_SIZE = 64;
+    static final long MAX_DELAY_MS = 250;
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static final ConcurrentLinkedQueue<LogRecord> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong enqueuedTotal = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong debugCounter = new AtomicLong();
+    private static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private static final Object commitLock = new Object();
+    private static long committedTotal; // guarded by commitLock
+
+    private static volatile Context appContext;
+    private static volatile Thread writer;
+    // Set by flush() so the writer commits at once instead of waiting to fill a batch
+    private static volatile boolean flushRequested;
+
+    public static void debug(Context context, String message) {
+        log(context, Level.DEBUG, message);
+    }
+
+    public static void info(Context context, String message) {
+        log(context, Level.INFO, message);
+    }
+
+    public static void warn(Context context, String message) {
+        log(context, Level.WARN, message);
+    }
+
+    public static void error(Context context, String message) {
+        log(context, Level.ERROR, message);
+    }
+
+    public static void log(Context context, Level level, String message) {
+        ensureWriter(context);
+
+        int depth = queued.get();
+        if (depth >= HIGH_WATER_MARK && level == Level.DEBUG
+                && debugCounter.incrementAndGet() % DEBUG_SAMPLE_RATE != 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int limit = level.compareTo(Level.WARN) >= 0 ? CAPACITY + ERROR_RESERVE : CAPACITY;
+        if (queued.incrementAndGet() > limit) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+
+        queue.offer(new LogRecord(level, System.currentTimeMillis(), message));
+        enqueuedTotal.incrementAndGet();
+        // The first record wakes an idle writer; a full batch cuts its wait short
+        if (depth == 0 || depth + 1 >= BATCH_SIZE) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Blocks (up to a short timeout) until every record enqueued before this
+     * call has been committed to the log store.
+     */
+    public static void flush() {
+        Thread current = writer;
+        if (current == null) {
+            return;
+        }
+        long target = enqueuedTotal.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        flushRequested = true;
+        LockSupport.unpark(current);
+        synchronized (commitLock) {
+            while (committedTotal < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    commitLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs {@code task} on the writer thread, before the next batch is committed.
+     */
+    static void execute(Context context, Runnable task) {
+        ensureWriter(context);
+        tasks.offer(task);
+        LockSupport.unpark(writer);
+    }
+
+    private static void ensureWriter(Context context) {
+        if (writer != null) {
+            return;
+        }
+        synchronized (GatewayLogger.class) {
+            if (writer == null) {
+                appContext = context.getApplicationContext();
+                Thread thread = new Thread(GatewayLogger::runWriter, "GatewayLogger");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+                writer = thread;
+            }
+        }
+    }
+
+    private static void runWriter() {
+        List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            if (queued.get() == 0 && tasks.isEmpty() && !flushRequested) {
+                // Idle: log(), execute() and flush() unpark us
+                LockSupport.park();
+                continue;
+            }
+            if (queued.get() < BATCH_SIZE && tasks.isEmpty() && !flushRequested) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS));
+            }
+            flushRequested = false;
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            LogRecord record;
+            while ((record = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(record);
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                batch.add(new LogRecord(Level.WARN, System.currentTimeMillis(),
+                        "Logger dropped " + lost + " records under pressure."));
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            LogRepository.appendBatch(appContext, batch);
+            int committed = lost > 0 ? batch.size() - 1 : batch.size();
+            batch.clear();
+
+            synchronized (commitLock) {
+                committedTotal += committed;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    private GatewayLogger() {
+        // Private constructor to prevent instantiation
+    }
+}
@@ -0,0 +1,162 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import com.okeedookee.utils.config.GatewayProfile;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.metrics.PipelineMetrics;
+import com.okeedookee.utils.metrics.PipelineMetrics.Counter;
+import com.okeedookee.utils.metrics.PipelineMetrics.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process-wide {@link PipelineMetrics}, restored from the last snapshot
+ * on first use. Snapshots are written at most every
+ * {@link #SNAPSHOT_INTERVAL_MILLIS}, together with a Prometheus export in
+ * the app's external files directory that can be pulled over adb.
+ */
+public class GatewayMetrics {
+    public static final String EXPORT_FILENAME = "metrics.prom";
+    private static final String TAG = "GatewayMetrics";
+    private static final String FILENAME = "pipeline_metrics.bin";
+    private static final long SNAPSHOT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Object lock = new Object();
+    private static PipelineMetrics metrics;
+    private static AtomicFile file;
+    private static long lastSnapshotMillis;
+
+    // Private constructor to prevent instantiation
+    private GatewayMetrics() {
+    }
+
+    public static PipelineMetrics get(Context context) {
+        synchronized (lock) {
+            if (metrics == null) {
+                metrics = new PipelineMetrics();
+                file = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILENAME));
+                try (DataInputStream in = new DataInputStream(file.openRead())) {
+                    metrics.readFrom(in);
+                } catch (IOException e) {
+                    // Missing or unreadable: start from zero
+                }
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Writes a snapshot and the Prometheus export if the last one is older
+     * than the snapshot interval.
+     *
+     * @param force write even if the last snapshot is recent
+     */
+    public static void snapshot(Context context, boolean force) {
+        PipelineMetrics current = get(context);
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastSnapshotMillis < SNAPSHOT_INTERVAL_MILLIS) {
+                return;
+            }
+            lastSnapshotMillis = now;
+            FileOutputStream stream = null;
+            try {
+                stream = file.startWrite();
+                DataOutputStream out = new DataOutputStream(stream);
+                current.writeTo(out);
+                out.flush();
+                file.finishWrite(stream);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write the metrics snapshot", e);
+                if (stream != null) {
+                    file.failWrite(stream);
+                }
+            }
+
+            AtomicFile export = new AtomicFile(getExportFile(context));
+            stream = null;
+            try {
+                stream = export.startWrite();
+                stream.write(toPrometheus(context).getBytes(StandardCharsets.UTF_8));
+                export.finishWrite(stream);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write the Prometheus export", e);
+                if (stream != null) {
+                    export.failWrite(stream);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return where the Prometheus export is written: the external files
+     *         directory if there is one, else internal storage
+     */
+    public static File getExportFile(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        return new File(dir, EXPORT_FILENAME);
+    }
+
+    public static String toPrometheus(Context context) {
+        return get(context).toPrometheus(profileNames(context));
+    }
+
+    /**
+     * @return a few lines for the main screen: totals, the key latencies and
+     *         one line per profile
+     */
+    public static String describe(Context context) {
+        PipelineMetrics current = get(context);
+        StringBuilder summary = new StringBuilder();
+        summary.append("Sent ").append(current.getCount(Counter.SENT, null))
+                .append(", failed ").append(current.getCount(Counter.FAILED, null))
+                .append(", duplicates ").append(current.getCount(Counter.DUPLICATES, null))
+                .append(", queued ").append(current.getCount(Counter.QUEUED, null))
+                .append(", rejected ").append(current.getCount(Counter.REJECTED, null));
+        summary.append("\nFetch p50 ").append(millis(current.getPercentile(Stage.FETCH, null, 0.5)))
+                .append(" p99 ").append(millis(current.getPercentile(Stage.FETCH, null, 0.99)))
+                .append(", send p99 ").append(millis(current.getPercentile(Stage.SEND, null, 0.99)))
+                .append(", start delay p99 ")
+                .append(millis(current.getPercentile(Stage.TRIGGER_DELAY, PipelineMetrics.DEVICE, 0.99)));
+
+        List<String> profileIds = current.getProfileIds();
+        if (profileIds.size() > 1) {
+            Map<String, String> names = profileNames(context);
+            for (String profileId : profileIds) {
+                String name = names.get(profileId);
+                summary.append("\n[").append(name != null ? name : profileId).append("] sent ")
+                        .append(current.getCount(Counter.SENT, profileId))
+                        .append(", failed ").append(current.getCount(Counter.FAILED, profileId))
+                        .append(", fetch errors ").append(current.getCount(Counter.FETCH_ERRORS, profileId))
+                        .append(", fetch p99 ")
+                        .append(millis(current.getPercentile(Stage.FETCH, profileId, 0.99)));
+            }
+        }
+        return summary.toString();
+    }
+
+    private static Map<String, String> profileNames(Context context) {
+        Map<String, String> names = new HashMap<>();
+        for (GatewayProfile profile : ProfileStore.getProfiles(context)) {
+            names.put(profile.getId(), profile.getName());
+        }
+        return names;
+    }
+
+    private static String millis(long value) {
+        return value < 0 ? "-" : value + "ms";
+    }
+}
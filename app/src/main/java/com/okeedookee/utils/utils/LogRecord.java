@@ -0,0 +1,17 @@
+package com.okeedookee.utils.utils;
+
+/**
+ * A log call waiting in the {@link GatewayLogger} queue; turned into an
+ * {@link AppLog} (sequence number, formatted time) when it is committed.
+ */
+class LogRecord {
+    final GatewayLogger.Level level;
+    final long time;
+    final String message;
+
+    LogRecord(GatewayLogger.Level level, long time, String message) {
+        this.level = level;
+        this.time = time;
+        this.message = message;
+    }
+}
@@ -1,65 +1,405 @@
 package com.okeedookee.utils.utils;
 
 import android.content.Context;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import android.util.Log;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Append-only log store.
+ *
+ * Entries are written as JSON lines to a ring of fixed-size segment files
+ * (logs/segment-N.jsonl). Records arrive in batches from {@link GatewayLogger}
+ * and each batch is a single write to the open tail segment; when that is
+ * full a new segment is started and the oldest one is deleted once more than
+ * {@link #MAX_SEGMENTS} exist. The newest entries are
+ * also kept in an in-memory ring buffer, so {@link #getLogs} never reads disk
+ * after the store has been opened. Newly committed entries are pushed to
+ * registered {@link LogListener}s; older history is paged in with
+ * {@link #getLogsBefore}.
+ */
 public class LogRepository {
-    private static final String FILENAME = "app_logs.json";
-    private static final Gson gson = new Gson();
+    // Failures of the log store itself go to logcat; logging them here would recurse
+    private static final String TAG = "LogRepository";
 
-    public static void addLog(Context context, String message) {
-        List<AppLog> list = new ArrayList<>(getLogs(context));
-        String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date());
-        list.add(new AppLog(time, System.currentTimeMillis(), message)); // Add to end
+    /**
+     * Receives log changes as they are committed. Called on the logger's
+     * background thread, never on the main thread.
+     */
+    public interface LogListener {
+        void onLogsAppended(List<AppLog> logs);
 
-        // Limit to last 100 logs
-        if (list.size() > 100) {
-            list = list.subList(0, 100);
+        void onLogsCleared();
+    }
+
+    private static final String LEGACY_FILENAME = "app_logs.json";
+    private static final String LOG_DIR = "logs";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".jsonl";
+
+    static final int SEGMENT_MAX_ENTRIES = 5000;
+    static final int MAX_SEGMENTS = 8;
+    private static final int MEMORY_CAPACITY = 500;
+
+    private static final Object lock = new Object();
+    private static final SimpleDateFormat timeFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+    private static final LogRingBuffer recent = new LogRingBuffer(MEMORY_CAPACITY);
+    private static final List<LogListener> listeners = new CopyOnWriteArrayList<>();
+    // First seq of each segment, filled lazily for paging
+    private static final Map<Long, Long> segmentFirstSeq = new HashMap<>();
+
+    // Ascending ids of the segments on disk; the last one is the tail being appended to
+    private static final List<Long> segments = new ArrayList<>();
+    private static File logDir;
+    private static FileOutputStream tail;
+    private static int tailEntries;
+    private static long nextSeq;
+    // A clear not yet reported to the listeners; guarded by lock
+    private static boolean clearPending;
+
+    /**
+     * Commits a batch of records with as few writes as possible. Called by the
+     * {@link GatewayLogger} writer thread; use {@link GatewayLogger} to log.
+     */
+    static void appendBatch(Context context, List<LogRecord> records) {
+        List<AppLog> committed = new ArrayList<>(records.size());
+        boolean cleared;
+        synchronized (lock) {
+            open(context);
+            cleared = clearPending;
+            clearPending = false;
+            StringBuilder lines = new StringBuilder(records.size() * 96);
+            for (LogRecord record : records) {
+                if (tailEntries >= SEGMENT_MAX_ENTRIES) {
+                    write(lines);
+                    rotate();
+                }
+                AppLog log = new AppLog(nextSeq++, record.level.name(),
+                        timeFormat.format(new Date(record.time)), record.time, record.message);
+                recent.add(log);
+                committed.add(log);
+                LogCodec.encode(log, lines);
+                lines.append('\n');
+                tailEntries++;
+            }
+            write(lines);
+        }
+        if (cleared) {
+            notifyCleared();
         }
+        for (LogListener listener : listeners) {
+            listener.onLogsAppended(committed);
+        }
+    }
 
-        saveLogs(context, list);
+    public static void addListener(LogListener listener) {
+        listeners.add(listener);
     }
 
+    public static void removeListener(LogListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the most recent entries, oldest first
+     */
     public static List<AppLog> getLogs(Context context) {
-        File file = new File(context.getFilesDir(), FILENAME);
-        if (!file.exists())
-            return Collections.emptyList();
+        synchronized (lock) {
+            open(context);
+            return recent.toList();
+        }
+    }
 
-        try {
-            byte[] encoded = Files.readAllBytes(file.toPath());
-            String json = new String(encoded, StandardCharsets.UTF_8);
-            Type type = new TypeToken<List<AppLog>>() {
-            }.getType();
-            List<AppLog> logs = gson.fromJson(json, type);
-            return logs != null ? logs : Collections.emptyList();
-        } catch (Exception e) {
-            return Collections.emptyList();
+    /**
+     * Deletes all entries. Listeners hear about it on the logger's thread,
+     * before any entry committed after the clear.
+     */
+    public static void clearLogs(Context context) {
+        synchronized (lock) {
+            open(context);
+            closeTail();
+            for (Long id : segments) {
+                segmentFile(id).delete();
+            }
+            long nextId = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+            segments.clear();
+            segments.add(nextId);
+            tailEntries = 0;
+            recent.clear();
+            segmentFirstSeq.clear();
+            openTail();
+            clearPending = true;
+        }
+        GatewayLogger.execute(context, LogRepository::reportClear);
+    }
+
+    /**
+     * Runs on the logger's thread, like {@link #appendBatch}, so the two
+     * report changes in the order they were committed.
+     */
+    private static void reportClear() {
+        synchronized (lock) {
+            if (!clearPending) {
+                return; // already reported ahead of a batch
+            }
+            clearPending = false;
         }
+        notifyCleared();
     }
 
-    private static void saveLogs(Context context, List<AppLog> logs) {
-        File file = new File(context.getFilesDir(), FILENAME);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(gson.toJson(logs).getBytes(StandardCharsets.UTF_8));
+    private static void notifyCleared() {
+        for (LogListener listener : listeners) {
+            listener.onLogsCleared();
+        }
+    }
+
+    /**
+     * Pages back through history. Served from memory when possible, otherwise
+     * read backwards from the segment holding {@code beforeSeq}; call it off
+     * the main thread.
+     *
+     * @return up to {@code limit} entries older than {@code beforeSeq}, oldest first
+     */
+    public static List<AppLog> getLogsBefore(Context context, long beforeSeq, int limit) {
+        List<AppLog> newestFirst = new ArrayList<>(limit);
+        synchronized (lock) {
+            open(context);
+            List<AppLog> inMemory = recent.toList();
+            if (!inMemory.isEmpty() && inMemory.get(0).getSeq() < beforeSeq) {
+                for (int i = inMemory.size() - 1; i >= 0 && newestFirst.size() < limit; i--) {
+                    if (inMemory.get(i).getSeq() < beforeSeq) {
+                        newestFirst.add(inMemory.get(i));
+                    }
+                }
+                beforeSeq = inMemory.get(0).getSeq();
+            }
+
+            for (int i = segments.size() - 1; i >= 0 && newestFirst.size() < limit; i--) {
+                long id = segments.get(i);
+                Long firstSeq = firstSeq(id);
+                if (firstSeq == null || firstSeq >= beforeSeq) {
+                    continue; // everything in this segment is too new
+                }
+                readBackwards(segmentFile(id), beforeSeq, limit, newestFirst);
+            }
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    private static void readBackwards(File file, long beforeSeq, int limit, List<AppLog> out) {
+        try (ReverseLineReader reader = new ReverseLineReader(file)) {
+            String line;
+            while (out.size() < limit && (line = reader.readLine()) != null) {
+                // Skip newer lines without a full JSON decode
+                long seq = LogCodec.peekSeq(line);
+                if (seq >= 0 && seq >= beforeSeq) {
+                    continue;
+                }
+                AppLog log = LogCodec.decode(line);
+                if (log != null && log.getSeq() < beforeSeq) {
+                    out.add(log);
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.w(TAG, "Could not page back through " + file, e);
         }
     }
 
-    public static void clearLogs(Context context) {
-        saveLogs(context, Collections.emptyList());
+    private static Long firstSeq(long segmentId) {
+        Long cached = segmentFirstSeq.get(segmentId);
+        if (cached != null) {
+            return cached;
+        }
+        File file = segmentFile(segmentId);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                AppLog log = LogCodec.decode(line);
+                if (log != null) {
+                    segmentFirstSeq.put(segmentId, log.getSeq());
+                    return log.getSeq();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the first entry of " + file, e);
+        }
+        return null;
+    }
+
+    private static void write(StringBuilder lines) {
+        if (lines.length() == 0) {
+            return;
+        }
+        if (tail != null) {
+            try {
+                tail.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not append log entries", e);
+            }
+        }
+        lines.setLength(0);
+    }
+
+    private static void rotate() {
+        closeTail();
+        segments.add(segments.get(segments.size() - 1) + 1);
+        tailEntries = 0;
+        while (segments.size() > MAX_SEGMENTS) {
+            long oldest = segments.remove(0);
+            segmentFirstSeq.remove(oldest);
+            segmentFile(oldest).delete();
+        }
+        openTail();
+    }
+
+    /**
+     * Opens the store on first use: discovers the segments on disk, repairs a
+     * torn last line, and loads the newest entries into memory by reading
+     * backwards from the tail.
+     */
+    private static void open(Context context) {
+        if (logDir != null) {
+            return;
+        }
+        File filesDir = context.getApplicationContext().getFilesDir();
+        new File(filesDir, LEGACY_FILENAME).delete();
+
+        logDir = new File(filesDir, LOG_DIR);
+        logDir.mkdirs();
+
+        File[] files = logDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        if (segments.isEmpty()) {
+            segments.add(0L);
+        }
+
+        File tailFile = segmentFile(segments.get(segments.size() - 1));
+        repairTornLine(tailFile);
+        tailEntries = countLines(tailFile);
+        loadRecent();
+        openTail();
+    }
+
+    private static void loadRecent() {
+        List<AppLog> newestFirst = new ArrayList<>(recent.capacity());
+        for (int i = segments.size() - 1; i >= 0 && newestFirst.size() < recent.capacity(); i--) {
+            File file = segmentFile(segments.get(i));
+            if (!file.exists()) {
+                continue;
+            }
+            try (ReverseLineReader reader = new ReverseLineReader(file)) {
+                String line;
+                while (newestFirst.size() < recent.capacity() && (line = reader.readLine()) != null) {
+                    AppLog log = LogCodec.decode(line);
+                    if (log != null) {
+                        newestFirst.add(log);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not load recent entries from " + file, e);
+            }
+        }
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            recent.add(newestFirst.get(i));
+        }
+        nextSeq = newestFirst.isEmpty() ? 0 : newestFirst.get(0).getSeq() + 1;
+    }
+
+    /**
+     * A crash in the middle of a write can leave a partial last line; terminate
+     * it so the next append starts on a fresh line.
+     */
+    private static void repairTornLine(File file) {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            if (raf.read() != '\n') {
+                raf.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not repair the last line of " + file, e);
+        }
+    }
+
+    private static int countLines(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int lines = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not count the entries of " + file, e);
+        }
+        return lines;
+    }
+
+    private static void openTail() {
+        try {
+            tail = new FileOutputStream(segmentFile(segments.get(segments.size() - 1)), true);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open the tail segment", e);
+            tail = null;
+        }
+    }
+
+    private static void closeTail() {
+        if (tail != null) {
+            try {
+                tail.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the tail segment", e);
+            }
+            tail = null;
+        }
+    }
+
+    private static File segmentFile(long id) {
+        return new File(logDir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
     }
 }
@@ -0,0 +1,55 @@
+package com.okeedookee.utils.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-capacity buffer holding the newest log entries; adding to a full
+ * buffer overwrites the oldest entry. Not thread-safe.
+ */
+class LogRingBuffer {
+    private final AppLog[] entries;
+    private int head; // index of the oldest entry
+    private int size;
+
+    LogRingBuffer(int capacity) {
+        entries = new AppLog[capacity];
+    }
+
+    void add(AppLog log) {
+        int tail = (head + size) % entries.length;
+        entries[tail] = log;
+        if (size < entries.length) {
+            size++;
+        } else {
+            head = (head + 1) % entries.length;
+        }
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a snapshot ordered oldest to newest
+     */
+    List<AppLog> toList() {
+        List<AppLog> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(entries[(head + i) % entries.length]);
+        }
+        return list;
+    }
+
+    void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+}
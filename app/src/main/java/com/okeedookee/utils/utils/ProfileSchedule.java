@@ -0,0 +1,77 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.okeedookee.utils.pipeline.PollingPolicy.Outcome;
+
+/**
+ * Per-profile polling state: when each profile is next due to be fetched and
+ * the idle and error streaks its backoff is based on. Kept apart from the
+ * profiles themselves so saving settings never races with a running check.
+ */
+public class ProfileSchedule {
+    private static final String PREFS_NAME = "SmsGatewayProfileSchedule";
+
+    private static final String SUFFIX_NEXT_DUE = ".next_due";
+    private static final String SUFFIX_REASON = ".reason";
+    private static final String SUFFIX_IDLE_STREAK = ".idle_streak";
+    private static final String SUFFIX_ERROR_STREAK = ".error_streak";
+
+    // Private constructor to prevent instantiation
+    private ProfileSchedule() {
+    }
+
+    /**
+     * @return when the profile should next be fetched, 0 if right away
+     */
+    public static long getNextDue(Context context, String profileId) {
+        return prefs(context).getLong(profileId + SUFFIX_NEXT_DUE, 0);
+    }
+
+    public static String getReason(Context context, String profileId) {
+        return prefs(context).getString(profileId + SUFFIX_REASON, "");
+    }
+
+    /**
+     * Updates the profile's streaks with the outcome of a fetch.
+     *
+     * @return number of consecutive fetches with this outcome, including this one
+     */
+    public static int recordOutcome(Context context, String profileId, Outcome outcome) {
+        SharedPreferences prefs = prefs(context);
+        int idleStreak = outcome == Outcome.IDLE ? prefs.getInt(profileId + SUFFIX_IDLE_STREAK, 0) + 1 : 0;
+        int errorStreak = outcome == Outcome.ERROR ? prefs.getInt(profileId + SUFFIX_ERROR_STREAK, 0) + 1 : 0;
+        prefs.edit()
+                .putInt(profileId + SUFFIX_IDLE_STREAK, idleStreak)
+                .putInt(profileId + SUFFIX_ERROR_STREAK, errorStreak)
+                .apply();
+        return Math.max(1, Math.max(idleStreak, errorStreak));
+    }
+
+    public static void setNextDue(Context context, String profileId, long nextDueMillis, String reason) {
+        prefs(context).edit()
+                .putLong(profileId + SUFFIX_NEXT_DUE, nextDueMillis)
+                .putString(profileId + SUFFIX_REASON, reason)
+                .apply();
+    }
+
+    public static void remove(Context context, String profileId) {
+        prefs(context).edit()
+                .remove(profileId + SUFFIX_NEXT_DUE)
+                .remove(profileId + SUFFIX_REASON)
+                .remove(profileId + SUFFIX_IDLE_STREAK)
+                .remove(profileId + SUFFIX_ERROR_STREAK)
+                .apply();
+    }
+
+    /**
+     * Makes every profile due right away, e.g. when the gateway is started.
+     */
+    public static void clear(Context context) {
+        prefs(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
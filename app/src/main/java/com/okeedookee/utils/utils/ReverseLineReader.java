@@ -0,0 +1,74 @@
+package com.okeedookee.utils.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of a UTF-8 text file from last to first, in fixed-size
+ * chunks from the tail, so the newest lines of a large file are available
+ * without reading the whole file.
+ */
+class ReverseLineReader implements Closeable {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final RandomAccessFile file;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private long chunkOffset; // file offset of chunk[0]
+    private int index = -1; // next byte to return, walking backwards
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    ReverseLineReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.chunkOffset = this.file.length();
+    }
+
+    /**
+     * @return the previous line (possibly empty), or null once the start of the file is reached
+     */
+    String readLine() throws IOException {
+        int b = readBackward();
+        if (b < 0) {
+            return null;
+        }
+        lineLength = 0;
+        while (b >= 0 && b != '\n') {
+            if (lineLength == line.length) {
+                byte[] grown = new byte[line.length * 2];
+                System.arraycopy(line, 0, grown, 0, lineLength);
+                line = grown;
+            }
+            line[lineLength++] = (byte) b;
+            b = readBackward();
+        }
+        for (int i = 0, j = lineLength - 1; i < j; i++, j--) {
+            byte tmp = line[i];
+            line[i] = line[j];
+            line[j] = tmp;
+        }
+        return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+    }
+
+    private int readBackward() throws IOException {
+        if (index < 0) {
+            if (chunkOffset == 0) {
+                return -1;
+            }
+            int length = (int) Math.min(CHUNK_SIZE, chunkOffset);
+            chunkOffset -= length;
+            file.seek(chunkOffset);
+            file.readFully(chunk, 0, length);
+            index = length - 1;
+        }
+        return chunk[index--] & 0xFF;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the SIMs that can send and keeps per-SIM daily send counts for quotas.
+ */
+public class SimSubscriptions {
+    private static final String PREFS_NAME = "SmsGatewaySimUsage";
+    private static final String SUFFIX_DAY = ".day";
+    private static final String SUFFIX_COUNT = ".count";
+
+    // Private constructor to prevent instantiation
+    private SimSubscriptions() {
+    }
+
+    /**
+     * Lists active subscriptions in slot order. Needs READ_PHONE_STATE; without
+     * it, or on a single-SIM device without a subscription list, only the
+     * default SMS subscription is returned.
+     */
+    public static List<Integer> getActiveSubscriptionIds(Context context) {
+        List<Integer> ids = new ArrayList<>();
+        try {
+            SubscriptionManager subscriptionManager = context.getSystemService(SubscriptionManager.class);
+            List<SubscriptionInfo> infos = subscriptionManager != null
+                    ? subscriptionManager.getActiveSubscriptionInfoList()
+                    : null;
+            if (infos != null) {
+                for (SubscriptionInfo info : infos) {
+                    ids.add(info.getSubscriptionId());
+                }
+            }
+        } catch (SecurityException e) {
+            GatewayLogger.warn(context, "Phone state permission missing. Sending on the default SIM only.");
+        }
+        if (ids.isEmpty()) {
+            ids.add(SmsManager.getDefaultSmsSubscriptionId());
+        }
+        return ids;
+    }
+
+    /**
+     * @return messages submitted on a SIM today
+     */
+    public static long getUsedToday(Context context, int subscriptionId) {
+        SharedPreferences prefs = prefs(context);
+        if (!today().equals(prefs.getString(subscriptionId + SUFFIX_DAY, null))) {
+            return 0;
+        }
+        return prefs.getLong(subscriptionId + SUFFIX_COUNT, 0);
+    }
+
+    public static void saveUsedToday(Context context, int subscriptionId, long count) {
+        prefs(context).edit()
+                .putString(subscriptionId + SUFFIX_DAY, today())
+                .putLong(subscriptionId + SUFFIX_COUNT, count)
+                .apply();
+    }
+
+    private static String today() {
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,77 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.okeedookee.utils.pipeline.TemplateSet;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps each profile's message templates on the device, so a command file
+ * can use templates defined by an earlier one. Templates are compiled once
+ * per process and then served from memory.
+ */
+public class TemplateStore {
+    private static final String PREFS_NAME = "SmsGatewayTemplates";
+    private static final Gson gson = new Gson();
+    private static final Type DEFINITIONS_TYPE = new TypeToken<LinkedHashMap<String, String>>() {
+    }.getType();
+
+    private static final Map<String, TemplateSet> loaded = new HashMap<>();
+
+    // Private constructor to prevent instantiation
+    private TemplateStore() {
+    }
+
+    /**
+     * @return the profile's templates, compiled
+     */
+    public static synchronized TemplateSet get(Context context, String profileId) {
+        TemplateSet templates = loaded.get(profileId);
+        if (templates == null) {
+            templates = new TemplateSet();
+            Map<String, String> definitions = null;
+            try {
+                definitions = gson.fromJson(prefs(context).getString(profileId, null), DEFINITIONS_TYPE);
+            } catch (JsonParseException e) {
+                // Start over; the next file that defines them restores them
+            }
+            if (definitions != null) {
+                for (Map.Entry<String, String> definition : definitions.entrySet()) {
+                    try {
+                        templates.define(definition.getKey(), definition.getValue());
+                    } catch (IllegalArgumentException e) {
+                        // Stored templates compiled once; skip one that no longer does
+                    }
+                }
+                templates.takeChanged();
+            }
+            loaded.put(profileId, templates);
+        }
+        return templates;
+    }
+
+    /**
+     * Persists the profile's templates if a command file changed them.
+     */
+    public static synchronized void save(Context context, String profileId) {
+        TemplateSet templates = loaded.get(profileId);
+        if (templates != null && templates.takeChanged()) {
+            prefs(context).edit().putString(profileId, gson.toJson(templates.getDefinitions())).apply();
+        }
+    }
+
+    public static synchronized void remove(Context context, String profileId) {
+        loaded.remove(profileId);
+        prefs(context).edit().remove(profileId).apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
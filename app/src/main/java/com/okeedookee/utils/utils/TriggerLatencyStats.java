@@ -0,0 +1,103 @@
+package com.okeedookee.utils.utils;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import com.okeedookee.utils.metrics.LatencyHistogram;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Time from a scheduled check to the first message it submits, kept
+ * separately for the alarm path and the foreground service so the two
+ * modes can be compared.
+ */
+public class TriggerLatencyStats {
+    private static final String TAG = "TriggerLatencyStats";
+    private static final String FILENAME = "trigger_latency.bin";
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Mode {
+        ALARM,
+        FOREGROUND
+    }
+
+    private static final Object lock = new Object();
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[Mode.values().length];
+    private static AtomicFile file;
+
+    // Private constructor to prevent instantiation
+    private TriggerLatencyStats() {
+    }
+
+    public static void record(Context context, Mode mode, long latencyMillis) {
+        synchronized (lock) {
+            open(context);
+            histograms[mode.ordinal()].record(latencyMillis);
+            save();
+        }
+    }
+
+    /**
+     * @return e.g. "alarm n=12 p50=..., foreground n=40 p50=..."
+     */
+    public static String describe(Context context) {
+        synchronized (lock) {
+            open(context);
+            StringBuilder summary = new StringBuilder();
+            for (Mode mode : Mode.values()) {
+                if (summary.length() > 0) {
+                    summary.append(", ");
+                }
+                summary.append(mode.name().toLowerCase()).append(' ')
+                        .append(histograms[mode.ordinal()].describe());
+            }
+            return summary.toString();
+        }
+    }
+
+    private static void open(Context context) {
+        if (file != null) {
+            return;
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        file = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILENAME));
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            for (LatencyHistogram histogram : histograms) {
+                histogram.readFrom(in);
+            }
+        } catch (IOException e) {
+            // Missing or unreadable: start from zero
+            for (LatencyHistogram histogram : histograms) {
+                histogram.clear();
+            }
+        }
+    }
+
+    private static void save() {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FORMAT_VERSION);
+            for (LatencyHistogram histogram : histograms) {
+                histogram.writeTo(out);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save trigger latencies", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,1446 @@
+package com.okeedookee.utils.worker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GatewayProfile;
+import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.metrics.PipelineMetrics;
+import com.okeedookee.utils.metrics.PipelineMetrics.Counter;
+import com.okeedookee.utils.metrics.PipelineMetrics.Stage;
+import com.okeedookee.utils.network.GithubApiService;
+import com.okeedookee.utils.network.GithubCommitRequest;
+import com.okeedookee.utils.network.GithubCommitResponse;
+import com.okeedookee.utils.network.GithubContentRequest;
+import com.okeedookee.utils.network.GithubFileResponse;
+import com.okeedookee.utils.network.GithubRefResponse;
+import com.okeedookee.utils.network.GithubRefUpdateRequest;
+import com.okeedookee.utils.network.GithubTreeRequest;
+import com.okeedookee.utils.network.GithubTreeResponse;
+import com.okeedookee.utils.network.RateLimitTracker;
+import com.okeedookee.utils.pipeline.CommandFormats;
+import com.okeedookee.utils.pipeline.CommandReader;
+import com.okeedookee.utils.pipeline.DuplicateFilter;
+import com.okeedookee.utils.pipeline.EncodingCommandReader;
+import com.okeedookee.utils.pipeline.FleetShard;
+import com.okeedookee.utils.pipeline.NormalizingCommandReader;
+import com.okeedookee.utils.pipeline.PhoneNormalizer;
+import com.okeedookee.utils.pipeline.PollingPolicy;
+import com.okeedookee.utils.pipeline.PollingPolicy.Outcome;
+import com.okeedookee.utils.pipeline.RateLimitConfig;
+import com.okeedookee.utils.pipeline.SendRateLimiter;
+import com.okeedookee.utils.pipeline.ShardingCommandReader;
+import com.okeedookee.utils.pipeline.SimDispatcher;
+import com.okeedookee.utils.pipeline.SmsEncoder;
+import com.okeedookee.utils.pipeline.SmsCommand;
+import com.okeedookee.utils.queue.OutboundMessage;
+import com.okeedookee.utils.queue.OutboundQueue;
+import com.okeedookee.utils.receiver.SmsStatusReceiver;
+import com.okeedookee.utils.utils.DeliveryStats;
+import com.okeedookee.utils.utils.FetchStateCache;
+import com.okeedookee.utils.utils.GatewayMetrics;
+import com.okeedookee.utils.utils.GatewayLogger;
+import com.okeedookee.utils.utils.GitHubUrlParser;
+import com.okeedookee.utils.utils.ProfileSchedule;
+import com.okeedookee.utils.utils.SimSubscriptions;
+import com.okeedookee.utils.utils.TemplateStore;
+import com.okeedookee.utils.utils.TriggerLatencyStats;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * One gateway check: look for new command files of every due profile, move
+ * their lines into the outbound queue, then send from the queue. Run by
+ * {@link SmsWorker} on the alarm path and by the foreground service, which
+ * keeps one instance (and with it the HTTP stack and parsed configuration)
+ * warm between polls.
+ *
+ * Profiles are fetched concurrently on a small shared pool while the calling
+ * thread already sends whatever is queued, so a slow or failing repository
+ * never holds up the others. Only one cycle runs at a time per process, so
+ * the two paths never send the same queued message twice.
+ */
+public class GatewayCycle {
+
+    /**
+     * Lets a long send loop notice that its owner wants it to stop.
+     */
+    public interface StopSignal {
+        boolean isStopped();
+    }
+
+    // The contents API serves raw files up to this size; anything larger goes through the blobs API
+    private static final long RAW_CONTENTS_MAX_BYTES = 1024 * 1024;
+    private static final long MAX_SLEEP_SLICE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long QUEUE_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int DRAIN_PAGE_SIZE = 50;
+    // Enough to overlap a few slow repositories without opening a connection per profile
+    private static final int FETCH_THREADS = 3;
+    // Spool files downloaded at once per profile, and handled (and deleted in one commit) per run
+    private static final int BLOB_THREADS = 4;
+    private static final int MAX_SPOOL_FILES_PER_RUN = 200;
+    private static final String SENT_FINGERPRINTS_FILE = "sent_fingerprints.bin";
+    // Next to a fleet command file; holds one directory of shard markers per blob
+    private static final String CLAIMS_DIRECTORY = ".claims";
+    // Distinct message bodies whose split into parts is remembered within a run
+    private static final int DIVIDED_BODIES_CACHED = 256;
+
+    private static final ReentrantLock runLock = new ReentrantLock();
+    private static final Random random = new Random();
+    private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "gateway-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Separate from the fetch pool, whose threads wait on these downloads
+    private static final ExecutorService blobExecutor = Executors.newFixedThreadPool(BLOB_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "gateway-blob");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Loaded on first use and kept for the process; only touched under runLock
+    private static DuplicateFilter duplicateFilter;
+
+    private final Context context;
+    private final GithubApiService service;
+    private final SmsSender sender;
+    private final long sendBudgetNanos;
+    private final PipelineMetrics metrics;
+
+    // Parsed form of each configured URL, reused until the setting changes
+    private final Map<String, GitHubUrlParser.GitHubUrlInfo> parsedUrls = new ConcurrentHashMap<>();
+    // Check the recipients and encoding of every file downloaded in the current run
+    private volatile PhoneNormalizer phoneNormalizer;
+    private volatile SmsEncoder smsEncoder;
+    private volatile FleetShard fleetShard;
+
+    /**
+     * @param sendBudgetNanos how long one cycle may keep sending before it returns
+     */
+    public GatewayCycle(Context context, GithubApiService service, long sendBudgetNanos) {
+        this(context, service, new PlatformSmsSender(), sendBudgetNanos);
+    }
+
+    /**
+     * @param sender          what messages are handed to
+     * @param sendBudgetNanos how long one cycle may keep sending before it returns
+     */
+    public GatewayCycle(Context context, GithubApiService service, SmsSender sender, long sendBudgetNanos) {
+        this.context = context.getApplicationContext();
+        this.service = service;
+        this.sender = sender;
+        this.sendBudgetNanos = sendBudgetNanos;
+        this.metrics = GatewayMetrics.get(this.context);
+    }
+
+    /**
+     * Runs one check.
+     *
+     * @param triggerMillis     when this check was scheduled to start, or 0 if unknown
+     * @param floorMillis       shortest delay between fetches of a busy profile
+     * @param maxIntervalMillis cap on each profile's own interval
+     * @return when to run the next check, or null if no profile is configured
+     *         or another cycle is already running
+     */
+    public PollingPolicy.Decision run(StopSignal stop, long triggerMillis, TriggerLatencyStats.Mode mode,
+            long floorMillis, long maxIntervalMillis) {
+        if (!runLock.tryLock()) {
+            GatewayLogger.warn(context, "Another check is already running. Skipping.");
+            return null;
+        }
+        try {
+            long started = System.nanoTime();
+            if (triggerMillis > 0) {
+                metrics.record(Stage.TRIGGER_DELAY, PipelineMetrics.DEVICE,
+                        System.currentTimeMillis() - triggerMillis);
+            }
+            PollingPolicy.Decision decision = runLocked(stop, triggerMillis, mode, floorMillis, maxIntervalMillis);
+            metrics.record(Stage.RUN, PipelineMetrics.DEVICE, elapsedMillis(started));
+            // The alarm path's process may be gone before the next snapshot is due
+            GatewayMetrics.snapshot(context, mode == TriggerLatencyStats.Mode.ALARM);
+            return decision;
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    private PollingPolicy.Decision runLocked(StopSignal stop, long triggerMillis, TriggerLatencyStats.Mode mode,
+            long floorMillis, long maxIntervalMillis) {
+        SharedPreferences prefs = context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
+        List<GatewayProfile> profiles = ProfileStore.getProfiles(context);
+
+        GatewayLogger.debug(context, "Checking configuration...");
+
+        if (profiles.isEmpty()) {
+            GatewayLogger.error(context, "ERROR: No gateway profile is configured. Please go to Settings.");
+            return null;
+        }
+
+        OutboundQueue queue = OutboundQueue.getInstance(context);
+        RateLimitTracker.startRun();
+        phoneNormalizer = newPhoneNormalizer(prefs);
+        smsEncoder = newSmsEncoder(prefs);
+        fleetShard = newFleetShard(prefs);
+
+        long now = System.currentTimeMillis();
+        Map<String, GatewayProfile> profilesById = new LinkedHashMap<>();
+        Map<String, Future<Outcome>> fetches = new LinkedHashMap<>();
+        for (GatewayProfile profile : profiles) {
+            profilesById.put(profile.getId(), profile);
+            if (ProfileSchedule.getNextDue(context, profile.getId()) <= now) {
+                fetches.put(profile.getId(), fetchExecutor.submit(() -> fetchAndRecord(queue, profile)));
+            }
+        }
+        GatewayLogger.debug(context, "Checking " + fetches.size() + " of " + profiles.size() + " profile(s)...");
+
+        try {
+            drainQueue(prefs, queue, profilesById, fetches.values(), stop, triggerMillis, mode);
+        } catch (Exception e) {
+            GatewayLogger.error(context, "ERROR: Unable to send queued messages: " + e.getMessage());
+        }
+
+        // A profile whose fetch was cancelled stays due and is fetched again next run
+        Set<String> backlog = new HashSet<>(queue.pendingProfileIds());
+        for (Map.Entry<String, Future<Outcome>> fetch : fetches.entrySet()) {
+            Outcome outcome = awaitFetch(fetch.getValue(), stop);
+            if (outcome != null) {
+                if (backlog.contains(fetch.getKey())) {
+                    outcome = Outcome.BACKLOG;
+                }
+                scheduleProfile(profilesById.get(fetch.getKey()), outcome, floorMillis, maxIntervalMillis);
+            }
+        }
+        if (phoneNormalizer.getCount() > 0) {
+            GatewayLogger.info(context, "Phone numbers: " + phoneNormalizer.describe() + ".");
+        }
+        if (smsEncoder.getMessages() > 0) {
+            GatewayLogger.info(context, "Encoding: " + smsEncoder.describe() + ".");
+        }
+
+        // Update last run time to ensure timer resets
+        prefs.edit().putLong(MainActivity.KEY_LAST_RUN_TIME, System.currentTimeMillis()).apply();
+        return nextRun(profiles, !backlog.isEmpty(), queue.nextScheduledAt(), floorMillis);
+    }
+
+    /**
+     * Picks when a profile is next fetched from the outcome of this fetch, its
+     * idle and error streaks and the rate limit of its token.
+     */
+    private void scheduleProfile(GatewayProfile profile, Outcome outcome, long floorMillis, long maxIntervalMillis) {
+        long started = System.nanoTime();
+        int streak = ProfileSchedule.recordOutcome(context, profile.getId(), outcome);
+        long intervalMillis = Math.min(TimeUnit.MINUTES.toMillis(Math.max(1, profile.getIntervalMinutes())),
+                maxIntervalMillis);
+        PollingPolicy policy = new PollingPolicy(floorMillis, intervalMillis, random);
+        long now = System.currentTimeMillis();
+        PollingPolicy.Decision decision = policy.decide(outcome, streak,
+                RateLimitTracker.snapshot(authorization(profile)), now);
+        ProfileSchedule.setNextDue(context, profile.getId(), now + decision.getDelayMillis(), decision.getReason());
+        metrics.record(Stage.SCHEDULE, profile.getId(), elapsedMillis(started));
+    }
+
+    /**
+     * @param scheduledAt when the earliest scheduled message becomes due, 0 if none
+     * @return the delay until the first profile or scheduled message is due, or
+     *         the floor while messages are still queued
+     */
+    private PollingPolicy.Decision nextRun(List<GatewayProfile> profiles, boolean backlog, long scheduledAt,
+            long floorMillis) {
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        String reason = "";
+        for (GatewayProfile profile : profiles) {
+            long due = ProfileSchedule.getNextDue(context, profile.getId()) - now;
+            if (due < delay) {
+                delay = due;
+                reason = profile.getName() + ": " + ProfileSchedule.getReason(context, profile.getId());
+            }
+        }
+        if (scheduledAt > 0 && scheduledAt - now < delay) {
+            delay = scheduledAt - now;
+            reason = "scheduled messages";
+        }
+        if (backlog && floorMillis < delay) {
+            delay = floorMillis;
+            reason = "queue backlog";
+        }
+        return new PollingPolicy.Decision(Math.max(0, delay), reason);
+    }
+
+    private Outcome fetchAndRecord(OutboundQueue queue, GatewayProfile profile) {
+        long started = System.nanoTime();
+        Outcome outcome = fetchProfile(queue, profile);
+        metrics.record(Stage.FETCH, profile.getId(), elapsedMillis(started));
+        if (outcome == Outcome.ERROR) {
+            metrics.add(Counter.FETCH_ERRORS, profile.getId(), 1);
+        }
+        return outcome;
+    }
+
+    /**
+     * Fetches one profile's command file into the queue. Runs on the fetch
+     * pool; any error is logged and reported as {@link Outcome#ERROR}.
+     */
+    private Outcome fetchProfile(OutboundQueue queue, GatewayProfile profile) {
+        String tag = "[" + profile.getName() + "] ";
+        String fileUrl = profile.getFileUrl();
+        String token = profile.getToken();
+
+        if (fileUrl == null || fileUrl.isEmpty()) {
+            GatewayLogger.error(context, tag + "ERROR: GitHub File URL is not configured. Please go to Settings.");
+            return Outcome.ERROR;
+        }
+
+        if (token == null || token.isEmpty()) {
+            GatewayLogger.error(context, tag + "ERROR: GitHub Token is not configured. Please go to Settings.");
+            return Outcome.ERROR;
+        }
+
+        GitHubUrlParser.GitHubUrlInfo urlInfo = parsedUrls.get(fileUrl);
+        if (urlInfo == null) {
+            urlInfo = GitHubUrlParser.parse(fileUrl);
+            if (urlInfo != null) {
+                parsedUrls.put(fileUrl, urlInfo);
+            }
+        }
+
+        if (urlInfo == null || !urlInfo.isValid()) {
+            GatewayLogger.error(context, tag + "Error: Invalid GitHub URL format.");
+            return Outcome.ERROR;
+        }
+
+        long blockedUntil = RateLimitTracker.snapshot(authorization(profile)).blockedUntilMillis();
+        if (blockedUntil > System.currentTimeMillis()) {
+            GatewayLogger.warn(context, tag + "GitHub rate limit reached. Skipping fetch for "
+                    + TimeUnit.MILLISECONDS.toSeconds(blockedUntil - System.currentTimeMillis()) + "s.");
+            return Outcome.IDLE;
+        }
+
+        try {
+            return fetchIntoQueue(queue, profile.getId(), tag, token, urlInfo.getOwner(), urlInfo.getRepo(),
+                    urlInfo.getBranch(), urlInfo.getFilePath(), urlInfo.isDirectory());
+        } catch (Exception e) {
+            // ANY fetch error should NOT stop the service; queued messages are still sent
+            GatewayLogger.error(context, tag + "ERROR: Exception occurred. Retrying next interval.");
+            GatewayLogger.error(context, tag + "Exception details: " + e.getMessage());
+            return Outcome.ERROR;
+        }
+    }
+
+    /**
+     * Waits for a profile's fetch, cancelling it if the cycle is stopped first.
+     *
+     * @return its outcome, or null if it was cancelled
+     */
+    private static Outcome awaitFetch(Future<Outcome> fetch, StopSignal stop) {
+        while (true) {
+            if (stop.isStopped() && !fetch.isDone()) {
+                fetch.cancel(true);
+                return null;
+            }
+            try {
+                return fetch.get(MAX_SLEEP_SLICE_NANOS, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Check the stop signal again
+            } catch (CancellationException e) {
+                return null;
+            } catch (ExecutionException e) {
+                return Outcome.ERROR;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fetch.cancel(true);
+                return null;
+            }
+        }
+    }
+
+    private static int countRunning(Collection<Future<Outcome>> fetches) {
+        int running = 0;
+        for (Future<Outcome> fetch : fetches) {
+            if (!fetch.isDone()) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    private static String authorization(GatewayProfile profile) {
+        return "Bearer " + profile.getToken();
+    }
+
+    /**
+     * Looks for a new command file (or, for a spool directory, new command
+     * files) and moves its lines into the outbound queue. The file is deleted
+     * from GitHub once all of its lines are queued; sending happens afterwards
+     * in {@link #drainQueue}.
+     *
+     * @return WORK if new commands were queued, for the polling policy
+     */
+    private Outcome fetchIntoQueue(OutboundQueue queue, String profileId, String tag, String token, String owner,
+            String repo, String branch, String path, boolean directory) throws IOException {
+        String fileKey = FetchStateCache.fileKey(profileId, owner, repo, branch, path);
+
+        // Probe the branch head first: if nothing was committed since the last
+        // completed run, no file on it can have changed either.
+        Response<GithubRefResponse> refResponse = service.getBranchRef("Bearer " + token,
+                FetchStateCache.getHeadEtag(context, fileKey), owner, repo, branch)
+                .execute();
+
+        String headSha = null;
+        String headEtag = null;
+        if (refResponse.code() == 304) {
+            GatewayLogger.debug(context, tag + "Branch unchanged since last check. Skipping fetch.");
+            return Outcome.IDLE;
+        }
+        if (refResponse.isSuccessful() && refResponse.body() != null && refResponse.body().getObject() != null) {
+            headSha = refResponse.body().getObject().getSha();
+            headEtag = refResponse.headers().get("ETag");
+            if (headSha != null && headSha.equals(FetchStateCache.getHeadSha(context, fileKey))) {
+                FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+                GatewayLogger.debug(context, tag + "Branch unchanged since last check. Skipping fetch.");
+                return Outcome.IDLE;
+            }
+        }
+
+        if (directory) {
+            return fetchSpoolIntoQueue(queue, profileId, tag, token, owner, repo, branch, path, fileKey, headSha,
+                    headEtag);
+        }
+
+        GatewayLogger.debug(context, tag + "Checking GitHub for file...");
+        // List the parent directory instead of fetching the file itself: the listing
+        // carries the blob sha and size without any content, and answers 304 while
+        // nothing in the directory changed.
+        String ref = headSha != null ? headSha : branch;
+        Response<List<GithubFileResponse>> response = service.listDirectory("Bearer " + token,
+                FetchStateCache.getFileEtag(context, fileKey), owner, repo,
+                parentDirectory(path), ref).execute();
+
+        if (response.code() == 304) {
+            GatewayLogger.debug(context, tag + "File unchanged since last run. Nothing to do.");
+            FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+            return Outcome.IDLE;
+        }
+
+        if (response.code() == 404) {
+            GatewayLogger.info(context, tag + "No command file found.");
+            FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+            FetchStateCache.saveFileState(context, fileKey, null, null);
+            return Outcome.IDLE;
+        }
+
+        if (!response.isSuccessful()) {
+            GatewayLogger.error(context, tag + "ERROR: Unable to fetch file. Retrying next interval.");
+            GatewayLogger.error(context,
+                    tag + "Error details: " + response.code() + " " + response.message());
+            return Outcome.ERROR;
+        }
+
+        String listingEtag = response.headers().get("ETag");
+        GithubFileResponse fileData = findEntry(response.body(), path);
+        if (fileData == null) {
+            GatewayLogger.info(context, tag + "No command file found.");
+            FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+            FetchStateCache.saveFileState(context, fileKey, listingEtag, null);
+            return Outcome.IDLE;
+        }
+
+        if (fleetShard.isFleet()) {
+            return fetchShardIntoQueue(queue, fleetShard, profileId, tag, token, owner, repo, branch, path, ref,
+                    fileData, fileKey, listingEtag, headEtag, headSha);
+        }
+
+        // The queue, not the fetch cache, decides whether a blob was handled: a batch
+        // is only done once all of its lines are queued and the file is gone.
+        String sha = fileData.getSha();
+        String batchId = OutboundQueue.batchId(profileId, sha);
+        OutboundQueue.Batch batch = batchForListing(queue, batchId, headSha, tag);
+        int total;
+        if (batch != null && batch.removed) {
+            GatewayLogger.info(context, tag + "File already processed. Skipping.");
+            total = 0;
+        } else if (batch != null && batch.complete) {
+            GatewayLogger.info(context,
+                    tag + "File already queued (" + batch.total + " messages). Retrying delete.");
+            total = batch.total;
+        } else {
+            Integer queued = downloadIntoQueue(queue, profileId, batchId, tag, sha, fileData.getSize(), token, owner,
+                    repo, path, ref, fileKey, null);
+            if (queued == null) {
+                return Outcome.ERROR;
+            }
+            total = queued;
+        }
+
+        if (total > 0) {
+            GatewayLogger.debug(context, tag + "Deleting file from GitHub...");
+            long deleteStarted = System.nanoTime();
+            Response<Void> deleteResponse = service.deleteFile(
+                    "Bearer " + token, owner, repo, path,
+                    "Processed " + total + " SMS messages",
+                    sha).execute();
+            metrics.record(Stage.DELETE, profileId, elapsedMillis(deleteStarted));
+
+            if (deleteResponse.isSuccessful()) {
+                queue.markBatchRemoved(batchId, headSha);
+                GatewayLogger.info(context, tag + "File deleted successfully.");
+            } else {
+                // Leave the fetch state alone so the next run lists the file again and
+                // retries the delete; its lines are already queued and will not be re-sent.
+                GatewayLogger.warn(context, tag + "Failed to delete file: " + deleteResponse.code());
+                return Outcome.ERROR;
+            }
+        } else if (batch == null || !batch.removed) {
+            GatewayLogger.info(context, tag + "No valid SMS lines found in file.");
+        }
+
+        // Remember this blob so the next run can short-circuit on a 304 or the same sha
+        FetchStateCache.saveFileState(context, fileKey, listingEtag, sha);
+        FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+        return total > 0 ? Outcome.WORK : Outcome.IDLE;
+    }
+
+    /**
+     * Looks up the batch of a file listed at {@code head}. A file deleted at
+     * another head has since been committed again with the same content, as
+     * deletions only move a branch forward; its batch is reopened so the file
+     * is read like a new one. Listed again at the head it was deleted at, it
+     * is a stale read and stays done.
+     *
+     * @return the batch, or null if the file is to be read
+     */
+    private OutboundQueue.Batch batchForListing(OutboundQueue queue, String batchId, String head, String tag) {
+        OutboundQueue.Batch batch = queue.getBatch(batchId);
+        if (batch == null || !batch.removed || batch.removedHead == null || head == null
+                || head.equals(batch.removedHead)) {
+            return batch;
+        }
+        GatewayLogger.info(context, tag + "File committed again since it was deleted. Reading it as a new file.");
+        queue.reopenBatch(batchId);
+        return null;
+    }
+
+    /**
+     * Spool-directory mode: every file directly inside the directory is a
+     * command file, so any number of producers can drop files without racing
+     * on one. One Git Trees call lists them (pinned to the probed head), new
+     * ones are downloaded concurrently, and all handled files are removed in
+     * a single commit instead of one DELETE each. The downloads are parsed
+     * one after another in path order, so a template defined in one file is
+     * known to the files after it.
+     *
+     * Each file is its own batch keyed by name and blob sha, so a file whose
+     * batch is already complete is only deleted again, never re-queued.
+     *
+     * In fleet mode each device takes only the files whose name hashes to its
+     * shard, so no two devices ever queue or delete the same file.
+     */
+    private Outcome fetchSpoolIntoQueue(OutboundQueue queue, String profileId, String tag, String token,
+            String owner, String repo, String branch, String directory, String fileKey, String headSha,
+            String headEtag) throws IOException {
+        if (headSha == null) {
+            // The deletion commit needs the head as its parent
+            GatewayLogger.error(context, tag + "ERROR: Unable to read branch " + branch + ". Retrying next interval.");
+            return Outcome.ERROR;
+        }
+
+        GatewayLogger.debug(context, tag + "Checking spool directory...");
+        Response<GithubTreeResponse> response = service.getTree("Bearer " + token, owner, repo,
+                headSha + ":" + directory).execute();
+
+        if (response.code() == 404) {
+            GatewayLogger.info(context, tag + "No spool directory found.");
+            FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+            return Outcome.IDLE;
+        }
+
+        if (!response.isSuccessful() || response.body() == null) {
+            GatewayLogger.error(context, tag + "ERROR: Unable to list spool directory. Retrying next interval.");
+            GatewayLogger.error(context,
+                    tag + "Error details: " + response.code() + " " + response.message());
+            return Outcome.ERROR;
+        }
+
+        List<GithubTreeResponse.Entry> files = new ArrayList<>();
+        if (response.body().getTree() != null) {
+            for (GithubTreeResponse.Entry entry : response.body().getTree()) {
+                // Dot files (e.g. .gitkeep) keep the directory alive and are not commands
+                if ("blob".equals(entry.getType()) && !entry.getPath().startsWith(".")) {
+                    files.add(entry);
+                }
+            }
+        }
+        FleetShard shard = fleetShard;
+        if (shard.isFleet()) {
+            int others = files.size();
+            List<GithubTreeResponse.Entry> owned = new ArrayList<>();
+            for (GithubTreeResponse.Entry entry : files) {
+                if (shard.owns(entry.getPath())) {
+                    owned.add(entry);
+                }
+            }
+            files = owned;
+            others -= owned.size();
+            if (others > 0) {
+                GatewayLogger.debug(context, tag + others + " file(s) left to the other shards.");
+            }
+        }
+        if (files.isEmpty()) {
+            GatewayLogger.debug(context, tag + "Spool directory is empty.");
+            FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+            return Outcome.IDLE;
+        }
+
+        // Oldest first for producers that name files by time; the rest waits for the next run
+        Collections.sort(files, (a, b) -> a.getPath().compareTo(b.getPath()));
+        if (files.size() > MAX_SPOOL_FILES_PER_RUN) {
+            GatewayLogger.info(context, tag + files.size() + " files waiting. Taking the first "
+                    + MAX_SPOOL_FILES_PER_RUN + ".");
+            files = files.subList(0, MAX_SPOOL_FILES_PER_RUN);
+        }
+
+        List<String> done = new ArrayList<>();
+        List<String> doneBatchIds = new ArrayList<>();
+        List<String> pendingPaths = new ArrayList<>();
+        List<String> pendingBatchIds = new ArrayList<>();
+        List<Future<File>> downloads = new ArrayList<>();
+        int total = 0;
+        for (GithubTreeResponse.Entry file : files) {
+            String path = directory + "/" + file.getPath();
+            String batchId = OutboundQueue.batchId(profileId, file.getPath() + "@" + file.getSha());
+            OutboundQueue.Batch batch = batchForListing(queue, batchId, headSha, tag + file.getPath() + ": ");
+            if (batch != null && (batch.complete || batch.removed)) {
+                done.add(path);
+                doneBatchIds.add(batchId);
+                continue;
+            }
+            String fileTag = tag + file.getPath() + ": ";
+            pendingPaths.add(path);
+            pendingBatchIds.add(batchId);
+            downloads.add(blobExecutor.submit(() -> downloadToFile(profileId, fileTag, file.getSha(),
+                    file.getSize(), token, owner, repo)));
+        }
+        if (!done.isEmpty()) {
+            GatewayLogger.info(context, tag + done.size() + " file(s) already queued. Retrying delete.");
+        }
+
+        boolean failed = false;
+        try {
+            for (int i = 0; i < downloads.size(); i++) {
+                File downloaded;
+                try {
+                    downloaded = downloads.get(i).get();
+                } catch (ExecutionException e) {
+                    GatewayLogger.error(context, tag + "ERROR: Unable to download " + pendingPaths.get(i) + ": "
+                            + e.getCause().getMessage());
+                    downloaded = null;
+                }
+                if (downloaded == null) {
+                    failed = true;
+                    continue;
+                }
+                String path = pendingPaths.get(i);
+                String name = path.substring(directory.length() + 1);
+                try (InputStream in = new FileInputStream(downloaded)) {
+                    total += enqueue(queue, profileId, pendingBatchIds.get(i), tag + name + ": ", in,
+                            fileKey + "/" + name, null);
+                    done.add(path);
+                    doneBatchIds.add(pendingBatchIds.get(i));
+                } catch (IOException e) {
+                    GatewayLogger.error(context, tag + "ERROR: Unable to queue " + path + ": " + e.getMessage());
+                    failed = true;
+                } finally {
+                    downloaded.delete();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<File> download : downloads) {
+                download.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading spool files");
+        }
+
+        if (!done.isEmpty()) {
+            GatewayLogger.debug(context, tag + "Deleting " + done.size() + " file(s) from GitHub...");
+            long deleteStarted = System.nanoTime();
+            boolean deleted = commitDeletion(tag, token, owner, repo, branch, headSha, done,
+                    "Processed " + total + " SMS messages from " + done.size() + " file(s)");
+            metrics.record(Stage.DELETE, profileId, elapsedMillis(deleteStarted));
+            if (!deleted) {
+                // The batches stay complete, so the next run only retries the commit
+                return Outcome.ERROR;
+            }
+            for (String batchId : doneBatchIds) {
+                queue.markBatchRemoved(batchId, headSha);
+            }
+            GatewayLogger.info(context, tag + "Deleted " + done.size() + " file(s) in one commit.");
+        }
+        if (failed) {
+            return Outcome.ERROR;
+        }
+        return total > 0 ? Outcome.WORK : Outcome.IDLE;
+    }
+
+    /**
+     * Removes files from a branch in one commit through the Git Data API: a
+     * tree that drops the paths from the head's tree, a commit with the head
+     * as parent, then a fast-forward of the branch. If someone pushed in the
+     * meantime the ref update is refused and nothing is lost; the next run
+     * sees the new head and tries again.
+     *
+     * @return true if the branch now points at the deletion commit
+     */
+    private boolean commitDeletion(String tag, String token, String owner, String repo, String branch,
+            String headSha, List<String> paths, String message) throws IOException {
+        String authorization = "Bearer " + token;
+        Response<GithubCommitResponse> head = service.getCommit(authorization, owner, repo, headSha).execute();
+        if (!head.isSuccessful() || head.body() == null || head.body().getTree() == null) {
+            GatewayLogger.warn(context, tag + "Failed to read head commit: " + head.code());
+            return false;
+        }
+
+        List<GithubTreeRequest.Entry> deletions = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            deletions.add(GithubTreeRequest.Entry.deletion(path));
+        }
+        Response<GithubTreeResponse> tree = service.createTree(authorization, owner, repo,
+                new GithubTreeRequest(head.body().getTree().getSha(), deletions)).execute();
+        if (!tree.isSuccessful() || tree.body() == null) {
+            GatewayLogger.warn(context, tag + "Failed to create tree: " + tree.code());
+            return false;
+        }
+
+        Response<GithubCommitResponse> commit = service.createCommit(authorization, owner, repo,
+                new GithubCommitRequest(message, tree.body().getSha(), Collections.singletonList(headSha)))
+                .execute();
+        if (!commit.isSuccessful() || commit.body() == null) {
+            GatewayLogger.warn(context, tag + "Failed to create commit: " + commit.code());
+            return false;
+        }
+
+        Response<GithubRefResponse> ref = service.updateBranchRef(authorization, owner, repo, branch,
+                new GithubRefUpdateRequest(commit.body().getSha(), false)).execute();
+        if (!ref.isSuccessful()) {
+            GatewayLogger.warn(context, tag + (ref.code() == 422
+                    ? "Branch moved while deleting files. Retrying next run."
+                    : "Failed to update branch: " + ref.code()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fleet mode for a single command file. Every device of the fleet reads
+     * the same file but queues only its own shard of the recipients, held
+     * back until it has claimed that shard by creating a marker file named
+     * after it next to the command file. Creating a file that already exists
+     * fails, so if two devices were given the same shard only the first one
+     * sends.
+     *
+     * The file stays until every shard is claimed; whichever device then
+     * finds all the markers deletes the file and the markers in one commit.
+     *
+     * @return WORK if this device claimed new messages, for the polling policy
+     */
+    private Outcome fetchShardIntoQueue(OutboundQueue queue, FleetShard shard, String profileId, String tag,
+            String token, String owner, String repo, String branch, String path, String ref,
+            GithubFileResponse fileData, String fileKey, String listingEtag, String headEtag, String headSha)
+            throws IOException {
+        String sha = fileData.getSha();
+        String batchId = OutboundQueue.batchId(profileId, sha);
+        OutboundQueue.Batch batch = queue.getBatch(batchId);
+        int claimed = 0;
+        if (batch != null && batch.removed) {
+            GatewayLogger.info(context, tag + "File already processed. Skipping.");
+        } else {
+            int total;
+            if (batch == null || !batch.complete) {
+                Integer queued = downloadIntoQueue(queue, profileId, batchId, tag, sha, fileData.getSize(), token,
+                        owner, repo, path, ref, fileKey, shard);
+                if (queued == null) {
+                    return Outcome.ERROR;
+                }
+                total = queued;
+            } else {
+                total = batch.total;
+            }
+
+            String claims = claimsDirectory(path, sha);
+            if (batch == null || !batch.claimed) {
+                Boolean won = claimShard(tag, token, owner, repo, branch, claims, shard, total);
+                if (won == null) {
+                    // The messages stay held; the next run tries to claim again
+                    return Outcome.ERROR;
+                }
+                if (won) {
+                    queue.releaseBatch(batchId);
+                    claimed = total;
+                    GatewayLogger.info(context, tag + "Claimed " + shard + " of the file (" + total + " messages).");
+                } else {
+                    int dropped = queue.abandonBatch(batchId);
+                    GatewayLogger.warn(context, tag + "Another device already claimed " + shard + " of the file."
+                            + " Dropped " + dropped + " messages; give every device its own shard.");
+                }
+            }
+            if (!queue.getBatch(batchId).removed
+                    && !deleteIfAllClaimed(queue, profileId, batchId, tag, token, owner, repo, branch, path, claims,
+                            shard)) {
+                // Leave the fetch state alone so the next run looks at the claims again
+                return Outcome.ERROR;
+            }
+        }
+
+        FetchStateCache.saveFileState(context, fileKey, listingEtag, sha);
+        FetchStateCache.saveHeadState(context, fileKey, headEtag, headSha);
+        return claimed > 0 ? Outcome.WORK : Outcome.IDLE;
+    }
+
+    /**
+     * Claims a shard of a fleet command file by creating its marker. A 409
+     * can also mean the claim raced another shard's on the branch, so a
+     * refused claim is settled by reading the marker.
+     *
+     * @return true if this device holds the claim, false if another device
+     *         does, or null if that could not be settled this run
+     */
+    private Boolean claimShard(String tag, String token, String owner, String repo, String branch, String claims,
+            FleetShard shard, int total) throws IOException {
+        String marker = claims + "/" + shard.getMarkerName();
+        String device = "device: " + deviceId() + "\n";
+        String content = device + "shard: " + shard.getNumber() + " of " + shard.getCount() + "\n"
+                + "messages: " + total + "\n";
+        Response<Void> created = service.putFile("Bearer " + token, owner, repo, marker,
+                new GithubContentRequest("Claim " + shard + " (" + total + " SMS messages)",
+                        Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8)), branch, null))
+                .execute();
+        if (created.isSuccessful()) {
+            return true;
+        }
+        if (created.code() != 409 && created.code() != 422) {
+            GatewayLogger.warn(context, tag + "Failed to claim " + shard + ": " + created.code());
+            return null;
+        }
+
+        Response<ResponseBody> existing = service.getRawFile("Bearer " + token, owner, repo, marker, branch)
+                .execute();
+        try (ResponseBody body = existing.body()) {
+            if (existing.code() == 404) {
+                GatewayLogger.info(context, tag + "Branch moved while claiming " + shard + ". Retrying next run.");
+                return null;
+            }
+            if (!existing.isSuccessful() || body == null) {
+                GatewayLogger.warn(context, tag + "Failed to read the claim of " + shard + ": " + existing.code());
+                return null;
+            }
+            // A claim of this device whose answer was lost still counts
+            return body.string().startsWith(device);
+        }
+    }
+
+    /**
+     * Deletes a fleet command file together with its claim markers once
+     * every shard of the fleet is claimed.
+     *
+     * @return false if the file was due to be deleted but could not be
+     */
+    private boolean deleteIfAllClaimed(OutboundQueue queue, String profileId, String batchId, String tag,
+            String token, String owner, String repo, String branch, String path, String claims, FleetShard shard)
+            throws IOException {
+        String authorization = "Bearer " + token;
+        Response<List<GithubFileResponse>> listing = service.listDirectory(authorization, null, owner, repo, claims,
+                branch).execute();
+        if (listing.code() == 404) {
+            GatewayLogger.info(context, tag + "Waiting for the other shards to claim the file.");
+            return true;
+        }
+        if (!listing.isSuccessful() || listing.body() == null) {
+            GatewayLogger.warn(context, tag + "Failed to list claims: " + listing.code());
+            return false;
+        }
+
+        List<String> paths = new ArrayList<>();
+        paths.add(path);
+        Set<String> markers = new HashSet<>();
+        for (GithubFileResponse entry : listing.body()) {
+            markers.add(entry.getName());
+            paths.add(entry.getPath());
+        }
+        List<Integer> waiting = new ArrayList<>();
+        for (int number = 1; number <= shard.getCount(); number++) {
+            if (!markers.remove(FleetShard.markerName(number, shard.getCount()))) {
+                waiting.add(number);
+            }
+        }
+        if (!markers.isEmpty()) {
+            GatewayLogger.warn(context, tag + "Claims from a fleet of another size: " + markers
+                    + ". Every device needs the same number of devices. Leaving the file.");
+            return true;
+        }
+        if (!waiting.isEmpty()) {
+            GatewayLogger.info(context, tag + "Waiting for shard(s) " + waiting + " of " + shard.getCount()
+                    + " to claim the file.");
+            return true;
+        }
+
+        // Claims moved the branch since the probe; the deletion commit goes on top of them
+        Response<GithubRefResponse> head = service.getBranchRef(authorization, null, owner, repo, branch).execute();
+        if (!head.isSuccessful() || head.body() == null || head.body().getObject() == null) {
+            GatewayLogger.warn(context, tag + "Failed to read branch " + branch + ": " + head.code());
+            return false;
+        }
+        long deleteStarted = System.nanoTime();
+        boolean deleted = commitDeletion(tag, token, owner, repo, branch, head.body().getObject().getSha(), paths,
+                "Processed by " + shard.getCount() + " devices");
+        metrics.record(Stage.DELETE, profileId, elapsedMillis(deleteStarted));
+        if (!deleted) {
+            return false;
+        }
+        queue.markBatchRemoved(batchId);
+        GatewayLogger.info(context, tag + "All " + shard.getCount() + " shards claimed. File deleted.");
+        return true;
+    }
+
+    /**
+     * @return where the claim markers of one blob of a fleet command file go
+     */
+    private static String claimsDirectory(String path, String sha) {
+        String parent = parentDirectory(path);
+        return (parent.isEmpty() ? "" : parent + "/") + CLAIMS_DIRECTORY + "/"
+                + path.substring(path.lastIndexOf('/') + 1) + "@" + sha;
+    }
+
+    /**
+     * @return this installation's id, written into its claims
+     */
+    private synchronized String deviceId() {
+        SharedPreferences prefs = context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
+        String id = prefs.getString(MainActivity.KEY_DEVICE_ID, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString(MainActivity.KEY_DEVICE_ID, id).commit();
+        }
+        return id;
+    }
+
+    /**
+     * Streams a command file into the queue. Lines already queued by an
+     * earlier, interrupted attempt are ignored.
+     *
+     * @param path the file's path to fetch it from the contents API at {@code ref},
+     *             or null to fetch the blob by sha
+     * @param source what the batch is recorded as coming from; ends in the file
+     *               name, whose extension helps pick the format
+     * @param shard  take only this shard's recipients and hold them until the
+     *               shard is claimed, or null to queue every line for sending
+     * @return number of commands queued, or null if the download failed
+     */
+    private Integer downloadIntoQueue(OutboundQueue queue, String profileId, String batchId, String tag,
+            String sha, long size, String token, String owner, String repo, String path, String ref,
+            String source, FleetShard shard) throws IOException {
+        // Raw bytes are streamed straight into the parser; nothing is base64-decoded
+        // or held in memory as a whole.
+        ResponseBody body = download(profileId, tag, sha, size, token, owner, repo, path, ref);
+        if (body == null) {
+            return null;
+        }
+        try (ResponseBody content = body) {
+            return enqueue(queue, profileId, batchId, tag, content.byteStream(), source, shard);
+        }
+    }
+
+    /**
+     * Downloads a spool file into the cache directory, for it to be parsed
+     * once the files before it are queued.
+     *
+     * @return the file, to be deleted by the caller, or null if the download failed
+     */
+    private File downloadToFile(String profileId, String tag, String sha, long size, String token, String owner,
+            String repo) throws IOException {
+        ResponseBody body = download(profileId, tag, sha, size, token, owner, repo, null, null);
+        if (body == null) {
+            return null;
+        }
+        File file = File.createTempFile("spool", null, context.getCacheDir());
+        try (ResponseBody content = body; InputStream in = content.byteStream();
+                OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Opens a command file: through the contents endpoint, pinned to the
+     * probed commit, or for larger files (or without a path) through the
+     * blobs API, pinned to the listed sha.
+     *
+     * @return the raw bytes, or null if the file could not be fetched
+     */
+    private ResponseBody download(String profileId, String tag, String sha, long size, String token, String owner,
+            String repo, String path, String ref) throws IOException {
+        long started = System.nanoTime();
+        Response<ResponseBody> contentResponse;
+        if (path != null && size <= RAW_CONTENTS_MAX_BYTES) {
+            contentResponse = service.getRawFile("Bearer " + token, owner, repo, path, ref).execute();
+        } else {
+            contentResponse = service.getRawBlob("Bearer " + token, owner, repo, sha).execute();
+        }
+
+        if (!contentResponse.isSuccessful() || contentResponse.body() == null) {
+            GatewayLogger.error(context, tag + "ERROR: Unable to download file. Retrying next interval.");
+            GatewayLogger.error(context,
+                    tag + "Error details: " + contentResponse.code() + " " + contentResponse.message());
+            return null;
+        }
+
+        metrics.record(Stage.DOWNLOAD, profileId, elapsedMillis(started));
+        GatewayLogger.info(context, tag + "File found! Processing content ("
+                + size + " bytes)...");
+        return contentResponse.body();
+    }
+
+    /**
+     * Parses a command file into the queue as one batch.
+     *
+     * @return number of commands queued
+     */
+    private int enqueue(OutboundQueue queue, String profileId, String batchId, String tag, InputStream in,
+            String source, FleetShard shard) throws IOException {
+        // Decompression and parsing stream through each other, so they are timed together
+        long started = System.nanoTime();
+
+        try (ShardingCommandReader sharded = new ShardingCommandReader(new NormalizingCommandReader(
+                CommandFormats.open(in, source, TemplateStore.get(context, profileId)), phoneNormalizer),
+                shard != null ? shard : FleetShard.SINGLE);
+                CommandReader reader = new EncodingCommandReader(sharded, smsEncoder);
+                OutboundQueue.Enqueuer enqueuer = queue.beginBatch(profileId, batchId, source, shard != null)) {
+            reader.setErrorListener((lineNumber, reason) -> {
+                metrics.add(Counter.REJECTED, profileId, 1);
+                GatewayLogger.warn(context, tag + "Skipping line " + lineNumber + ": " + reason);
+            });
+
+            SmsCommand command;
+            while ((command = reader.next()) != null) {
+                enqueuer.add(command);
+            }
+            int total = enqueuer.finish();
+            TemplateStore.save(context, profileId);
+            metrics.record(Stage.PARSE, profileId, elapsedMillis(started));
+            metrics.add(Counter.FILES, profileId, 1);
+            metrics.add(Counter.QUEUED, profileId, total);
+            if (shard != null) {
+                GatewayLogger.info(context, tag + "Queued " + total + " messages for " + shard + ", "
+                        + sharded.getSkipped() + " left to the other shards.");
+            } else {
+                GatewayLogger.info(context, tag + "Queued " + total + " messages.");
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Sends pending messages from the queue until it is empty and every fetch
+     * has finished, the cycle is stopped or its send budget is used up. Each
+     * message is checkpointed before and after it is handed to the {@link SmsSender}.
+     *
+     * Profiles take turns: each send goes to the profile whose own send cap
+     * frees up soonest, round-robin among ties, so one large file cannot
+     * starve the others. Messages of a profile deleted in the meantime are
+     * still sent, without a cap or pinned SIM.
+     *
+     * Before a message is sent for the first time it is checked against the
+     * fingerprints of messages sent within the dedup window; a match is
+     * marked DUPLICATE instead of being sent again.
+     */
+    private void drainQueue(SharedPreferences prefs, OutboundQueue queue, Map<String, GatewayProfile> profiles,
+            Collection<Future<Outcome>> fetches, StopSignal stop, long triggerMillis,
+            TriggerLatencyStats.Mode mode) {
+        int interrupted = queue.recoverInterrupted();
+        if (interrupted > 0) {
+            GatewayLogger.warn(context, interrupted
+                    + " message(s) were interrupted while sending last run. Not resending to avoid duplicates.");
+        }
+
+        long pending = queue.countPending();
+        if (pending > 0) {
+            GatewayLogger.info(context, "Queue depth: " + pending + " pending.");
+        }
+
+        SimDispatcher dispatcher = null;
+        DuplicateFilter duplicates = duplicateFilter(prefs);
+        long budgetDeadline = System.nanoTime() + sendBudgetNanos;
+        int sent = 0;
+        int failed = 0;
+        int skipped = 0;
+
+        // Pages of pending messages per profile; a profile leaves once it has none
+        Map<String, ArrayDeque<OutboundMessage>> buffers = new LinkedHashMap<>();
+        // Profiles whose pinned SIM used up its daily quota
+        Set<String> exhausted = new HashSet<>();
+        // Broadcasts and templates repeat bodies; split each one into parts only once
+        Map<String, ArrayList<String>> dividedBodies = new LinkedHashMap<String, ArrayList<String>>(64, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayList<String>> eldest) {
+                return size() > DIVIDED_BODIES_CACHED;
+            }
+        };
+        int runningFetches = -1;
+        int turn = 0;
+
+        while (true) {
+            int running = countRunning(fetches);
+            String profileId = null;
+            if (running == runningFetches) {
+                profileId = nextProfile(queue, profiles, buffers, turn++);
+            }
+            if (profileId == null) {
+                // A fetch finished, or the buffers ran dry: look for newly queued profiles
+                runningFetches = running;
+                for (String pendingId : queue.pendingProfileIds()) {
+                    if (!exhausted.contains(pendingId) && !buffers.containsKey(pendingId)) {
+                        buffers.put(pendingId, new ArrayDeque<>());
+                    }
+                }
+                profileId = nextProfile(queue, profiles, buffers, turn++);
+            }
+            if (profileId == null) {
+                // Everything queued so far went out; wait for the remaining fetches
+                if (running == 0 || !waitNanos(stop, MAX_SLEEP_SLICE_NANOS, budgetDeadline)) {
+                    break;
+                }
+                continue;
+            }
+
+            if (dispatcher == null) {
+                dispatcher = buildDispatcher(prefs);
+            }
+            GatewayProfile profile = profiles.get(profileId);
+            OutboundMessage message = buffers.get(profileId).poll();
+            String phone = message.getPhone();
+            long fingerprint = 0;
+            if (duplicates != null) {
+                fingerprint = DuplicateFilter.fingerprint(phone, message.getMessage(), message.getClientId(),
+                        message.getReadingId(), message.getLineNumber());
+                // A retry of a row that failed to go out is not a duplicate of itself
+                if (message.getAttempt() == 0) {
+                    DuplicateFilter.Verdict verdict = duplicates.check(fingerprint, System.currentTimeMillis());
+                    if (verdict != DuplicateFilter.Verdict.NEW) {
+                        String reason = verdict == DuplicateFilter.Verdict.SENT
+                                ? "Already sent" : "Probably already sent";
+                        queue.markDuplicate(message.getId(), reason);
+                        metrics.add(Counter.DUPLICATES, profileId, 1);
+                        skipped++;
+                        GatewayLogger.warn(context, reason + " to " + phone + " within the dedup window. Skipping.");
+                        continue;
+                    }
+                }
+            }
+            try {
+                ArrayList<String> partsList = dividedBodies.get(message.getMessage());
+                if (partsList == null) {
+                    partsList = sender.divideMessage(message.getMessage());
+                    dividedBodies.put(message.getMessage(), partsList);
+                }
+                int parts = partsList.size();
+                // A SIM asked for by the command file wins over the profile's
+                int pinned = message.getRequestedSubscriptionId() != SmsCommand.ANY_SIM
+                        ? message.getRequestedSubscriptionId()
+                        : profile != null ? profile.getSubscriptionId() : GatewayProfile.ANY_SIM;
+                int subscriptionId = dispatcher.select(phone, parts, pinned);
+                if (subscriptionId == SimDispatcher.NO_SIM) {
+                    if (pinned == GatewayProfile.ANY_SIM) {
+                        GatewayLogger.warn(context, "Daily quota used up on every SIM.");
+                        break;
+                    }
+                    GatewayLogger.warn(context, "[" + (profile != null ? profile.getName() : profileId)
+                            + "] Daily quota used up on SIM " + pinned + ". Holding its messages.");
+                    exhausted.add(profileId);
+                    buffers.remove(profileId);
+                    continue;
+                }
+                SendRateLimiter simLimiter = dispatcher.limiterFor(subscriptionId);
+                long delay = simLimiter.reserve(parts);
+                SendRateLimiter profileLimiter = profileLimiter(profile);
+                if (profileLimiter != null) {
+                    delay = Math.max(delay, profileLimiter.reserve(1));
+                }
+                if (!waitNanos(stop, delay, budgetDeadline)) {
+                    // Nothing went out, so later sends must not wait for this one
+                    simLimiter.cancel(parts);
+                    if (profileLimiter != null) {
+                        profileLimiter.cancel(1);
+                    }
+                    GatewayLogger.warn(context, stop.isStopped()
+                            ? "Stopped while waiting to send."
+                            : "Send budget for this run used up. Resuming shortly.");
+                    break;
+                }
+                int attempt = message.getAttempt() + 1;
+                queue.markSending(message.getId(), attempt, parts, subscriptionId);
+                long sendStarted = System.nanoTime();
+                sender.sendMultipartTextMessage(subscriptionId, phone, partsList,
+                        SmsStatusReceiver.sentIntents(context, message.getId(), attempt, parts,
+                                subscriptionId),
+                        SmsStatusReceiver.deliveryIntents(context, message.getId(), attempt,
+                                parts, subscriptionId));
+                metrics.record(Stage.SEND, profileId, elapsedMillis(sendStarted));
+                queue.markSent(message.getId());
+                metrics.add(Counter.SENT, profileId, 1);
+                metrics.add(Counter.SEGMENTS, profileId, parts);
+                dispatcher.onSubmitted(subscriptionId);
+                if (duplicates != null) {
+                    recordSent(duplicates, fingerprint);
+                }
+                if (sent++ == 0 && triggerMillis > 0) {
+                    long latency = System.currentTimeMillis() - triggerMillis;
+                    TriggerLatencyStats.record(context, mode, latency);
+                    GatewayLogger.info(context, "Trigger to first send: " + latency + "ms ("
+                            + mode.name().toLowerCase() + "). " + TriggerLatencyStats.describe(context));
+                }
+                GatewayLogger.info(context,
+                        "Submitted to " + phone + " on SIM " + subscriptionId
+                                + (parts > 1 ? " (" + parts + " parts)" : "") + ": \"" + message.getMessage()
+                                + "\"");
+            } catch (Exception e) {
+                queue.markFailed(message.getId(), e.getMessage());
+                metrics.add(Counter.FAILED, profileId, 1);
+                failed++;
+                GatewayLogger.warn(context, "Failed to send to " + phone + ": " + e.getMessage());
+            }
+        }
+
+        if (dispatcher != null) {
+            for (int subscriptionId : dispatcher.getSubscriptionIds()) {
+                SimSubscriptions.saveUsedToday(context, subscriptionId,
+                        dispatcher.getUsedToday(subscriptionId));
+            }
+            GatewayLogger.info(context, "Send pacing: " + dispatcher.describeAndReset());
+            GatewayLogger.info(context, "Receipts: " + DeliveryStats.describe(context));
+            GatewayLogger.info(context, "Queue: submitted " + sent + ", failed " + failed + ", "
+                    + queue.countPending() + " pending.");
+        }
+        DeliveryStats.flush(context);
+        if (skipped > 0) {
+            GatewayLogger.warn(context, "Skipped " + skipped + " message(s) already sent within the dedup window.");
+        }
+        if (duplicates != null) {
+            try {
+                duplicates.save();
+            } catch (IOException e) {
+                GatewayLogger.warn(context, "Could not save sent-message fingerprints: " + e.getMessage());
+            }
+        }
+        queue.purge(QUEUE_RETENTION_MILLIS);
+    }
+
+    /**
+     * Picks the profile to send for next: the one whose send cap frees up
+     * soonest, starting the tie-break at a different profile each turn.
+     * Refills empty buffers from the queue and drops profiles with nothing left.
+     *
+     * @return the profile id, or null if no buffered profile has pending messages
+     */
+    private String nextProfile(OutboundQueue queue, Map<String, GatewayProfile> profiles,
+            Map<String, ArrayDeque<OutboundMessage>> buffers, int turn) {
+        List<String> ids = new ArrayList<>(buffers.keySet());
+        String best = null;
+        long bestWait = Long.MAX_VALUE;
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(Math.floorMod(turn + i, ids.size()));
+            ArrayDeque<OutboundMessage> buffer = buffers.get(id);
+            if (buffer.isEmpty()) {
+                buffer.addAll(queue.nextPending(id, DRAIN_PAGE_SIZE));
+                if (buffer.isEmpty()) {
+                    buffers.remove(id);
+                    continue;
+                }
+            }
+            SendRateLimiter limiter = profileLimiter(profiles.get(id));
+            long wait = limiter != null ? limiter.peekWait(1) : 0;
+            if (wait < bestWait) {
+                best = id;
+                bestWait = wait;
+            }
+        }
+        return best;
+    }
+
+    private static SendRateLimiter profileLimiter(GatewayProfile profile) {
+        return profile != null ? SendRateLimiter.forProfile(profile.getId(), profile.getMessagesPerMinute()) : null;
+    }
+
+    private static long elapsedMillis(long startedNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+    }
+
+    private static String parentDirectory(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static GithubFileResponse findEntry(List<GithubFileResponse> entries, String path) {
+        if (entries == null) {
+            return null;
+        }
+        for (GithubFileResponse entry : entries) {
+            if (path.equals(entry.getPath()) && "file".equals(entry.getType())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the process-wide duplicate filter with the configured window, or
+     *         null if duplicate suppression is turned off
+     */
+    private DuplicateFilter duplicateFilter(SharedPreferences prefs) {
+        long windowMillis = TimeUnit.HOURS.toMillis(
+                prefs.getInt(MainActivity.KEY_DEDUP_WINDOW_HOURS, GitHubConfig.DEDUP_WINDOW_HOURS));
+        if (windowMillis <= 0) {
+            return null;
+        }
+        if (duplicateFilter == null) {
+            duplicateFilter = DuplicateFilter.open(new File(context.getFilesDir(), SENT_FINGERPRINTS_FILE),
+                    windowMillis);
+        } else {
+            duplicateFilter.setWindowMillis(windowMillis);
+        }
+        return duplicateFilter;
+    }
+
+    private void recordSent(DuplicateFilter duplicates, long fingerprint) {
+        try {
+            duplicates.record(fingerprint, System.currentTimeMillis());
+        } catch (IOException e) {
+            // The message went out; only its protection against a resend is weaker
+            GatewayLogger.warn(context, "Could not journal sent message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets up a dispatcher over the active SIMs, each with its own limiter
+     * and today's usage so far.
+     */
+    private SimDispatcher buildDispatcher(SharedPreferences prefs) {
+        SimDispatcher.Strategy strategy;
+        try {
+            strategy = SimDispatcher.Strategy.valueOf(prefs.getString(MainActivity.KEY_SIM_STRATEGY,
+                    SimDispatcher.Strategy.ROUND_ROBIN.name()));
+        } catch (IllegalArgumentException e) {
+            strategy = SimDispatcher.Strategy.ROUND_ROBIN;
+        }
+        SimDispatcher dispatcher = new SimDispatcher(strategy, prefs.getInt(MainActivity.KEY_SIM_DAILY_QUOTA, 0));
+        RateLimitConfig config = rateLimitConfig(prefs);
+        for (int subscriptionId : SimSubscriptions.getActiveSubscriptionIds(context)) {
+            dispatcher.addSim(subscriptionId, SendRateLimiter.forSubscription(subscriptionId, config),
+                    SimSubscriptions.getUsedToday(context, subscriptionId));
+        }
+        return dispatcher;
+    }
+
+    /**
+     * @return a normalizer for the configured default country
+     */
+    public static PhoneNormalizer newPhoneNormalizer(SharedPreferences prefs) {
+        return new PhoneNormalizer(prefs.getString(MainActivity.KEY_DEFAULT_COUNTRY_CODE,
+                GitHubConfig.DEFAULT_COUNTRY_CODE));
+    }
+
+    /**
+     * @return this device's shard of the fleet, or {@link FleetShard#SINGLE} if it works alone
+     */
+    public static FleetShard newFleetShard(SharedPreferences prefs) {
+        return new FleetShard(prefs.getInt(MainActivity.KEY_FLEET_SHARD, 1),
+                prefs.getInt(MainActivity.KEY_FLEET_SHARD_COUNT, GitHubConfig.FLEET_SHARD_COUNT));
+    }
+
+    /**
+     * @return an encoder with the configured transliteration and segment budget
+     */
+    public static SmsEncoder newSmsEncoder(SharedPreferences prefs) {
+        return new SmsEncoder(transliteration(prefs), prefs.getInt(MainActivity.KEY_MAX_SEGMENTS, 0),
+                prefs.getBoolean(MainActivity.KEY_REJECT_OVER_SEGMENTS, false));
+    }
+
+    private static SmsEncoder.Transliteration transliteration(SharedPreferences prefs) {
+        try {
+            return SmsEncoder.Transliteration.valueOf(prefs.getString(MainActivity.KEY_TRANSLITERATION,
+                    SmsEncoder.Transliteration.OFF.name()));
+        } catch (IllegalArgumentException e) {
+            return SmsEncoder.Transliteration.OFF;
+        }
+    }
+
+    private static RateLimitConfig rateLimitConfig(SharedPreferences prefs) {
+        return new RateLimitConfig(
+                prefs.getFloat(MainActivity.KEY_RATE_MESSAGES_PER_SECOND,
+                        (float) RateLimitConfig.DEFAULT_MESSAGES_PER_SECOND),
+                prefs.getInt(MainActivity.KEY_RATE_SEGMENTS_PER_MINUTE, RateLimitConfig.DEFAULT_SEGMENTS_PER_MINUTE),
+                prefs.getInt(MainActivity.KEY_RATE_WINDOW_MAX_MESSAGES, RateLimitConfig.DEFAULT_WINDOW_MAX_MESSAGES));
+    }
+
+    /**
+     * Sleeps for {@code nanos}, in short slices so a stopped cycle gives up
+     * promptly.
+     *
+     * @return false if the cycle was stopped or interrupted while waiting, or
+     *         the wait would end beyond {@code budgetDeadline}
+     */
+    private static boolean waitNanos(StopSignal stop, long nanos, long budgetDeadline) {
+        long deadline = System.nanoTime() + nanos;
+        if (deadline - budgetDeadline > 0) {
+            return false;
+        }
+        try {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (stop.isStopped()) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, MAX_SLEEP_SLICE_NANOS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !stop.isStopped();
+    }
+}
@@ -0,0 +1,23 @@
+package com.okeedookee.utils.worker;
+
+import android.app.PendingIntent;
+import android.telephony.SmsManager;
+import java.util.ArrayList;
+
+/**
+ * Sends through the SmsManager of each SIM.
+ */
+final class PlatformSmsSender implements SmsSender {
+
+    @Override
+    public ArrayList<String> divideMessage(String message) {
+        return SmsManager.getDefault().divideMessage(message);
+    }
+
+    @Override
+    public void sendMultipartTextMessage(int subscriptionId, String destination, ArrayList<String> parts,
+            ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents) {
+        SmsManager.getSmsManagerForSubscriptionId(subscriptionId).sendMultipartTextMessage(destination, null,
+                parts, sentIntents, deliveryIntents);
+    }
+}
@@ -0,0 +1,24 @@
+package com.okeedookee.utils.worker;
+
+import android.app.PendingIntent;
+import java.util.ArrayList;
+
+/**
+ * Hands messages to the phone. {@link GatewayCycle} sends through this
+ * instead of calling the SmsManager itself, so a test can record what would
+ * have been sent.
+ */
+public interface SmsSender {
+
+    /**
+     * Splits a message into the parts it is sent as.
+     */
+    ArrayList<String> divideMessage(String message);
+
+    /**
+     * Submits the parts of one message on a SIM. Returns once the platform
+     * accepted them; the sent and delivery intents report the outcome later.
+     */
+    void sendMultipartTextMessage(int subscriptionId, String destination, ArrayList<String> parts,
+            ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents);
+}
@@ -2,181 +2,90 @@ package com.okeedookee.utils.worker;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.telephony.SmsManager;
-import android.util.Base64;
 import androidx.annotation.NonNull;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GitHubConfig;
 import com.okeedookee.utils.network.GithubApiService;
-import com.okeedookee.utils.network.GithubFileResponse;
-import com.okeedookee.utils.utils.LogRepository;
-import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
+import com.okeedookee.utils.network.GithubClient;
+import com.okeedookee.utils.pipeline.PollingPolicy;
+import com.okeedookee.utils.service.GatewayService;
 import com.okeedookee.utils.utils.AlarmScheduler;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import com.okeedookee.utils.utils.GatewayLogger;
+import com.okeedookee.utils.utils.TriggerLatencyStats;
+import java.util.concurrent.TimeUnit;
 
 public class SmsWorker extends Worker {
 
+    // Set by SmsAlarmReceiver: when the alarm that started this work was due
+    public static final String KEY_TRIGGER_TIME = "trigger_time";
+
+    // WorkManager stops a worker after 10 minutes; leave room to checkpoint and reschedule
+    private static final long SEND_BUDGET_NANOS = TimeUnit.MINUTES.toNanos(8);
+
+    private final GatewayCycle cycle;
+
     public SmsWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        this(context, params, GithubClient.getService(context));
+    }
+
+    public SmsWorker(@NonNull Context context, @NonNull WorkerParameters params,
+            @NonNull GithubApiService service) {
         super(context, params);
+        this.cycle = new GatewayCycle(context, service, SEND_BUDGET_NANOS);
+    }
+
+    /**
+     * For a WorkerFactory that points the worker at another GitHub API (see
+     * {@link GithubClient#createService}) and another {@link SmsSender}.
+     */
+    public SmsWorker(@NonNull Context context, @NonNull WorkerParameters params,
+            @NonNull GithubApiService service, @NonNull SmsSender sender) {
+        super(context, params);
+        this.cycle = new GatewayCycle(context, service, sender, SEND_BUDGET_NANOS);
     }
 
     @NonNull
     @Override
     public Result doWork() {
-        LogRepository.addLog(getApplicationContext(), "Worker started.");
+        try {
+            return runCheck();
+        } finally {
+            // The process may be frozen or killed once the worker returns
+            GatewayLogger.flush();
+        }
+    }
+
+    private Result runCheck() {
+        GatewayLogger.info(getApplicationContext(), "Worker started.");
 
         SharedPreferences prefs = getApplicationContext().getSharedPreferences(MainActivity.PREFS_NAME,
                 Context.MODE_PRIVATE);
-        String fileUrl = prefs.getString(MainActivity.KEY_FILE_URL, "");
-        String token = prefs.getString(MainActivity.KEY_TOKEN, "");
-
-        LogRepository.addLog(getApplicationContext(), "Checking configuration...");
-
-        if (fileUrl == null || fileUrl.isEmpty()) {
-            LogRepository.addLog(getApplicationContext(),
-                    "ERROR: GitHub File URL is not configured. Please go to Settings.");
+        int floorMinutes = prefs.getInt(MainActivity.KEY_POLL_FLOOR_MINUTES, GitHubConfig.POLL_FLOOR_MINUTES);
+        PollingPolicy.Decision decision = cycle.run(this::isStopped, getInputData().getLong(KEY_TRIGGER_TIME, 0),
+                TriggerLatencyStats.Mode.ALARM, TimeUnit.MINUTES.toMillis(floorMinutes), Long.MAX_VALUE);
+        if (decision == null) {
             return Result.success(); // Return success to keep service running
         }
 
-        if (token == null || token.isEmpty()) {
-            LogRepository.addLog(getApplicationContext(),
-                    "ERROR: GitHub Token is not configured. Please go to Settings.");
-            return Result.success(); // Return success to keep service running
-        }
-
-        LogRepository.addLog(getApplicationContext(), "Configuration found. Proceeding...");
-
-        // Parse the GitHub URL
-        com.okeedookee.utils.utils.GitHubUrlParser.GitHubUrlInfo urlInfo = com.okeedookee.utils.utils.GitHubUrlParser
-                .parse(fileUrl);
-
-        if (urlInfo == null || !urlInfo.isValid()) {
-            LogRepository.addLog(getApplicationContext(), "Error: Invalid GitHub URL format.");
-            return Result.failure();
-        }
-
-        String owner = urlInfo.getOwner();
-        String repo = urlInfo.getRepo();
-        String path = urlInfo.getFilePath();
-
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl("https://api.github.com/")
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
-
-        GithubApiService service = retrofit.create(GithubApiService.class);
-
-        try {
-            LogRepository.addLog(getApplicationContext(), "Checking GitHub for file...");
-            Response<GithubFileResponse> response = service.getFileContent("Bearer " + token, owner, repo, path)
-                    .execute();
-
-            if (!response.isSuccessful()) {
-                // ANY fetch error should NOT stop the service, just wait for next run
-                String errorMsg = "ERROR: Unable to fetch file. Retrying next interval.";
-                String errorDetails = "Error details: " + response.code() + " " + response.message();
-
-                LogRepository.addLog(getApplicationContext(), errorMsg);
-                LogRepository.addLog(getApplicationContext(), errorDetails);
-
-                // Update last run time to ensure timer resets
-                prefs.edit().putLong(MainActivity.KEY_LAST_RUN_TIME, System.currentTimeMillis()).apply();
-
-                scheduleNextRun();
-                return Result.success();
-            }
-
-            GithubFileResponse fileData = response.body();
-            if (fileData == null || fileData.getContent() == null) {
-                LogRepository.addLog(getApplicationContext(), "File is empty or content missing.");
-                return Result.failure();
-            }
-
-            String cleanBase64 = fileData.getContent().replace("\n", "");
-            byte[] decodedBytes = Base64.decode(cleanBase64, Base64.DEFAULT);
-            String csvContent = new String(decodedBytes, StandardCharsets.UTF_8);
-
-            LogRepository.addLog(getApplicationContext(), "File found! Processing content...");
-
-            String[] lines = csvContent.split("\n");
-            int smsCount = 0;
-
-            SmsManager smsManager = SmsManager.getDefault();
-
-            for (String line : lines) {
-                if (line == null || line.trim().isEmpty())
-                    continue;
-
-                String[] parts = line.split(",", 2);
-                if (parts.length >= 2) {
-                    String phone = parts[0].trim();
-                    String message = parts[1].trim();
-
-                    if (!phone.isEmpty() && !message.isEmpty()) {
-                        try {
-                            ArrayList<String> partsList = smsManager.divideMessage(message);
-                            smsManager.sendMultipartTextMessage(phone, null, partsList, null, null);
-                            smsCount++;
-                            LogRepository.addLog(getApplicationContext(), "Sent to " + phone + ": \"" + message + "\"");
-                        } catch (Exception e) {
-                            LogRepository.addLog(getApplicationContext(),
-                                    "Failed to send to " + phone + ": " + e.getMessage());
-                        }
-                    }
-                }
-            }
-
-            if (smsCount > 0) {
-                LogRepository.addLog(getApplicationContext(), "Deleting file from GitHub...");
-                Response<Void> deleteResponse = service.deleteFile(
-                        "Bearer " + token, owner, repo, path,
-                        "Processed " + smsCount + " SMS messages",
-                        fileData.getSha()).execute();
-
-                if (deleteResponse.isSuccessful()) {
-                    LogRepository.addLog(getApplicationContext(), "File deleted successfully.");
-                } else {
-                    LogRepository.addLog(getApplicationContext(), "Failed to delete file: " + deleteResponse.code());
-                }
-            } else {
-                LogRepository.addLog(getApplicationContext(), "No valid SMS lines found in file.");
-            }
-
-            // Update last run time
-
-            prefs.edit().putLong(MainActivity.KEY_LAST_RUN_TIME, System.currentTimeMillis()).apply();
-
-        } catch (Exception e) {
-            String errorMsg = "ERROR: Exception occurred. Retrying next interval.";
-            String errorDetails = "Exception details: " + e.getMessage();
-
-            LogRepository.addLog(getApplicationContext(), errorMsg);
-            LogRepository.addLog(getApplicationContext(), errorDetails);
-
-            // Update last run time to ensure timer resets
-            prefs.edit().putLong(MainActivity.KEY_LAST_RUN_TIME, System.currentTimeMillis()).apply();
-
-            scheduleNextRun();
-            return Result.success();
-        }
-
-        scheduleNextRun();
+        scheduleNextRun(decision);
         return Result.success();
     }
 
-    private void scheduleNextRun() {
+    /**
+     * Schedules the next run for when the first profile is due again, as
+     * decided by each profile's activity and GitHub's rate-limit headers. The
+     * foreground service schedules its own polls while it runs.
+     */
+    private void scheduleNextRun(PollingPolicy.Decision decision) {
         SharedPreferences prefs = getApplicationContext().getSharedPreferences(MainActivity.PREFS_NAME,
                 Context.MODE_PRIVATE);
         boolean isServiceRunning = prefs.getBoolean(MainActivity.KEY_IS_SERVICE_RUNNING, false);
 
-        if (isServiceRunning) {
-            int intervalMinutes = prefs.getInt(MainActivity.KEY_INTERVAL, 15);
-            AlarmScheduler.scheduleNextRun(getApplicationContext(), intervalMinutes * 60 * 1000L);
+        if (isServiceRunning && !GatewayService.isRunning()) {
+            AlarmScheduler.scheduleNextRun(getApplicationContext(), decision.getDelayMillis(),
+                    decision.getReason());
         }
     }
 
@@ -0,0 +1,180 @@
+package com.okeedookee.utils.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Talks raw HTTP to an {@link IngestServer} on a loopback port: bodies
+ * framed by length and by chunks, kept-alive and pipelined requests, the
+ * size limits and early rejections.
+ */
+public class IngestServerTest {
+    private static final int MAX_BODY_BYTES = 256 * 1024;
+
+    private IngestServer server;
+
+    /** Echoes the body back; {@code /reject} answers without reading it. */
+    private static IngestServer.Response echo(IngestServer.Request request, InputStream body) throws IOException {
+        if ("/reject".equals(request.getPath())) {
+            return new IngestServer.Response(401, "text/plain", "no");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        try {
+            while ((n = body.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IngestServer.BodyTooLargeException e) {
+            return new IngestServer.Response(413, "text/plain", e.getMessage());
+        }
+        return new IngestServer.Response(200, "text/plain", request.getMethod() + " " + request.getPath() + " "
+                + new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = IngestServer.start(InetAddress.getLoopbackAddress(), 0, IngestServerTest::echo, 2, MAX_BODY_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void readsBodyByContentLength() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("POST", "/v1/messages", null,
+                    "text/plain", "hello")).read();
+            assertEquals(200, reply.status);
+            assertEquals("POST /v1/messages hello", reply.body);
+        }
+    }
+
+    @Test
+    public void readsChunkedBodyAcrossWrites() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            client.send(RawHttpClient.chunkedHead("POST", "/v1/messages", null, "text/csv"));
+            client.send(RawHttpClient.chunk("123,"));
+            client.send("6;name=value\r\nHello \r\n");
+            client.send(RawHttpClient.chunk("world"));
+            client.send(RawHttpClient.LAST_CHUNK);
+            RawHttpClient.Reply reply = client.read();
+            assertEquals(200, reply.status);
+            assertEquals("POST /v1/messages 123,Hello world", reply.body);
+        }
+    }
+
+    @Test
+    public void keepsConnectionAliveAndAnswersPipelinedRequestsInOrder() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            assertEquals("GET /first ", client.send(RawHttpClient.request("GET", "/first", null, null, null))
+                    .read().body);
+            client.send(RawHttpClient.request("POST", "/second", null, "text/plain", "a")
+                    + RawHttpClient.chunkedHead("POST", "/third", null, "text/plain")
+                    + RawHttpClient.chunk("b") + RawHttpClient.LAST_CHUNK
+                    + RawHttpClient.request("POST", "/fourth", null, "text/plain", "c"));
+            assertEquals("POST /second a", client.read().body);
+            assertEquals("POST /third b", client.read().body);
+            assertEquals("POST /fourth c", client.read().body);
+        }
+    }
+
+    @Test
+    public void closesConnectionWhenClientAsks() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send("GET /bye HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n").read();
+            assertEquals(200, reply.status);
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @Test
+    public void rejectsOversizedContentLengthBeforeReadingBody() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send("POST /v1/messages HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Length: " + (MAX_BODY_BYTES + 1) + "\r\n\r\n").read();
+            assertEquals(413, reply.status);
+        }
+    }
+
+    @Test
+    public void rejectsChunkedBodyGrowingPastLimit() throws IOException {
+        char[] data = new char[32 * 1024];
+        Arrays.fill(data, 'x');
+        String chunk = RawHttpClient.chunk(new String(data));
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            client.send(RawHttpClient.chunkedHead("POST", "/v1/messages", null, "text/plain"));
+            try {
+                for (int sent = 0; sent <= MAX_BODY_BYTES; sent += data.length) {
+                    client.send(chunk);
+                }
+                client.send(RawHttpClient.LAST_CHUNK);
+            } catch (IOException e) {
+                // The server may close the connection while the body is still being written
+            }
+            RawHttpClient.Reply reply = client.read();
+            assertNotNull(reply);
+            assertEquals(413, reply.status);
+        }
+    }
+
+    @Test
+    public void rejectsOversizedHead() throws IOException {
+        char[] value = new char[20 * 1024];
+        Arrays.fill(value, 'a');
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send("GET / HTTP/1.1\r\nHost: localhost\r\nX-Big: "
+                    + new String(value) + "\r\n\r\n").read();
+            assertEquals(431, reply.status);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedChunk() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            client.send(RawHttpClient.chunkedHead("POST", "/v1/messages", null, "text/plain"));
+            client.send(RawHttpClient.chunk("fine"));
+            RawHttpClient.Reply reply = client.send("zz\r\n").read();
+            assertEquals(400, reply.status);
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @Test
+    public void closesConnectionAfterAnsweringBeforeTheBody() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            // Most of the body is still to come when the handler answers
+            RawHttpClient.Reply reply = client.send("POST /reject HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Length: 100000\r\n\r\nunread").read();
+            assertEquals(401, reply.status);
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @Test
+    public void streamsBodyLargerThanBackpressureWindow() throws IOException {
+        char[] data = new char[200 * 1024];
+        Arrays.fill(data, 'y');
+        String body = new String(data);
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("POST", "/big", null,
+                    "text/plain", body)).read();
+            assertEquals(200, reply.status);
+            assertEquals("POST /big " + body, reply.body);
+        }
+    }
+}
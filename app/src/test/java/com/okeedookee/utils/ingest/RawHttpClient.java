@@ -0,0 +1,149 @@
+package com.okeedookee.utils.ingest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Speaks HTTP/1.1 over a plain loopback socket, so a test decides exactly
+ * what goes on the wire: chunk boundaries, pipelined requests, bodies that
+ * stop half-way.
+ */
+public final class RawHttpClient implements Closeable {
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    public static final class Reply {
+        public final int status;
+        public final Map<String, String> headers;
+        public final String body;
+
+        Reply(int status, Map<String, String> headers, String body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @param name header name in lower case
+         */
+        public String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public RawHttpClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    public RawHttpClient send(String text) throws IOException {
+        return send(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public RawHttpClient send(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+        return this;
+    }
+
+    /**
+     * @return the next response, or null if the server closed the connection instead
+     */
+    public Reply read() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        int length = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new IOException("Response body cut short");
+            }
+            read += n;
+        }
+        return new Reply(Integer.parseInt(statusLine.split(" ")[1]), headers,
+                new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if the server closed the connection
+     */
+    public boolean isClosedByServer() throws IOException {
+        return in.read() < 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * @return a request with a Content-Length body, or none if {@code body} is null
+     */
+    public static String request(String method, String path, String token, String contentType, String body) {
+        StringBuilder request = new StringBuilder();
+        request.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        if (token != null) {
+            request.append("Authorization: Bearer ").append(token).append("\r\n");
+        }
+        if (contentType != null) {
+            request.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (body != null) {
+            request.append("Content-Length: ").append(body.getBytes(StandardCharsets.UTF_8).length).append("\r\n");
+        }
+        return request.append("\r\n").append(body != null ? body : "").toString();
+    }
+
+    /**
+     * @return the head of a chunked request; send chunks and {@link #LAST_CHUNK} after it
+     */
+    public static String chunkedHead(String method, String path, String token, String contentType) {
+        return method + ' ' + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (token != null ? "Authorization: Bearer " + token + "\r\n" : "")
+                + "Content-Type: " + contentType + "\r\nTransfer-Encoding: chunked\r\n\r\n";
+    }
+
+    public static String chunk(String data) {
+        return Integer.toHexString(data.getBytes(StandardCharsets.UTF_8).length) + "\r\n" + data + "\r\n";
+    }
+
+    public static final String LAST_CHUNK = "0\r\n\r\n";
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(c);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package com.okeedookee.utils.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GitHubConfig;
+import com.okeedookee.utils.ingest.IngestServer;
+import com.okeedookee.utils.ingest.RawHttpClient;
+import com.okeedookee.utils.pipeline.SmsCommand;
+import com.okeedookee.utils.queue.OutboundQueue;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Drives an {@link IngestHandler} through a real {@link IngestServer} on a
+ * loopback port. The queue database is process-wide, so the scenarios run
+ * in order from one test and each checks the queue depth it left behind.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IngestHandlerTest {
+    private static final String TOKEN = "test-token";
+    private static final String CSV = "text/csv";
+    private static final long STREAM_SETTLE_MILLIS = 1000;
+
+    private OutboundQueue queue;
+    private IngestServer server;
+    private final AtomicInteger queuedCallbacks = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(MainActivity.KEY_INGEST_TOKEN, TOKEN)
+                .commit();
+        queue = OutboundQueue.getInstance(context);
+        server = IngestServer.start(InetAddress.getLoopbackAddress(), 0,
+                new IngestHandler(context, queuedCallbacks::incrementAndGet), 2, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void ingestScenarios() throws Exception {
+        rejectsMissingOrWrongToken();
+        queuesCompleteSubmission();
+        dropsSubmissionWhoseChunkedBodyBreaksOff();
+        throttlesWhenQueueIsFull();
+    }
+
+    private void rejectsMissingOrWrongToken() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("GET", "/v1/status", null, null, null))
+                    .read();
+            assertEquals(401, reply.status);
+            assertEquals("Bearer", reply.header("www-authenticate"));
+        }
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("POST", "/v1/messages", "wrong", CSV,
+                    "+15550000001,Hello\n")).read();
+            assertEquals(401, reply.status);
+        }
+        assertEquals(0, queue.countPending());
+    }
+
+    private void queuesCompleteSubmission() throws IOException {
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("POST", "/v1/messages", TOKEN, CSV,
+                    "+15550000001,Hello\n+15550000002,World\n")).read();
+            assertEquals(reply.body, 202, reply.status);
+            assertTrue(reply.body, reply.body.contains("\"accepted\":2"));
+
+            // Same connection, kept alive
+            reply = client.send(RawHttpClient.request("GET", "/v1/status", TOKEN, null, null)).read();
+            assertEquals(200, reply.status);
+            assertTrue(reply.body, reply.body.contains("\"pending\":2"));
+        }
+        assertEquals(2, queue.countPending());
+        assertEquals(1, queuedCallbacks.get());
+    }
+
+    private void dropsSubmissionWhoseChunkedBodyBreaksOff() throws Exception {
+        long before = queue.countPending();
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            client.send(RawHttpClient.chunkedHead("POST", "/v1/messages", TOKEN, CSV));
+            // More lines than one enqueue batch, so some rows are written while the body still streams
+            for (int line = 0; line < 600; line++) {
+                client.send(RawHttpClient.chunk(String.format("+1555%07d,Line %d\n", line, line)));
+            }
+            Thread.sleep(STREAM_SETTLE_MILLIS);
+            assertEquals("held rows must not be sendable before the body ends", before, queue.countPending());
+
+            RawHttpClient.Reply reply = client.send("zz\r\n").read();
+            assertEquals(400, reply.status);
+        }
+        assertEquals(before, queue.countPending());
+        assertEquals(1, queuedCallbacks.get());
+    }
+
+    private void throttlesWhenQueueIsFull() throws IOException {
+        try (OutboundQueue.Enqueuer enqueuer = queue.beginBatch(IngestHandler.DEFAULT_PROFILE_ID,
+                OutboundQueue.batchId(IngestHandler.DEFAULT_PROFILE_ID, "filler"), "test")) {
+            for (long line = queue.countPending(); line < GitHubConfig.INGEST_MAX_PENDING; line++) {
+                enqueuer.add(new SmsCommand("+15559999999", "Filler", line + 1));
+            }
+            enqueuer.finish();
+        }
+        try (RawHttpClient client = new RawHttpClient(server.getPort())) {
+            RawHttpClient.Reply reply = client.send(RawHttpClient.request("POST", "/v1/messages", TOKEN, CSV,
+                    "+15550000003,Too many\n")).read();
+            assertEquals(429, reply.status);
+            assertEquals("30", reply.header("retry-after"));
+        }
+        assertEquals(GitHubConfig.INGEST_MAX_PENDING, queue.countPending());
+    }
+}
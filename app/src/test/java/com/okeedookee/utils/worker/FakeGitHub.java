@@ -0,0 +1,264 @@
+package com.okeedookee.utils.worker;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Stands in for the parts of the GitHub API a single-file profile uses: the
+ * branch probe, directory listings, raw contents and blobs, and the
+ * contents DELETE. Serves one branch of one repository (any owner and repo
+ * name is accepted), answers 304 to a matching If-None-Match like GitHub
+ * does, and can be told to hit the rate limit or fail deletes.
+ */
+final class FakeGitHub extends Dispatcher {
+
+    enum Endpoint {
+        REF, LIST, RAW, BLOB, DELETE, OTHER
+    }
+
+    private static final String RAW_MEDIA_TYPE = "application/vnd.github.raw";
+    private static final int RATE_LIMIT = 5000;
+
+    // Path to content and blob sha to content; a commit moves the head
+    private final Map<String, byte[]> files = new TreeMap<>();
+    private final Map<String, byte[]> blobs = new HashMap<>();
+    private final Map<Endpoint, Integer> requests = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, Integer> notModified = new EnumMap<>(Endpoint.class);
+    private int commits = 1;
+    private int remaining = RATE_LIMIT;
+    private long rateLimitedUntilSeconds;
+    private int failingDeletes;
+
+    synchronized void putFile(String path, byte[] content) {
+        files.put(path, content);
+        blobs.put(blobSha(content), content);
+        commits++;
+    }
+
+    synchronized boolean hasFile(String path) {
+        return files.containsKey(path);
+    }
+
+    /**
+     * Answers every request with a 403 and no quota left until {@code resetMillis}.
+     */
+    synchronized void exhaustRateLimit(long resetMillis) {
+        rateLimitedUntilSeconds = TimeUnit.MILLISECONDS.toSeconds(resetMillis);
+    }
+
+    /**
+     * Makes the next {@code count} deletes fail with a 500.
+     */
+    synchronized void failDeletes(int count) {
+        failingDeletes = count;
+    }
+
+    synchronized int getRequests(Endpoint endpoint) {
+        Integer count = requests.get(endpoint);
+        return count != null ? count : 0;
+    }
+
+    synchronized int getNotModified(Endpoint endpoint) {
+        Integer count = notModified.get(endpoint);
+        return count != null ? count : 0;
+    }
+
+    synchronized int getTotalRequests() {
+        int total = 0;
+        for (int count : requests.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        HttpUrl url = request.getRequestUrl();
+        List<String> segments = url.pathSegments();
+        Endpoint endpoint = classify(request.getMethod(), segments, request.getHeader("Accept"));
+        count(requests, endpoint);
+
+        long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        if (nowSeconds < rateLimitedUntilSeconds) {
+            return json(403, "{\"message\":\"API rate limit exceeded\"}")
+                    .setHeader("X-RateLimit-Remaining", "0")
+                    .setHeader("X-RateLimit-Reset", String.valueOf(rateLimitedUntilSeconds));
+        }
+        MockResponse response = respond(endpoint, request, url, segments);
+        if (response.getStatus().contains(" 304 ")) {
+            count(notModified, endpoint);
+        } else {
+            remaining = Math.max(0, remaining - 1);
+        }
+        return response
+                .setHeader("X-RateLimit-Remaining", String.valueOf(remaining))
+                .setHeader("X-RateLimit-Reset", String.valueOf(nowSeconds + TimeUnit.HOURS.toSeconds(1)));
+    }
+
+    private MockResponse respond(Endpoint endpoint, RecordedRequest request, HttpUrl url, List<String> segments) {
+        String etag = "\"" + headSha() + "\"";
+        switch (endpoint) {
+            case REF:
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+                }
+                JsonObject object = new JsonObject();
+                object.addProperty("sha", headSha());
+                object.addProperty("type", "commit");
+                JsonObject ref = new JsonObject();
+                ref.addProperty("ref", "refs/heads/" + join(segments, 6));
+                ref.add("object", object);
+                return json(200, ref.toString()).setHeader("ETag", etag);
+            case LIST:
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+                }
+                JsonArray listing = list(join(segments, 4));
+                if (listing.size() == 0) {
+                    // Git has no empty directories
+                    return json(404, "{\"message\":\"Not Found\"}");
+                }
+                return json(200, listing.toString()).setHeader("ETag", etag);
+            case RAW:
+                return raw(files.get(join(segments, 4)));
+            case BLOB:
+                return raw(blobs.get(segments.get(5)));
+            case DELETE:
+                return delete(join(segments, 4), url.queryParameter("sha"));
+            default:
+                return json(404, "{\"message\":\"Not Found\"}");
+        }
+    }
+
+    private MockResponse delete(String path, String sha) {
+        byte[] content = files.get(path);
+        if (content == null) {
+            return json(404, "{\"message\":\"Not Found\"}");
+        }
+        if (!blobSha(content).equals(sha)) {
+            return json(409, "{\"message\":\"" + path + " does not match " + sha + "\"}");
+        }
+        if (failingDeletes > 0) {
+            failingDeletes--;
+            return json(500, "{\"message\":\"Server Error\"}");
+        }
+        files.remove(path);
+        commits++;
+        return json(200, "{\"content\":null,\"commit\":{\"sha\":\"" + headSha() + "\"}}");
+    }
+
+    private JsonArray list(String directory) {
+        JsonArray entries = new JsonArray();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String path = file.getKey();
+            int slash = path.lastIndexOf('/');
+            if (!(slash < 0 ? "" : path.substring(0, slash)).equals(directory)) {
+                continue;
+            }
+            JsonObject entry = new JsonObject();
+            entry.addProperty("name", path.substring(slash + 1));
+            entry.addProperty("path", path);
+            entry.addProperty("sha", blobSha(file.getValue()));
+            entry.addProperty("size", file.getValue().length);
+            entry.addProperty("type", "file");
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static Endpoint classify(String method, List<String> segments, String accept) {
+        if (segments.size() < 5 || !"repos".equals(segments.get(0))) {
+            return Endpoint.OTHER;
+        }
+        String area = segments.get(3);
+        if ("git".equals(area) && segments.size() > 6 && "ref".equals(segments.get(4))
+                && "heads".equals(segments.get(5))) {
+            return Endpoint.REF;
+        }
+        if ("git".equals(area) && segments.size() == 6 && "blobs".equals(segments.get(4))) {
+            return Endpoint.BLOB;
+        }
+        if ("contents".equals(area)) {
+            if ("DELETE".equals(method)) {
+                return Endpoint.DELETE;
+            }
+            return accept != null && accept.contains(RAW_MEDIA_TYPE) ? Endpoint.RAW : Endpoint.LIST;
+        }
+        return Endpoint.OTHER;
+    }
+
+    /**
+     * Rejoins the decoded path segments from {@code from} on; the client
+     * may send the slashes of a file path escaped.
+     */
+    private static String join(List<String> segments, int from) {
+        StringBuilder path = new StringBuilder();
+        for (int i = from; i < segments.size(); i++) {
+            if (segments.get(i).isEmpty()) {
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(segments.get(i));
+        }
+        return path.toString();
+    }
+
+    private String headSha() {
+        return String.format("%040x", commits);
+    }
+
+    private static MockResponse raw(byte[] content) {
+        if (content == null) {
+            return json(404, "{\"message\":\"Not Found\"}");
+        }
+        return new MockResponse()
+                .setHeader("Content-Type", RAW_MEDIA_TYPE)
+                .setBody(new Buffer().write(content));
+    }
+
+    private static MockResponse json(int code, String body) {
+        return new MockResponse()
+                .setResponseCode(code)
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body);
+    }
+
+    private static void count(Map<Endpoint, Integer> counts, Endpoint endpoint) {
+        Integer count = counts.get(endpoint);
+        counts.put(endpoint, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * @return the sha git gives a blob with this content
+     */
+    static String blobSha(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+            byte[] hash = digest.digest(content);
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
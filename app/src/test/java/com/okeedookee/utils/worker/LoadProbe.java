@@ -0,0 +1,156 @@
+package com.okeedookee.utils.worker;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures one scenario: wall time, bytes allocated by every thread except
+ * the fake server's, and the heap's high-water mark.
+ *
+ * Allocation counts come from the HotSpot per-thread counters, so a thread
+ * that ends during the scenario is not counted; the gateway's pools are
+ * long-lived, so this misses little. The peak is the sum of each heap
+ * pool's own peak, an upper bound of the real one.
+ */
+final class LoadProbe {
+    static final String REPORT_DIR_PROPERTY = "loadtest.reportDir";
+    private static final String DEFAULT_REPORT_DIR = "build/reports/load-test";
+    private static final String REPORT_FILENAME = "results.tsv";
+    private static final String SERVER_THREAD_PREFIX = "MockWebServer";
+
+    static final class Result {
+        final String scenario;
+        final int messages;
+        final int requests;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long peakHeapBytes;
+
+        Result(String scenario, int messages, int requests, long elapsedNanos, long allocatedBytes,
+                long peakHeapBytes) {
+            this.scenario = scenario;
+            this.messages = messages;
+            this.requests = requests;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        double messagesPerSecond() {
+            return elapsedNanos > 0 ? messages * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * @return bytes allocated per message sent, or -1 if allocations could not be counted
+         */
+        long bytesPerMessage() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / Math.max(1, messages);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-14s %7d msgs %9.0f msg/s %8.0f ms %5d req %10d KB alloc %7d B/msg %5d MB peak",
+                    scenario, messages, messagesPerSecond(), elapsedNanos / 1e6, requests,
+                    allocatedBytes / 1024, bytesPerMessage(), peakHeapBytes / (1024 * 1024));
+        }
+    }
+
+    private final String scenario;
+    private final Map<Long, Long> allocatedAtStart;
+    private final long startNanos;
+
+    private LoadProbe(String scenario) {
+        this.scenario = scenario;
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        this.allocatedAtStart = allocatedPerThread();
+        this.startNanos = System.nanoTime();
+    }
+
+    static LoadProbe start(String scenario) {
+        return new LoadProbe(scenario);
+    }
+
+    Result stop(int messages, int requests) {
+        long elapsed = System.nanoTime() - startNanos;
+        Map<Long, Long> allocatedAtEnd = allocatedPerThread();
+        long allocated = -1;
+        if (allocatedAtEnd != null && allocatedAtStart != null) {
+            allocated = 0;
+            for (Map.Entry<Long, Long> thread : allocatedAtEnd.entrySet()) {
+                Long before = allocatedAtStart.get(thread.getKey());
+                allocated += thread.getValue() - (before != null ? before : 0);
+            }
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return new Result(scenario, messages, requests, elapsed, allocated, peak);
+    }
+
+    /**
+     * Appends a result to the tab-separated report CI keeps, writing the
+     * header first if the file is new.
+     */
+    static void append(Result result) throws IOException {
+        File dir = new File(System.getProperty(REPORT_DIR_PROPERTY, DEFAULT_REPORT_DIR));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = new File(dir, REPORT_FILENAME);
+        boolean header = !file.exists();
+        try (Writer out = new FileWriter(file, true)) {
+            if (header) {
+                out.write("scenario\tmessages\trequests\telapsed_ms\tmessages_per_second"
+                        + "\tallocated_bytes\tbytes_per_message\tpeak_heap_bytes\n");
+            }
+            out.write(String.format(Locale.US, "%s\t%d\t%d\t%.1f\t%.1f\t%d\t%d\t%d%n", result.scenario,
+                    result.messages, result.requests, result.elapsedNanos / 1e6, result.messagesPerSecond(),
+                    result.allocatedBytes, result.bytesPerMessage(), result.peakHeapBytes));
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by each live thread outside the fake
+     *         server, or null if the JVM cannot count them
+     */
+    private static Map<Long, Long> allocatedPerThread() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+        long[] allocated = hotspot.getThreadAllocatedBytes(ids);
+        Map<Long, Long> result = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || allocated[i] < 0 || infos[i].getThreadName().startsWith(SERVER_THREAD_PREFIX)) {
+                continue;
+            }
+            result.put(ids[i], allocated[i]);
+        }
+        return result;
+    }
+}
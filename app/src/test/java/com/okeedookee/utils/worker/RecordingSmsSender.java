@@ -0,0 +1,91 @@
+package com.okeedookee.utils.worker;
+
+import android.app.PendingIntent;
+import com.okeedookee.utils.pipeline.SmsEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records what would have been sent instead of sending it. Messages are
+ * split with the GSM-7 / UCS-2 part sizes the platform uses; the sent and
+ * delivery intents are never fired, so sent messages stay accepted but
+ * unconfirmed, as if no receipt came back.
+ */
+final class RecordingSmsSender implements SmsSender {
+    private static final int GSM7_PART_CHARS = 153;
+    private static final int UCS2_PART_CHARS = 67;
+
+    static final class Sent {
+        final int subscriptionId;
+        final String destination;
+        final List<String> parts;
+
+        Sent(int subscriptionId, String destination, List<String> parts) {
+            this.subscriptionId = subscriptionId;
+            this.destination = destination;
+            this.parts = parts;
+        }
+
+        String getText() {
+            StringBuilder text = new StringBuilder();
+            for (String part : parts) {
+                text.append(part);
+            }
+            return text.toString();
+        }
+    }
+
+    private final List<Sent> sent = new ArrayList<>();
+
+    @Override
+    public ArrayList<String> divideMessage(String message) {
+        ArrayList<String> parts = new ArrayList<>();
+        if (SmsEncoder.countSegments(message) <= 1) {
+            parts.add(message);
+            return parts;
+        }
+        int size = SmsEncoder.isGsm7(message) ? GSM7_PART_CHARS : UCS2_PART_CHARS;
+        for (int start = 0; start < message.length(); start += size) {
+            parts.add(message.substring(start, Math.min(message.length(), start + size)));
+        }
+        return parts;
+    }
+
+    @Override
+    public synchronized void sendMultipartTextMessage(int subscriptionId, String destination,
+            ArrayList<String> parts, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents) {
+        if (sentIntents.size() != parts.size()) {
+            throw new IllegalArgumentException("One sent intent per part expected");
+        }
+        sent.add(new Sent(subscriptionId, destination, Collections.unmodifiableList(new ArrayList<>(parts))));
+    }
+
+    synchronized int getCount() {
+        return sent.size();
+    }
+
+    synchronized List<Sent> getSent() {
+        return new ArrayList<>(sent);
+    }
+
+    /**
+     * @return messages whose recipient and text were sent more than once
+     */
+    synchronized int countRepeats() {
+        Set<String> seen = new HashSet<>();
+        int repeats = 0;
+        for (Sent message : sent) {
+            if (!seen.add(message.destination + '\n' + message.getText())) {
+                repeats++;
+            }
+        }
+        return repeats;
+    }
+
+    synchronized void clear() {
+        sent.clear();
+    }
+}
@@ -0,0 +1,265 @@
+package com.okeedookee.utils.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkerFactory;
+import androidx.work.WorkerParameters;
+import androidx.work.testing.TestWorkerBuilder;
+import com.okeedookee.utils.MainActivity;
+import com.okeedookee.utils.config.GatewayProfile;
+import com.okeedookee.utils.config.ProfileStore;
+import com.okeedookee.utils.network.GithubApiService;
+import com.okeedookee.utils.network.GithubClient;
+import com.okeedookee.utils.utils.ProfileSchedule;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSubscriptionManager;
+
+/**
+ * Runs the real {@link SmsWorker} end to end against {@link FakeGitHub} and
+ * a {@link RecordingSmsSender}: fetch, parse, queue, delete and send, with
+ * the send limits lifted so the gateway's own work is what gets measured.
+ * Each scenario prints its throughput, allocations and peak heap and
+ * appends them to {@code build/reports/load-test/results.tsv}.
+ *
+ * The queue database, metrics and duplicate filter are process-wide, so
+ * the scenarios share one application and run in order from one test, each
+ * with its own profile and token.
+ *
+ * Optional budgets fail the file scenarios of 1k lines and up when they
+ * regress, e.g. {@code ./gradlew testDebugUnitTest -Dloadtest.minMessagesPerSecond=500
+ * -Dloadtest.maxBytesPerMessage=200000 -Dloadtest.maxPeakHeapMb=512}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SmsWorkerLoadTest {
+    private static final String FILE_PATH = "inbox/sms.txt";
+    private static final int SUBSCRIPTION_ID = 1;
+    private static final int IDLE_POLLS = 20;
+
+    private Context context;
+    private MockWebServer server;
+    private FakeGitHub github;
+    private RecordingSmsSender sender;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        context = ApplicationProvider.getApplicationContext();
+        ShadowSubscriptionManager.setDefaultSmsSubscriptionId(SUBSCRIPTION_ID);
+        context.getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putFloat(MainActivity.KEY_RATE_MESSAGES_PER_SECOND, 1_000_000f)
+                .putInt(MainActivity.KEY_RATE_SEGMENTS_PER_MINUTE, 100_000_000)
+                .putInt(MainActivity.KEY_RATE_WINDOW_MAX_MESSAGES, 0)
+                .commit();
+        executor = Executors.newSingleThreadExecutor();
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void loadScenarios() throws IOException {
+        sendsFile("lines-10", 10);
+        sendsFile("lines-1k", 1_000);
+        sendsFile("lines-100k", 100_000);
+        idlePollsAreNotModified();
+        stopsAtRateLimit();
+        retriesFailedDelete();
+    }
+
+    /**
+     * One file, one run: every line is sent once and the file is deleted.
+     * Files over 1 MB come through the blobs API.
+     */
+    private void sendsFile(String scenario, int lines) throws IOException {
+        GatewayProfile profile = begin(scenario);
+        byte[] file = commandFile(scenario, lines);
+        github.putFile(FILE_PATH, file);
+
+        LoadProbe probe = LoadProbe.start(scenario);
+        runWorker(profile);
+        LoadProbe.Result result = report(probe.stop(sender.getCount(), github.getTotalRequests()));
+
+        assertEquals(lines, sender.getCount());
+        assertEquals(0, sender.countRepeats());
+        assertFalse(github.hasFile(FILE_PATH));
+        assertEquals(1, github.getRequests(FakeGitHub.Endpoint.DELETE));
+        boolean large = file.length > 1024 * 1024;
+        assertEquals(large ? 0 : 1, github.getRequests(FakeGitHub.Endpoint.RAW));
+        assertEquals(large ? 1 : 0, github.getRequests(FakeGitHub.Endpoint.BLOB));
+        for (RecordingSmsSender.Sent sent : sender.getSent()) {
+            assertEquals(SUBSCRIPTION_ID, sent.subscriptionId);
+        }
+        if (lines >= 1_000) {
+            checkBudgets(result);
+        }
+    }
+
+    /**
+     * Once a file is handled, polls of an unchanged branch stop at the
+     * conditional branch probe: one listing to see the file is gone, then
+     * nothing but 304s.
+     */
+    private void idlePollsAreNotModified() throws IOException {
+        String scenario = "idle-304";
+        GatewayProfile profile = begin(scenario);
+        github.putFile(FILE_PATH, commandFile(scenario, 10));
+        runWorker(profile);
+        assertEquals(10, sender.getCount());
+        int before = github.getTotalRequests();
+
+        LoadProbe probe = LoadProbe.start(scenario);
+        for (int i = 0; i < IDLE_POLLS; i++) {
+            runWorker(profile);
+        }
+        int requests = github.getTotalRequests() - before;
+        report(probe.stop(0, requests));
+
+        assertEquals(10, sender.getCount());
+        assertEquals(IDLE_POLLS + 1, requests);
+        assertEquals(IDLE_POLLS - 1, github.getNotModified(FakeGitHub.Endpoint.REF));
+        assertEquals(1, github.getRequests(FakeGitHub.Endpoint.RAW));
+    }
+
+    /**
+     * A 403 with no quota left fails the fetch and pushes the profile back
+     * to the reset; a poll forced before then does not call GitHub at all.
+     */
+    private void stopsAtRateLimit() throws IOException {
+        String scenario = "rate-limit-403";
+        GatewayProfile profile = begin(scenario);
+        github.putFile(FILE_PATH, commandFile(scenario, 10));
+        long resetMillis = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        github.exhaustRateLimit(resetMillis);
+
+        LoadProbe probe = LoadProbe.start(scenario);
+        runWorker(profile);
+        int requests = github.getTotalRequests();
+        long nextDue = ProfileSchedule.getNextDue(context, profile.getId());
+        runWorker(profile);
+        report(probe.stop(sender.getCount(), github.getTotalRequests()));
+
+        assertEquals(0, sender.getCount());
+        assertTrue("Next fetch before the reset", nextDue >= resetMillis - TimeUnit.SECONDS.toMillis(1));
+        assertEquals(requests, github.getTotalRequests());
+        assertTrue(github.hasFile(FILE_PATH));
+    }
+
+    /**
+     * A failed delete leaves the file in place; its lines are already
+     * queued and sent, so the next run only deletes it again.
+     */
+    private void retriesFailedDelete() throws IOException {
+        String scenario = "delete-failure";
+        int lines = 100;
+        GatewayProfile profile = begin(scenario);
+        github.putFile(FILE_PATH, commandFile(scenario, lines));
+        github.failDeletes(1);
+
+        LoadProbe probe = LoadProbe.start(scenario);
+        runWorker(profile);
+        assertEquals(lines, sender.getCount());
+        assertTrue(github.hasFile(FILE_PATH));
+        runWorker(profile);
+        report(probe.stop(sender.getCount(), github.getTotalRequests()));
+
+        assertEquals(lines, sender.getCount());
+        assertEquals(0, sender.countRepeats());
+        assertFalse(github.hasFile(FILE_PATH));
+        assertEquals(2, github.getRequests(FakeGitHub.Endpoint.DELETE));
+        assertEquals(1, github.getRequests(FakeGitHub.Endpoint.RAW));
+    }
+
+    /**
+     * Starts a scenario with a fresh fake repository, sender and profile.
+     * Each profile has its own token, so rate-limit state does not carry over.
+     */
+    private GatewayProfile begin(String scenario) {
+        github = new FakeGitHub();
+        server.setDispatcher(github);
+        sender = new RecordingSmsSender();
+        GatewayProfile profile = new GatewayProfile(scenario, scenario,
+                "https://github.com/loadtest/" + scenario + "/blob/main/" + FILE_PATH, "token-" + scenario, 15);
+        ProfileStore.saveProfiles(context, Collections.singletonList(profile));
+        return profile;
+    }
+
+    /**
+     * Runs the worker once, with the profile due now.
+     */
+    private void runWorker(GatewayProfile profile) {
+        ProfileSchedule.setNextDue(context, profile.getId(), 0, "load test");
+        GithubApiService service = GithubClient.createService(context, server.url("/").toString());
+        SmsWorker worker = TestWorkerBuilder.from(context, SmsWorker.class, executor)
+                .setWorkerFactory(new WorkerFactory() {
+                    @Override
+                    public ListenableWorker createWorker(@NonNull Context appContext,
+                            @NonNull String workerClassName, @NonNull WorkerParameters workerParameters) {
+                        return new SmsWorker(appContext, workerParameters, service, sender);
+                    }
+                })
+                .setInputData(new Data.Builder()
+                        .putLong(SmsWorker.KEY_TRIGGER_TIME, System.currentTimeMillis())
+                        .build())
+                .build();
+        assertEquals(ListenableWorker.Result.success(), worker.doWork());
+    }
+
+    /**
+     * @return a CSV command file of distinct recipients and texts
+     */
+    private static byte[] commandFile(String scenario, int lines) {
+        StringBuilder csv = new StringBuilder(lines * 48);
+        for (int i = 0; i < lines; i++) {
+            csv.append("+1416").append(5_000_000 + i)
+                    .append(",\"Load test ").append(scenario).append(", message ").append(i).append(".\"\n");
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static LoadProbe.Result report(LoadProbe.Result result) throws IOException {
+        System.out.println("[load] " + result);
+        LoadProbe.append(result);
+        return result;
+    }
+
+    private static void checkBudgets(LoadProbe.Result result) {
+        double minMessagesPerSecond = Double.parseDouble(System.getProperty("loadtest.minMessagesPerSecond", "0"));
+        long maxBytesPerMessage = Long.parseLong(System.getProperty("loadtest.maxBytesPerMessage", "0"));
+        long maxPeakHeapMb = Long.parseLong(System.getProperty("loadtest.maxPeakHeapMb", "0"));
+        String scenario = result.scenario + ": ";
+        assertTrue(scenario + String.format(Locale.US, "%.0f msg/s", result.messagesPerSecond()),
+                result.messagesPerSecond() >= minMessagesPerSecond);
+        if (maxBytesPerMessage > 0 && result.bytesPerMessage() >= 0) {
+            assertTrue(scenario + result.bytesPerMessage() + " B/msg", result.bytesPerMessage() <= maxBytesPerMessage);
+        }
+        if (maxPeakHeapMb > 0) {
+            long peakMb = result.peakHeapBytes / (1024 * 1024);
+            assertTrue(scenario + peakMb + " MB peak heap", peakMb <= maxPeakHeapMb);
+        }
+    }
+}
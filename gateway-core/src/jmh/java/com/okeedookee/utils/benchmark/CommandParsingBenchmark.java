@@ -0,0 +1,80 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.pipeline.CommandFormats;
+import com.okeedookee.utils.pipeline.CommandReader;
+import com.okeedookee.utils.pipeline.EncodingCommandReader;
+import com.okeedookee.utils.pipeline.NormalizingCommandReader;
+import com.okeedookee.utils.pipeline.PhoneNormalizer;
+import com.okeedookee.utils.pipeline.SmsCommand;
+import com.okeedookee.utils.pipeline.SmsEncoder;
+import com.okeedookee.utils.pipeline.TemplateSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads one command file of {@link #LINES} lines: the format reader alone,
+ * and the whole chain a download goes through (number normalization and
+ * segment counting on top). Scores are per file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandParsingBenchmark {
+    static final int LINES = 1000;
+
+    @Param({"sms.txt", "sms.ndjson"})
+    public String fileName;
+
+    private byte[] file;
+
+    @Setup
+    public void setUp() {
+        StringBuilder content = new StringBuilder(LINES * 64);
+        for (int i = 0; i < LINES; i++) {
+            String phone = "(416) 555-" + (1000 + i % 9000);
+            String message = "Your order " + i + " is ready, pick it up before 6pm \u2013 thanks!";
+            if (fileName.endsWith(".ndjson")) {
+                content.append("{\"phone\":\"").append(phone).append("\",\"message\":\"").append(message)
+                        .append("\",\"priority\":").append(i % 3).append("}\n");
+            } else {
+                content.append(phone).append(",\"").append(message).append("\"\n");
+            }
+        }
+        file = content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        try (CommandReader reader = CommandFormats.open(new ByteArrayInputStream(file), fileName,
+                new TemplateSet())) {
+            drain(reader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void parseNormalizeEncode(Blackhole blackhole) throws IOException {
+        try (CommandReader reader = new EncodingCommandReader(new NormalizingCommandReader(
+                CommandFormats.open(new ByteArrayInputStream(file), fileName, new TemplateSet()),
+                new PhoneNormalizer("1")), new SmsEncoder(SmsEncoder.Transliteration.PUNCTUATION, 0, false))) {
+            drain(reader, blackhole);
+        }
+    }
+
+    private static void drain(CommandReader reader, Blackhole blackhole) throws IOException {
+        SmsCommand command;
+        while ((command = reader.next()) != null) {
+            blackhole.consume(command);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.pipeline.DuplicateFilter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The per-message dedup work before a send: fingerprinting and a lookup in
+ * a filter holding a day's worth of sent messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DuplicateFilterBenchmark {
+    private static final int REMEMBERED = 20_000;
+    private static final String BATCH_ID = "default/3f786850e387550fdab836ed7e6dc881de23001b";
+
+    private File dir;
+    private DuplicateFilter filter;
+    /** Remembered messages followed by as many new ones, so half of the lookups hit. */
+    private long[] fingerprints;
+    private long now;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dedup-bench").toFile();
+        filter = DuplicateFilter.open(new File(dir, "sent.bin"), TimeUnit.HOURS.toMillis(24));
+        now = System.currentTimeMillis();
+        fingerprints = new long[2 * REMEMBERED];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = DuplicateFilter.fingerprint("+1416555" + i, "Message " + i, null, BATCH_ID, i);
+        }
+        for (int i = 0; i < REMEMBERED; i++) {
+            filter.record(fingerprints[i], now);
+        }
+        filter.closeJournal();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long fingerprint() {
+        return DuplicateFilter.fingerprint("+14165551234", "Your order 42 is ready, pick it up before 6pm.", null,
+                BATCH_ID, next++);
+    }
+
+    @Benchmark
+    public DuplicateFilter.Verdict check() {
+        // Fingerprinting is measured on its own above
+        return filter.check(fingerprints[next++ % fingerprints.length], now);
+    }
+}
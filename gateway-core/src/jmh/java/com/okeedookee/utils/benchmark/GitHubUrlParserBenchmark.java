@@ -0,0 +1,32 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.utils.GitHubUrlParser;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing each supported kind of profile URL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GitHubUrlParserBenchmark {
+
+    @Param({
+            "https://github.com/okeedookee/sms-gateway-storage/blob/main/sms.txt",
+            "https://raw.githubusercontent.com/okeedookee/sms-gateway-storage/main/outbox/sms.ndjson",
+            "https://github.com/okeedookee/sms-gateway-storage/tree/main/spool"
+    })
+    public String url;
+
+    @Benchmark
+    public GitHubUrlParser.GitHubUrlInfo parse() {
+        return GitHubUrlParser.parse(url);
+    }
+}
@@ -0,0 +1,50 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.utils.AppLog;
+import com.okeedookee.utils.utils.LogCodec;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Writing a log entry to its stored line, reading it back, and the seq
+ * peek used to skip lines while paging back through history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogCodecBenchmark {
+    private final StringBuilder out = new StringBuilder(256);
+    private AppLog log;
+    private String line;
+
+    @Setup
+    public void setUp() {
+        log = new AppLog(123456, "INFO", "2026-10-17 09:30:00", 1792229400000L,
+                "Submitted to +14165551234 on SIM 1: \"Your order 42 is ready, pick it up before 6pm.\"");
+        LogCodec.encode(log, out);
+        line = out.toString();
+    }
+
+    @Benchmark
+    public int encode() {
+        out.setLength(0);
+        LogCodec.encode(log, out);
+        return out.length();
+    }
+
+    @Benchmark
+    public AppLog decode() {
+        return LogCodec.decode(line);
+    }
+
+    @Benchmark
+    public long peekSeq() {
+        return LogCodec.peekSeq(line);
+    }
+}
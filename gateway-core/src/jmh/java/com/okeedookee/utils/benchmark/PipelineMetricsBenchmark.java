@@ -0,0 +1,34 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.metrics.PipelineMetrics;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The bookkeeping done for every message sent: one latency and two counters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PipelineMetricsBenchmark {
+    private PipelineMetrics metrics;
+    private long millis;
+
+    @Setup
+    public void setUp() {
+        metrics = new PipelineMetrics();
+    }
+
+    @Benchmark
+    public void recordSend() {
+        metrics.record(PipelineMetrics.Stage.SEND, "default", millis++ & 1023);
+        metrics.add(PipelineMetrics.Counter.SENT, "default", 1);
+        metrics.add(PipelineMetrics.Counter.SEGMENTS, "default", 1);
+    }
+}
@@ -0,0 +1,42 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.pipeline.GitHubQuota;
+import com.okeedookee.utils.pipeline.PollingPolicy;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Picking the next fetch of a profile, with the rate-limit stretch applied.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PollingPolicyBenchmark {
+
+    @Param({"WORK", "IDLE", "ERROR"})
+    public PollingPolicy.Outcome outcome;
+
+    private PollingPolicy policy;
+    private GitHubQuota quota;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        policy = new PollingPolicy(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(15), new Random(42));
+        now = System.currentTimeMillis();
+        quota = new GitHubQuota(120, now + TimeUnit.MINUTES.toMillis(40), 0, 3);
+    }
+
+    @Benchmark
+    public PollingPolicy.Decision decide() {
+        return policy.decide(outcome, 3, quota, now);
+    }
+}
@@ -0,0 +1,56 @@
+package com.okeedookee.utils.benchmark;
+
+import com.okeedookee.utils.pipeline.SmsEncoder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Segment counting and the transliterating check every queued message goes
+ * through, for a plain GSM-7 message, one with smart punctuation that
+ * transliterates back to GSM-7, and one that has to stay UCS-2.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SegmentationBenchmark {
+
+    @Param({"gsm7", "punctuation", "ucs2"})
+    public String text;
+
+    private String message;
+    private SmsEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        String base = "Reminder: your appointment is on Tuesday at 9:30. Reply STOP to opt out of these messages. ";
+        switch (text) {
+            case "punctuation":
+                message = base.replace(':', '\u2019') + "\u201cSee you soon\u201d \u2013 the team\u2026";
+                break;
+            case "ucs2":
+                message = base + "\u041f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00";
+                break;
+            default:
+                message = base + base;
+                break;
+        }
+        encoder = new SmsEncoder(SmsEncoder.Transliteration.ALL, 0, false);
+    }
+
+    @Benchmark
+    public int countSegments() {
+        return SmsEncoder.countSegments(message);
+    }
+
+    @Benchmark
+    public String prepare() {
+        return encoder.prepare(message, 1, null);
+    }
+}
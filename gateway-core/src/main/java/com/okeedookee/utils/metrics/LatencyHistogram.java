@@ -0,0 +1,172 @@
+package com.okeedookee.utils.metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of millisecond latencies.
+ *
+ * Values below 16 ms get a bucket each; above that every power of two is
+ * split into 8 buckets, so any recorded value is reported within 12.5%.
+ * Recording never allocates, and only non-empty buckets are persisted.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to 2^40 ms (about 35 years)
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 4) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts[bucketOf(millis)]++;
+        count++;
+        sum += millis;
+        if (millis > max) {
+            max = millis;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper bound of the bucket holding the quantile, or 0 when empty
+     */
+    public long getPercentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return how many values were recorded in buckets that end at or below
+     *         {@code millis}, for exporting as cumulative buckets
+     */
+    public long countAtOrBelow(long millis) {
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= millis; i++) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * @return e.g. "n=120 p50=850ms p95=2400ms p99=6100ms max=9000ms"
+     */
+    public String describe() {
+        if (count == 0) {
+            return "n=0";
+        }
+        return "n=" + count + " p50=" + getPercentile(0.5) + "ms p95=" + getPercentile(0.95)
+                + "ms p99=" + getPercentile(0.99) + "ms max=" + max + "ms";
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        int used = 0;
+        for (long c : counts) {
+            if (c != 0) {
+                used++;
+            }
+        }
+        out.writeLong(sum);
+        out.writeLong(max);
+        out.writeShort(used);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                out.writeShort(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        clear();
+        sum = in.readLong();
+        max = in.readLong();
+        int used = in.readUnsignedShort();
+        for (int n = 0; n < used; n++) {
+            int i = in.readUnsignedShort();
+            long c = in.readLong();
+            if (i >= BUCKETS) {
+                throw new IOException("Bucket out of range: " + i);
+            }
+            counts[i] = c;
+            count += c;
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
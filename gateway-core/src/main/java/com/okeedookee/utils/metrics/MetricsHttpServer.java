@@ -0,0 +1,145 @@
+package com.okeedookee.utils.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+/**
+ * Serves {@code GET /metrics} on the loopback interface so a scraper on the
+ * device (or one reaching it through {@code adb forward}) can read the
+ * Prometheus export. Nothing outside the device can connect.
+ *
+ * Scrapes are rare and tiny, so one daemon thread answers them one at a
+ * time and closes each connection after the response.
+ */
+public class MetricsHttpServer implements Closeable {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_REQUEST_HEAD_BYTES = 8192;
+
+    private final ServerSocket serverSocket;
+    private final Callable<String> export;
+    private final Thread thread;
+
+    private MetricsHttpServer(ServerSocket serverSocket, Callable<String> export) {
+        this.serverSocket = serverSocket;
+        this.export = export;
+        this.thread = new Thread(this::serve, "metrics-http");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @param export produces the body of each scrape
+     * @throws IOException if the port cannot be bound
+     */
+    public static MetricsHttpServer start(int port, Callable<String> export) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        MetricsHttpServer server = new MetricsHttpServer(serverSocket, export);
+        server.thread.start();
+        return server;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                handle(socket);
+            } catch (SocketException e) {
+                // Closed by close(), or the client went away
+            } catch (IOException e) {
+                // One bad scrape; keep serving
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        String requestLine = readRequestHead(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        if (requestLine == null) {
+            respond(out, "400 Bad Request", "text/plain", "Bad request\n", true);
+            return;
+        }
+        String[] parts = requestLine.split(" ");
+        boolean head = parts.length == 3 && "HEAD".equals(parts[0]);
+        if (parts.length != 3 || !("GET".equals(parts[0]) || head)) {
+            respond(out, "405 Method Not Allowed", "text/plain", "Only GET is supported\n", true);
+            return;
+        }
+        String path = parts[1];
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if (!"/metrics".equals(path)) {
+            respond(out, "404 Not Found", "text/plain", "Try /metrics\n", !head);
+            return;
+        }
+        String body;
+        try {
+            body = export.call();
+        } catch (Exception e) {
+            respond(out, "500 Internal Server Error", "text/plain", e + "\n", !head);
+            return;
+        }
+        respond(out, "200 OK", CONTENT_TYPE, body, !head);
+    }
+
+    /**
+     * Reads up to the blank line that ends the request headers.
+     *
+     * @return the request line, or null if the head is malformed or too long
+     */
+    private static String readRequestHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        int c;
+        while ((c = in.read()) >= 0) {
+            head.append((char) c);
+            int length = head.length();
+            if (length > MAX_REQUEST_HEAD_BYTES) {
+                return null;
+            }
+            if (c == '\n' && (endsWith(head, "\r\n\r\n") || endsWith(head, "\n\n"))) {
+                int end = head.indexOf("\n");
+                return head.substring(0, end > 0 && head.charAt(end - 1) == '\r' ? end - 1 : end);
+            }
+        }
+        return null;
+    }
+
+    private static boolean endsWith(StringBuilder text, String suffix) {
+        int start = text.length() - suffix.length();
+        return start >= 0 && text.indexOf(suffix, start) == start;
+    }
+
+    private static void respond(OutputStream out, String status, String contentType, String body,
+            boolean withBody) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        if (withBody) {
+            out.write(bytes);
+        }
+        out.flush();
+    }
+}
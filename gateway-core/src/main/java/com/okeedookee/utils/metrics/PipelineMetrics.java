@@ -0,0 +1,279 @@
+package com.okeedookee.utils.metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and counters of each gateway pipeline stage, per profile.
+ *
+ * Everything is kept in memory as {@link LatencyHistogram}s and plain
+ * counters; recording is a map lookup and an increment under the lock, and
+ * never allocates once a profile has its series. Stages that belong to the
+ * device rather than to a profile (trigger delay, whole runs) are kept under
+ * {@link #DEVICE}. Totals only grow, like Prometheus counters, so scrapers
+ * can take rates over any window.
+ */
+public class PipelineMetrics {
+    /** Series of the stages that are not tied to a profile. */
+    public static final String DEVICE = "";
+
+    public enum Stage {
+        /** From when a check was due to when it started. */
+        TRIGGER_DELAY("trigger_delay"),
+        /** A profile's whole fetch, including the download, parse and delete below. */
+        FETCH("fetch"),
+        /** Request for a command file until its body starts to arrive. */
+        DOWNLOAD("download"),
+        /** Streaming a file through decompression, parsing and checks into the queue. */
+        PARSE("parse"),
+        /** Handing one message to the SmsManager. */
+        SEND("send"),
+        /** Removing handled command files from GitHub. */
+        DELETE("delete"),
+        /** Picking when a profile is next due. */
+        SCHEDULE("schedule"),
+        /** One whole check. */
+        RUN("run"),
+        /** One submission to the ingest endpoint, from its head to the response. */
+        INGEST("ingest");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public enum Counter {
+        FILES("files_processed", "Command files queued."),
+        QUEUED("messages_queued", "Messages moved from command files into the queue."),
+        REJECTED("lines_rejected", "Command lines reported as invalid or over the segment limit."),
+        SENT("messages_sent", "Messages handed to the SmsManager."),
+        FAILED("messages_failed", "Messages the SmsManager refused."),
+        DUPLICATES("messages_duplicate", "Messages skipped as already sent."),
+        SEGMENTS("segments_sent", "SMS segments of the messages sent."),
+        FETCH_ERRORS("fetch_errors", "Fetches that ended in an error."),
+        THROTTLED("ingest_throttled", "Submissions refused because the queue was full.");
+
+        private final String metric;
+        private final String help;
+
+        Counter(String metric, String help) {
+            this.metric = metric;
+            this.help = help;
+        }
+    }
+
+    private static final String PREFIX = "sms_gateway_";
+    private static final int FORMAT_VERSION = 1;
+    // Bucket bounds of the exported histograms
+    private static final long[] EXPORT_BOUNDS_MILLIS = {
+            5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000 };
+
+    private static final class Series {
+        final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+        final long[] counters = new long[Counter.values().length];
+
+        Series() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    // Sorted so exports list profiles in a stable order
+    private final Map<String, Series> series = new TreeMap<>();
+
+    public synchronized void record(Stage stage, String profileId, long millis) {
+        seriesOf(profileId).stages[stage.ordinal()].record(millis);
+    }
+
+    public synchronized void add(Counter counter, String profileId, long amount) {
+        seriesOf(profileId).counters[counter.ordinal()] += amount;
+    }
+
+    /**
+     * @param profileId the profile, or null for the sum over all of them
+     */
+    public synchronized long getCount(Counter counter, String profileId) {
+        if (profileId != null) {
+            Series one = series.get(profileId);
+            return one != null ? one.counters[counter.ordinal()] : 0;
+        }
+        long total = 0;
+        for (Series one : series.values()) {
+            total += one.counters[counter.ordinal()];
+        }
+        return total;
+    }
+
+    /**
+     * @param profileId the profile, {@link #DEVICE}, or null for all series merged
+     * @return the latency at the quantile, or -1 if none was recorded
+     */
+    public synchronized long getPercentile(Stage stage, String profileId, double quantile) {
+        LatencyHistogram histogram;
+        if (profileId != null) {
+            Series one = series.get(profileId);
+            histogram = one != null ? one.stages[stage.ordinal()] : null;
+        } else {
+            histogram = new LatencyHistogram();
+            for (Series one : series.values()) {
+                histogram.add(one.stages[stage.ordinal()]);
+            }
+        }
+        return histogram != null && histogram.getCount() > 0 ? histogram.getPercentile(quantile) : -1;
+    }
+
+    /**
+     * @return ids of the profiles with recorded data, without {@link #DEVICE}
+     */
+    public synchronized List<String> getProfileIds() {
+        List<String> ids = new ArrayList<>(series.keySet());
+        ids.remove(DEVICE);
+        return ids;
+    }
+
+    public synchronized void clear() {
+        series.clear();
+    }
+
+    /**
+     * Renders everything in the Prometheus text exposition format (0.0.4).
+     * Latencies become histograms in seconds with fixed bucket bounds; each
+     * bound is accurate to the underlying histogram's precision.
+     *
+     * @param profileNames display name of each profile id, exported as
+     *                     {@code sms_gateway_profile_info}; may be empty
+     */
+    public synchronized String toPrometheus(Map<String, String> profileNames) {
+        StringBuilder out = new StringBuilder(4096);
+
+        String info = PREFIX + "profile_info";
+        out.append("# HELP ").append(info).append(" Name of each configured profile.\n");
+        out.append("# TYPE ").append(info).append(" gauge\n");
+        for (Map.Entry<String, String> profile : new TreeMap<>(profileNames).entrySet()) {
+            out.append(info).append("{profile=\"").append(escape(profile.getKey())).append("\",name=\"")
+                    .append(escape(profile.getValue())).append("\"} 1\n");
+        }
+
+        for (Counter counter : Counter.values()) {
+            String name = PREFIX + counter.metric + "_total";
+            out.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            for (Map.Entry<String, Series> entry : series.entrySet()) {
+                if (!DEVICE.equals(entry.getKey())) {
+                    out.append(name).append("{profile=\"").append(escape(entry.getKey())).append("\"} ")
+                            .append(entry.getValue().counters[counter.ordinal()]).append('\n');
+                }
+            }
+        }
+
+        String duration = PREFIX + "stage_duration_seconds";
+        out.append("# HELP ").append(duration).append(" Time spent in each pipeline stage.\n");
+        out.append("# TYPE ").append(duration).append(" histogram\n");
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = entry.getValue().stages[stage.ordinal()];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                String labels = (DEVICE.equals(entry.getKey()) ? "" : "profile=\"" + escape(entry.getKey())
+                        + "\",") + "stage=\"" + stage.label + "\"";
+                for (long bound : EXPORT_BOUNDS_MILLIS) {
+                    out.append(duration).append("_bucket{").append(labels).append(",le=\"")
+                            .append(seconds(bound)).append("\"} ").append(histogram.countAtOrBelow(bound))
+                            .append('\n');
+                }
+                out.append(duration).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                        .append(histogram.getCount()).append('\n');
+                out.append(duration).append("_sum{").append(labels).append("} ")
+                        .append(seconds(histogram.getSum())).append('\n');
+                out.append(duration).append("_count{").append(labels).append("} ")
+                        .append(histogram.getCount()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(series.size());
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Series one = entry.getValue();
+            out.writeShort(one.stages.length);
+            for (LatencyHistogram histogram : one.stages) {
+                histogram.writeTo(out);
+            }
+            out.writeShort(one.counters.length);
+            for (long counter : one.counters) {
+                out.writeLong(counter);
+            }
+        }
+    }
+
+    /**
+     * Replaces the recorded data with a snapshot written by {@link #writeTo}.
+     * Stages and counters added since the snapshot start at zero.
+     *
+     * @throws IOException if the snapshot is unreadable, leaving this empty
+     */
+    public synchronized void readFrom(DataInput in) throws IOException {
+        series.clear();
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown metrics format");
+            }
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                Series one = seriesOf(in.readUTF());
+                int stages = in.readUnsignedShort();
+                LatencyHistogram skipped = new LatencyHistogram();
+                for (int i = 0; i < stages; i++) {
+                    (i < one.stages.length ? one.stages[i] : skipped).readFrom(in);
+                }
+                int counters = in.readUnsignedShort();
+                for (int i = 0; i < counters; i++) {
+                    long value = in.readLong();
+                    if (i < one.counters.length) {
+                        one.counters[i] = value;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            series.clear();
+            throw e;
+        }
+    }
+
+    private Series seriesOf(String profileId) {
+        Series one = series.get(profileId);
+        if (one == null) {
+            one = new Series();
+            series.put(profileId, one);
+        }
+        return one;
+    }
+
+    private static String seconds(long millis) {
+        return BigDecimal.valueOf(millis, 3).stripTrailingZeros().toPlainString();
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
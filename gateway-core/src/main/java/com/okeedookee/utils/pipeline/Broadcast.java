@@ -0,0 +1,31 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Hands out the commands of a broadcast line, one message to many
+ * recipients, one recipient at a time. Not thread-safe.
+ */
+final class Broadcast {
+    private final ArrayDeque<SmsCommand> pending = new ArrayDeque<>();
+
+    /**
+     * @return the next recipient's command of the current line, or null
+     */
+    SmsCommand poll() {
+        return pending.poll();
+    }
+
+    /**
+     * Queues {@code command} for every phone after the first.
+     *
+     * @return the command for the first phone
+     */
+    SmsCommand start(SmsCommand command, List<String> phones) {
+        for (int i = 1; i < phones.size(); i++) {
+            pending.add(command.forRecipient(phones.get(i), i));
+        }
+        return command.withPhone(phones.get(0));
+    }
+}
@@ -0,0 +1,74 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Command file formats and how to recognise them.
+ *
+ * The extension decides first: {@code .gz} means gzip, {@code .ndjson} or
+ * {@code .jsonl} (before any {@code .gz}) means NDJSON. Otherwise the content
+ * is sniffed: the gzip magic bytes, then (unless the file is named .csv) a
+ * first non-blank character of <code>{</code> for NDJSON. Everything else is
+ * read as CSV. Decompression
+ * and decoding are streamed; the payload is never inflated in memory.
+ */
+public class CommandFormats {
+    private static final int GZIP_BUFFER_SIZE = 16 * 1024;
+    // Bytes looked at to tell NDJSON from CSV: a BOM and some leading blank lines
+    private static final int SNIFF_LIMIT = 64;
+
+    // Private constructor to prevent instantiation
+    private CommandFormats() {
+    }
+
+    /**
+     * Opens a reader for a command file, detecting its format.
+     *
+     * @param fileName  name or path of the file, may be null
+     * @param templates message templates NDJSON lines may use and define
+     */
+    public static CommandReader open(InputStream in, String fileName, TemplateSet templates) throws IOException {
+        String name = fileName != null ? fileName.toLowerCase(Locale.ROOT) : "";
+        InputStream stream = in.markSupported() ? in : new BufferedInputStream(in);
+
+        boolean gzip = name.endsWith(".gz") || startsWithGzipMagic(stream);
+        if (gzip) {
+            stream = new BufferedInputStream(new GZIPInputStream(stream, GZIP_BUFFER_SIZE));
+            name = name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+        }
+
+        boolean ndjson = name.endsWith(".ndjson") || name.endsWith(".jsonl")
+                || (!name.endsWith(".csv") && startsWithObject(stream));
+        return ndjson ? new NdjsonCommandReader(stream, templates) : new CsvCommandReader(stream);
+    }
+
+    private static boolean startsWithGzipMagic(InputStream in) throws IOException {
+        in.mark(2);
+        try {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static boolean startsWithObject(InputStream in) throws IOException {
+        in.mark(SNIFF_LIMIT);
+        try {
+            for (int i = 0; i < SNIFF_LIMIT; i++) {
+                int b = in.read();
+                // Skip a UTF-8 BOM and whitespace
+                if (b == 0xEF || b == 0xBB || b == 0xBF || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    continue;
+                }
+                return b == '{';
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+}
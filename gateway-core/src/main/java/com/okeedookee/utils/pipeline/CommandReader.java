@@ -0,0 +1,22 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A streaming source of commands from one command file, whatever its format.
+ * See {@link CommandFormats} for picking the reader for a file.
+ */
+public interface CommandReader extends Closeable {
+
+    interface ErrorListener {
+        void onInvalidLine(long lineNumber, String reason);
+    }
+
+    void setErrorListener(ErrorListener errorListener);
+
+    /**
+     * @return the next valid command, or null once the input is exhausted
+     */
+    SmsCommand next() throws IOException;
+}
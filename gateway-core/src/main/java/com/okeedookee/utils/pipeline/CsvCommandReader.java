@@ -0,0 +1,306 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader for "phone,message" command files.
+ *
+ * Records are read straight from the underlying stream through a fixed char
+ * buffer into reusable field builders, so memory use does not depend on the
+ * file size. Quoting follows RFC 4180: a quoted field may contain commas,
+ * doubled quotes ("") and line breaks; both LF and CRLF line endings are
+ * accepted. For compatibility with existing files an unquoted message runs to
+ * the end of the line, commas included.
+ *
+ * A phone field listing several numbers separated by ';' is a broadcast
+ * line: the message goes to each of them.
+ *
+ * Blank lines are skipped. Malformed lines are reported to the
+ * {@link ErrorListener} with their line number and skipped.
+ */
+public class CsvCommandReader implements CommandReader {
+
+    /** Longest field we accept; guards memory against an unterminated quote but fits large broadcasts. */
+    public static final int MAX_FIELD_LENGTH = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int EOF = -1;
+    private static final int EOL = -2;
+    private static final int COMMA = -3;
+    private static final int ERROR = -4;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean started;
+
+    private final StringBuilder phoneField = new StringBuilder(32);
+    private final StringBuilder messageField = new StringBuilder(256);
+    private boolean lastFieldQuoted;
+    private String lastError;
+
+    private long lineNumber = 1;
+    private ErrorListener errorListener;
+    private final Broadcast broadcast = new Broadcast();
+    private final List<String> phones = new ArrayList<>();
+
+    public CsvCommandReader(InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    public CsvCommandReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    @Override
+    public SmsCommand next() throws IOException {
+        if (!started) {
+            started = true;
+            skipByteOrderMark();
+        }
+        SmsCommand recipient = broadcast.poll();
+        if (recipient != null) {
+            return recipient;
+        }
+
+        while (true) {
+            if (peek() == EOF) {
+                return null;
+            }
+            long recordLine = lineNumber;
+
+            int end = readField(phoneField, false);
+            if (end == ERROR) {
+                reportAndSkipLine(recordLine, lastError);
+                continue;
+            }
+            if (end != COMMA) {
+                if (phoneField.length() == 0 && !lastFieldQuoted) {
+                    continue; // blank line
+                }
+                report(recordLine, "missing message field");
+                continue;
+            }
+
+            end = readField(messageField, true);
+            if (end == ERROR) {
+                reportAndSkipLine(recordLine, lastError);
+                continue;
+            }
+
+            if (phoneField.length() == 0) {
+                report(recordLine, "empty phone number");
+                continue;
+            }
+            if (messageField.length() == 0) {
+                report(recordLine, "empty message");
+                continue;
+            }
+            SmsCommand command = new SmsCommand(phoneField.toString(), messageField.toString(), recordLine);
+            if (phoneField.indexOf(";") < 0) {
+                return command;
+            }
+            splitPhones(command.getPhone());
+            if (phones.isEmpty()) {
+                report(recordLine, "empty phone number");
+                continue;
+            }
+            return broadcast.start(command, phones);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void splitPhones(String field) {
+        phones.clear();
+        int start = 0;
+        while (start <= field.length()) {
+            int end = field.indexOf(';', start);
+            if (end < 0) {
+                end = field.length();
+            }
+            String phone = field.substring(start, end).trim();
+            if (!phone.isEmpty()) {
+                phones.add(phone);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Reads one field into {@code out}, consuming its terminator.
+     *
+     * @return COMMA, EOL, EOF or ERROR (with {@link #lastError} set)
+     */
+    private int readField(StringBuilder out, boolean commaAllowed) throws IOException {
+        out.setLength(0);
+        lastFieldQuoted = false;
+
+        int c = read();
+        while (c == ' ' || c == '\t') {
+            c = read();
+        }
+
+        if (c == '"') {
+            lastFieldQuoted = true;
+            return readQuotedField(out, commaAllowed);
+        }
+
+        while (true) {
+            int end = terminator(c, commaAllowed);
+            if (end != 0) {
+                trimTrailingWhitespace(out);
+                return end;
+            }
+            if (out.length() >= MAX_FIELD_LENGTH) {
+                lastError = "field longer than " + MAX_FIELD_LENGTH + " characters";
+                return ERROR;
+            }
+            out.append((char) c);
+            c = read();
+        }
+    }
+
+    /**
+     * @param last true for the message field, which only a line break or the end of the input may follow
+     */
+    private int readQuotedField(StringBuilder out, boolean last) throws IOException {
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                lastError = "unterminated quoted field";
+                return ERROR;
+            }
+            if (c == '"') {
+                if (peek() == '"') {
+                    read();
+                    out.append('"');
+                    continue;
+                }
+                break;
+            }
+            if (out.length() >= MAX_FIELD_LENGTH) {
+                lastError = "field longer than " + MAX_FIELD_LENGTH + " characters";
+                return ERROR;
+            }
+            if (c == '\r' || c == '\n') {
+                consumeLineBreak(c);
+                out.append('\n');
+                continue;
+            }
+            out.append((char) c);
+        }
+
+        // Only whitespace may follow the closing quote
+        int c = read();
+        while (c == ' ' || c == '\t') {
+            c = read();
+        }
+        int end = terminator(c, last);
+        if (end == 0) {
+            lastError = "unexpected character after closing quote";
+            return ERROR;
+        }
+        return end;
+    }
+
+    /**
+     * @return the terminator code for {@code c}, or 0 if it is ordinary field content
+     */
+    private int terminator(int c, boolean commaAllowed) throws IOException {
+        if (c == EOF) {
+            return EOF;
+        }
+        if (c == '\r' || c == '\n') {
+            consumeLineBreak(c);
+            return EOL;
+        }
+        if (c == ',' && !commaAllowed) {
+            return COMMA;
+        }
+        return 0;
+    }
+
+    private void consumeLineBreak(int c) throws IOException {
+        if (c == '\r' && peek() == '\n') {
+            read();
+        }
+        lineNumber++;
+    }
+
+    private void reportAndSkipLine(long recordLine, String reason) throws IOException {
+        // Errors leave us in the middle of a line; resync on the next line break
+        int c;
+        do {
+            c = read();
+        } while (c != EOF && c != '\r' && c != '\n');
+        if (c != EOF) {
+            consumeLineBreak(c);
+        }
+        report(recordLine, reason);
+    }
+
+    private void report(long recordLine, String reason) {
+        if (errorListener != null) {
+            errorListener.onInvalidLine(recordLine, reason);
+        }
+    }
+
+    private static void trimTrailingWhitespace(StringBuilder sb) {
+        int length = sb.length();
+        while (length > 0 && Character.isWhitespace(sb.charAt(length - 1))) {
+            length--;
+        }
+        sb.setLength(length);
+    }
+
+    private void skipByteOrderMark() throws IOException {
+        if (peek() == '\uFEFF') {
+            read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = reader.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            limit = 0;
+            position = 0;
+            return false;
+        }
+        limit = n;
+        position = 0;
+        return true;
+    }
+}
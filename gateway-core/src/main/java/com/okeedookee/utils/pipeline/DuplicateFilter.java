@@ -0,0 +1,393 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers fingerprints of recently sent messages so a command file that is
+ * read again (a failed delete, a re-upload, a purged queue) does not text
+ * the same people twice.
+ *
+ * The last {@link #EXACT_CAPACITY} sends are kept exactly in a ring with an
+ * open-addressing index; older ones fall back to a pair of Bloom filters
+ * that rotate every window. A Bloom-only match is only trusted while the
+ * ring has dropped sends that are still inside the window, since otherwise
+ * it can only be a false positive. Memory is fixed at about 1.3 MB, and
+ * {@link #check} and {@link #record} never allocate.
+ *
+ * Each send is appended to a small journal so it survives a crash;
+ * {@link #save} folds the journal into a snapshot. Not thread-safe.
+ */
+public class DuplicateFilter {
+
+    public enum Verdict {
+        NEW,
+        /** Found among the exactly remembered sends. */
+        SENT,
+        /** Found in the Bloom filters only; about 0.15% of these are false positives at 150,000 sends per window. */
+        PROBABLY_SENT
+    }
+
+    public static final int EXACT_CAPACITY = 1 << 15;
+
+    private static final int INDEX_SLOTS = EXACT_CAPACITY * 2;
+    private static final int BLOOM_BITS_LOG2 = 21;
+    private static final long BLOOM_MASK = (1L << BLOOM_BITS_LOG2) - 1;
+    private static final int BLOOM_HASHES = 7;
+
+    private static final int SNAPSHOT_MAGIC = 0x53464450; // "SFDP"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int JOURNAL_RECORD_BYTES = 16;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private long windowMillis;
+
+    // Exact part: ring in send order, index of ring position + 1 (0 = empty)
+    private final long[] ringKeys = new long[EXACT_CAPACITY];
+    private final long[] ringTimes = new long[EXACT_CAPACITY];
+    private final int[] index = new int[INDEX_SLOTS];
+    private int head;
+    private int size;
+    // Send time of the newest entry the ring has dropped
+    private long evictedUntil;
+
+    private long[] currentBloom = new long[1 << (BLOOM_BITS_LOG2 - 6)];
+    private long[] previousBloom = new long[1 << (BLOOM_BITS_LOG2 - 6)];
+    private long currentStartedAt;
+
+    private final byte[] journalRecord = new byte[JOURNAL_RECORD_BYTES];
+    private FileOutputStream journal;
+    private boolean dirty;
+
+    private DuplicateFilter(File snapshotFile, long windowMillis) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getPath() + ".journal");
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Loads the filter from its snapshot and journal. Unreadable state is
+     * dropped, so the worst case is an empty filter.
+     *
+     * @param snapshotFile where the filter is kept; the journal sits next to it
+     */
+    public static DuplicateFilter open(File snapshotFile, long windowMillis) {
+        DuplicateFilter filter = new DuplicateFilter(snapshotFile, windowMillis);
+        try {
+            filter.readSnapshot();
+        } catch (IOException e) {
+            filter.reset();
+        }
+        try {
+            filter.replayJournal();
+        } catch (IOException e) {
+            // Keep what was replayed up to the damaged record
+        }
+        return filter;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * 64-bit fingerprint of a message. A producer's message id identifies it on
+     * its own; without one the message is identified by the command file blob
+     * and line it came from, so identical lines in one file stay distinct. A
+     * file committed again after it was deleted is a new reading ("sha#n") and
+     * is sent again; a producer's id still recognises its messages.
+     *
+     * @param batchId queue batch id, with "#n" for a later reading; only the part
+     *                after its last '/' or '@' is used
+     */
+    public static long fingerprint(String phone, String message, String clientId, String batchId, long lineNumber) {
+        long hash = hash(FNV_OFFSET, phone, 0);
+        hash = hash(hash, message, 0);
+        if (clientId != null && !clientId.isEmpty()) {
+            hash = hash(hash ^ 1, clientId, 0);
+        } else {
+            int shaStart = Math.max(batchId.lastIndexOf('/'), batchId.lastIndexOf('@')) + 1;
+            hash = hash(hash ^ 2, batchId, shaStart);
+            hash = (hash ^ lineNumber) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    public Verdict check(long fingerprint, long nowMillis) {
+        rotate(nowMillis);
+        int slot = find(fingerprint);
+        if (slot >= 0 && nowMillis - ringTimes[index[slot] - 1] < windowMillis) {
+            return Verdict.SENT;
+        }
+        if (slot < 0 && nowMillis - evictedUntil < windowMillis && mightContain(fingerprint)) {
+            return Verdict.PROBABLY_SENT;
+        }
+        return Verdict.NEW;
+    }
+
+    /**
+     * Remembers a sent message and appends it to the journal.
+     */
+    public void record(long fingerprint, long nowMillis) throws IOException {
+        rotate(nowMillis);
+        remember(fingerprint, nowMillis);
+        dirty = true;
+        if (journal == null) {
+            journal = new FileOutputStream(journalFile, true);
+        }
+        for (int i = 0; i < 8; i++) {
+            journalRecord[i] = (byte) (fingerprint >>> (56 - 8 * i));
+            journalRecord[8 + i] = (byte) (nowMillis >>> (56 - 8 * i));
+        }
+        journal.write(journalRecord);
+    }
+
+    /**
+     * Writes a snapshot and empties the journal, if anything was recorded since the last one.
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(evictedUntil);
+            out.writeLong(currentStartedAt);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int position = (head - size + i + EXACT_CAPACITY) % EXACT_CAPACITY;
+                out.writeLong(ringKeys[position]);
+                out.writeLong(ringTimes[position]);
+            }
+            for (long word : currentBloom) {
+                out.writeLong(word);
+            }
+            for (long word : previousBloom) {
+                out.writeLong(word);
+            }
+        }
+        if (!temp.renameTo(snapshotFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + snapshotFile.getName());
+        }
+        closeJournal();
+        journalFile.delete();
+        dirty = false;
+    }
+
+    public void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            evictedUntil = in.readLong();
+            currentStartedAt = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > EXACT_CAPACITY) {
+                throw new IOException("Bad entry count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long time = in.readLong();
+                remember(key, time, false);
+            }
+            for (int i = 0; i < currentBloom.length; i++) {
+                currentBloom[i] = in.readLong();
+            }
+            for (int i = 0; i < previousBloom.length; i++) {
+                previousBloom[i] = in.readLong();
+            }
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                long key;
+                long time;
+                try {
+                    key = in.readLong();
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break; // A torn last record is dropped
+                }
+                rotate(time);
+                remember(key, time);
+                dirty = true;
+            }
+        }
+    }
+
+    private void reset() {
+        Arrays.fill(index, 0);
+        head = 0;
+        size = 0;
+        evictedUntil = 0;
+        Arrays.fill(currentBloom, 0);
+        Arrays.fill(previousBloom, 0);
+        currentStartedAt = 0;
+    }
+
+    /**
+     * Starts a new Bloom filter once the current one covers a whole window,
+     * so together they always cover at least one window.
+     */
+    private void rotate(long nowMillis) {
+        if (windowMillis <= 0) {
+            return;
+        }
+        if (currentStartedAt == 0) {
+            currentStartedAt = nowMillis;
+        } else if (nowMillis - currentStartedAt >= windowMillis) {
+            long[] oldest = previousBloom;
+            previousBloom = currentBloom;
+            currentBloom = oldest;
+            Arrays.fill(currentBloom, 0);
+            if (nowMillis - currentStartedAt >= 2 * windowMillis) {
+                Arrays.fill(previousBloom, 0);
+            }
+            currentStartedAt = nowMillis;
+        }
+    }
+
+    private void remember(long key, long time) {
+        remember(key, time, true);
+    }
+
+    private void remember(long key, long time, boolean addToBloom) {
+        if (addToBloom) {
+            long step = Long.rotateLeft(key, 32) | 1;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (key + i * step) & BLOOM_MASK;
+                currentBloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        // A key sent again after its window moves to the newest position
+        int existing = find(key);
+        if (existing >= 0) {
+            removeSlot(existing);
+        }
+        if (size == EXACT_CAPACITY) {
+            evictedUntil = Math.max(evictedUntil, ringTimes[head]);
+            int slot = find(ringKeys[head]);
+            if (slot >= 0 && index[slot] == head + 1) {
+                removeSlot(slot);
+            }
+        } else {
+            size++;
+        }
+        ringKeys[head] = key;
+        ringTimes[head] = time;
+        int slot = home(key);
+        while (index[slot] != 0) {
+            slot = (slot + 1) & (INDEX_SLOTS - 1);
+        }
+        index[slot] = head + 1;
+        head = (head + 1) % EXACT_CAPACITY;
+    }
+
+    private boolean mightContain(long key) {
+        long step = Long.rotateLeft(key, 32) | 1;
+        boolean inCurrent = true;
+        boolean inPrevious = true;
+        for (int i = 0; i < BLOOM_HASHES && (inCurrent || inPrevious); i++) {
+            long bit = (key + i * step) & BLOOM_MASK;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            inCurrent &= (currentBloom[word] & mask) != 0;
+            inPrevious &= (previousBloom[word] & mask) != 0;
+        }
+        return inCurrent || inPrevious;
+    }
+
+    /**
+     * @return index slot holding the key, or -1
+     */
+    private int find(long key) {
+        int slot = home(key);
+        while (index[slot] != 0) {
+            if (ringKeys[index[slot] - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & (INDEX_SLOTS - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot and shifts later entries of its probe run back, so
+     * lookups never need tombstones.
+     */
+    private void removeSlot(int slot) {
+        index[slot] = 0;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & (INDEX_SLOTS - 1);
+            if (index[next] == 0) {
+                return;
+            }
+            int home = home(ringKeys[index[next] - 1]);
+            // Move the entry unless its home lies cyclically in (slot, next]
+            boolean stays = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+            if (!stays) {
+                index[slot] = index[next];
+                index[next] = 0;
+                slot = next;
+            }
+        }
+    }
+
+    private static int home(long key) {
+        return (int) (key >>> 40) & (INDEX_SLOTS - 1);
+    }
+
+    private static long hash(long hash, String value, int start) {
+        for (int i = start; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Length-terminated so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ (value.length() - start)) * FNV_PRIME;
+    }
+
+    /**
+     * MurmurHash3's finalizer, spreading FNV's weak high bits over the whole word.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,51 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Pipeline step between a command file reader and the queue: runs each
+ * message through the {@link SmsEncoder}, passing on the transliterated
+ * text and dropping messages over the segment budget if so configured.
+ * A broadcast line is reported once, not once per recipient.
+ */
+public class EncodingCommandReader implements CommandReader {
+    private final CommandReader source;
+    private final SmsEncoder encoder;
+    private ErrorListener errorListener;
+    private long lastReportedLine = -1;
+
+    private final ErrorListener oncePerLine = (lineNumber, reason) -> {
+        if (lineNumber != lastReportedLine && errorListener != null) {
+            lastReportedLine = lineNumber;
+            errorListener.onInvalidLine(lineNumber, reason);
+        }
+    };
+
+    public EncodingCommandReader(CommandReader source, SmsEncoder encoder) {
+        this.source = source;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+        source.setErrorListener(errorListener);
+    }
+
+    @Override
+    public SmsCommand next() throws IOException {
+        SmsCommand command;
+        while ((command = source.next()) != null) {
+            String message = encoder.prepare(command.getMessage(), command.getLineNumber(), oncePerLine);
+            if (message != null) {
+                return message.equals(command.getMessage()) ? command : command.withMessage(message);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
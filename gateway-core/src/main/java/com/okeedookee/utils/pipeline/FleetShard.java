@@ -0,0 +1,76 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * This device's part of a fleet of gateways sharing the same command
+ * files. Shards are numbered from 1; every device of a fleet is configured
+ * with the same count and its own number, and takes only the recipients
+ * (or, in a spool directory, the files) whose key hashes to its shard.
+ *
+ * The hash is 32-bit FNV-1a over the key's characters. Devices of a fleet
+ * may run different builds, so it must never change.
+ */
+public class FleetShard {
+    public static final FleetShard SINGLE = new FleetShard(1, 1);
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final int number;
+    private final int count;
+
+    /**
+     * @param number this device's shard, from 1 to {@code count}
+     * @param count  devices in the fleet, 1 if this device works alone
+     */
+    public FleetShard(int number, int count) {
+        this.count = Math.max(1, count);
+        this.number = Math.min(Math.max(1, number), this.count);
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isFleet() {
+        return count > 1;
+    }
+
+    /**
+     * @param key a recipient in E.164 or a spool file name
+     */
+    public boolean owns(String key) {
+        return count == 1 || shardOf(key, count) == number;
+    }
+
+    /**
+     * @return the shard, from 1 to {@code count}, that {@code key} belongs to
+     */
+    public static int shardOf(String key, int count) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return (int) ((hash & 0xffffffffL) % count) + 1;
+    }
+
+    /**
+     * @return the name of the marker a device of this shard claims a file with, e.g. "2-of-4"
+     */
+    public String getMarkerName() {
+        return markerName(number, count);
+    }
+
+    public static String markerName(int number, int count) {
+        return number + "-of-" + count;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + number + " of " + count;
+    }
+}
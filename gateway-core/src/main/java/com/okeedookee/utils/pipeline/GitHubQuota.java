@@ -0,0 +1,51 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * What GitHub last said about the token's request quota.
+ */
+public class GitHubQuota {
+    private final int remaining;
+    private final long resetAtMillis;
+    private final long retryAtMillis;
+    private final int requestsThisRun;
+
+    /**
+     * @param remaining       X-RateLimit-Remaining, or -1 if never seen
+     * @param resetAtMillis   X-RateLimit-Reset as epoch millis, or 0
+     * @param retryAtMillis   end of the last Retry-After wait as epoch millis, or 0
+     * @param requestsThisRun requests made by the current run
+     */
+    public GitHubQuota(int remaining, long resetAtMillis, long retryAtMillis, int requestsThisRun) {
+        this.remaining = remaining;
+        this.resetAtMillis = resetAtMillis;
+        this.retryAtMillis = retryAtMillis;
+        this.requestsThisRun = requestsThisRun;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public long getResetAtMillis() {
+        return resetAtMillis;
+    }
+
+    public long getRetryAtMillis() {
+        return retryAtMillis;
+    }
+
+    public int getRequestsThisRun() {
+        return requestsThisRun;
+    }
+
+    /**
+     * @return epoch millis before which GitHub should not be called, or 0
+     */
+    public long blockedUntilMillis() {
+        long blocked = retryAtMillis;
+        if (remaining == 0) {
+            blocked = Math.max(blocked, resetAtMillis);
+        }
+        return blocked;
+    }
+}
@@ -0,0 +1,92 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message body with {@code {placeholders}}, compiled once into literal
+ * and placeholder segments so filling it in is a single append pass.
+ * {@code {{} and {@code }}} stand for literal braces.
+ */
+public class MessageTemplate {
+    private final String text;
+    // literals[i] precedes names[i]; the last literal has no placeholder after it
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    private MessageTemplate(String text, String[] literals, String[] names) {
+        this.text = text;
+        this.literals = literals;
+        this.names = names;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder is not closed or has no name
+     */
+    public static MessageTemplate compile(String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '{' && i + 1 < text.length() && text.charAt(i + 1) == '{') {
+                literal.append('{');
+                i += 2;
+            } else if (c == '}' && i + 1 < text.length() && text.charAt(i + 1) == '}') {
+                literal.append('}');
+                i += 2;
+            } else if (c == '{') {
+                int close = text.indexOf('}', i + 1);
+                if (close < 0) {
+                    throw new IllegalArgumentException("unclosed '{' at position " + (i + 1));
+                }
+                String name = text.substring(i + 1, close).trim();
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("empty placeholder at position " + (i + 1));
+                }
+                literals.add(literal.toString());
+                names.add(name);
+                literal.setLength(0);
+                i = close + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(text, literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder has no value
+     */
+    public String expand(Map<String, String> values) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        StringBuilder out = new StringBuilder(literalLength + 16 * names.length);
+        for (int i = 0; i < names.length; i++) {
+            String value = values.get(names[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("no value for {" + names[i] + "}");
+            }
+            out.append(literals[i]).append(value);
+        }
+        return out.append(literals[names.length]).toString();
+    }
+
+    /**
+     * @return the template as written
+     */
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,353 @@
+package com.okeedookee.utils.pipeline;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming reader for NDJSON command files: one JSON object per line, e.g.
+ *
+ * <pre>
+ * {"phone": "+15551234567", "message": "Hello", "sim": 2, "priority": 5, "send_at": "2024-05-01T09:00:00Z", "id": "order-42"}
+ * </pre>
+ *
+ * {@code phone} and {@code message} are required ({@code to}, {@code body}
+ * and {@code text} are accepted as aliases). Optional fields: {@code sim}
+ * (subscription id), {@code priority} (higher is sent first) and
+ * {@code send_at} (epoch seconds or an ISO-8601 instant) and {@code id}
+ * (the producer's message id, used to recognise the message if it is sent
+ * again in another file). Unknown fields are ignored.
+ *
+ * Bulk files can avoid repeating themselves: {@code phone} may be an array
+ * of numbers (a broadcast line), and a template defined once with
+ *
+ * <pre>
+ * {"define": "reminder", "text": "Hi {name}, see you at {time}."}
+ * </pre>
+ *
+ * is filled in by later lines, also in later files of the same profile:
+ *
+ * <pre>
+ * {"phone": "+15551234567", "template": "reminder", "vars": {"name": "Ann", "time": "9:00"}}
+ * </pre>
+ *
+ * Lines are read through a fixed char buffer and parsed one at a time, so a
+ * malformed line is reported to the {@link ErrorListener} and skipped
+ * without losing the rest of the file. Blank lines are skipped.
+ */
+public class NdjsonCommandReader implements CommandReader {
+
+    /** Longest line we accept; guards memory against a file without line breaks. */
+    public static final int MAX_LINE_LENGTH = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean started;
+
+    private final StringBuilder line = new StringBuilder(256);
+    private long lineNumber;
+    private ErrorListener errorListener;
+
+    private final TemplateSet templates;
+    private final Broadcast broadcast = new Broadcast();
+    private final List<String> phones = new ArrayList<>();
+    private final Map<String, String> vars = new HashMap<>();
+
+    public NdjsonCommandReader(InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8), new TemplateSet());
+    }
+
+    /**
+     * @param templates templates to use and to add definitions to
+     */
+    public NdjsonCommandReader(InputStream in, TemplateSet templates) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8), templates);
+    }
+
+    public NdjsonCommandReader(Reader reader, TemplateSet templates) {
+        this.reader = reader;
+        this.templates = templates;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    @Override
+    public SmsCommand next() throws IOException {
+        SmsCommand recipient = broadcast.poll();
+        if (recipient != null) {
+            return recipient;
+        }
+        while (readLine()) {
+            if (line.length() > MAX_LINE_LENGTH) {
+                report(lineNumber, "line longer than " + MAX_LINE_LENGTH + " characters");
+                continue;
+            }
+            if (isBlank(line)) {
+                continue;
+            }
+            try {
+                SmsCommand command = parse(line.toString(), lineNumber);
+                if (command != null) {
+                    return command;
+                }
+            } catch (IOException e) {
+                // The line is parsed from memory, so this is malformed or truncated JSON, e.g. an EOFException
+                report(lineNumber, "invalid JSON");
+            } catch (IllegalStateException | NumberFormatException e) {
+                report(lineNumber, "invalid JSON: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * @return the command (of the first recipient), or null if the line
+     *         defines a template or is invalid (already reported)
+     */
+    private SmsCommand parse(String json, long recordLine) throws IOException {
+        String message = null;
+        int subscriptionId = SmsCommand.ANY_SIM;
+        int priority = 0;
+        long sendAtMillis = 0;
+        String clientId = null;
+        String define = null;
+        String templateName = null;
+        phones.clear();
+        vars.clear();
+
+        JsonReader in = new JsonReader(new StringReader(json));
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "phone":
+                case "phones":
+                case "to":
+                    readPhones(in);
+                    break;
+                case "message":
+                case "body":
+                case "text":
+                    message = in.nextString();
+                    break;
+                case "sim":
+                    subscriptionId = in.nextInt();
+                    break;
+                case "priority":
+                    priority = in.nextInt();
+                    break;
+                case "send_at":
+                    sendAtMillis = parseSendAt(in);
+                    if (sendAtMillis < 0) {
+                        report(recordLine, "invalid send_at");
+                        return null;
+                    }
+                    break;
+                case "id":
+                    clientId = in.nextString();
+                    break;
+                case "define":
+                    define = in.nextString();
+                    break;
+                case "template":
+                    templateName = in.nextString();
+                    break;
+                case "vars":
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String var = in.nextName();
+                        vars.put(var, in.nextString());
+                    }
+                    in.endObject();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        in.setLenient(true); // so trailing content is reported below instead of thrown as malformed
+        if (in.peek() != JsonToken.END_DOCUMENT) {
+            report(recordLine, "more than one value on the line");
+            return null;
+        }
+
+        if (define != null) {
+            if (message == null) {
+                report(recordLine, "template \"" + define + "\" has no text");
+                return null;
+            }
+            try {
+                templates.define(define, message);
+            } catch (IllegalArgumentException e) {
+                report(recordLine, "template \"" + define + "\": " + e.getMessage());
+            }
+            return null;
+        }
+        if (phones.isEmpty()) {
+            report(recordLine, "empty phone number");
+            return null;
+        }
+        if (templateName != null) {
+            MessageTemplate template = templates.get(templateName);
+            if (template == null) {
+                report(recordLine, "unknown template \"" + templateName + "\"");
+                return null;
+            }
+            try {
+                message = template.expand(vars);
+            } catch (IllegalArgumentException e) {
+                report(recordLine, "template \"" + templateName + "\": " + e.getMessage());
+                return null;
+            }
+        }
+        if (message == null || message.isEmpty()) {
+            report(recordLine, "empty message");
+            return null;
+        }
+        SmsCommand command = new SmsCommand(phones.get(0), message, recordLine, subscriptionId, priority,
+                sendAtMillis, clientId);
+        return phones.size() == 1 ? command : broadcast.start(command, phones);
+    }
+
+    /**
+     * Reads a phone number or an array of them into {@link #phones}, skipping blanks.
+     */
+    private void readPhones(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            addPhone(in.nextString());
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else {
+                addPhone(in.nextString());
+            }
+        }
+        in.endArray();
+    }
+
+    private void addPhone(String phone) {
+        phone = phone.trim();
+        if (!phone.isEmpty()) {
+            phones.add(phone);
+        }
+    }
+
+    /**
+     * @return epoch millis, or -1 if the value is not a time
+     */
+    private static long parseSendAt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NUMBER) {
+            return TimeUnit.SECONDS.toMillis(in.nextLong());
+        }
+        try {
+            return Instant.parse(in.nextString()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the next line into {@link #line}, keeping at most one char past
+     * {@link #MAX_LINE_LENGTH} so an overlong line is detected without
+     * buffering it.
+     *
+     * @return false at the end of the input
+     */
+    private boolean readLine() throws IOException {
+        line.setLength(0);
+        if (!started) {
+            started = true;
+            if (peek() == '\uFEFF') {
+                read();
+            }
+        }
+        int c = read();
+        if (c < 0) {
+            return false;
+        }
+        lineNumber++;
+        while (c >= 0 && c != '\n') {
+            if (c != '\r' && line.length() <= MAX_LINE_LENGTH) {
+                line.append((char) c);
+            }
+            c = read();
+        }
+        return true;
+    }
+
+    private void report(long recordLine, String reason) {
+        if (errorListener != null) {
+            errorListener.onInvalidLine(recordLine, reason);
+        }
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = reader.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            limit = 0;
+            position = 0;
+            return false;
+        }
+        limit = n;
+        position = 0;
+        return true;
+    }
+}
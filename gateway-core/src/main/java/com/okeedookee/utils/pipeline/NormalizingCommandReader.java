@@ -0,0 +1,42 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Pipeline step between a command file reader and the queue: passes on
+ * commands with their phone number in E.164 and reports lines whose number
+ * is not valid, as if the reader itself had rejected them.
+ */
+public class NormalizingCommandReader implements CommandReader {
+    private final CommandReader source;
+    private final PhoneNormalizer normalizer;
+    private ErrorListener errorListener;
+
+    public NormalizingCommandReader(CommandReader source, PhoneNormalizer normalizer) {
+        this.source = source;
+        this.normalizer = normalizer;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+        source.setErrorListener(errorListener);
+    }
+
+    @Override
+    public SmsCommand next() throws IOException {
+        SmsCommand command;
+        while ((command = source.next()) != null) {
+            String phone = normalizer.normalize(command.getPhone(), command.getLineNumber(), errorListener);
+            if (phone != null) {
+                return phone.equals(command.getPhone()) ? command : command.withPhone(phone);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,172 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns recipient numbers as written in command files into E.164
+ * ("+15551234567") before they are queued, so malformed numbers are
+ * dropped with a line number instead of failing at the radio.
+ *
+ * Spaces, dashes, dots, slashes and parentheses are ignored. A number
+ * starting with "+" or "00" (or "011" in North America) is taken as
+ * international; any other number gets the default country calling code,
+ * after its trunk prefix (a leading 0, or 1 in North America) is dropped.
+ * Numbers of up to {@link #SHORT_CODE_MAX_DIGITS} digits are short codes
+ * and kept as they are. Without a default country, national numbers are
+ * only cleaned up.
+ *
+ * Works on a reused buffer without regular expressions, and remembers the
+ * last {@link #CACHE_SIZE} results since bulk files repeat recipients.
+ * Shared by the concurrent downloads of a run, so it is synchronized.
+ */
+public class PhoneNormalizer {
+    public static final int SHORT_CODE_MAX_DIGITS = 6;
+    // Longest number E.164 allows, country code included, and a floor well below real numbers
+    private static final int MAX_DIGITS = 15;
+    private static final int MIN_DIGITS = 7;
+    private static final int CACHE_SIZE = 4096;
+
+    private static final String NANP = "1";
+    // Italy keeps its leading 0 after the country code
+    private static final String KEEPS_TRUNK_ZERO = "39";
+
+    private final String countryCode;
+    private final StringBuilder digits = new StringBuilder(24);
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private String lastError;
+
+    private int accepted;
+    private int normalized;
+    private int rejected;
+
+    /**
+     * @param countryCode default country calling code without "+", e.g. "44",
+     *                    or empty to leave national numbers as they are
+     */
+    public PhoneNormalizer(String countryCode) {
+        this.countryCode = countryCode != null ? countryCode.trim() : "";
+    }
+
+    /**
+     * @param lineNumber line the number came from, for the rejection report
+     * @return the number in E.164 (or a short code), or null if it is not a
+     *         valid number, in which case the reason went to {@code errorListener}
+     */
+    public synchronized String normalize(String raw, long lineNumber, CommandReader.ErrorListener errorListener) {
+        String result = cache.get(raw);
+        if (result == null) {
+            result = convert(raw);
+            if (result == null) {
+                rejected++;
+                if (errorListener != null) {
+                    errorListener.onInvalidLine(lineNumber, lastError);
+                }
+                return null;
+            }
+            cache.put(raw, result);
+        }
+        if (result.equals(raw)) {
+            accepted++;
+        } else {
+            normalized++;
+        }
+        return result;
+    }
+
+    /**
+     * @return e.g. "950 accepted, 40 normalized, 10 rejected"
+     */
+    public synchronized String describe() {
+        return accepted + " accepted, " + normalized + " normalized, " + rejected + " rejected";
+    }
+
+    /**
+     * @return how many numbers were looked at
+     */
+    public synchronized int getCount() {
+        return accepted + normalized + rejected;
+    }
+
+    private String convert(String raw) {
+        digits.setLength(0);
+        boolean plus = false;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            int digit = Character.digit(c, 10);
+            if (digit >= 0) {
+                digits.append((char) ('0' + digit));
+            } else if (c == '+' && digits.length() == 0 && !plus) {
+                plus = true;
+            } else if (!isSeparator(c)) {
+                return reject(raw, "unexpected '" + c + "'");
+            }
+        }
+        if (digits.length() == 0) {
+            return reject(raw, "no digits");
+        }
+
+        if (!plus) {
+            if (startsWith("00")) {
+                digits.delete(0, 2);
+            } else if (NANP.equals(countryCode) && startsWith("011")) {
+                digits.delete(0, 3);
+            } else if (digits.length() <= SHORT_CODE_MAX_DIGITS) {
+                return digits.toString();
+            } else if (countryCode.isEmpty()) {
+                return digits.length() <= MAX_DIGITS ? digits.toString() : reject(raw, "too long");
+            } else {
+                if (NANP.equals(countryCode)) {
+                    if (digits.length() == 11 && digits.charAt(0) == '1') {
+                        digits.deleteCharAt(0);
+                    }
+                } else if (digits.charAt(0) == '0' && !KEEPS_TRUNK_ZERO.equals(countryCode)) {
+                    digits.deleteCharAt(0);
+                }
+                digits.insert(0, countryCode);
+            }
+        }
+
+        if (digits.length() == 0 || digits.charAt(0) == '0') {
+            return reject(raw, "no country code");
+        }
+        if (digits.length() < MIN_DIGITS) {
+            return reject(raw, "too short");
+        }
+        if (digits.length() > MAX_DIGITS) {
+            return reject(raw, "too long");
+        }
+        // North American numbers have 10 digits and an area code starting with 2-9
+        if (digits.charAt(0) == '1' && (digits.length() != 11 || digits.charAt(1) < '2')) {
+            return reject(raw, "not a North American number");
+        }
+        digits.insert(0, '+');
+        return digits.toString();
+    }
+
+    private String reject(String raw, String reason) {
+        lastError = "invalid phone number \"" + raw + "\" (" + reason + ")";
+        return null;
+    }
+
+    private boolean startsWith(String prefix) {
+        if (digits.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (digits.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '-' || c == '.' || c == '/' || c == '(' || c == ')' || Character.isSpaceChar(c);
+    }
+}
@@ -0,0 +1,134 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the delay until the next check.
+ *
+ * New commands pull the delay down to the floor; idle runs double it back up
+ * to the configured interval and failing runs keep doubling past it, up to
+ * {@link #MAX_ERROR_BACKOFF_MILLIS}. The result is then stretched so the
+ * remaining GitHub quota lasts until its reset (the quota is per token and
+ * may be shared by several devices), never undercuts a Retry-After, and gets
+ * +/-10% jitter so devices that started together drift apart.
+ */
+public class PollingPolicy {
+
+    public enum Outcome {
+        /** A new command file was queued. */
+        WORK,
+        /** Queued messages are still waiting to be sent. */
+        BACKLOG,
+        /** Nothing new. */
+        IDLE,
+        /** GitHub could not be checked. */
+        ERROR
+    }
+
+    /**
+     * A chosen delay and why it was chosen.
+     */
+    public static class Decision {
+        private final long delayMillis;
+        private final String reason;
+
+        public Decision(long delayMillis, String reason) {
+            this.delayMillis = delayMillis;
+            this.reason = reason;
+        }
+
+        public long getDelayMillis() {
+            return delayMillis;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    public static final long MAX_ERROR_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(2);
+    private static final double JITTER = 0.1;
+    // Keep a few requests for manual runs and other devices
+    private static final int QUOTA_RESERVE = 10;
+
+    private final long floorMillis;
+    private final long intervalMillis;
+    private final Random random;
+
+    /**
+     * @param floorMillis    shortest delay while commands keep arriving
+     * @param intervalMillis longest delay while idle
+     */
+    public PollingPolicy(long floorMillis, long intervalMillis, Random random) {
+        this.floorMillis = Math.min(floorMillis, intervalMillis);
+        this.intervalMillis = intervalMillis;
+        this.random = random;
+    }
+
+    /**
+     * @param streak number of consecutive runs with this outcome, including this one
+     */
+    public Decision decide(Outcome outcome, int streak, GitHubQuota quota, long nowMillis) {
+        long delay;
+        String reason;
+        switch (outcome) {
+            case WORK:
+                delay = floorMillis;
+                reason = "new commands";
+                break;
+            case BACKLOG:
+                delay = floorMillis;
+                reason = "queue backlog";
+                break;
+            case ERROR:
+                delay = Math.min(Math.max(intervalMillis, MAX_ERROR_BACKOFF_MILLIS),
+                        shift(intervalMillis, streak - 1));
+                reason = "error x" + streak;
+                break;
+            case IDLE:
+            default:
+                delay = Math.min(intervalMillis, shift(floorMillis, streak));
+                reason = "idle x" + streak;
+                break;
+        }
+        delay = jitter(delay);
+
+        if (quota != null && outcome != Outcome.BACKLOG) {
+            // A backlog run sends from the local queue and skips GitHub while blocked
+            long retryIn = quota.getRetryAtMillis() - nowMillis;
+            if (retryIn > delay) {
+                delay = retryIn + jitterUp(retryIn);
+                reason += ", Retry-After";
+            }
+            long resetIn = quota.getResetAtMillis() - nowMillis;
+            if (quota.getRemaining() >= 0 && resetIn > 0) {
+                int usable = quota.getRemaining() - QUOTA_RESERVE;
+                long spacing = usable <= 0
+                        ? resetIn
+                        : resetIn * Math.max(1, quota.getRequestsThisRun()) / usable;
+                if (spacing > delay) {
+                    delay = spacing + jitterUp(spacing);
+                    reason += ", rate limit " + quota.getRemaining() + " left, reset in "
+                            + TimeUnit.MILLISECONDS.toMinutes(resetIn) + "m";
+                }
+            }
+        }
+        return new Decision(delay, reason);
+    }
+
+    private static long shift(long value, int times) {
+        if (times <= 0) {
+            return value;
+        }
+        return times >= Long.numberOfLeadingZeros(value) - 1 ? Long.MAX_VALUE / 2 : value << times;
+    }
+
+    private long jitter(long delay) {
+        return (long) (delay * (1 + (random.nextDouble() * 2 - 1) * JITTER));
+    }
+
+    private long jitterUp(long delay) {
+        return (long) (delay * random.nextDouble() * JITTER);
+    }
+}
@@ -0,0 +1,62 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * Send limits for one SIM.
+ */
+public class RateLimitConfig {
+    public static final double DEFAULT_MESSAGES_PER_SECOND = 1.0;
+    public static final int DEFAULT_SEGMENTS_PER_MINUTE = 60;
+    public static final int DEFAULT_WINDOW_MAX_MESSAGES = 0;
+
+    /** Length of the rolling window Android's SMS guard uses. */
+    public static final long WINDOW_MILLIS = 30L * 60 * 1000;
+
+    private final double messagesPerSecond;
+    private final int segmentsPerMinute;
+    private final int windowMaxMessages;
+
+    /**
+     * @param messagesPerSecond sustained message rate
+     * @param segmentsPerMinute sustained segment (multipart part) rate
+     * @param windowMaxMessages messages allowed in any 30-minute window, 0 for no limit
+     */
+    public RateLimitConfig(double messagesPerSecond, int segmentsPerMinute, int windowMaxMessages) {
+        this.messagesPerSecond = messagesPerSecond > 0 ? messagesPerSecond : DEFAULT_MESSAGES_PER_SECOND;
+        this.segmentsPerMinute = segmentsPerMinute > 0 ? segmentsPerMinute : DEFAULT_SEGMENTS_PER_MINUTE;
+        this.windowMaxMessages = Math.max(0, windowMaxMessages);
+    }
+
+    public static RateLimitConfig defaults() {
+        return new RateLimitConfig(DEFAULT_MESSAGES_PER_SECOND, DEFAULT_SEGMENTS_PER_MINUTE,
+                DEFAULT_WINDOW_MAX_MESSAGES);
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public int getSegmentsPerMinute() {
+        return segmentsPerMinute;
+    }
+
+    public int getWindowMaxMessages() {
+        return windowMaxMessages;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RateLimitConfig)) {
+            return false;
+        }
+        RateLimitConfig other = (RateLimitConfig) o;
+        return Double.compare(messagesPerSecond, other.messagesPerSecond) == 0
+                && segmentsPerMinute == other.segmentsPerMinute
+                && windowMaxMessages == other.windowMaxMessages;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(messagesPerSecond);
+        return 31 * (31 * (int) (bits ^ (bits >>> 32)) + segmentsPerMinute) + windowMaxMessages;
+    }
+}
@@ -0,0 +1,254 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Paces outgoing SMS for one SIM so carriers and Android's bulk-SMS guard do
+ * not start throttling or silently dropping messages.
+ *
+ * A send must fit three limits at once: a messages/second token bucket, a
+ * segments/minute token bucket (multipart messages cost one token per part)
+ * and an optional cap on messages in any rolling 30-minute window. When a
+ * send reports {@link #RESULT_ERROR_LIMIT_EXCEEDED} the limiter pauses with an
+ * exponentially growing delay and halves its rates per backoff level;
+ * sustained success walks the level back down.
+ *
+ * One instance per subscription id is shared by the whole process, see
+ * {@link #forSubscription}. Profiles with their own send cap get a separate
+ * instance from {@link #forProfile}.
+ */
+public class SendRateLimiter {
+    // Mirrors of Activity.RESULT_OK and SmsManager.RESULT_ERROR_LIMIT_EXCEEDED
+    public static final int RESULT_OK = -1;
+    public static final int RESULT_ERROR_RADIO_OFF = 2;
+    public static final int RESULT_ERROR_NO_SERVICE = 4;
+    public static final int RESULT_ERROR_LIMIT_EXCEEDED = 5;
+
+    private static final long BASE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(15);
+    private static final int MAX_BACKOFF_LEVEL = 5;
+    private static final int SUCCESSES_PER_RECOVERY_STEP = 20;
+    // How long a SIM without radio or service is avoided when others are available
+    private static final long UNAVAILABLE_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private static final Map<Integer, SendRateLimiter> perSubscription = new HashMap<>();
+    private static final Map<String, SendRateLimiter> perProfile = new HashMap<>();
+
+    private final LongSupplier clock;
+    private RateLimitConfig config;
+    private TokenBucket messageBucket;
+    private TokenBucket segmentBucket;
+    private SlidingWindowLimiter window;
+
+    private int backoffLevel;
+    private long pausedUntilNanos;
+    private long unavailableUntilNanos;
+    private int successesSinceBackoff;
+
+    private long sends;
+    private long throttledSends;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long limitErrors;
+    private long lastWaitNanos;
+
+    /**
+     * @return the process-wide limiter for a SIM, reconfigured if {@code config} changed
+     */
+    public static synchronized SendRateLimiter forSubscription(int subscriptionId, RateLimitConfig config) {
+        SendRateLimiter limiter = perSubscription.get(subscriptionId);
+        if (limiter == null) {
+            limiter = new SendRateLimiter(config, System::nanoTime);
+            perSubscription.put(subscriptionId, limiter);
+        } else {
+            limiter.configure(config);
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the process-wide limiter for a SIM, or null if nothing was sent on it yet
+     */
+    public static synchronized SendRateLimiter existingForSubscription(int subscriptionId) {
+        return perSubscription.get(subscriptionId);
+    }
+
+    /**
+     * @return the process-wide limiter for a profile's messages/minute cap, or
+     *         null if the profile has none
+     */
+    public static synchronized SendRateLimiter forProfile(String profileId, int messagesPerMinute) {
+        if (messagesPerMinute <= 0) {
+            perProfile.remove(profileId);
+            return null;
+        }
+        // Only the message rate matters here; the SIM's limiter paces the segments
+        RateLimitConfig config = new RateLimitConfig(messagesPerMinute / 60d, Integer.MAX_VALUE, 0);
+        SendRateLimiter limiter = perProfile.get(profileId);
+        if (limiter == null) {
+            limiter = new SendRateLimiter(config, System::nanoTime);
+            perProfile.put(profileId, limiter);
+        } else {
+            limiter.configure(config);
+        }
+        return limiter;
+    }
+
+    SendRateLimiter(RateLimitConfig config, LongSupplier clock) {
+        this.clock = clock;
+        pausedUntilNanos = clock.getAsLong();
+        unavailableUntilNanos = pausedUntilNanos;
+        configure(config);
+    }
+
+    public synchronized void configure(RateLimitConfig newConfig) {
+        if (newConfig.equals(config)) {
+            return;
+        }
+        config = newConfig;
+        long now = clock.getAsLong();
+        double factor = rateFactor();
+        messageBucket = new TokenBucket(Math.max(1, config.getMessagesPerSecond()),
+                config.getMessagesPerSecond() * factor, now);
+        segmentBucket = new TokenBucket(Math.max(1, config.getSegmentsPerMinute() / 6d),
+                config.getSegmentsPerMinute() / 60d * factor, now);
+        window = config.getWindowMaxMessages() > 0
+                ? new SlidingWindowLimiter(config.getWindowMaxMessages(),
+                        TimeUnit.MILLISECONDS.toNanos(RateLimitConfig.WINDOW_MILLIS))
+                : null;
+    }
+
+    /**
+     * Reserves capacity for one message of {@code segments} parts without waiting.
+     *
+     * @return nanoseconds the caller must wait before sending
+     */
+    public synchronized long reserve(int segments) {
+        long now = clock.getAsLong();
+        long wait = Math.max(0, pausedUntilNanos - now);
+        wait = Math.max(wait, messageBucket.reserve(1, now));
+        wait = Math.max(wait, segmentBucket.reserve(Math.max(1, segments), now));
+        if (window != null) {
+            wait += window.reserve(now + wait);
+        }
+
+        sends++;
+        lastWaitNanos = wait;
+        if (wait > 0) {
+            throttledSends++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Takes back the last {@link #reserve} of {@code segments} parts when the
+     * message is not sent after all, e.g. because the wait was cut short.
+     * Must follow that reservation with no other one in between.
+     */
+    public synchronized void cancel(int segments) {
+        long now = clock.getAsLong();
+        messageBucket.refund(1, now);
+        segmentBucket.refund(Math.max(1, segments), now);
+        if (window != null) {
+            window.cancelLast();
+        }
+        sends--;
+        if (lastWaitNanos > 0) {
+            throttledSends--;
+            totalWaitNanos -= lastWaitNanos;
+        }
+        lastWaitNanos = 0;
+    }
+
+    /**
+     * @return nanoseconds {@link #reserve} would currently ask to wait, without reserving
+     */
+    public synchronized long peekWait(int segments) {
+        long now = clock.getAsLong();
+        long wait = Math.max(0, pausedUntilNanos - now);
+        wait = Math.max(wait, messageBucket.peek(1, now));
+        wait = Math.max(wait, segmentBucket.peek(Math.max(1, segments), now));
+        if (window != null) {
+            wait += window.peek(now + wait);
+        }
+        return wait;
+    }
+
+    /**
+     * @return false while the SIM is backing off after a limit error or had no radio or service
+     */
+    public synchronized boolean isAvailable() {
+        long now = clock.getAsLong();
+        return now - pausedUntilNanos >= 0 && now - unavailableUntilNanos >= 0;
+    }
+
+    /**
+     * Reserves capacity and sleeps until the message may be sent.
+     *
+     * @return milliseconds waited
+     */
+    public long acquire(int segments) throws InterruptedException {
+        long wait = reserve(segments);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Feeds back the result code of a sent message (or part).
+     */
+    public synchronized void onSendResult(int resultCode) {
+        if (resultCode == RESULT_ERROR_LIMIT_EXCEEDED) {
+            limitErrors++;
+            successesSinceBackoff = 0;
+            backoffLevel = Math.min(MAX_BACKOFF_LEVEL, backoffLevel + 1);
+            long pause = Math.min(MAX_BACKOFF_NANOS, BASE_BACKOFF_NANOS << (backoffLevel - 1));
+            pausedUntilNanos = Math.max(pausedUntilNanos, clock.getAsLong() + pause);
+            applyRates();
+        } else if (resultCode == RESULT_ERROR_RADIO_OFF || resultCode == RESULT_ERROR_NO_SERVICE) {
+            unavailableUntilNanos = clock.getAsLong() + UNAVAILABLE_NANOS;
+        } else if (resultCode == RESULT_OK && backoffLevel > 0
+                && ++successesSinceBackoff >= SUCCESSES_PER_RECOVERY_STEP) {
+            successesSinceBackoff = 0;
+            backoffLevel--;
+            applyRates();
+        }
+    }
+
+    public synchronized int getBackoffLevel() {
+        return backoffLevel;
+    }
+
+    /**
+     * @return a one-line summary of the counters since the last call, which resets them
+     */
+    public synchronized String describeAndReset() {
+        String summary = sends + " sends, " + throttledSends + " throttled, waited "
+                + TimeUnit.NANOSECONDS.toMillis(totalWaitNanos) + "ms total / "
+                + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + "ms max, "
+                + limitErrors + " limit errors, backoff level " + backoffLevel;
+        sends = 0;
+        throttledSends = 0;
+        totalWaitNanos = 0;
+        maxWaitNanos = 0;
+        limitErrors = 0;
+        return summary;
+    }
+
+    private double rateFactor() {
+        return 1d / (1 << backoffLevel);
+    }
+
+    private void applyRates() {
+        long now = clock.getAsLong();
+        double factor = rateFactor();
+        messageBucket.setRate(config.getMessagesPerSecond() * factor, now);
+        segmentBucket.setRate(config.getSegmentsPerMinute() / 60d * factor, now);
+    }
+}
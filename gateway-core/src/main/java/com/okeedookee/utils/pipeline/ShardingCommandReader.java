@@ -0,0 +1,48 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Pipeline step for fleet mode: passes on only the commands whose recipient
+ * belongs to this device's shard. Goes after {@link NormalizingCommandReader},
+ * so a number written in different ways still lands on the same device.
+ */
+public class ShardingCommandReader implements CommandReader {
+    private final CommandReader source;
+    private final FleetShard shard;
+    private int skipped;
+
+    public ShardingCommandReader(CommandReader source, FleetShard shard) {
+        this.source = source;
+        this.shard = shard;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener errorListener) {
+        source.setErrorListener(errorListener);
+    }
+
+    @Override
+    public SmsCommand next() throws IOException {
+        SmsCommand command;
+        while ((command = source.next()) != null) {
+            if (shard.owns(command.getPhone())) {
+                return command;
+            }
+            skipped++;
+        }
+        return null;
+    }
+
+    /**
+     * @return commands left to the other shards so far
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,221 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads sends over the active SIMs, each paced by its own
+ * {@link SendRateLimiter}.
+ *
+ * SIMs that used up their daily quota are never picked. SIMs that are backing
+ * off after a limit error or lost radio/service are skipped while another SIM
+ * is available, which makes every strategy fail over on its own. Not
+ * thread-safe; one dispatcher serves one drain loop.
+ */
+public class SimDispatcher {
+    public static final int NO_SIM = -1;
+
+    public enum Strategy {
+        /** Each SIM in turn. */
+        ROUND_ROBIN,
+        /** The SIM that can send soonest. */
+        LEAST_LOADED,
+        /** The SIM with the most daily quota left. */
+        QUOTA,
+        /** Always the same SIM for a recipient, so replies and threads stay on one number. */
+        STICKY
+    }
+
+    private static final class Sim {
+        final int subscriptionId;
+        final SendRateLimiter limiter;
+        long usedToday;
+        long submitted;
+
+        Sim(int subscriptionId, SendRateLimiter limiter, long usedToday) {
+            this.subscriptionId = subscriptionId;
+            this.limiter = limiter;
+            this.usedToday = usedToday;
+        }
+    }
+
+    private final Strategy strategy;
+    private final long dailyQuota;
+    private final List<Sim> sims = new ArrayList<>();
+    private int cursor;
+
+    /**
+     * @param dailyQuota messages per SIM per day, 0 for no limit
+     */
+    public SimDispatcher(Strategy strategy, long dailyQuota) {
+        this.strategy = strategy;
+        this.dailyQuota = dailyQuota;
+    }
+
+    /**
+     * Adds a SIM. Add them in a stable order (e.g. by slot) so sticky
+     * assignments survive across runs.
+     */
+    public void addSim(int subscriptionId, SendRateLimiter limiter, long usedToday) {
+        sims.add(new Sim(subscriptionId, limiter, usedToday));
+    }
+
+    /**
+     * Returns true if a receipt with this result code means the message
+     * never left the device, so it can safely be tried again on another SIM.
+     */
+    public static boolean isFailoverResult(int resultCode) {
+        return resultCode == SendRateLimiter.RESULT_ERROR_RADIO_OFF
+                || resultCode == SendRateLimiter.RESULT_ERROR_NO_SERVICE
+                || resultCode == SendRateLimiter.RESULT_ERROR_LIMIT_EXCEEDED;
+    }
+
+    /**
+     * @return subscription id to send on, or {@link #NO_SIM} if every SIM used up its quota
+     */
+    public int select(String phone, int segments) {
+        List<Sim> candidates = new ArrayList<>(sims.size());
+        for (Sim sim : sims) {
+            if (dailyQuota <= 0 || sim.usedToday < dailyQuota) {
+                candidates.add(sim);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return NO_SIM;
+        }
+        List<Sim> available = new ArrayList<>(candidates.size());
+        for (Sim sim : candidates) {
+            if (sim.limiter.isAvailable()) {
+                available.add(sim);
+            }
+        }
+        if (available.isEmpty()) {
+            // All of them are struggling; the least loaded one is the best bet
+            available = candidates;
+        }
+
+        Sim chosen;
+        switch (strategy) {
+            case LEAST_LOADED:
+                chosen = leastLoaded(available, segments);
+                break;
+            case QUOTA:
+                chosen = mostQuotaLeft(available);
+                break;
+            case STICKY:
+                chosen = sticky(available, phone);
+                break;
+            case ROUND_ROBIN:
+            default:
+                chosen = available.get(Math.floorMod(cursor++, available.size()));
+                break;
+        }
+        return chosen.subscriptionId;
+    }
+
+    /**
+     * Like {@link #select(String, int)}, but keeps to {@code pinnedSubscriptionId}
+     * while it is an active SIM.
+     *
+     * @param pinnedSubscriptionId SIM to send on, or {@link #NO_SIM} for any
+     * @return subscription id to send on, or {@link #NO_SIM} if the pinned SIM
+     *         (or, unpinned, every SIM) used up its quota
+     */
+    public int select(String phone, int segments, int pinnedSubscriptionId) {
+        if (pinnedSubscriptionId != NO_SIM) {
+            for (Sim sim : sims) {
+                if (sim.subscriptionId == pinnedSubscriptionId) {
+                    return dailyQuota <= 0 || sim.usedToday < dailyQuota ? pinnedSubscriptionId : NO_SIM;
+                }
+            }
+        }
+        return select(phone, segments);
+    }
+
+    public SendRateLimiter limiterFor(int subscriptionId) {
+        return find(subscriptionId).limiter;
+    }
+
+    public void onSubmitted(int subscriptionId) {
+        Sim sim = find(subscriptionId);
+        sim.usedToday++;
+        sim.submitted++;
+    }
+
+    /**
+     * @return messages submitted on a SIM today, including earlier runs
+     */
+    public long getUsedToday(int subscriptionId) {
+        return find(subscriptionId).usedToday;
+    }
+
+    public List<Integer> getSubscriptionIds() {
+        List<Integer> ids = new ArrayList<>(sims.size());
+        for (Sim sim : sims) {
+            ids.add(sim.subscriptionId);
+        }
+        return ids;
+    }
+
+    /**
+     * @return per-SIM submissions and pacing since the last call, which resets them
+     */
+    public String describeAndReset() {
+        StringBuilder summary = new StringBuilder();
+        for (Sim sim : sims) {
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append("SIM ").append(sim.subscriptionId).append(": ").append(sim.submitted)
+                    .append(" submitted (").append(sim.usedToday).append(" today), ")
+                    .append(sim.limiter.describeAndReset());
+            sim.submitted = 0;
+        }
+        return summary.toString();
+    }
+
+    private Sim leastLoaded(List<Sim> available, int segments) {
+        Sim best = null;
+        long bestWait = Long.MAX_VALUE;
+        for (Sim sim : available) {
+            long wait = sim.limiter.peekWait(segments);
+            if (best == null || wait < bestWait || (wait == bestWait && sim.usedToday < best.usedToday)) {
+                best = sim;
+                bestWait = wait;
+            }
+        }
+        return best;
+    }
+
+    private Sim mostQuotaLeft(List<Sim> available) {
+        // Without a quota this balances the day's totals
+        Sim best = available.get(0);
+        for (Sim sim : available) {
+            if (sim.usedToday < best.usedToday) {
+                best = sim;
+            }
+        }
+        return best;
+    }
+
+    private Sim sticky(List<Sim> available, String phone) {
+        // Hash over all SIMs so an assignment only moves while its SIM is unusable
+        int home = Math.floorMod(phone.hashCode(), sims.size());
+        for (int i = 0; i < sims.size(); i++) {
+            Sim sim = sims.get((home + i) % sims.size());
+            if (available.contains(sim)) {
+                return sim;
+            }
+        }
+        return available.get(0);
+    }
+
+    private Sim find(int subscriptionId) {
+        for (Sim sim : sims) {
+            if (sim.subscriptionId == subscriptionId) {
+                return sim;
+            }
+        }
+        throw new IllegalArgumentException("Unknown subscription " + subscriptionId);
+    }
+}
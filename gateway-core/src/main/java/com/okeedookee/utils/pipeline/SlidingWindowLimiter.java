@@ -0,0 +1,59 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * Allows at most {@code maxEvents} events in any rolling window, the way
+ * Android's outgoing SMS guard counts messages. Keeps the timestamps of the
+ * last {@code maxEvents} events in a ring. Not thread-safe.
+ */
+class SlidingWindowLimiter {
+    private final long[] times;
+    private final long windowNanos;
+    private int next;
+    private int count;
+    // What the last reservation replaced, so it can be taken back
+    private long replacedTime;
+    private boolean lastGrew;
+
+    SlidingWindowLimiter(int maxEvents, long windowNanos) {
+        this.times = new long[maxEvents];
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Records an event at the earliest allowed time.
+     *
+     * @return nanoseconds to wait before the event may happen
+     */
+    long reserve(long nowNanos) {
+        long wait = 0;
+        lastGrew = count < times.length;
+        if (lastGrew) {
+            count++;
+        } else {
+            long oldest = times[next];
+            wait = Math.max(0, oldest + windowNanos - nowNanos);
+        }
+        replacedTime = times[next];
+        times[next] = nowNanos + wait;
+        next = (next + 1) % times.length;
+        return wait;
+    }
+
+    /**
+     * Takes back the most recent {@link #reserve}, for an event that did not happen.
+     */
+    void cancelLast() {
+        next = (next + times.length - 1) % times.length;
+        times[next] = replacedTime;
+        if (lastGrew) {
+            count--;
+        }
+    }
+
+    /**
+     * @return nanoseconds an event would wait, without recording it
+     */
+    long peek(long nowNanos) {
+        return count == times.length ? Math.max(0, times[next] + windowNanos - nowNanos) : 0;
+    }
+}
@@ -0,0 +1,113 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * One outgoing SMS as read from a command file.
+ */
+public class SmsCommand {
+    /** No SIM requested; the profile's SIM or the dispatcher decides. */
+    public static final int ANY_SIM = -1;
+
+    private final String phone;
+    private final String message;
+    private final long lineNumber;
+    private final int subscriptionId;
+    private final int priority;
+    private final long sendAtMillis;
+    private final String clientId;
+    private final int recipientIndex;
+
+    public SmsCommand(String phone, String message, long lineNumber) {
+        this(phone, message, lineNumber, ANY_SIM, 0, 0, null);
+    }
+
+    public SmsCommand(String phone, String message, long lineNumber, int subscriptionId, int priority,
+            long sendAtMillis, String clientId) {
+        this(phone, message, lineNumber, subscriptionId, priority, sendAtMillis, clientId, 0);
+    }
+
+    private SmsCommand(String phone, String message, long lineNumber, int subscriptionId, int priority,
+            long sendAtMillis, String clientId, int recipientIndex) {
+        this.phone = phone;
+        this.message = message;
+        this.lineNumber = lineNumber;
+        this.subscriptionId = subscriptionId;
+        this.priority = priority;
+        this.sendAtMillis = sendAtMillis;
+        this.clientId = clientId;
+        this.recipientIndex = recipientIndex;
+    }
+
+    /**
+     * @return a copy of this command sent to {@code phone} instead
+     */
+    public SmsCommand withPhone(String phone) {
+        return new SmsCommand(phone, message, lineNumber, subscriptionId, priority, sendAtMillis, clientId,
+                recipientIndex);
+    }
+
+    /**
+     * @return a copy of this command with {@code message} as its text
+     */
+    public SmsCommand withMessage(String message) {
+        return new SmsCommand(phone, message, lineNumber, subscriptionId, priority, sendAtMillis, clientId,
+                recipientIndex);
+    }
+
+    /**
+     * @return a copy of this command for one recipient of a broadcast line
+     */
+    public SmsCommand forRecipient(String phone, int recipientIndex) {
+        return new SmsCommand(phone, message, lineNumber, subscriptionId, priority, sendAtMillis, clientId,
+                recipientIndex);
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the 1-based line of the command file on which this record starts
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return SIM subscription id to send on, or {@link #ANY_SIM}
+     */
+    public int getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * @return send order within a profile; higher goes first, 0 by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return earliest time to send, 0 for right away
+     */
+    public long getSendAtMillis() {
+        return sendAtMillis;
+    }
+
+    /**
+     * @return the producer's id for this message, or null
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return position of the recipient on a broadcast line, 0 for a single recipient
+     */
+    public int getRecipientIndex() {
+        return recipientIndex;
+    }
+}
@@ -0,0 +1,315 @@
+package com.okeedookee.utils.pipeline;
+
+import java.text.Normalizer;
+
+/**
+ * Works out how many SMS segments a message takes before it is queued, and
+ * optionally rewrites lookalike characters so a message stays in GSM-7.
+ *
+ * A message fits in GSM-7 if every character is in the GSM 03.38 default
+ * alphabet or its extension table (which costs two septets): 160 septets in
+ * one segment, 153 per segment once split. Any other character makes the
+ * whole message UCS-2: 70 UTF-16 units, 67 per segment once split. Counting
+ * is a table lookup per character and never allocates.
+ *
+ * Transliteration only replaces the message when the result is GSM-7;
+ * rewriting quotes in a message that keeps an emoji would change the text
+ * without saving a segment. Shared by the concurrent downloads of a run, so
+ * the counters are synchronized.
+ */
+public class SmsEncoder {
+
+    public enum Transliteration {
+        OFF,
+        /** Smart quotes, dashes, ellipses and unusual spaces. */
+        PUNCTUATION,
+        /** Punctuation, and accented letters outside GSM-7 lose their accent. */
+        ALL
+    }
+
+    private static final int GSM7_SINGLE = 160;
+    private static final int GSM7_MULTI = 153;
+    private static final int UCS2_SINGLE = 70;
+    private static final int UCS2_MULTI = 67;
+
+    // GSM 03.38 default alphabet in table order
+    private static final String GSM7_BASIC = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5"
+            + "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9"
+            + " !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+            + "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7"
+            + "\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|\u20AC";
+    private static final char EURO = '\u20AC';
+
+    // Septets per char below TABLE_SIZE: 1 basic, 2 extension, 0 not in GSM-7
+    private static final int TABLE_SIZE = 0x400;
+    private static final byte[] SEPTETS = new byte[TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < GSM7_BASIC.length(); i++) {
+            SEPTETS[GSM7_BASIC.charAt(i)] = 1;
+        }
+        for (int i = 0; i < GSM7_EXTENSION.length(); i++) {
+            char c = GSM7_EXTENSION.charAt(i);
+            if (c < TABLE_SIZE) {
+                SEPTETS[c] = 2;
+            }
+        }
+    }
+
+    private final Transliteration transliteration;
+    private final int maxSegments;
+    private final boolean rejectOverBudget;
+
+    private int messages;
+    private long segments;
+    private int ucs2;
+    private int transliterated;
+    private int overBudget;
+
+    /**
+     * @param maxSegments      segment budget per message, 0 for none
+     * @param rejectOverBudget whether a message over the budget is dropped
+     *                         rather than queued with a warning
+     */
+    public SmsEncoder(Transliteration transliteration, int maxSegments, boolean rejectOverBudget) {
+        this.transliteration = transliteration;
+        this.maxSegments = maxSegments;
+        this.rejectOverBudget = rejectOverBudget;
+    }
+
+    /**
+     * Transliterates a message if the policy allows and checks it against the
+     * segment budget.
+     *
+     * @param lineNumber line the message came from, for reports
+     * @return the message to queue, or null if it is over the budget and
+     *         rejected; warnings and rejections go to {@code errorListener}
+     */
+    public String prepare(String message, long lineNumber, CommandReader.ErrorListener errorListener) {
+        String prepared = message;
+        boolean rewritten = false;
+        if (transliteration != Transliteration.OFF && !isGsm7(message)) {
+            String candidate = transliterate(message, transliteration == Transliteration.ALL);
+            if (candidate != message && isGsm7(candidate)) {
+                prepared = candidate;
+                rewritten = true;
+            }
+        }
+        int count = countSegments(prepared);
+        boolean gsm7 = isGsm7(prepared);
+
+        boolean over = maxSegments > 0 && count > maxSegments;
+        synchronized (this) {
+            if (rewritten) {
+                transliterated++;
+            }
+            if (over) {
+                overBudget++;
+            }
+            if (over && rejectOverBudget) {
+                return report(errorListener, lineNumber, count, gsm7, "skipping", null);
+            }
+            messages++;
+            segments += count;
+            if (!gsm7) {
+                ucs2++;
+            }
+        }
+        return over ? report(errorListener, lineNumber, count, gsm7, "queued anyway", prepared) : prepared;
+    }
+
+    /**
+     * @return e.g. "950 messages in 1020 segments (12 UCS-2, 30 transliterated, 2 over budget)"
+     */
+    public synchronized String describe() {
+        return messages + " messages in " + segments + " segments (" + ucs2 + " UCS-2, " + transliterated
+                + " transliterated, " + overBudget + " over budget)";
+    }
+
+    public synchronized int getMessages() {
+        return messages;
+    }
+
+    private String report(CommandReader.ErrorListener errorListener, long lineNumber, int count, boolean gsm7,
+            String action, String result) {
+        if (errorListener != null) {
+            errorListener.onInvalidLine(lineNumber, "message takes " + count + " segments"
+                    + (gsm7 ? "" : " (UCS-2)") + ", over the limit of " + maxSegments + "; " + action);
+        }
+        return result;
+    }
+
+    public static boolean isGsm7(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (septets(text.charAt(i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of segments the message is sent in
+     */
+    public static int countSegments(CharSequence text) {
+        int length = 0;
+        boolean gsm7 = true;
+        for (int i = 0; i < text.length(); i++) {
+            int septets = septets(text.charAt(i));
+            if (septets == 0) {
+                gsm7 = false;
+                break;
+            }
+            length += septets;
+        }
+        if (gsm7) {
+            return length <= GSM7_SINGLE ? 1 : pack(text, GSM7_MULTI, true);
+        }
+        return text.length() <= UCS2_SINGLE ? 1 : pack(text, UCS2_MULTI, false);
+    }
+
+    /**
+     * Fills segments the way the radio does: an escaped extension character
+     * or a surrogate pair is never split across two segments.
+     */
+    private static int pack(CharSequence text, int capacity, boolean gsm7) {
+        int count = 1;
+        int used = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int size;
+            if (gsm7) {
+                size = septets(c);
+            } else {
+                size = Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+            }
+            if (used + size > capacity) {
+                count++;
+                used = 0;
+            }
+            used += size;
+            if (size == 2 && !gsm7) {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static int septets(char c) {
+        if (c < TABLE_SIZE) {
+            return SEPTETS[c];
+        }
+        return c == EURO ? 2 : 0;
+    }
+
+    /**
+     * @return the message with lookalikes replaced, or the same instance if nothing changed
+     */
+    static String transliterate(String message, boolean letters) {
+        StringBuilder out = null;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (septets(c) != 0) {
+                if (out != null) {
+                    out.append(c);
+                }
+                continue;
+            }
+            String replacement = replacePunctuation(c);
+            if (replacement == null && letters) {
+                replacement = stripAccent(c);
+            }
+            if (replacement == null) {
+                if (out != null) {
+                    out.append(c);
+                }
+                continue;
+            }
+            if (out == null) {
+                out = new StringBuilder(message.length());
+                out.append(message, 0, i);
+            }
+            out.append(replacement);
+        }
+        return out != null ? out.toString() : message;
+    }
+
+    private static String replacePunctuation(char c) {
+        switch (c) {
+            case '\u2018': // left and right single quotes
+            case '\u2019':
+            case '\u201A':
+            case '\u201B':
+            case '\u2032': // prime
+            case '\u2039': // single angle quotes
+            case '\u203A':
+            case '`':
+            case '\u00B4': // acute accent
+                return "'";
+            case '\u201C': // left and right double quotes
+            case '\u201D':
+            case '\u201E':
+            case '\u201F':
+            case '\u2033': // double prime
+            case '\u00AB': // guillemets
+            case '\u00BB':
+                return "\"";
+            case '\u2010': // hyphen, non-breaking hyphen, figure dash, en and em dash, bar, minus
+            case '\u2011':
+            case '\u2012':
+            case '\u2013':
+            case '\u2014':
+            case '\u2015':
+            case '\u2212':
+                return "-";
+            case '\u2026': // ellipsis
+                return "...";
+            case '\u2022': // bullet
+                return "*";
+            case '\t':
+            case '\u00A0': // no-break, figure, thin, hair, narrow no-break and en/em spaces
+            case '\u2002':
+            case '\u2003':
+            case '\u2007':
+            case '\u2009':
+            case '\u200A':
+            case '\u202F':
+                return " ";
+            case '\u200B': // zero-width space and joiners, word joiner, byte order mark
+            case '\u200C':
+            case '\u200D':
+            case '\u2060':
+            case '\uFEFF':
+                return "";
+            default:
+                return null;
+        }
+    }
+
+    private static String stripAccent(char c) {
+        switch (c) {
+            case '\u0153': // oe ligature
+                return "oe";
+            case '\u0152':
+                return "OE";
+            case '\u0142': // Polish l with stroke
+                return "l";
+            case '\u0141':
+                return "L";
+            case '\u0111': // d with stroke
+                return "d";
+            case '\u0110':
+                return "D";
+            default:
+                break;
+        }
+        if (!Character.isLetter(c)) {
+            return null;
+        }
+        String base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+        return base.length() > 1 && septets(base.charAt(0)) == 1 && Character.isLetter(base.charAt(0))
+                ? base.substring(0, 1) : null;
+    }
+}
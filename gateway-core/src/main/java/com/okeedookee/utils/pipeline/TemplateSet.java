@@ -0,0 +1,63 @@
+package com.okeedookee.utils.pipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named message templates of one profile. Command files define templates
+ * and refer to them by name, also across files. Shared by the concurrent
+ * downloads of a profile, so it is synchronized.
+ */
+public class TemplateSet {
+    /** Templates kept per profile; the oldest definition goes first. */
+    public static final int MAX_TEMPLATES = 100;
+
+    private final Map<String, MessageTemplate> templates = new LinkedHashMap<>();
+    private boolean changed;
+
+    /**
+     * Compiles and stores a template, replacing one of the same name.
+     *
+     * @throws IllegalArgumentException if the template does not compile
+     */
+    public synchronized void define(String name, String text) {
+        MessageTemplate existing = templates.get(name);
+        if (existing != null && existing.getText().equals(text)) {
+            return;
+        }
+        MessageTemplate template = MessageTemplate.compile(text);
+        templates.remove(name);
+        templates.put(name, template);
+        if (templates.size() > MAX_TEMPLATES) {
+            templates.remove(templates.keySet().iterator().next());
+        }
+        changed = true;
+    }
+
+    /**
+     * @return the template, or null if none has this name
+     */
+    public synchronized MessageTemplate get(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * @return name to text of every template, oldest definition first
+     */
+    public synchronized Map<String, String> getDefinitions() {
+        Map<String, String> definitions = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageTemplate> entry : templates.entrySet()) {
+            definitions.put(entry.getKey(), entry.getValue().getText());
+        }
+        return definitions;
+    }
+
+    /**
+     * @return whether a definition changed since the last call
+     */
+    public synchronized boolean takeChanged() {
+        boolean result = changed;
+        changed = false;
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package com.okeedookee.utils.pipeline;
+
+/**
+ * Token bucket that hands out reservations: a caller always gets its tokens,
+ * possibly by going into debt, and is told how long to wait before using
+ * them. That way a request larger than the capacity (a long multipart
+ * message) is delayed instead of being refused forever. Not thread-safe.
+ */
+class TokenBucket {
+    private final double capacity;
+    private double ratePerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(double capacity, double tokensPerSecond, long nowNanos) {
+        this.capacity = capacity;
+        this.ratePerNano = tokensPerSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    void setRate(double tokensPerSecond, long nowNanos) {
+        refill(nowNanos);
+        ratePerNano = tokensPerSecond / 1_000_000_000d;
+    }
+
+    /**
+     * Takes {@code amount} tokens.
+     *
+     * @return nanoseconds to wait before the reserved tokens may be used
+     */
+    long reserve(double amount, long nowNanos) {
+        refill(nowNanos);
+        tokens -= amount;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / ratePerNano);
+    }
+
+    /**
+     * Gives back tokens of a reservation that was not used.
+     */
+    void refund(double amount, long nowNanos) {
+        refill(nowNanos);
+        tokens = Math.min(capacity, tokens + amount);
+    }
+
+    /**
+     * @return nanoseconds a reservation of {@code amount} would wait, without taking anything
+     */
+    long peek(double amount, long nowNanos) {
+        refill(nowNanos);
+        double after = tokens - amount;
+        return after >= 0 ? 0 : (long) Math.ceil(-after / ratePerNano);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * ratePerNano);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
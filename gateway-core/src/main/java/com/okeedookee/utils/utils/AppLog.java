@@ -0,0 +1,50 @@
+package com.okeedookee.utils.utils;
+
+public class AppLog {
+    // Name of GatewayLogger.Level.INFO, which entries without a level are read as
+    private static final String DEFAULT_LEVEL = "INFO";
+
+    private final long seq;
+    private final String level;
+    private final String timestamp;
+    private final long dateObj;
+    private final String message;
+
+    public AppLog(String timestamp, long dateObj, String message) {
+        this(0, DEFAULT_LEVEL, timestamp, dateObj, message);
+    }
+
+    public AppLog(long seq, String level, String timestamp, long dateObj, String message) {
+        this.seq = seq;
+        this.level = level;
+        this.timestamp = timestamp;
+        this.dateObj = dateObj;
+        this.message = message;
+    }
+
+    /**
+     * @return monotonically increasing position of this entry in the log store
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return the GatewayLogger level name; entries written before levels existed have none
+     */
+    public String getLevel() {
+        return level != null ? level : DEFAULT_LEVEL;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public long getDateObj() {
+        return dateObj;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
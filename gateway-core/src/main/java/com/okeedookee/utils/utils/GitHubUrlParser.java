@@ -16,12 +16,18 @@ public class GitHubUrlParser {
         private final String repo;
         private final String branch;
         private final String filePath;
+        private final boolean directory;
 
         public GitHubUrlInfo(String owner, String repo, String branch, String filePath) {
+            this(owner, repo, branch, filePath, false);
+        }
+
+        public GitHubUrlInfo(String owner, String repo, String branch, String filePath, boolean directory) {
             this.owner = owner;
             this.repo = repo;
             this.branch = branch;
             this.filePath = filePath;
+            this.directory = directory;
         }
 
         public String getOwner() {
@@ -36,10 +42,20 @@ public class GitHubUrlParser {
             return branch;
         }
 
+        /**
+         * @return path of the command file, or of the spool directory if {@link #isDirectory()}
+         */
         public String getFilePath() {
             return filePath;
         }
 
+        /**
+         * @return true for a spool directory whose files are all command files
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+
         public boolean isValid() {
             return owner != null && !owner.isEmpty() &&
                     repo != null && !repo.isEmpty() &&
@@ -53,6 +69,7 @@ public class GitHubUrlParser {
      * Supports formats:
      * - https://github.com/owner/repo/blob/branch/path/to/file.csv
      * - https://raw.githubusercontent.com/owner/repo/branch/path/to/file.csv
+     * - https://github.com/owner/repo/tree/branch/path/to/spool (a spool directory)
      * 
      * @param url The GitHub URL to parse
      * @return GitHubUrlInfo object containing parsed components, or null if invalid
@@ -72,8 +89,14 @@ public class GitHubUrlParser {
         Pattern rawPattern = Pattern.compile(
                 "https?://raw\\.githubusercontent\\.com/([^/]+)/([^/]+)/([^/]+)/(.+)");
 
+        // Pattern for github.com/owner/repo/tree/branch/path; the repository root is
+        // not accepted, since every file in a spool directory gets deleted
+        Pattern treePattern = Pattern.compile(
+                "https?://github\\.com/([^/]+)/([^/]+)/tree/([^/]+)/(.+?)/*");
+
         Matcher blobMatcher = blobPattern.matcher(url);
         Matcher rawMatcher = rawPattern.matcher(url);
+        Matcher treeMatcher = treePattern.matcher(url);
 
         if (blobMatcher.matches()) {
             String owner = blobMatcher.group(1);
@@ -87,6 +110,12 @@ public class GitHubUrlParser {
             String branch = rawMatcher.group(3);
             String filePath = rawMatcher.group(4);
             return new GitHubUrlInfo(owner, repo, branch, filePath);
+        } else if (treeMatcher.matches()) {
+            String owner = treeMatcher.group(1);
+            String repo = treeMatcher.group(2);
+            String branch = treeMatcher.group(3);
+            String directoryPath = treeMatcher.group(4);
+            return new GitHubUrlInfo(owner, repo, branch, directoryPath, true);
         }
 
         return null;
@@ -0,0 +1,59 @@
+package com.okeedookee.utils.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The stored form of an {@link AppLog}: one JSON object per line with the
+ * seq as its first field, so a reader paging back through history can skip
+ * newer lines without decoding them.
+ */
+public class LogCodec {
+    private static final String SEQ_PREFIX = "{\"seq\":";
+
+    private static final Gson gson = new Gson();
+
+    // Private constructor to prevent instantiation
+    private LogCodec() {
+    }
+
+    /**
+     * Appends the entry as JSON, without a line break.
+     */
+    public static void encode(AppLog log, StringBuilder out) {
+        gson.toJson(log, out);
+    }
+
+    /**
+     * Reads the seq without decoding the rest of the line.
+     *
+     * @return the seq, or -1 if the line does not start the expected way
+     */
+    public static long peekSeq(String line) {
+        if (!line.startsWith(SEQ_PREFIX)) {
+            return -1;
+        }
+        long seq = 0;
+        int i = SEQ_PREFIX.length();
+        int start = i;
+        while (i < line.length() && Character.isDigit(line.charAt(i))) {
+            seq = seq * 10 + (line.charAt(i) - '0');
+            i++;
+        }
+        return i > start ? seq : -1;
+    }
+
+    /**
+     * @return the entry, or null for a blank or unreadable line
+     */
+    public static AppLog decode(String line) {
+        if (line.isEmpty()) {
+            return null;
+        }
+        try {
+            return gson.fromJson(line, AppLog.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+}
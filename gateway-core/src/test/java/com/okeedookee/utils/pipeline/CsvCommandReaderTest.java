@@ -0,0 +1,66 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class CsvCommandReaderTest {
+
+    private static ReadResult read(String text) throws IOException {
+        return ReadResult.readAll(new CsvCommandReader(new StringReader(text)));
+    }
+
+    @Test
+    public void unquotedMessageRunsToEndOfLine() throws IOException {
+        ReadResult result = read("123,Hello, world\r\n456 , Bye  \n");
+        assertEquals(Arrays.asList("123 Hello, world", "456 Bye"), result.sent());
+        assertEquals(Collections.emptyList(), result.errors);
+    }
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+        ReadResult result = read("\"123\",\"Say \"\"hi\"\", then\r\nleave\"  \n"
+                + "\"7\",x\n"
+                + "456,\"Last\"");
+        assertEquals(Arrays.asList("123 Say \"hi\", then\nleave", "7 x", "456 Last"), result.sent());
+        assertEquals(1, result.commands.get(0).getLineNumber());
+        assertEquals(4, result.commands.get(2).getLineNumber());
+    }
+
+    @Test
+    public void rejectsTextAfterQuotedMessage() throws IOException {
+        ReadResult result = read("123,\"Hi\",456,Hello\n"
+                + "123,\"Hi\" there\n"
+                + "789,Ok\n");
+        assertEquals(Collections.singletonList("789 Ok"), result.sent());
+        assertEquals(Arrays.asList("1: unexpected character after closing quote",
+                "2: unexpected character after closing quote"), result.errors);
+    }
+
+    @Test
+    public void reportsMalformedLinesAndKeepsReading() throws IOException {
+        ReadResult result = read("\uFEFF123\n"
+                + "\n"
+                + ",Hello\n"
+                + "123,\n"
+                + "\"12\"3,x\n"
+                + "456,Ok\n"
+                + "789,\"never closed\n");
+        assertEquals(Collections.singletonList("456 Ok"), result.sent());
+        assertEquals(Arrays.asList("1: missing message field", "3: empty phone number", "4: empty message",
+                "5: unexpected character after closing quote", "7: unterminated quoted field"), result.errors);
+    }
+
+    @Test
+    public void splitsBroadcastLine() throws IOException {
+        ReadResult result = read("1; 2;;3 ,Hi\n;,Nobody\n");
+        assertEquals(Arrays.asList("1 Hi", "2 Hi", "3 Hi"), result.sent());
+        assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(result.commands.get(0).getRecipientIndex(),
+                result.commands.get(1).getRecipientIndex(), result.commands.get(2).getRecipientIndex()));
+        assertEquals(Collections.singletonList("2: empty phone number"), result.errors);
+    }
+}
@@ -0,0 +1,147 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DuplicateFilterTest {
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);
+    private static final long NOW = 1_700_000_000_000L;
+    // Index slots of the filter; a key's home slot is bits 40 and up
+    private static final int SLOTS = DuplicateFilter.EXACT_CAPACITY * 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DuplicateFilter open() throws IOException {
+        return DuplicateFilter.open(new File(folder.getRoot(), "sent.bin"), WINDOW);
+    }
+
+    /**
+     * @return a distinct key whose index probe starts at {@code home}
+     */
+    private static long key(int home, int n) {
+        return ((long) home << 40) | n;
+    }
+
+    @Test
+    public void remembersSendsForOneWindow() throws IOException {
+        DuplicateFilter filter = open();
+        long key = DuplicateFilter.fingerprint("+15551234567", "Hi", null, "p/abc", 1);
+        assertEquals(DuplicateFilter.Verdict.NEW, filter.check(key, NOW));
+        filter.record(key, NOW);
+        assertEquals(DuplicateFilter.Verdict.SENT, filter.check(key, NOW + WINDOW - 1));
+        assertEquals(DuplicateFilter.Verdict.NEW, filter.check(key, NOW + WINDOW));
+    }
+
+    @Test
+    public void keepsProbeChainReachableAfterEviction() throws IOException {
+        DuplicateFilter filter = open();
+        int home = 1000;
+        // Two keys at one home and two pushed along behind them; the oldest gets evicted
+        long[] chain = { key(home, 1), key(home, 2), key(home + 1, 3), key(home + 2, 4) };
+        for (long key : chain) {
+            filter.record(key, NOW);
+        }
+        fillRing(filter, DuplicateFilter.EXACT_CAPACITY - chain.length + 1, 20_000);
+        assertEquals(DuplicateFilter.Verdict.PROBABLY_SENT, filter.check(chain[0], NOW + 2));
+        for (int i = 1; i < chain.length; i++) {
+            assertEquals(Long.toHexString(chain[i]), DuplicateFilter.Verdict.SENT, filter.check(chain[i], NOW + 2));
+        }
+    }
+
+    @Test
+    public void keepsProbeChainReachableAcrossIndexWrap() throws IOException {
+        DuplicateFilter filter = open();
+        int last = SLOTS - 1;
+        long[] chain = { key(last, 1), key(last, 2), key(last, 3), key(0, 4), key(1, 5) };
+        for (long key : chain) {
+            filter.record(key, NOW);
+        }
+        fillRing(filter, DuplicateFilter.EXACT_CAPACITY - chain.length + 1, 1000);
+        for (int i = 1; i < chain.length; i++) {
+            assertEquals(Long.toHexString(chain[i]), DuplicateFilter.Verdict.SENT, filter.check(chain[i], NOW + 2));
+        }
+    }
+
+    /**
+     * Records {@code count} sends whose keys sit alone at homes from {@code firstHome} on.
+     */
+    private static void fillRing(DuplicateFilter filter, int count, int firstHome) throws IOException {
+        for (int i = 0; i < count; i++) {
+            filter.record(key(firstHome + i, 0), NOW + 1);
+        }
+    }
+
+    @Test
+    public void fallsBackToBloomFilterForEvictedSends() throws IOException {
+        DuplicateFilter filter = open();
+        long evicted = key(7, 1);
+        long neighbour = key(7, 2);
+        filter.record(evicted, NOW);
+        filter.record(neighbour, NOW);
+        fillRing(filter, DuplicateFilter.EXACT_CAPACITY - 1, 100);
+        // The ring dropped exactly the oldest send
+        assertEquals(DuplicateFilter.Verdict.PROBABLY_SENT, filter.check(evicted, NOW + 2));
+        assertEquals(DuplicateFilter.Verdict.SENT, filter.check(neighbour, NOW + 2));
+        // Once the evicted sends are older than the window a Bloom match is not trusted
+        assertEquals(DuplicateFilter.Verdict.NEW, filter.check(evicted, NOW + WINDOW));
+    }
+
+    @Test
+    public void survivesRestartThroughSnapshotAndJournal() throws IOException {
+        DuplicateFilter filter = open();
+        filter.record(key(1, 1), NOW);
+        filter.save();
+        filter.record(key(2, 2), NOW);
+        filter.closeJournal();
+        // A torn record at the end of the journal is dropped
+        try (FileOutputStream journal = new FileOutputStream(new File(folder.getRoot(), "sent.bin.journal"),
+                true)) {
+            journal.write(new byte[5]);
+        }
+
+        DuplicateFilter reopened = open();
+        assertEquals(DuplicateFilter.Verdict.SENT, reopened.check(key(1, 1), NOW + 1));
+        assertEquals(DuplicateFilter.Verdict.SENT, reopened.check(key(2, 2), NOW + 1));
+        assertEquals(DuplicateFilter.Verdict.NEW, reopened.check(key(3, 3), NOW + 1));
+    }
+
+    @Test
+    public void startsEmptyFromDamagedSnapshot() throws IOException {
+        try (FileOutputStream snapshot = new FileOutputStream(new File(folder.getRoot(), "sent.bin"))) {
+            snapshot.write(new byte[] { 1, 2, 3 });
+        }
+        DuplicateFilter filter = open();
+        assertEquals(DuplicateFilter.Verdict.NEW, filter.check(key(1, 1), NOW));
+    }
+
+    @Test
+    public void fingerprintsByClientIdOrBlobAndLine() {
+        long byId = DuplicateFilter.fingerprint("+1", "Hi", "order-42", "p/abc", 1);
+        assertEquals(byId, DuplicateFilter.fingerprint("+1", "Hi", "order-42", "q/def", 9));
+        assertNotEquals(byId, DuplicateFilter.fingerprint("+1", "Hi", "order-43", "p/abc", 1));
+
+        long byLine = DuplicateFilter.fingerprint("+1", "Hi", null, "p/abc", 1);
+        // Only the blob sha counts, not the profile or spool file name in front of it
+        assertEquals(byLine, DuplicateFilter.fingerprint("+1", "Hi", null, "q/abc", 1));
+        assertEquals(byLine, DuplicateFilter.fingerprint("+1", "Hi", "", "q/file.csv@abc", 1));
+        assertNotEquals(byLine, DuplicateFilter.fingerprint("+1", "Hi", null, "p/abc", 2));
+        assertNotEquals(byLine, DuplicateFilter.fingerprint("+1", "Hi!", null, "p/abc", 1));
+        // The same blob committed again after a delete is read anew
+        long reread = DuplicateFilter.fingerprint("+1", "Hi", null, "p/abc#1", 1);
+        assertNotEquals(byLine, reread);
+        assertEquals(reread, DuplicateFilter.fingerprint("+1", "Hi", null, "q/file.csv@abc#1", 1));
+        assertNotEquals(reread, DuplicateFilter.fingerprint("+1", "Hi", null, "p/abc#2", 1));
+        assertEquals(byId, DuplicateFilter.fingerprint("+1", "Hi", "order-42", "p/abc#1", 1));
+        assertNotEquals(DuplicateFilter.fingerprint("+1", "2Hi", null, "p/abc", 1),
+                DuplicateFilter.fingerprint("+12", "Hi", null, "p/abc", 1));
+    }
+}
@@ -0,0 +1,71 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FleetShardTest {
+
+    @Test
+    public void hashNeverChanges() {
+        // Devices of a fleet may run different builds; these values must hold in every one of them
+        assertEquals(3, FleetShard.shardOf("+15551234567", 4));
+        assertEquals(6, FleetShard.shardOf("+15551234567", 7));
+        assertEquals(2, FleetShard.shardOf("+447700900123", 4));
+        assertEquals(7, FleetShard.shardOf("2024-05-01.csv", 7));
+        assertEquals(2, FleetShard.shardOf("", 4));
+    }
+
+    @Test
+    public void spreadsRecipientsEvenly() {
+        int count = 5;
+        int[] perShard = new int[count + 1];
+        int keys = 50_000;
+        for (int i = 0; i < keys; i++) {
+            int shard = FleetShard.shardOf(String.format("+1555%07d", i), count);
+            assertTrue(shard >= 1 && shard <= count);
+            perShard[shard]++;
+        }
+        for (int shard = 1; shard <= count; shard++) {
+            assertEquals("shard " + shard, keys / count, perShard[shard], keys / count / 10);
+        }
+    }
+
+    @Test
+    public void everyKeyHasExactlyOneOwner() {
+        FleetShard[] fleet = { new FleetShard(1, 3), new FleetShard(2, 3), new FleetShard(3, 3) };
+        for (int i = 0; i < 1000; i++) {
+            String key = "+4477009" + i;
+            int owners = 0;
+            for (FleetShard shard : fleet) {
+                if (shard.owns(key)) {
+                    owners++;
+                }
+            }
+            assertEquals(key, 1, owners);
+        }
+    }
+
+    @Test
+    public void clampsConfiguration() {
+        FleetShard alone = new FleetShard(3, 0);
+        assertEquals(1, alone.getNumber());
+        assertEquals(1, alone.getCount());
+        assertFalse(alone.isFleet());
+        assertTrue(alone.owns("+15551234567"));
+        assertTrue(FleetShard.SINGLE.owns("anything"));
+
+        FleetShard tooHigh = new FleetShard(9, 4);
+        assertEquals(4, tooHigh.getNumber());
+        assertTrue(tooHigh.isFleet());
+        assertEquals(1, new FleetShard(-2, 4).getNumber());
+    }
+
+    @Test
+    public void namesMarkers() {
+        assertEquals("2-of-4", new FleetShard(2, 4).getMarkerName());
+        assertEquals("shard 2 of 4", new FleetShard(2, 4).toString());
+    }
+}
@@ -0,0 +1,71 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class MessageTemplateTest {
+
+    private static Map<String, String> vars(String... pairs) {
+        Map<String, String> vars = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            vars.put(pairs[i], pairs[i + 1]);
+        }
+        return vars;
+    }
+
+    @Test
+    public void fillsPlaceholders() {
+        MessageTemplate template = MessageTemplate.compile("Hi {name}, see you at { time }.");
+        assertEquals("Hi Ann, see you at 9:00.", template.expand(vars("name", "Ann", "time", "9:00")));
+        assertEquals("Hi {name}, see you at { time }.", template.getText());
+    }
+
+    @Test
+    public void fillsRepeatedAndAdjacentPlaceholders() {
+        MessageTemplate template = MessageTemplate.compile("{a}{b}{a}");
+        assertEquals("xyx", template.expand(vars("a", "x", "b", "y")));
+    }
+
+    @Test
+    public void keepsDoubledBracesAsLiterals() {
+        MessageTemplate template = MessageTemplate.compile("{{code}} is {code}}}");
+        assertEquals("{code} is 42}", template.expand(vars("code", "42")));
+    }
+
+    @Test
+    public void textWithoutPlaceholdersNeedsNoValues() {
+        assertEquals("Plain", MessageTemplate.compile("Plain").expand(Collections.<String, String>emptyMap()));
+        assertEquals("", MessageTemplate.compile("").expand(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void rejectsMalformedTemplates() {
+        assertRejected("Hi {name");
+        assertRejected("Hi { }");
+        assertRejected("{}");
+    }
+
+    @Test
+    public void rejectsMissingValue() {
+        try {
+            MessageTemplate.compile("Hi {name}").expand(vars("other", "x"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("no value for {name}", e.getMessage());
+        }
+    }
+
+    private static void assertRejected(String text) {
+        try {
+            MessageTemplate.compile(text);
+            fail("compiled \"" + text + "\"");
+        } catch (IllegalArgumentException expected) {
+            // reported to the file's error listener by the reader
+        }
+    }
+}
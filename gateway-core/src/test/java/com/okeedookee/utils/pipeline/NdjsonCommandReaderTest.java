@@ -0,0 +1,100 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class NdjsonCommandReaderTest {
+
+    private static ReadResult read(String text) throws IOException {
+        return ReadResult.readAll(new NdjsonCommandReader(new StringReader(text), new TemplateSet()));
+    }
+
+    @Test
+    public void readsFieldsAndAliases() throws IOException {
+        ReadResult result = read("{\"phone\": \"+1\", \"message\": \"Hi\", \"sim\": 2, \"priority\": 5,"
+                + " \"send_at\": 60, \"id\": \"order-42\", \"extra\": [1, {\"a\": 2}]}\n"
+                + "{\"to\": \"+2\", \"body\": \"Yo\", \"sim\": null}\r\n");
+        assertEquals(Arrays.asList("+1 Hi", "+2 Yo"), result.sent());
+        SmsCommand first = result.commands.get(0);
+        assertEquals(2, first.getSubscriptionId());
+        assertEquals(5, first.getPriority());
+        assertEquals(60_000, first.getSendAtMillis());
+        assertEquals("order-42", first.getClientId());
+        assertEquals(SmsCommand.ANY_SIM, result.commands.get(1).getSubscriptionId());
+        assertEquals(Collections.emptyList(), result.errors);
+    }
+
+    @Test
+    public void skipsTruncatedAndGarbageLinesAndKeepsReading() throws IOException {
+        ReadResult result = read("{\"phone\":\"1\",\"message\":\"a\"}\n"
+                + "{\"phone\":\"2\",\"message\":\"x\"\n"
+                + "not json at all\n"
+                + "{\"phone\":\"3\",\"message\":\"b\"}\n"
+                + "{\"phone\":\"4\",\"message\":\"c\"} {\"phone\":\"5\"}\n"
+                + "{\"phone\":\"6\",\"mess");
+        assertEquals(Arrays.asList("1 a", "3 b"), result.sent());
+        assertEquals(Arrays.asList("2: invalid JSON", "3: invalid JSON", "5: more than one value on the line",
+                "6: invalid JSON"), result.errors);
+    }
+
+    @Test
+    public void reportsWrongValueTypes() throws IOException {
+        ReadResult result = read("{\"phone\":\"1\",\"message\":\"a\",\"sim\":\"two\"}\n"
+                + "{\"phone\":\"1\",\"message\":\"a\",\"send_at\":\"tomorrow\"}\n"
+                + "[1, 2]\n");
+        assertEquals(Collections.emptyList(), result.commands);
+        assertEquals(3, result.errors.size());
+        assertEquals("2: invalid send_at", result.errors.get(1));
+    }
+
+    @Test
+    public void fillsTemplatesDefinedEarlierOrInEarlierFiles() throws IOException {
+        TemplateSet templates = new TemplateSet();
+        ReadResult first = ReadResult.readAll(new NdjsonCommandReader(new StringReader(
+                "{\"define\": \"reminder\", \"text\": \"Hi {name}, at {time}.\"}\n"
+                        + "{\"phone\": \"+1\", \"template\": \"reminder\", "
+                        + "\"vars\": {\"name\": \"Ann\", \"time\": \"9\"}}\n"),
+                templates));
+        ReadResult second = ReadResult.readAll(new NdjsonCommandReader(new StringReader(
+                "{\"phone\": \"+2\", \"template\": \"reminder\", \"vars\": {\"name\": \"Bo\", \"time\": \"10\"}}\n"
+                        + "{\"phone\": \"+3\", \"template\": \"reminder\", \"vars\": {\"name\": \"Cy\"}}\n"
+                        + "{\"phone\": \"+4\", \"template\": \"other\"}\n"
+                        + "{\"define\": \"broken\", \"text\": \"Hi {name\"}\n"
+                        + "{\"define\": \"empty\"}\n"),
+                templates));
+        assertEquals(Collections.singletonList("+1 Hi Ann, at 9."), first.sent());
+        assertEquals(Collections.singletonList("+2 Hi Bo, at 10."), second.sent());
+        assertEquals(Arrays.asList("2: template \"reminder\": no value for {time}",
+                "3: unknown template \"other\"", "4: template \"broken\": unclosed '{' at position 4",
+                "5: template \"empty\" has no text"), second.errors);
+    }
+
+    @Test
+    public void sendsBroadcastLineToEveryNumber() throws IOException {
+        ReadResult result = read("{\"phone\": [\"+1\", \" \", null, \"+2\", \"+3\"], \"message\": \"All\"}\n"
+                + "{\"phone\": [], \"message\": \"Nobody\"}\n");
+        assertEquals(Arrays.asList("+1 All", "+2 All", "+3 All"), result.sent());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, result.commands.get(i).getLineNumber());
+            assertEquals(i, result.commands.get(i).getRecipientIndex());
+        }
+        assertEquals(Collections.singletonList("2: empty phone number"), result.errors);
+    }
+
+    @Test
+    public void skipsOverlongLine() throws IOException {
+        char[] padding = new char[NdjsonCommandReader.MAX_LINE_LENGTH];
+        Arrays.fill(padding, ' ');
+        ReadResult result = read("{\"phone\":\"1\",\"message\":\"a\"}" + new String(padding) + "\n"
+                + "\uFEFF\n"
+                + "{\"phone\":\"2\",\"message\":\"b\"}\n");
+        assertEquals(Collections.singletonList("2 b"), result.sent());
+        assertEquals(Arrays.asList("1: line longer than " + NdjsonCommandReader.MAX_LINE_LENGTH + " characters",
+                "2: invalid JSON"), result.errors);
+    }
+}
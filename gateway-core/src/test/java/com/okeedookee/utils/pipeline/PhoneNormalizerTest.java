@@ -0,0 +1,85 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class PhoneNormalizerTest {
+    private final List<String> errors = new ArrayList<>();
+
+    private String normalize(PhoneNormalizer normalizer, String raw) {
+        return normalizer.normalize(raw, 7, (lineNumber, reason) -> errors.add(lineNumber + ": " + reason));
+    }
+
+    @Test
+    public void addsDefaultCountryAfterDroppingTrunkPrefix() {
+        PhoneNormalizer uk = new PhoneNormalizer("44");
+        assertEquals("+447700900123", normalize(uk, "07700 900123"));
+        assertEquals("+447700900123", normalize(uk, "0044 7700-900.123"));
+        assertEquals("+447700900123", normalize(uk, "+44 (7700) 900/123"));
+        assertEquals("+33612345678", normalize(uk, "+33 6 12 34 56 78"));
+    }
+
+    @Test
+    public void handlesNorthAmericanPrefixes() {
+        PhoneNormalizer us = new PhoneNormalizer("1");
+        assertEquals("+15552345678", normalize(us, "(555) 234-5678"));
+        assertEquals("+15552345678", normalize(us, "1-555-234-5678"));
+        assertEquals("+447700900123", normalize(us, "011 44 7700 900123"));
+        assertNull(normalize(us, "+1 055 234 5678"));
+        assertNull(normalize(us, "+1 555 234 567"));
+    }
+
+    @Test
+    public void keepsItalianTrunkZero() {
+        assertEquals("+390612345678", normalize(new PhoneNormalizer("39"), "06 1234 5678"));
+    }
+
+    @Test
+    public void keepsShortCodesAndNationalNumbersWithoutCountry() {
+        PhoneNormalizer none = new PhoneNormalizer("");
+        assertEquals("12345", normalize(none, "12345"));
+        assertEquals("07700900123", normalize(none, "07700 900123"));
+        assertEquals("+447700900123", normalize(none, "+447700900123"));
+        assertEquals("12345", normalize(new PhoneNormalizer("44"), "12345"));
+    }
+
+    @Test
+    public void readsDigitsOfOtherScripts() {
+        // Arabic-Indic and fullwidth digits
+        assertEquals("+447700900123", normalize(new PhoneNormalizer("44"),
+                "+\u0664\u0664\u0667\u0667\u0660\u0660\u0669\u0660\u0660\u0661\u0662\u0663"));
+        assertEquals("+447700900123", normalize(new PhoneNormalizer("44"), "\uFF10\uFF17\uFF17\uFF10\uFF10900123"));
+    }
+
+    @Test
+    public void rejectsWithReason() {
+        PhoneNormalizer uk = new PhoneNormalizer("44");
+        assertNull(normalize(uk, "call 07700"));
+        assertNull(normalize(uk, "++447700900123"));
+        assertNull(normalize(uk, "+"));
+        assertNull(normalize(uk, "+123456"));
+        assertNull(normalize(uk, "+1234567890123456"));
+        assertNull(normalize(uk, "+0447700900123"));
+        assertEquals("7: invalid phone number \"call 07700\" (unexpected 'c')", errors.get(0));
+        assertEquals("7: invalid phone number \"++447700900123\" (unexpected '+')", errors.get(1));
+        assertEquals("7: invalid phone number \"+\" (no digits)", errors.get(2));
+        assertEquals("7: invalid phone number \"+123456\" (too short)", errors.get(3));
+        assertEquals("7: invalid phone number \"+1234567890123456\" (too long)", errors.get(4));
+        assertEquals("7: invalid phone number \"+0447700900123\" (no country code)", errors.get(5));
+    }
+
+    @Test
+    public void countsCachedResultsToo() {
+        PhoneNormalizer uk = new PhoneNormalizer("44");
+        normalize(uk, "+447700900123");
+        normalize(uk, "07700900123");
+        normalize(uk, "07700900123");
+        normalize(uk, "x");
+        assertEquals("1 accepted, 2 normalized, 1 rejected", uk.describe());
+        assertEquals(4, uk.getCount());
+    }
+}
@@ -0,0 +1,39 @@
+package com.okeedookee.utils.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything a {@link CommandReader} produced: its commands and the lines
+ * it reported, as {@code "<line>: <reason>"}.
+ */
+final class ReadResult {
+    final List<SmsCommand> commands = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+
+    static ReadResult readAll(CommandReader reader) throws IOException {
+        ReadResult result = new ReadResult();
+        reader.setErrorListener((lineNumber, reason) -> result.errors.add(lineNumber + ": " + reason));
+        try {
+            SmsCommand command;
+            while ((command = reader.next()) != null) {
+                result.commands.add(command);
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return each command as {@code "<phone> <message>"}
+     */
+    List<String> sent() {
+        List<String> sent = new ArrayList<>();
+        for (SmsCommand command : commands) {
+            sent.add(command.getPhone() + " " + command.getMessage());
+        }
+        return sent;
+    }
+}
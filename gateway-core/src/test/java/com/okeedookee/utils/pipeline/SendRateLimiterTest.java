@@ -0,0 +1,50 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SendRateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long now = 1_000 * SECOND;
+
+    @Test
+    public void cancelGivesBackMessageAndSegmentTokens() {
+        SendRateLimiter limiter = new SendRateLimiter(new RateLimitConfig(1, 60, 0), () -> now);
+        assertEquals(0, limiter.reserve(1));
+        long wait = limiter.reserve(1);
+        assertEquals(SECOND, wait);
+
+        limiter.cancel(1);
+        assertEquals(wait, limiter.peekWait(1));
+        assertEquals(wait, limiter.reserve(1));
+    }
+
+    @Test
+    public void cancelFreesWindowSlot() {
+        SendRateLimiter limiter = new SendRateLimiter(new RateLimitConfig(1000, 60_000, 2), () -> now);
+        assertEquals(0, limiter.reserve(1));
+        now += SECOND;
+        assertEquals(0, limiter.reserve(1));
+        now += SECOND;
+        long windowWait = TimeUnit.MILLISECONDS.toNanos(RateLimitConfig.WINDOW_MILLIS) - 2 * SECOND;
+        assertEquals(windowWait, limiter.reserve(1));
+
+        // Without the cancel the next send would wait for the second event to leave the window
+        limiter.cancel(1);
+        assertEquals(windowWait, limiter.peekWait(1));
+        assertEquals(windowWait, limiter.reserve(1));
+    }
+
+    @Test
+    public void cancelledSendIsNotCounted() {
+        SendRateLimiter limiter = new SendRateLimiter(new RateLimitConfig(1, 60, 0), () -> now);
+        limiter.reserve(1);
+        limiter.reserve(1);
+        limiter.cancel(1);
+        assertEquals("1 sends, 0 throttled, waited 0ms total / 1000ms max, 0 limit errors, backoff level 0",
+                limiter.describeAndReset());
+    }
+}
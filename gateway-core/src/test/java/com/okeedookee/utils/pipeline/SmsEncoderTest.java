@@ -0,0 +1,118 @@
+package com.okeedookee.utils.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SmsEncoderTest {
+    private static final String CYRILLIC = "\u0436";
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    private final List<String> reports = new ArrayList<>();
+
+    private static String repeat(String s, int times) {
+        StringBuilder out = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            out.append(s);
+        }
+        return out.toString();
+    }
+
+    private String prepare(SmsEncoder encoder, String message) {
+        return encoder.prepare(message, 3, (lineNumber, reason) -> reports.add(lineNumber + ": " + reason));
+    }
+
+    @Test
+    public void countsGsm7AtSingleAndMultipartLimits() {
+        assertEquals(1, SmsEncoder.countSegments(""));
+        assertEquals(1, SmsEncoder.countSegments(repeat("a", 160)));
+        assertEquals(2, SmsEncoder.countSegments(repeat("a", 161)));
+        assertEquals(2, SmsEncoder.countSegments(repeat("a", 306)));
+        assertEquals(3, SmsEncoder.countSegments(repeat("a", 307)));
+    }
+
+    @Test
+    public void countsExtensionCharactersAsTwoSeptets() {
+        assertTrue(SmsEncoder.isGsm7("{[~]}|^\\\f\u20AC"));
+        assertEquals(1, SmsEncoder.countSegments(repeat("\u20AC", 80)));
+        assertEquals(2, SmsEncoder.countSegments(repeat("\u20AC", 81)));
+        assertEquals(1, SmsEncoder.countSegments(repeat("a", 158) + "["));
+        assertEquals(2, SmsEncoder.countSegments(repeat("a", 159) + "["));
+    }
+
+    @Test
+    public void neverSplitsAnEscapeAcrossSegments() {
+        // 306 septets would fill two segments exactly, but the escape cannot straddle the boundary
+        assertEquals(3, SmsEncoder.countSegments(repeat("a", 152) + "[" + repeat("a", 152)));
+        assertEquals(2, SmsEncoder.countSegments(repeat("a", 151) + "[" + repeat("a", 153)));
+    }
+
+    @Test
+    public void countsUcs2AtSingleAndMultipartLimits() {
+        assertFalse(SmsEncoder.isGsm7(CYRILLIC));
+        assertEquals(1, SmsEncoder.countSegments(repeat(CYRILLIC, 70)));
+        assertEquals(2, SmsEncoder.countSegments(repeat(CYRILLIC, 71)));
+        assertEquals(2, SmsEncoder.countSegments(repeat(CYRILLIC, 134)));
+        assertEquals(3, SmsEncoder.countSegments(repeat(CYRILLIC, 135)));
+        // One character outside GSM-7 makes the whole message UCS-2
+        assertEquals(2, SmsEncoder.countSegments(repeat("a", 70) + CYRILLIC));
+    }
+
+    @Test
+    public void neverSplitsASurrogatePairAcrossSegments() {
+        assertEquals(1, SmsEncoder.countSegments(repeat(EMOJI, 35)));
+        assertEquals(2, SmsEncoder.countSegments(repeat(EMOJI, 36)));
+        assertEquals(3, SmsEncoder.countSegments(repeat(CYRILLIC, 66) + EMOJI + repeat(CYRILLIC, 66)));
+        assertEquals(2, SmsEncoder.countSegments(repeat(CYRILLIC, 65) + EMOJI + repeat(CYRILLIC, 67)));
+    }
+
+    @Test
+    public void transliteratesPunctuationOnlyWhenThatReachesGsm7() {
+        SmsEncoder encoder = new SmsEncoder(SmsEncoder.Transliteration.PUNCTUATION, 0, false);
+        assertEquals("It's \"fine\" - really...", prepare(encoder, "It\u2019s \u201Cfine\u201D \u2013 really\u2026"));
+        String withEmoji = "It\u2019s " + EMOJI;
+        assertSame(withEmoji, prepare(encoder, withEmoji));
+        String accented = "Za\u017C\u00F3\u0142\u0107";
+        assertSame(accented, prepare(encoder, accented));
+        assertEquals("3 messages in 3 segments (2 UCS-2, 1 transliterated, 0 over budget)", encoder.describe());
+    }
+
+    @Test
+    public void stripsAccentsWhenAllowed() {
+        SmsEncoder encoder = new SmsEncoder(SmsEncoder.Transliteration.ALL, 0, false);
+        assertEquals("Zazolc", prepare(encoder, "Za\u017C\u00F3\u0142\u0107"));
+        // Accented letters that GSM-7 has are kept
+        assertEquals("\u00E9t\u00E9", prepare(encoder, "\u00E9t\u00E9"));
+        assertEquals("oeuvre", prepare(encoder, "\u0153uvre"));
+    }
+
+    @Test
+    public void appliesSegmentBudget() {
+        SmsEncoder lenient = new SmsEncoder(SmsEncoder.Transliteration.OFF, 1, false);
+        String twoSegments = repeat("a", 161);
+        assertEquals(twoSegments, prepare(lenient, twoSegments));
+        SmsEncoder strict = new SmsEncoder(SmsEncoder.Transliteration.OFF, 1, true);
+        assertNull(prepare(strict, repeat(CYRILLIC, 71)));
+        assertEquals("short", prepare(strict, "short"));
+        assertEquals(Arrays.asList("3: message takes 2 segments, over the limit of 1; queued anyway",
+                "3: message takes 2 segments (UCS-2), over the limit of 1; skipping"), reports);
+        assertEquals(1, strict.getMessages());
+        assertEquals("1 messages in 1 segments (0 UCS-2, 0 transliterated, 1 over budget)", strict.describe());
+    }
+
+    @Test
+    public void leavesGsm7MessagesAlone() {
+        SmsEncoder encoder = new SmsEncoder(SmsEncoder.Transliteration.ALL, 0, false);
+        String message = "Hello \u00A3 \u20AC {}";
+        assertSame(message, prepare(encoder, message));
+        assertEquals(Collections.emptyList(), reports);
+    }
+}